@@ -0,0 +1,146 @@
+package fuse.SDFS;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.opendedup.collections.SparseDataChunk;
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.io.DedupFileChannel;
+import org.opendedup.sdfs.io.MetaDataDedupFile;
+import org.opendedup.sdfs.io.SparseDedupFile;
+import org.opendedup.sdfs.mgmt.CopyExtents;
+import org.w3c.dom.Element;
+
+/**
+ * fallocate and copy_file_range for files of the volume. Both are done on the
+ * map wherever the range covers whole chunks, so punching holes and cloning
+ * large ranges cost metadata updates instead of data I/O. The fuse binding
+ * has no callbacks for either, so they are run through the
+ * user.cmd.file.punchhole and user.cmd.file.copyrange commands of @see
+ * SDFSCmds .
+ */
+public class FileRangeOps {
+	public static final int FALLOC_FL_KEEP_SIZE = 0x01;
+	public static final int FALLOC_FL_PUNCH_HOLE = 0x02;
+	public static final int FALLOC_FL_ZERO_RANGE = 0x10;
+	private static final int COPY_BUFFER = 1024 * 1024;
+
+	/**
+	 * Applies an fallocate request. Space is not reserved ahead of time in a
+	 * dedup volume, so a plain allocation only extends the file. Punching a
+	 * hole and zeroing a range both drop the whole chunks in the range from
+	 * the map.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if the mode holds a flag other than keep size, punch hole
+	 *             or zero range
+	 */
+	public static void allocate(DedupFileChannel ch, int mode, long offset, long len) throws Exception {
+		if ((mode & ~(FALLOC_FL_KEEP_SIZE | FALLOC_FL_PUNCH_HOLE | FALLOC_FL_ZERO_RANGE)) != 0)
+			throw new UnsupportedOperationException("fallocate mode " + mode + " not supported");
+		if (offset < 0 || len <= 0)
+			throw new IllegalArgumentException("invalid range " + offset + " " + len);
+		if ((mode & FALLOC_FL_PUNCH_HOLE) != 0 && (mode & FALLOC_FL_KEEP_SIZE) == 0)
+			throw new IllegalArgumentException("punch hole requires keep size");
+		MetaDataDedupFile mf = ch.getFile();
+		if ((mode & (FALLOC_FL_PUNCH_HOLE | FALLOC_FL_ZERO_RANGE)) != 0)
+			ch.punchHole(offset, len);
+		if ((mode & FALLOC_FL_KEEP_SIZE) == 0 && offset + len > mf.length())
+			mf.setLength(offset + len, true);
+	}
+
+	/**
+	 * Copies len bytes from one file to another. When both offsets sit at the
+	 * same place within a chunk the chunk aligned part of the range is copied
+	 * as extents through @see CopyExtents and holes in the source become holes
+	 * in the destination. Everything else is copied through the channels.
+	 *
+	 * @param srcPath
+	 *            the path of the source relative to the volume
+	 * @param dstPath
+	 *            the path of the destination relative to the volume
+	 * @return the number of bytes copied
+	 */
+	public static long copyRange(DedupFileChannel src, String srcPath, long srcOffset, DedupFileChannel dst,
+			String dstPath, long dstOffset, long len) throws Exception {
+		long slen = src.getFile().length();
+		if (srcOffset >= slen || len <= 0)
+			return 0;
+		if (srcOffset + len > slen)
+			len = slen - srcOffset;
+		int cl = Main.CHUNK_LENGTH;
+		if (srcOffset % cl != dstOffset % cl)
+			return copyBytes(src, srcOffset, dst, dstOffset, len);
+		long copied = 0;
+		long head = (cl - (srcOffset % cl)) % cl;
+		if (head > len)
+			head = len;
+		if (head > 0)
+			copied += copyBytes(src, srcOffset, dst, dstOffset, head);
+		long mid = ((len - head) / cl) * cl;
+		if (mid > 0)
+			copied += copyExtents(src, srcPath, srcOffset + head, dst, dstPath, dstOffset + head, mid);
+		long tail = len - head - mid;
+		if (tail > 0)
+			copied += copyBytes(src, srcOffset + head + mid, dst, dstOffset + head + mid, tail);
+		return copied;
+	}
+
+	private static long copyExtents(DedupFileChannel src, String srcPath, long srcOffset, DedupFileChannel dst,
+			String dstPath, long dstOffset, long len) throws Exception {
+		SparseDedupFile sdf = (SparseDedupFile) src.getDedupFile();
+		SparseDedupFile ddf = (SparseDedupFile) dst.getDedupFile();
+		sdf.flushRange(srcOffset, srcOffset + len);
+		ddf.flushRange(dstOffset, dstOffset + len);
+		int cl = Main.CHUNK_LENGTH;
+		long copied = 0;
+		long runStart = -1;
+		for (long pos = 0; pos < len; pos += cl) {
+			SparseDataChunk ck = sdf.getSparseDataChunk(srcOffset + pos);
+			boolean hole = ck.getFingers().size() == 0;
+			if (hole) {
+				if (runStart != -1) {
+					copied += copyRun(srcPath, srcOffset + runStart, dstPath, dstOffset + runStart, pos - runStart);
+					runStart = -1;
+				}
+				dst.punchHole(dstOffset + pos, cl);
+				copied += cl;
+			} else if (runStart == -1) {
+				runStart = pos;
+			}
+		}
+		if (runStart != -1)
+			copied += copyRun(srcPath, srcOffset + runStart, dstPath, dstOffset + runStart, len - runStart);
+		if (dstOffset + len > dst.getFile().length())
+			dst.getFile().setLength(dstOffset + len, true);
+		if (SDFSLogger.isDebug())
+			SDFSLogger.getLog().debug("copied " + len + " bytes of extents from " + srcPath + " at " + srcOffset
+					+ " to " + dstPath + " at " + dstOffset);
+		return copied;
+	}
+
+	private static long copyRun(String srcPath, long srcOffset, String dstPath, long dstOffset, long len)
+			throws Exception {
+		Element el = new CopyExtents().getResult(srcPath, dstPath, srcOffset, len, dstOffset);
+		long written = Long.parseLong(el.getAttribute("written"));
+		if (written != len)
+			throw new IOException("copied " + written + " of " + len + " bytes from " + srcPath + " to " + dstPath);
+		return written;
+	}
+
+	private static long copyBytes(DedupFileChannel src, long srcOffset, DedupFileChannel dst, long dstOffset,
+			long len) throws Exception {
+		byte[] b = new byte[(int) Math.min(len, COPY_BUFFER)];
+		long copied = 0;
+		while (copied < len) {
+			int n = (int) Math.min(len - copied, b.length);
+			ByteBuffer bf = ByteBuffer.wrap(b, 0, n);
+			src.read(bf, 0, n, srcOffset + copied);
+			dst.writeFile(ByteBuffer.wrap(b, 0, n), n, 0, dstOffset + copied, true);
+			copied += n;
+		}
+		return copied;
+	}
+
+}
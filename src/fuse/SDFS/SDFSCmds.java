@@ -14,6 +14,7 @@ import org.opendedup.sdfs.Main;
 import org.opendedup.sdfs.filestore.DedupFileStore;
 import org.opendedup.sdfs.filestore.MetaFileStore;
 import org.opendedup.sdfs.filestore.gc.ManualGC;
+import org.opendedup.sdfs.io.DedupFileChannel;
 import org.opendedup.sdfs.io.MetaDataDedupFile;
 import org.opendedup.sdfs.notification.SDFSEvent;
 import org.opendedup.sdfs.servers.HCServiceProxy;
@@ -37,13 +38,14 @@ public class SDFSCmds {
 			"user.cmd.dedupAll", "user.cmd.optimize", "user.cmd.snapshot",
 			"user.cmd.vmdk.make", "user.cmd.ids.clearstatus",
 			"user.cmd.ids.status", "user.cmd.file.flush", "user.cmd.flush.all",
+			"user.cmd.file.punchhole", "user.cmd.file.copyrange",
 			"user.sdfs.file.isopen", "user.sdfs.ActualBytesWritten",
 			"user.sdfs.VirtualBytesWritten", "user.sdfs.BytesRead",
 			"user.sdfs.DuplicateData", "user.sdfs.fileGUID",
 			"user.sdfs.dfGUID", "user.sdfs.dedupAll", "user.dse.size",
 			"user.dse.maxsize" };
 
-	public static final String[] cmdDes = { "", "", "", "", "", "", "", "", "",
+	public static final String[] cmdDes = { "", "", "", "", "", "", "", "", "", "", "",
 			"", "", "", "", "", "", "", "", "", "" };
 
 	/*
@@ -230,10 +232,71 @@ public class SDFSCmds {
 			if (command.equalsIgnoreCase("user.cmd.flush.all")) {
 				status = flushAllCache();
 			}
+			if (command.equalsIgnoreCase("user.cmd.file.punchhole")) {
+				status = punchHole(path, Long.parseLong(args[1]),
+						Long.parseLong(args[2]));
+			}
+			if (command.equalsIgnoreCase("user.cmd.file.copyrange")) {
+				// id:srcpath:srcoffset:dstoffset:len, the path may hold ':'
+				int l = args.length;
+				StringBuilder src = new StringBuilder(args[1]);
+				for (int i = 2; i < l - 3; i++)
+					src.append(":").append(args[i]);
+				status = copyRange(src.toString(), Long.parseLong(args[l - 3]),
+						path, Long.parseLong(args[l - 2]),
+						Long.parseLong(args[l - 1]));
+			}
 			cmdStatus.put(args[0], status + " cmd=" + command + " " + value);
 		}
 	}
 
+	public String punchHole(String path, long offset, long len) {
+		String internalPath = this.mountedVolume + File.separator + path;
+		DedupFileChannel ch = null;
+		try {
+			ch = MetaFileStore.getMF(internalPath).getDedupFile(false)
+					.getChannel(-1);
+			FileRangeOps.allocate(ch, FileRangeOps.FALLOC_FL_PUNCH_HOLE
+					| FileRangeOps.FALLOC_FL_KEEP_SIZE, offset, len);
+			return "SUCCESS Punch Hole : [" + offset + "] to ["
+					+ (offset + len) + "] released";
+		} catch (Exception e) {
+			log.error("ERROR Punch Hole Failed : " + path, e);
+			return "ERROR Punch Hole Failed : because: " + e.toString();
+		} finally {
+			if (ch != null)
+				ch.getDedupFile().unRegisterChannel(ch, -1);
+		}
+	}
+
+	public String copyRange(String srcPath, long srcOffset, String dstPath,
+			long dstOffset, long len) {
+		DedupFileChannel sch = null;
+		DedupFileChannel dch = null;
+		try {
+			if (Main.volume.isFull())
+				return "ERROR Copy Range Failed : volume full";
+			sch = MetaFileStore
+					.getMF(this.mountedVolume + File.separator + srcPath)
+					.getDedupFile(false).getChannel(-1);
+			dch = MetaFileStore
+					.getMF(this.mountedVolume + File.separator + dstPath)
+					.getDedupFile(false).getChannel(-1);
+			long copied = FileRangeOps.copyRange(sch, srcPath, srcOffset,
+					dch, dstPath, dstOffset, len);
+			return "SUCCESS Copy Range : copied [" + copied + "] bytes";
+		} catch (Exception e) {
+			log.error("ERROR Copy Range Failed : " + srcPath + " to "
+					+ dstPath, e);
+			return "ERROR Copy Range Failed : because: " + e.toString();
+		} finally {
+			if (sch != null)
+				sch.getDedupFile().unRegisterChannel(sch, -1);
+			if (dch != null)
+				dch.getDedupFile().unRegisterChannel(dch, -1);
+		}
+	}
+
 	public String flushAllCache() {
 		try {
 			DedupFileStore.flushAllFiles();
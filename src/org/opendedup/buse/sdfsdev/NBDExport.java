@@ -0,0 +1,509 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Sam Silverberg sam.silverberg@gmail.com
+ *
+ * This file is part of OpenDedupe SDFS.
+ *
+ * OpenDedupe SDFS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDedupe SDFS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.opendedup.buse.sdfsdev;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.io.BlockDev;
+import org.opendedup.sdfs.io.DedupFileChannel;
+
+import com.google.common.eventbus.EventBus;
+
+/**
+ * Serves a block device over the NBD protocol from within the volume, without
+ * the nbd kernel driver or the native BUSE loop. Clients can open as many
+ * connections to the export as they like. Requests from every connection go
+ * to one queue per device that is served by a pool of workers, so requests
+ * run in parallel and complete out of order. When a worker takes a write from
+ * the queue it also takes the writes queued directly behind it that continue
+ * it, up to the end of the chunk, and writes them as one. The requests
+ * waiting in the queue hold at most MAX_QUEUED bytes, a connection stops
+ * reading from its client until there is room.
+ *
+ * Only the fixed newstyle handshake is supported.
+ */
+public class NBDExport implements Runnable {
+	private static final long NBDMAGIC = 0x4e42444d41474943L;
+	private static final long IHAVEOPT = 0x49484156454F5054L;
+	private static final long REPLYMAGIC = 0x3e889045565a9L;
+	private static final int REQUEST_MAGIC = 0x25609513;
+	private static final int SIMPLE_REPLY_MAGIC = 0x67446698;
+	private static final short FLAG_FIXED_NEWSTYLE = 1;
+	private static final short FLAG_NO_ZEROES = 2;
+	private static final short FLAG_HAS_FLAGS = 1;
+	private static final short FLAG_SEND_FLUSH = 1 << 2;
+	private static final short FLAG_SEND_FUA = 1 << 3;
+	private static final short FLAG_SEND_TRIM = 1 << 5;
+	private static final short FLAG_SEND_WRITE_ZEROES = 1 << 6;
+	private static final short FLAG_CAN_MULTI_CONN = 1 << 8;
+	private static final short TFLAGS = FLAG_HAS_FLAGS | FLAG_SEND_FLUSH | FLAG_SEND_FUA | FLAG_SEND_TRIM
+			| FLAG_SEND_WRITE_ZEROES | FLAG_CAN_MULTI_CONN;
+	private static final int OPT_EXPORT_NAME = 1;
+	private static final int OPT_ABORT = 2;
+	private static final int OPT_LIST = 3;
+	private static final int OPT_INFO = 6;
+	private static final int OPT_GO = 7;
+	private static final int REP_ACK = 1;
+	private static final int REP_SERVER = 2;
+	private static final int REP_INFO = 3;
+	private static final int REP_ERR_UNSUP = 0x80000001;
+	private static final int REP_ERR_UNKNOWN = 0x80000006;
+	private static final short INFO_EXPORT = 0;
+	private static final short CMD_READ = 0;
+	private static final short CMD_WRITE = 1;
+	private static final short CMD_DISC = 2;
+	private static final short CMD_FLUSH = 3;
+	private static final short CMD_TRIM = 4;
+	private static final short CMD_WRITE_ZEROES = 6;
+	private static final short CMD_FLAG_FUA = 1;
+	private static final int EIO = 5;
+	private static final int EINVAL = 22;
+	private static final int ENOSPC = 28;
+	private static final int ENOTSUP = 95;
+	public static int MAX_REQUEST = 32 * 1024 * 1024;
+	public static int MAX_QUEUED = 256 * 1024 * 1024;
+	// charged for a request without data
+	private static final int REQUEST_COST = 4096;
+	private static final Request STOP = new Request();
+
+	private final BlockDev dev;
+	private final String listenAddr;
+	private final int port;
+	private final int workers;
+	private DedupFileChannel ch = null;
+	private ServerSocket ss = null;
+	private EventBus eventBus = new EventBus();
+	private final LinkedBlockingDeque<Request> queue = new LinkedBlockingDeque<Request>();
+	private final Semaphore queued = new Semaphore(MAX_QUEUED);
+	private final ReentrantReadWriteLock flushLock = new ReentrantReadWriteLock();
+	private final Set<Connection> conns = ConcurrentHashMap.newKeySet();
+	private final ArrayList<Thread> workerThreads = new ArrayList<Thread>();
+	private volatile boolean closed = false;
+
+	/**
+	 * @param workers
+	 *            the number of requests served at once
+	 */
+	public NBDExport(BlockDev dev, String listenAddr, int port, int workers) throws IOException {
+		this.dev = dev;
+		this.listenAddr = listenAddr;
+		this.port = port;
+		this.workers = workers;
+		eventBus.register(dev);
+		this.ch = dev.getMF().getDedupFile(true).getChannel(0);
+	}
+
+	@Override
+	public void run() {
+		try {
+			ss = new ServerSocket();
+			ss.setReuseAddress(true);
+			ss.bind(new InetSocketAddress(listenAddr, port));
+			for (int i = 0; i < workers; i++) {
+				Thread th = new Thread(new Worker(), "nbd-" + dev.getDevName() + "-q" + i);
+				th.setDaemon(true);
+				th.start();
+				workerThreads.add(th);
+			}
+			SDFSLogger.getLog().info("serving nbd export [" + dev.getDevName() + "] on " + listenAddr + ":" + port
+					+ " with [" + workers + "] queues");
+			this.eventBus.post(new BlockDeviceOpenEvent(this.dev));
+			while (!closed) {
+				Socket s = ss.accept();
+				s.setTcpNoDelay(true);
+				Connection c = new Connection(s);
+				conns.add(c);
+				Thread th = new Thread(c, "nbd-" + dev.getDevName() + "-" + s.getRemoteSocketAddress());
+				th.setDaemon(true);
+				th.start();
+			}
+		} catch (Exception e) {
+			if (!closed)
+				SDFSLogger.getLog().warn("nbd export stopping " + dev.getDevName(), e);
+		} finally {
+			this.closed = true;
+			for (Connection c : conns)
+				c.close();
+			// the workers finish the requests they are writing before the
+			// file is closed
+			for (int i = 0; i < workerThreads.size(); i++)
+				queue.add(STOP);
+			for (Thread th : workerThreads) {
+				try {
+					th.join();
+				} catch (InterruptedException e) {
+					SDFSLogger.getLog().warn("interrupted while stopping nbd workers of " + dev.getDevName());
+					break;
+				}
+			}
+			try {
+				ch.force(true);
+				ch.getDedupFile().unRegisterChannel(ch, 0);
+				ch.getDedupFile().forceClose();
+			} catch (Throwable e) {
+				SDFSLogger.getLog().error("unable to close " + dev.getDevName(), e);
+			}
+			this.eventBus.post(new BlockDeviceClosedEvent(this.dev));
+			SDFSLogger.getLog().warn("nbd export stopped " + dev.getDevName());
+		}
+	}
+
+	public void close() {
+		this.closed = true;
+		try {
+			if (ss != null)
+				ss.close();
+		} catch (IOException e) {
+			SDFSLogger.getLog().debug("unable to close nbd listener", e);
+		}
+	}
+
+	public String getAddress() {
+		return "nbd://" + listenAddr + ":" + port + "/" + dev.getDevName();
+	}
+
+	private static class Request {
+		Connection conn;
+		short flags;
+		short type;
+		long handle;
+		long offset;
+		int len;
+		int cost;
+		byte[] data;
+	}
+
+	/*
+	 * Returns the bytes a request holds while it is queued. A request larger
+	 * than the queue takes all of it.
+	 */
+	private static int getCost(Request r) {
+		int cost = r.type == CMD_WRITE ? Math.max(r.len, REQUEST_COST) : REQUEST_COST;
+		return Math.min(cost, MAX_QUEUED);
+	}
+
+	private class Connection implements Runnable {
+		private final Socket s;
+		private DataInputStream in;
+		private DataOutputStream out;
+
+		Connection(Socket s) {
+			this.s = s;
+		}
+
+		@Override
+		public void run() {
+			try {
+				in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 65536));
+				out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 65536));
+				if (!this.handshake())
+					return;
+				for (;;) {
+					if (in.readInt() != REQUEST_MAGIC)
+						throw new IOException("invalid nbd request magic");
+					Request r = new Request();
+					r.conn = this;
+					r.flags = in.readShort();
+					r.type = in.readShort();
+					r.handle = in.readLong();
+					r.offset = in.readLong();
+					r.len = in.readInt();
+					if (r.type == CMD_DISC)
+						break;
+					if (r.len < 0 || r.len > MAX_REQUEST)
+						throw new IOException("nbd request of [" + r.len + "] bytes is too large");
+					r.cost = getCost(r);
+					queued.acquire(r.cost);
+					boolean put = false;
+					try {
+						if (r.type == CMD_WRITE) {
+							r.data = new byte[r.len];
+							in.readFully(r.data);
+						}
+						if (r.offset < 0 || r.offset + r.len > dev.getSize()) {
+							this.reply(r.handle, EINVAL, null, 0);
+							continue;
+						}
+						queue.put(r);
+						put = true;
+					} finally {
+						if (!put)
+							queued.release(r.cost);
+					}
+				}
+			} catch (EOFException e) {
+				SDFSLogger.getLog().debug("nbd client disconnected from " + dev.getDevName());
+			} catch (Exception e) {
+				if (!closed)
+					SDFSLogger.getLog().warn("nbd connection to " + dev.getDevName() + " failed", e);
+			} finally {
+				this.close();
+				conns.remove(this);
+			}
+		}
+
+		/**
+		 * Negotiates the export. Returns true once the connection is in the
+		 * transmission phase.
+		 */
+		private boolean handshake() throws IOException {
+			out.writeLong(NBDMAGIC);
+			out.writeLong(IHAVEOPT);
+			out.writeShort(FLAG_FIXED_NEWSTYLE | FLAG_NO_ZEROES);
+			out.flush();
+			int cflags = in.readInt();
+			boolean noZeroes = (cflags & FLAG_NO_ZEROES) != 0;
+			for (;;) {
+				if (in.readLong() != IHAVEOPT)
+					throw new IOException("invalid nbd option magic");
+				int opt = in.readInt();
+				int len = in.readInt();
+				if (len < 0 || len > 65536)
+					throw new IOException("nbd option of [" + len + "] bytes is too large");
+				byte[] data = new byte[len];
+				in.readFully(data);
+				switch (opt) {
+				case OPT_EXPORT_NAME:
+					if (!this.isExport(new String(data, "UTF-8")))
+						return false;
+					out.writeLong(dev.getSize());
+					out.writeShort(TFLAGS);
+					if (!noZeroes)
+						out.write(new byte[124]);
+					out.flush();
+					return true;
+				case OPT_ABORT:
+					this.optReply(opt, REP_ACK, new byte[0]);
+					return false;
+				case OPT_LIST: {
+					byte[] name = dev.getDevName().getBytes("UTF-8");
+					ByteBuffer bf = ByteBuffer.allocate(4 + name.length);
+					bf.putInt(name.length);
+					bf.put(name);
+					this.optReply(opt, REP_SERVER, bf.array());
+					this.optReply(opt, REP_ACK, new byte[0]);
+					break;
+				}
+				case OPT_INFO:
+				case OPT_GO: {
+					ByteBuffer bf = ByteBuffer.wrap(data);
+					byte[] name = new byte[bf.getInt()];
+					bf.get(name);
+					if (!this.isExport(new String(name, "UTF-8"))) {
+						this.optReply(opt, REP_ERR_UNKNOWN, new byte[0]);
+						break;
+					}
+					ByteBuffer info = ByteBuffer.allocate(12);
+					info.putShort(INFO_EXPORT);
+					info.putLong(dev.getSize());
+					info.putShort(TFLAGS);
+					this.optReply(opt, REP_INFO, info.array());
+					this.optReply(opt, REP_ACK, new byte[0]);
+					if (opt == OPT_GO)
+						return true;
+					break;
+				}
+				default:
+					this.optReply(opt, REP_ERR_UNSUP, new byte[0]);
+				}
+			}
+		}
+
+		private boolean isExport(String name) {
+			return name.length() == 0 || name.equals(dev.getDevName());
+		}
+
+		private void optReply(int opt, int type, byte[] data) throws IOException {
+			out.writeLong(REPLYMAGIC);
+			out.writeInt(opt);
+			out.writeInt(type);
+			out.writeInt(data.length);
+			out.write(data);
+			out.flush();
+		}
+
+		void reply(long handle, int err, byte[] data, int len) {
+			try {
+				synchronized (this) {
+					out.writeInt(SIMPLE_REPLY_MAGIC);
+					out.writeInt(err);
+					out.writeLong(handle);
+					if (err == 0 && data != null)
+						out.write(data, 0, len);
+					out.flush();
+				}
+			} catch (IOException e) {
+				SDFSLogger.getLog().debug("unable to reply to nbd client", e);
+				this.close();
+			}
+		}
+
+		void close() {
+			try {
+				s.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private class Worker implements Runnable {
+
+		@Override
+		public void run() {
+			while (!closed) {
+				ArrayList<Request> batch = new ArrayList<Request>();
+				try {
+					synchronized (queue) {
+						Request r = queue.take();
+						if (r == STOP)
+							break;
+						batch.add(r);
+						if (r.type == CMD_WRITE) {
+							// take the writes that continue this one up to the
+							// end of its chunk
+							long end = r.offset + r.len;
+							int len = r.len;
+							Request n = null;
+							while (end % Main.CHUNK_LENGTH != 0 && (n = queue.peek()) != null
+									&& n != STOP && n.type == CMD_WRITE && n.offset == end && len + n.len <= MAX_REQUEST) {
+								batch.add(queue.poll());
+								end += n.len;
+								len += n.len;
+							}
+						}
+					}
+				} catch (InterruptedException e) {
+					break;
+				}
+				try {
+					this.execute(batch);
+				} catch (Throwable e) {
+					SDFSLogger.getLog().error("unable to serve nbd request for " + dev.getDevName(), e);
+					for (Request r : batch)
+						r.conn.reply(r.handle, EIO, null, 0);
+				} finally {
+					for (Request r : batch)
+						queued.release(r.cost);
+				}
+			}
+		}
+
+		private void execute(ArrayList<Request> batch) throws Exception {
+			Request r = batch.get(0);
+			switch (r.type) {
+			case CMD_READ: {
+				byte[] b = new byte[r.len];
+				ch.read(ByteBuffer.wrap(b), 0, r.len, r.offset);
+				r.conn.reply(r.handle, 0, b, r.len);
+				break;
+			}
+			case CMD_WRITE:
+				this.write(batch);
+				break;
+			case CMD_WRITE_ZEROES: {
+				Request z = new Request();
+				z.conn = r.conn;
+				z.flags = r.flags;
+				z.handle = r.handle;
+				z.offset = r.offset;
+				z.len = r.len;
+				z.data = new byte[r.len];
+				ArrayList<Request> zb = new ArrayList<Request>();
+				zb.add(z);
+				this.write(zb);
+				break;
+			}
+			case CMD_FLUSH: {
+				// waits for the writes in flight
+				Lock l = flushLock.writeLock();
+				l.lock();
+				try {
+					ch.force(true);
+				} finally {
+					l.unlock();
+				}
+				r.conn.reply(r.handle, 0, null, 0);
+				break;
+			}
+			case CMD_TRIM:
+				ch.trim(r.offset, r.len);
+				r.conn.reply(r.handle, 0, null, 0);
+				break;
+			default:
+				r.conn.reply(r.handle, ENOTSUP, null, 0);
+			}
+		}
+
+		private void write(ArrayList<Request> batch) throws Exception {
+			if (Main.volume.isFull()) {
+				SDFSLogger.getLog().error("Volume is full");
+				for (Request r : batch)
+					r.conn.reply(r.handle, ENOSPC, null, 0);
+				return;
+			}
+			Request f = batch.get(0);
+			boolean fua = false;
+			Lock l = flushLock.readLock();
+			l.lock();
+			try {
+				if (batch.size() == 1) {
+					ch.writeFile(ByteBuffer.wrap(f.data), f.len, 0, f.offset, true);
+					fua = (f.flags & CMD_FLAG_FUA) != 0;
+				} else {
+					int len = 0;
+					for (Request r : batch)
+						len += r.len;
+					ByteBuffer bf = ByteBuffer.allocate(len);
+					for (Request r : batch) {
+						bf.put(r.data);
+						if ((r.flags & CMD_FLAG_FUA) != 0)
+							fua = true;
+					}
+					bf.position(0);
+					ch.writeFile(bf, len, 0, f.offset, true);
+				}
+			} finally {
+				l.unlock();
+			}
+			if (fua)
+				ch.force(true);
+			for (Request r : batch)
+				r.conn.reply(r.handle, 0, null, 0);
+		}
+	}
+
+}
@@ -3,15 +3,19 @@ package org.opendedup.cassandra;
 import java.net.InetSocketAddress;
 
 import java.nio.ByteBuffer;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map.Entry;
 import java.util.Random;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.cache.configuration.FactoryBuilder;
 
-import org.apache.curator.shaded.com.google.common.base.Joiner;
 import org.apache.ignite.Ignite;
 import org.apache.ignite.IgniteCache;
 import org.apache.ignite.Ignition;
@@ -35,7 +39,9 @@ import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
 import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.MoreExecutors;
 
 /**
  * Apache Ignite usage on Kubernetes requires that each node (Pod in the
@@ -46,8 +52,13 @@ import com.google.common.io.BaseEncoding;
  * Kubernetes API for endpoints of a Service but that may prove too much of a
  * hurdle to maintain. Since DNS integration is a common best-practice when
  * assembling Kubernetes clusters, we will rely on SRV lookups.
+ * <p>
+ * Every statement is prepared once. Batches of lookups and writes are sent
+ * asynchronously with up to MAX_IN_FLIGHT requests outstanding so that their
+ * round trips overlap.
  */
-public class CassandraDedupeDB {
+public class CassandraDedupeDB implements ClusterIndex {
+	public static int MAX_IN_FLIGHT = 512;
 
 	private IgniteCache<Long, Long> idb = null;
 	private Ignite ig = null;
@@ -64,6 +75,12 @@ public class CassandraDedupeDB {
 	PreparedStatement getRefCtStatement = null;
 	PreparedStatement getRefHashesStatement = null;
 	PreparedStatement deleteHashStatement = null;
+	PreparedStatement claimStatement = null;
+	PreparedStatement unClaimStatement = null;
+	PreparedStatement insertRefHashesStatement = null;
+	PreparedStatement deleteRefHashesStatement = null;
+	PreparedStatement deleteRmRefStatement = null;
+	private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
 	private String serviceName = "opendedupe";
 	private long cacheSize = 2L * 1024L * 1024L *1024L;
 
@@ -79,14 +96,42 @@ public class CassandraDedupeDB {
 			this.initIgnite(contactPoints);
 	}
 
+	@Override
 	public void claimArchive(long archive, long serialnumber) {
-		session.execute("UPDATE " + serviceName + ".refhashesdb set claims = claims + {" + serialnumber
-				+ "} WHERE archive = " + archive);
+		session.execute(this.claimStatement.bind(Collections.singleton(serialnumber), archive));
 	}
 
+	@Override
 	public void unClaimArchive(long archive, long serialnumber) {
-		session.execute("UPDATE " + serviceName + ".refhashesdb set claims = claims - {" + serialnumber
-				+ "} WHERE archive =" + archive);
+		session.execute(this.unClaimStatement.bind(Collections.singleton(serialnumber), archive));
+	}
+
+	/*
+	 * Sends a statement without waiting for it once fewer than MAX_IN_FLIGHT
+	 * requests are outstanding.
+	 */
+	private ResultSetFuture executeAsync(Statement st) {
+		inFlight.acquireUninterruptibly();
+		ResultSetFuture f = null;
+		try {
+			f = session.executeAsync(st);
+		} catch (RuntimeException e) {
+			inFlight.release();
+			throw e;
+		}
+		f.addListener(new Runnable() {
+			@Override
+			public void run() {
+				inFlight.release();
+			}
+		}, MoreExecutors.directExecutor());
+		return f;
+	}
+
+	private static void waitFor(List<ResultSetFuture> alr) {
+		for (ResultSetFuture f : alr) {
+			f.getUninterruptibly();
+		}
 	}
 
 	private void initIgnite(InetSocketAddress[] contactPoints) {
@@ -136,10 +181,12 @@ public class CassandraDedupeDB {
 		}
 	}
 
+	@Override
 	public void addRMRef(long archiveid) {
 		this.idb.put(archiveid, System.currentTimeMillis());
 	}
 	
+	@Override
 	public boolean isMaster() {
 		return ig.cluster().forOldest().node().equals(ig.cluster().localNode());
 	}
@@ -174,20 +221,44 @@ public class CassandraDedupeDB {
 		getRefCtStatement = session.prepare("Select claims from " + serviceName + ".refhashesdb where archive=?");
 		getRefHashesStatement = session.prepare("Select hashes from " + serviceName + ".refhashesdb WHERE archive = ?");
 		deleteHashStatement = session.prepare("DELETE from " + serviceName + ".hashdb WHERE key = ?");
+		claimStatement = session
+				.prepare("UPDATE " + serviceName + ".refhashesdb set claims = claims + ? WHERE archive = ?");
+		unClaimStatement = session
+				.prepare("UPDATE " + serviceName + ".refhashesdb set claims = claims - ? WHERE archive = ?");
+		insertRefHashesStatement = session.prepare(
+				"INSERT INTO " + serviceName + ".refhashesdb (archive, hashes,claims) VALUES (?,?,?)");
+		deleteRefHashesStatement = session.prepare("DELETE from " + serviceName + ".refhashesdb WHERE archive = ?");
+		deleteRmRefStatement = session.prepare("DELETE from " + serviceName + ".rmref WHERE archive = ?");
 	}
 
+	private long toArchive(Row r) {
+		if (r != null && (idb == null || !idb.containsKey(r.getLong(0))))
+			return r.getLong(0);
+		return -1;
+	}
+
+	@Override
 	public long getHash(byte[] key) {
-		long id = -1;
 		BoundStatement bound = this.getHashStatement.bind(ByteBuffer.wrap(key));
 		ResultSet rs = session.execute(bound);
-		Row r = rs.one();
-		if (r != null && !idb.containsKey(r.getLong(0)))
-			id = r.getLong(0);
-		return id;
+		return this.toArchive(rs.one());
+	}
+
+	@Override
+	public long[] getHashes(List<byte[]> keys) {
+		ArrayList<ResultSetFuture> alr = new ArrayList<ResultSetFuture>(keys.size());
+		for (byte[] key : keys) {
+			alr.add(this.executeAsync(this.getHashStatement.bind(ByteBuffer.wrap(key))));
+		}
+		long[] ids = new long[keys.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = this.toArchive(alr.get(i).getUninterruptibly().one());
+		}
+		return ids;
 	}
 
 	public long getRMRef(long archive) {
-		BoundStatement bound = this.getHashStatement.bind(archive);
+		BoundStatement bound = this.getRmRefStatement.bind(archive);
 		ResultSet rs = session.execute(bound);
 		long id = -1;
 		Row r = rs.one();
@@ -202,12 +273,13 @@ public class CassandraDedupeDB {
 		.execute(bound);
 	}
 
+	@Override
 	public void delRMRef(long id) {
 		this.idb.remove(id);
 	}
 
 	public void _delRMRef(long id) {
-		session.execute("DELETE from " + serviceName + ".rmref WHERE archive = " + id + ";");
+		session.execute(this.deleteRmRefStatement.bind(id));
 	}
 
 	public void setHash(byte[] key, long id) {
@@ -215,32 +287,20 @@ public class CassandraDedupeDB {
 		session.execute(bound);
 	}
 	
+	@Override
 	public void setHashes(String [] keys,long id) {
 		ArrayList<ResultSetFuture> alr = new ArrayList<ResultSetFuture>();
 		for (String k : keys) {
 				byte[] key = BaseEncoding.base64Url().decode(k);
 				BoundStatement bound = this.addHashStatement.bind(ByteBuffer.wrap(key),id);
-				alr.add(session.executeAsync(bound));
-		}
-		int ds = 0;
-		while (ds < alr.size()) {
-			ds = 0;
-			for (ResultSetFuture _r : alr) {
-				if (_r.isDone())
-					ds++;
-			}
-			if(ds != alr.size()) {
-				try {
-					Thread.sleep(1L);
-				} catch (InterruptedException e) {
-					
-				}
-			}
+				alr.add(this.executeAsync(bound));
 		}
+		waitFor(alr);
 	}
 	
+	@Override
 	public int getRefCt(long archive) {
-		BoundStatement bound = this.addHashStatement.bind(archive);
+		BoundStatement bound = this.getRefCtStatement.bind(archive);
 		ResultSet rs = session.execute(bound);
 		int ct = -1;
 		Row r = rs.one();
@@ -255,54 +315,56 @@ public class CassandraDedupeDB {
 		return rs.iterator();
 	}
 
-	public Iterator<javax.cache.Cache.Entry<Long, Long>> getAllRmrg() {
-		return this.idb.iterator();
+	@Override
+	public Iterator<Entry<Long, Long>> getAllRmrg() {
+		final Iterator<javax.cache.Cache.Entry<Long, Long>> iter = this.idb.iterator();
+		return new Iterator<Entry<Long, Long>>() {
+			@Override
+			public boolean hasNext() {
+				return iter.hasNext();
+			}
+
+			@Override
+			public Entry<Long, Long> next() {
+				javax.cache.Cache.Entry<Long, Long> e = iter.next();
+				return new AbstractMap.SimpleImmutableEntry<Long, Long>(e.getKey(), e.getValue());
+			}
+		};
 	}
 
+	@Override
 	public void insertHashes(long id, String[] hashes, long volid) {
-		String keys = Joiner.on("','").join(hashes);
-		keys = "'" + keys + "'";
-		session.execute("INSERT INTO " + serviceName + ".refhashesdb (archive, hashes,claims) VALUES (" + id + ",["
-				+ keys + "],{" + volid + "});");
+		session.execute(this.insertRefHashesStatement.bind(id, Arrays.asList(hashes), Collections.singleton(volid)));
 	}
 
+	@Override
 	public void deleteRef(long id) {
 		BoundStatement bound = this.getRefHashesStatement.bind(id);
 		ResultSet rs = session.execute(bound);
 		Row r = rs.one();
 		if (r != null) {
 			List<String> keys = r.getList(0, String.class);
-			ArrayList<ResultSetFuture> alr = new ArrayList<ResultSetFuture>();
+			ArrayList<ResultSetFuture> lookups = new ArrayList<ResultSetFuture>(keys.size());
 			for (String k : keys) {
 				byte[] key = BaseEncoding.base64Url().decode(k);
-				BoundStatement _bound = this.getHashStatement.bind(ByteBuffer.wrap(key));
-				ResultSet _rs = session.execute(_bound);
-				Row _r = _rs.one();
+				lookups.add(this.executeAsync(this.getHashStatement.bind(ByteBuffer.wrap(key))));
+			}
+			ArrayList<ResultSetFuture> alr = new ArrayList<ResultSetFuture>();
+			for (int i = 0; i < keys.size(); i++) {
+				Row _r = lookups.get(i).getUninterruptibly().one();
 				if (_r == null || _r.getLong(0) == id) {
+					byte[] key = BaseEncoding.base64Url().decode(keys.get(i));
 					BoundStatement _b2 = this.deleteHashStatement.bind(ByteBuffer.wrap(key));
-					alr.add(session.executeAsync(_b2));
-				}
-			}
-			int ds = 0;
-			while (ds < alr.size()) {
-				ds = 0;
-				for (ResultSetFuture _r : alr) {
-					if (_r.isDone())
-						ds++;
-				}
-				if(ds != alr.size()) {
-					try {
-						Thread.sleep(10L);
-					} catch (InterruptedException e) {
-						
-					}
+					alr.add(this.executeAsync(_b2));
 				}
 			}
+			waitFor(alr);
 		}
-		session.execute("DELETE from " + serviceName + ".refhashesdb WHERE archive = " + id);
+		session.execute(this.deleteRefHashesStatement.bind(id));
 		this.idb.remove(id);
 	}
 
+	@Override
 	public void close() {
 		this.session.close();
 		this.cluster.close();
@@ -0,0 +1,79 @@
+package org.opendedup.cassandra;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * The dedup index shared by the nodes of a clustered volume. It maps hashes to
+ * the archive that holds them and keeps the claims of every volume on an
+ * archive along with the archives that are waiting to be removed.
+ *
+ * @see CassandraDedupeDB stores the index in Cassandra. @see
+ *      MemoryClusterIndex keeps it in the memory of a single process so the
+ *      clustered code paths can be run without a cluster. @see
+ *      NearCachedClusterIndex puts a local cache in front of either.
+ */
+public interface ClusterIndex {
+
+	/**
+	 * Returns the archive that holds a hash or -1 if the hash is not in the
+	 * index or its archive is waiting to be removed.
+	 */
+	public long getHash(byte[] key);
+
+	/**
+	 * Looks up a batch of hashes. The lookups are sent together instead of one
+	 * after the other.
+	 *
+	 * @return the archive of every key in the order of keys, -1 for the keys
+	 *         that are not found
+	 */
+	public long[] getHashes(List<byte[]> keys);
+
+	/**
+	 * Adds the base64url encoded hashes of an archive to the index.
+	 */
+	public void setHashes(String[] keys, long id);
+
+	/**
+	 * Records the hashes stored in an archive and the first claim on it.
+	 */
+	public void insertHashes(long id, String[] hashes, long volid);
+
+	public void claimArchive(long archive, long serialnumber);
+
+	public void unClaimArchive(long archive, long serialnumber);
+
+	/**
+	 * Returns the number of volumes that claim an archive or -1 if the archive
+	 * is not known.
+	 */
+	public int getRefCt(long archive);
+
+	/**
+	 * Removes an archive and the hashes that still point to it.
+	 */
+	public void deleteRef(long id);
+
+	/**
+	 * Marks an archive as waiting to be removed.
+	 */
+	public void addRMRef(long archiveid);
+
+	public void delRMRef(long id);
+
+	/**
+	 * Returns the archives waiting to be removed with the time they were
+	 * marked.
+	 */
+	public Iterator<Entry<Long, Long>> getAllRmrg();
+
+	/**
+	 * Returns true if this node does the garbage collection of the index.
+	 */
+	public boolean isMaster();
+
+	public void close();
+
+}
@@ -0,0 +1,130 @@
+package org.opendedup.cassandra;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opendedup.collections.ByteArrayWrapper;
+import org.opendedup.logging.SDFSLogger;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * A @see ClusterIndex held in the memory of the process. It behaves like @see
+ * CassandraDedupeDB for a cluster of one node and is used to run and check
+ * clustered volumes and the @see NearCachedClusterIndex without a Cassandra
+ * cluster. Nothing is persisted.
+ */
+public class MemoryClusterIndex implements ClusterIndex {
+	private final ConcurrentHashMap<ByteArrayWrapper, Long> hashes = new ConcurrentHashMap<ByteArrayWrapper, Long>();
+	private final ConcurrentHashMap<Long, String[]> refHashes = new ConcurrentHashMap<Long, String[]>();
+	private final ConcurrentHashMap<Long, Set<Long>> claims = new ConcurrentHashMap<Long, Set<Long>>();
+	private final ConcurrentHashMap<Long, Long> rmRefs = new ConcurrentHashMap<Long, Long>();
+
+	public MemoryClusterIndex() {
+		SDFSLogger.getLog().info("Using in memory cluster index");
+	}
+
+	@Override
+	public long getHash(byte[] key) {
+		Long id = hashes.get(new ByteArrayWrapper(key));
+		if (id == null || rmRefs.containsKey(id))
+			return -1;
+		return id;
+	}
+
+	@Override
+	public long[] getHashes(List<byte[]> keys) {
+		long[] ids = new long[keys.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = this.getHash(keys.get(i));
+		}
+		return ids;
+	}
+
+	@Override
+	public void setHashes(String[] keys, long id) {
+		for (String k : keys) {
+			hashes.put(new ByteArrayWrapper(BaseEncoding.base64Url().decode(k)), id);
+		}
+	}
+
+	@Override
+	public void insertHashes(long id, String[] hashes, long volid) {
+		refHashes.put(id, hashes);
+		Set<Long> cl = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+		cl.add(volid);
+		claims.put(id, cl);
+	}
+
+	@Override
+	public void claimArchive(long archive, long serialnumber) {
+		Set<Long> cl = claims.get(archive);
+		if (cl == null) {
+			cl = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+			Set<Long> _cl = claims.putIfAbsent(archive, cl);
+			if (_cl != null)
+				cl = _cl;
+		}
+		cl.add(serialnumber);
+	}
+
+	@Override
+	public void unClaimArchive(long archive, long serialnumber) {
+		Set<Long> cl = claims.get(archive);
+		if (cl != null)
+			cl.remove(serialnumber);
+	}
+
+	@Override
+	public int getRefCt(long archive) {
+		Set<Long> cl = claims.get(archive);
+		if (cl == null)
+			return -1;
+		return cl.size();
+	}
+
+	@Override
+	public void deleteRef(long id) {
+		String[] keys = refHashes.remove(id);
+		if (keys != null) {
+			for (String k : keys) {
+				hashes.remove(new ByteArrayWrapper(BaseEncoding.base64Url().decode(k)), id);
+			}
+		}
+		claims.remove(id);
+		rmRefs.remove(id);
+	}
+
+	@Override
+	public void addRMRef(long archiveid) {
+		rmRefs.put(archiveid, System.currentTimeMillis());
+	}
+
+	@Override
+	public void delRMRef(long id) {
+		rmRefs.remove(id);
+	}
+
+	@Override
+	public Iterator<Entry<Long, Long>> getAllRmrg() {
+		return rmRefs.entrySet().iterator();
+	}
+
+	@Override
+	public boolean isMaster() {
+		return true;
+	}
+
+	@Override
+	public void close() {
+		hashes.clear();
+		refHashes.clear();
+		claims.clear();
+		rmRefs.clear();
+	}
+
+}
@@ -0,0 +1,190 @@
+package org.opendedup.cassandra;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendedup.collections.ByteArrayWrapper;
+import org.opendedup.logging.SDFSLogger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Keeps the results of recent lookups of a @see ClusterIndex in a bounded
+ * local cache, both the hashes that were found and the ones that were not.
+ * Hashes added to the index through this node are cached as they are added.
+ *
+ * Entries expire TTL seconds after they are cached so that changes made by
+ * other nodes are seen within that time. Removed archives stay readable for a
+ * minute after they are marked for removal, so the default TTL of 60 seconds
+ * never returns an archive that is already gone. Archives removed or marked
+ * for removal through this node are dropped from the cache right away. The
+ * cached hashes of each archive are tracked so that only they are dropped.
+ */
+public class NearCachedClusterIndex implements ClusterIndex {
+	public static String INDEX_TYPE = "cassandra";
+	public static long CACHE_SIZE = 1000000;
+	public static long CACHE_TTL = 60;
+	private final ClusterIndex index;
+	private final Cache<ByteArrayWrapper, Long> cache;
+	private final ConcurrentHashMap<Long, Set<ByteArrayWrapper>> archives =
+			new ConcurrentHashMap<Long, Set<ByteArrayWrapper>>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public NearCachedClusterIndex(ClusterIndex index, long size, long ttl) {
+		this.index = index;
+		this.cache = CacheBuilder.newBuilder().maximumSize(size).expireAfterWrite(ttl, TimeUnit.SECONDS)
+				.concurrencyLevel(Runtime.getRuntime().availableProcessors())
+				.removalListener((RemovalNotification<ByteArrayWrapper, Long> n) -> this.removed(n.getKey(), n.getValue()))
+				.build();
+		SDFSLogger.getLog().info("Cluster index near cache size=" + size + " ttl=" + ttl + "s");
+	}
+
+	@Override
+	public long getHash(byte[] key) {
+		ByteArrayWrapper w = new ByteArrayWrapper(key);
+		Long id = cache.getIfPresent(w);
+		if (id != null) {
+			hits.incrementAndGet();
+			return id;
+		}
+		misses.incrementAndGet();
+		long _id = index.getHash(key);
+		this.put(w, _id);
+		return _id;
+	}
+
+	@Override
+	public long[] getHashes(List<byte[]> keys) {
+		long[] ids = new long[keys.size()];
+		ArrayList<byte[]> mkeys = new ArrayList<byte[]>();
+		ArrayList<Integer> mpos = new ArrayList<Integer>();
+		for (int i = 0; i < ids.length; i++) {
+			Long id = cache.getIfPresent(new ByteArrayWrapper(keys.get(i)));
+			if (id != null) {
+				ids[i] = id;
+			} else {
+				mkeys.add(keys.get(i));
+				mpos.add(i);
+			}
+		}
+		hits.addAndGet(ids.length - mkeys.size());
+		if (mkeys.size() > 0) {
+			misses.addAndGet(mkeys.size());
+			long[] mids = index.getHashes(mkeys);
+			for (int i = 0; i < mids.length; i++) {
+				ids[mpos.get(i)] = mids[i];
+				this.put(new ByteArrayWrapper(mkeys.get(i)), mids[i]);
+			}
+		}
+		return ids;
+	}
+
+	@Override
+	public void setHashes(String[] keys, long id) {
+		index.setHashes(keys, id);
+		for (String k : keys) {
+			this.put(new ByteArrayWrapper(BaseEncoding.base64Url().decode(k)), id);
+		}
+	}
+
+	@Override
+	public void insertHashes(long id, String[] hashes, long volid) {
+		index.insertHashes(id, hashes, volid);
+	}
+
+	@Override
+	public void claimArchive(long archive, long serialnumber) {
+		index.claimArchive(archive, serialnumber);
+	}
+
+	@Override
+	public void unClaimArchive(long archive, long serialnumber) {
+		index.unClaimArchive(archive, serialnumber);
+	}
+
+	@Override
+	public int getRefCt(long archive) {
+		return index.getRefCt(archive);
+	}
+
+	@Override
+	public void deleteRef(long id) {
+		index.deleteRef(id);
+		this.invalidate(id);
+	}
+
+	@Override
+	public void addRMRef(long archiveid) {
+		index.addRMRef(archiveid);
+		this.invalidate(archiveid);
+	}
+
+	private void put(ByteArrayWrapper w, long id) {
+		if (id != -1) {
+			archives.compute(id, (k, s) -> {
+				if (s == null)
+					s = ConcurrentHashMap.newKeySet();
+				s.add(w);
+				return s;
+			});
+		}
+		cache.put(w, id);
+	}
+
+	private void removed(ByteArrayWrapper w, Long id) {
+		if (id == null || id == -1 || id.equals(cache.asMap().get(w)))
+			return;
+		archives.computeIfPresent(id, (k, s) -> {
+			s.remove(w);
+			return s.isEmpty() ? null : s;
+		});
+	}
+
+	private void invalidate(long id) {
+		Set<ByteArrayWrapper> s = archives.remove(id);
+		if (s != null)
+			cache.invalidateAll(s);
+	}
+
+	@Override
+	public void delRMRef(long id) {
+		index.delRMRef(id);
+	}
+
+	@Override
+	public Iterator<Entry<Long, Long>> getAllRmrg() {
+		return index.getAllRmrg();
+	}
+
+	@Override
+	public boolean isMaster() {
+		return index.isMaster();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public void close() {
+		SDFSLogger.getLog().info("Cluster index near cache hits=" + hits.get() + " misses=" + misses.get());
+		cache.invalidateAll();
+		archives.clear();
+		index.close();
+	}
+
+}
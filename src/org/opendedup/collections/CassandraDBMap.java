@@ -41,10 +41,13 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import javax.cache.Cache.Entry;
+import java.util.Map.Entry;
 
 import org.apache.commons.io.FileUtils;
 import org.opendedup.cassandra.CassandraDedupeDB;
+import org.opendedup.cassandra.ClusterIndex;
+import org.opendedup.cassandra.MemoryClusterIndex;
+import org.opendedup.cassandra.NearCachedClusterIndex;
 import org.opendedup.hashing.LargeBloomFilter;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
@@ -101,7 +104,7 @@ public class CassandraDBMap implements AbstractMap, AbstractHashesMap {
 	final List<ColumnFamilyDescriptor> columnFamilyDescriptors = new ArrayList<>();
 	static long bufferSize = GB;
 	static long fsize = 128 * MB;
-	CassandraDedupeDB cdb = null;
+	ClusterIndex cdb = null;
 	private ConcurrentHashMap<ByteArrayWrapper, ByteBuffer> tempHt = new ConcurrentHashMap<ByteArrayWrapper, ByteBuffer>();
 
 	static {
@@ -313,9 +316,16 @@ public class CassandraDBMap implements AbstractMap, AbstractHashesMap {
 				System.out.println(addr);
 			}
 			if (Main.volume.isClustered()) {
-				cdb = new CassandraDedupeDB(Main.volume.getCassandraNodes(), Main.volume.getDataCenter(),
-						Main.volume.getUuid(), Main.volume.getClusterCopies().intValue(), true);
-
+				ClusterIndex ci = null;
+				if (NearCachedClusterIndex.INDEX_TYPE.equalsIgnoreCase("memory"))
+					ci = new MemoryClusterIndex();
+				else
+					ci = new CassandraDedupeDB(Main.volume.getCassandraNodes(), Main.volume.getDataCenter(),
+							Main.volume.getUuid(), Main.volume.getClusterCopies().intValue(), true);
+				if (NearCachedClusterIndex.CACHE_SIZE > 0)
+					ci = new NearCachedClusterIndex(ci, NearCachedClusterIndex.CACHE_SIZE,
+							NearCachedClusterIndex.CACHE_TTL);
+				cdb = ci;
 			}
 			HashBlobArchive.registerEventBus(this);
 			bar.finish();
@@ -361,6 +371,27 @@ public class CassandraDBMap implements AbstractMap, AbstractHashesMap {
 
 	}
 
+	/**
+	 * Looks up the hashes of a batch that are not in the local index in the
+	 * cluster index all at once, so that the puts of the batch find them in
+	 * the near cache instead of making a round trip each.
+	 */
+	public void prefetch(List<byte[]> keys) throws IOException {
+		if (cdb == null || this.isClosed())
+			return;
+		ArrayList<byte[]> misses = new ArrayList<byte[]>();
+		try {
+			for (byte[] key : keys) {
+				if (!this.tempHt.containsKey(new ByteArrayWrapper(key)) && this.getDB(key).get(key) == null)
+					misses.add(key);
+			}
+		} catch (RocksDBException e) {
+			throw new IOException(e);
+		}
+		if (misses.size() > 0)
+			cdb.getHashes(misses);
+	}
+
 	private ReentrantLock getLock(byte[] key) {
 		int l = key[0];
 		if (l < 0) {
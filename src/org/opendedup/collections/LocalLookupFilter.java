@@ -21,10 +21,13 @@ package org.opendedup.collections;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.commons.io.FileUtils;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
 import org.opendedup.sdfs.servers.HCServiceProxy;
@@ -39,38 +42,40 @@ import org.rocksdb.IndexType;
 import org.rocksdb.Options;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
 import org.rocksdb.WriteOptions;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
-import com.google.common.cache.RemovalListener;
-import com.google.common.cache.RemovalNotification;
-
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Per file lookup filters. All filters are hosted in a single shared RocksDB
+ * instance and every key is prefixed with a fixed length digest of the filter
+ * name. The block cache, memtables, WAL and background threads are shared by
+ * all filters so the cost of a filter no longer grows with the number of
+ * files that use one. Instances of this class are lightweight handles that
+ * only carry the key prefix.
+ */
 public class LocalLookupFilter {
-	WriteOptions wo = new WriteOptions();
-	// RocksDB db = null;
-	String fileName = null;
-	ReentrantLock[] lockMap = new ReentrantLock[256];
-	RocksDB dbs = null;
-	private static final long GB = 1024 * 1024 * 1024;
+	private static final int PREFIX_LEN = 16;
 	private static final long MB = 1024 * 1024;
-	boolean closed = false;
+	private static final String SHARED_DB_NAME = ".shared";
+	private static final HashFunction prefixHf = Hashing.murmur3_128(6442);
+	private static final ReentrantLock[] lockMap = new ReentrantLock[256];
+	private static WriteOptions wo = null;
+	private static RocksDB dbs = null;
+	private static boolean closed = true;
+	String fileName = null;
+	String filterName = null;
+	byte[] prefix = null;
+	// handles are cheap, the cache only bounds how many are kept around
 	private static final LoadingCache<String, LocalLookupFilter> lfs = CacheBuilder.newBuilder()
 			.maximumSize(Main.maxOpenFiles).concurrencyLevel(72).expireAfterAccess(120, TimeUnit.MINUTES)
-			.removalListener(new RemovalListener<String, LocalLookupFilter>() {
-
-				@Override
-				public void onRemoval(RemovalNotification<String, LocalLookupFilter> ev) {
-					try {
-						ev.getValue().close();
-					} catch (Exception e) {
-						SDFSLogger.getLog().warn("unable to close " + ev.getKey(), e);
-					}
-
-				}
-
-			}).build(new CacheLoader<String, LocalLookupFilter>() {
+			.build(new CacheLoader<String, LocalLookupFilter>() {
 
 				@Override
 				public LocalLookupFilter load(String name) throws Exception {
@@ -79,18 +84,27 @@ public class LocalLookupFilter {
 					return lf;
 				}
 			});
-	
+
 	public static LocalLookupFilter getLocalLookupFilter(String filter) throws IOException {
 		try {
-		return lfs.get(filter);
-		}catch(Exception e) {
+			return lfs.get(filter);
+		} catch (Exception e) {
 			throw new IOException(e);
 		}
 	}
-	
-	public static void closeAll() {
+
+	public static synchronized void closeAll() {
 		lfs.invalidateAll();
+		if (!closed) {
+			closed = true;
+			try {
+				dbs.close();
+			} finally {
+				SDFSLogger.getLog().info("Lookup filter store [" + Main.lookupfilterStore + "] closed");
+			}
+		}
 	}
+
 	static {
 		RocksDB.loadLibrary();
 		if (Main.lookupfilterStore == null) {
@@ -98,91 +112,135 @@ public class LocalLookupFilter {
 			lookupP.mkdirs();
 			Main.lookupfilterStore = lookupP.getPath();
 		}
+		for (int i = 0; i < lockMap.length; i++) {
+			lockMap[i] = new ReentrantLock();
+		}
 	}
 
-	private void init(String lookupfilter) throws IOException, HashtableFullException {
-
+	private static synchronized RocksDB openSharedDB() throws IOException {
+		if (!closed)
+			return dbs;
 		try {
-			this.fileName = Main.lookupfilterStore + File.separator + lookupfilter;
-			long bufferSize = 80 * MB;
-			long fsize = 80 * MB;
-			// blockConfig.setBlockCacheSize(memperDB);
-			// blockConfig.setCacheIndexAndFilterBlocks(true);
-
-			// a factory method that returns a RocksDB instance
 			wo = new WriteOptions();
 			wo.setDisableWAL(false);
 			wo.setSync(false);
-			// LRUCache c = new LRUCache(totmem);
-
 			BlockBasedTableConfig blockConfig = new BlockBasedTableConfig();
-			// ColumnFamilyOptions cfOptions = new ColumnFamilyOptions();
-			// DBOptions dbo = new DBOptions();
-			// cfOptions.optimizeLevelStyleCompaction();
-			// cfOptions.optimizeForPointLookup(8192);
 			blockConfig.setFilter(new BloomFilter(16, false));
-			// blockConfig.setHashIndexAllowCollision(false);
-			// blockConfig.setCacheIndexAndFilterBlocks(false);
-			// blockConfig.setIndexType(IndexType.kBinarySearch);
-			// blockConfig.setPinL0FilterAndIndexBlocksInCache(true);
 			blockConfig.setBlockSize(4 * 1024);
 			blockConfig.setFormatVersion(2);
-			blockConfig.setNoBlockCache(true);
 			blockConfig.setIndexType(IndexType.kTwoLevelIndexSearch);
-			// options.useFixedLengthPrefixExtractor(3);
+			blockConfig.setCacheIndexAndFilterBlocks(true);
+			blockConfig.setPinL0FilterAndIndexBlocksInCache(true);
+			// one table config for the only db so every filter shares the
+			// same block cache
+			blockConfig.setBlockCacheSize(Main.lookupFilterCacheSize);
 
 			Env env = Env.getDefault();
-			env.setBackgroundThreads(8, Env.FLUSH_POOL);
-			env.setBackgroundThreads(8, Env.COMPACTION_POOL);
+			env.setBackgroundThreads(2, Env.FLUSH_POOL);
+			env.setBackgroundThreads(4, Env.COMPACTION_POOL);
 			Options options = new Options();
 			options.setCreateIfMissing(true);
 			options.setCompactionStyle(CompactionStyle.LEVEL);
 			options.setCompressionType(CompressionType.NO_COMPRESSION);
 			options.setLevel0FileNumCompactionTrigger(8);
-			options.setMaxBackgroundCompactions(2);
-			options.setMaxBackgroundFlushes(8);
+			options.setMaxBackgroundCompactions(4);
+			options.setMaxBackgroundFlushes(2);
 			options.setEnv(env);
 			options.setAccessHintOnCompactionStart(AccessHint.WILLNEED);
-			options.setIncreaseParallelism(32);
 			options.setAdviseRandomOnOpen(true);
-			// options.setNumLevels(8);
-			// options.setLevelCompactionDynamicLevelBytes(true);
-			//
 			options.setAllowConcurrentMemtableWrite(true);
-			// LRUCache c = new LRUCache(memperDB);
-			// options.setRowCache(c);
-			blockConfig.setBlockCacheSize(GB * 2);
-
-			options.setWriteBufferSize(bufferSize);
-			// options.setMinWriteBufferNumberToMerge(2);
-			// options.setMaxWriteBufferNumber(6);
-			// options.setLevelZeroFileNumCompactionTrigger(2);
-
+			options.useFixedLengthPrefixExtractor(PREFIX_LEN);
+			// global memtable budget for all filters
+			options.setWriteBufferSize(Main.lookupFilterWriteBufferSize / 4);
+			options.setMaxWriteBufferNumber(4);
+			options.setDbWriteBufferSize(Main.lookupFilterWriteBufferSize);
 			options.setCompactionReadaheadSize(1024 * 1024 * 25);
-			// options.setUseDirectIoForFlushAndCompaction(true);
-			// options.setUseDirectReads(true);
 			options.setStatsDumpPeriodSec(30);
-			// options.setAllowMmapWrites(true);
-			// options.setAllowMmapReads(true);
 			options.setMaxOpenFiles(-1);
-			// options.setTargetFileSizeBase(512*1024*1024);
-
-			options.setMaxBytesForLevelBase(fsize * 5);
-			options.setTargetFileSizeBase(fsize);
+			options.setMaxBytesForLevelBase(80 * MB * 5);
+			options.setTargetFileSizeBase(80 * MB);
 			options.setTableFormatConfig(blockConfig);
-			File f = new File(fileName + File.separator);
+			File f = new File(Main.lookupfilterStore + File.separator + SHARED_DB_NAME + File.separator);
 			f.mkdirs();
 			dbs = RocksDB.open(options, f.getPath());
+			closed = false;
+			SDFSLogger.getLog().info("Lookup filter store [" + f.getPath() + "] opened");
+			return dbs;
+		} catch (RocksDBException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void init(String lookupfilter) throws IOException, HashtableFullException {
+		this.filterName = lookupfilter;
+		this.fileName = Main.lookupfilterStore + File.separator + lookupfilter;
+		this.prefix = prefixHf.hashString(lookupfilter, StandardCharsets.UTF_8).asBytes();
+		openSharedDB();
+		this.migrateLegacyFilter();
+	}
 
-			for (int i = 0; i < lockMap.length; i++) {
-				lockMap[i] = new ReentrantLock();
+	/**
+	 * Filters created before the shared store was introduced lived in their own
+	 * RocksDB instance. Copy their records into the shared store the first time
+	 * they are referenced and remove the old instance.
+	 */
+	private void migrateLegacyFilter() throws IOException {
+		File f = new File(this.fileName);
+		if (!f.exists() || !f.isDirectory())
+			return;
+		synchronized (LocalLookupFilter.class) {
+			if (!f.exists())
+				return;
+			SDFSLogger.getLog().info("migrating lookup filter [" + this.fileName + "] to shared store");
+			Options options = new Options();
+			options.setCreateIfMissing(false);
+			RocksDB odb = null;
+			RocksIterator iter = null;
+			long ct = 0;
+			try {
+				odb = RocksDB.open(options, f.getPath());
+				iter = odb.newIterator();
+				WriteBatch batch = new WriteBatch();
+				for (iter.seekToFirst(); iter.isValid(); iter.next()) {
+					batch.put(this.getKey(iter.key()), iter.value());
+					ct++;
+					if (ct % 10000 == 0) {
+						dbs.write(wo, batch);
+						batch.close();
+						batch = new WriteBatch();
+					}
+				}
+				// the old instance is deleted next, so the last batch is synced,
+				// which also syncs the log of the batches written before it
+				WriteOptions swo = new WriteOptions();
+				swo.setSync(true);
+				try {
+					dbs.write(swo, batch);
+				} finally {
+					swo.close();
+				}
+				batch.close();
+			} catch (RocksDBException e) {
+				throw new IOException(e);
+			} finally {
+				if (iter != null)
+					iter.close();
+				if (odb != null)
+					odb.close();
+				options.close();
 			}
-			this.setUp();
-		} catch (Exception e) {
-			throw new IOException(e);
+			FileUtils.deleteDirectory(f);
+			SDFSLogger.getLog().info("migrated " + ct + " records from lookup filter [" + this.fileName + "]");
 		}
 	}
 
+	private byte[] getKey(byte[] hash) {
+		byte[] k = new byte[PREFIX_LEN + hash.length];
+		System.arraycopy(this.prefix, 0, k, 0, PREFIX_LEN);
+		System.arraycopy(hash, 0, k, PREFIX_LEN, hash.length);
+		return k;
+	}
+
 	private ReentrantLock getLock(byte[] key) {
 		int l = key[0];
 		if (l < 0) {
@@ -192,7 +250,7 @@ public class LocalLookupFilter {
 	}
 
 	private RocksDB getDB(byte[] key) {
-		return this.dbs;
+		return dbs;
 	}
 
 	public long claimKey(byte[] hash, long val, long ct) throws IOException {
@@ -200,8 +258,8 @@ public class LocalLookupFilter {
 		l.lock();
 		try {
 			byte[] v = null;
-
-			v = this.getDB(hash).get(hash);
+			byte[] key = this.getKey(hash);
+			v = this.getDB(hash).get(key);
 			if (v != null) {
 				ByteBuffer bk = ByteBuffer.wrap(v);
 				long oval = bk.getLong();
@@ -216,12 +274,12 @@ public class LocalLookupFilter {
 					//SDFSLogger.getLog().info("!!!!!!!!!!!!!! " + ct);
 					if (ct == 0)
 						ct = -1;
-					this.getDB(hash).delete(wo,hash);
+					this.getDB(hash).delete(wo, key);
 					HCServiceProxy.hcService.claimKey(hash, val, ct);
 					return ct;
 				} else {
 					bk.putLong(v.length - 8, ct);
-					this.getDB(hash).put(wo, hash, v);
+					this.getDB(hash).put(wo, key, v);
 					return 0;
 				}
 			} else {
@@ -235,27 +293,31 @@ public class LocalLookupFilter {
 	}
 
 	public boolean isClosed() {
-		return this.closed;
+		return closed;
 	}
 
+	/**
+	 * Counts the records that belong to this filter. This is a prefix scan of
+	 * the shared store and should not be used on a hot path.
+	 */
 	public long getSize() {
+		long sz = 0;
+		RocksIterator iter = dbs.newIterator();
 		try {
-			long sz = 0;
-			sz = dbs.getLongProperty("rocksdb.estimate-num-keys");
-			return sz;
-		} catch (RocksDBException e) {
-			SDFSLogger.getLog().error("unable to get lenght for rocksdb", e);
-			return 0;
+			for (iter.seek(this.prefix); iter.isValid(); iter.next()) {
+				byte[] k = iter.key();
+				if (k.length < PREFIX_LEN || !Arrays.equals(this.prefix, Arrays.copyOf(k, PREFIX_LEN)))
+					break;
+				sz++;
+			}
+		} finally {
+			iter.close();
 		}
+		return sz;
 	}
 
 	public long setUp() throws Exception {
-		long sz = 0;
-		// System.out.println("s="+i);
-		sz += dbs.getLongProperty("rocksdb.estimate-num-keys");
-		long size = sz;
-		this.closed = false;
-		return size;
+		return this.getSize();
 	}
 
 	public boolean containsKey(byte[] key) throws IOException {
@@ -263,7 +325,7 @@ public class LocalLookupFilter {
 			throw new IOException("hashtable [" + this.fileName + "] is close");
 		}
 		try {
-			byte[] v = this.getDB(key).get(key);
+			byte[] v = this.getDB(key).get(this.getKey(key));
 			if (v == null)
 				return false;
 			else
@@ -287,7 +349,7 @@ public class LocalLookupFilter {
 				RocksDB db = this.getDB(key);
 				byte[] v = null;
 
-				v = db.get(key);
+				v = db.get(this.getKey(key));
 				if (v == null) {
 					InsertRecord ir = HCServiceProxy.hcService.writeChunk(key, contents, false, 1,uuid);
 					v = new byte[16];
@@ -297,7 +359,7 @@ public class LocalLookupFilter {
 						bf.putLong(1);
 					else
 						bf.putLong(ct);
-					db.put(key, v);
+					db.put(wo, this.getKey(key), v);
 					return ir;
 				} else {
 					// SDFSLogger.getLog().info("Hash Found");
@@ -309,7 +371,7 @@ public class LocalLookupFilter {
 					else
 						ct += bk.getLong();
 					bk.putLong(8, ct);
-					db.put(key, v);
+					db.put(wo, this.getKey(key), v);
 					return new InsertRecord(false, pos);
 				}
 			} catch (RocksDBException e) {
@@ -335,7 +397,7 @@ public class LocalLookupFilter {
 				RocksDB db = this.getDB(key);
 				byte[] v = null;
 
-				v = db.get(key);
+				v = db.get(this.getKey(key));
 				if (v == null) {
 					return -1;
 				} else {
@@ -348,7 +410,7 @@ public class LocalLookupFilter {
 					else
 						ct += bk.getLong();;
 					bk.putLong(8, ct);
-					db.put(key, v);
+					db.put(wo, this.getKey(key), v);
 					return pos;
 				}
 			} catch (RocksDBException e) {
@@ -374,7 +436,7 @@ public class LocalLookupFilter {
 						RocksDB db = this.getDB(key);
 						byte[] v = null;
 
-						v = db.get(key);
+						v = db.get(this.getKey(key));
 						if (v == null) {
 							
 							v = new byte[16];
@@ -384,7 +446,7 @@ public class LocalLookupFilter {
 								bf.putLong(1);
 							else
 								bf.putLong(ct);
-							db.put(key, v);
+							db.put(wo, this.getKey(key), v);
 						} else {
 							// SDFSLogger.getLog().info("Hash Found");
 							ByteBuffer bk = ByteBuffer.wrap(v);
@@ -398,7 +460,7 @@ public class LocalLookupFilter {
 							else
 								ct += bk.getLong();
 							bk.putLong(8, ct);
-							db.put(key, v);
+							db.put(wo, this.getKey(key), v);
 						}
 					} catch (RocksDBException e) {
 						throw new IOException(e);
@@ -419,7 +481,7 @@ public class LocalLookupFilter {
 
 			try {
 
-				byte[] v = this.getDB(key).get(key);
+				byte[] v = this.getDB(key).get(this.getKey(key));
 				if (v == null) {
 
 					return -1;
@@ -436,15 +498,12 @@ public class LocalLookupFilter {
 		}
 	}
 
+	/**
+	 * Handles do not own any resources. The shared store is closed through
+	 * {@link #closeAll()}.
+	 */
 	public void close() {
-		try {
-			this.closed = true;
-
-			dbs.close();
-
-		} finally {
-			SDFSLogger.getLog().info("Hashtable [" + this.fileName + "] closed");
-		}
+		lfs.invalidate(this.filterName);
 	}
 
-}
\ No newline at end of file
+}
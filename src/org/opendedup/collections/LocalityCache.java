@@ -0,0 +1,334 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Sam Silverberg sam.silverberg@gmail.com
+ *
+ * This file is part of OpenDedupe SDFS.
+ *
+ * OpenDedupe SDFS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDedupe SDFS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.opendedup.collections;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendedup.collections.SimpleByteArrayLongMap.KeyValuePair;
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.filestore.HashBlobArchive;
+
+/**
+ * Keeps the hashes of recently matched archives in memory. Chunks that were
+ * written together are stored in the same archive and tend to be written
+ * together again, so once a hash is found in an archive the rest of the hashes
+ * of that archive are loaded from its local key map and the chunks that
+ * follow are resolved here without a lookup in the hash index.
+ *
+ * At most MAX_ARCHIVES archives are held. The archive that was matched the
+ * least recently is dropped to make room. A value of 0 turns the cache off.
+ *
+ * The key map of an archive is never changed once the archive is written, so
+ * it still lists hashes that were removed from the index. An archive that
+ * lost a hash is marked dirty and is never loaded again. Dirty archives are
+ * written to a file on close. The file is removed on open so that after an
+ * unclean shutdown, or for a volume that did not track dirty archives before,
+ * only archives written since the cache was opened are loaded.
+ */
+public class LocalityCache {
+	public static int MAX_ARCHIVES = 0;
+	private static final int STREAM_MAGIC = 0x53444c43;
+	private final File dirtyFile;
+	private final long since;
+	private final ConcurrentHashMap<ByteArrayWrapper, Long> keys = new ConcurrentHashMap<ByteArrayWrapper, Long>();
+	private final ConcurrentHashMap<Long, Archive> archives = new ConcurrentHashMap<Long, Archive>();
+	private final ConcurrentHashMap<Long, Boolean> loading = new ConcurrentHashMap<Long, Boolean>();
+	private final HashSet<Long> dirty = new HashSet<Long>();
+	private final ThreadPoolExecutor executor;
+	private final AtomicLong tick = new AtomicLong();
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+	private boolean closed = false;
+	private static volatile LocalityCache cache = null;
+
+	private LocalityCache(File dirtyFile, long since) {
+		this.dirtyFile = dirtyFile;
+		this.since = since;
+		this.executor = new ThreadPoolExecutor(2, 2, 10, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(64));
+	}
+
+	/**
+	 * Opens the cache of the hash index in dir.
+	 *
+	 * @return the cache or null if it is turned off
+	 */
+	public static synchronized LocalityCache open(String dir) throws IOException {
+		File f = new File(dir, "locality.dirty");
+		if (MAX_ARCHIVES <= 0) {
+			f.delete();
+			return null;
+		}
+		long since = System.currentTimeMillis();
+		HashSet<Long> dirty = new HashSet<Long>();
+		if (f.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			try {
+				if (in.readInt() == STREAM_MAGIC) {
+					since = in.readLong();
+					int sz = in.readInt();
+					for (int i = 0; i < sz; i++) {
+						dirty.add(in.readLong());
+					}
+				} else {
+					SDFSLogger.getLog().warn("invalid locality cache file " + f.getPath());
+				}
+			} catch (IOException e) {
+				since = System.currentTimeMillis();
+				dirty.clear();
+				SDFSLogger.getLog().warn("unable to read locality cache file " + f.getPath(), e);
+			} finally {
+				in.close();
+			}
+			f.delete();
+		}
+		cache = new LocalityCache(f, since);
+		cache.dirty.addAll(dirty);
+		SDFSLogger.getLog().info("locality cache opened with max archives=" + MAX_ARCHIVES + " dirty archives="
+				+ dirty.size() + " tracking since=" + since);
+		return cache;
+	}
+
+	/**
+	 * Returns the open cache or null if there is none.
+	 */
+	public static LocalityCache get() {
+		return cache;
+	}
+
+	/**
+	 * Returns the archive that holds a hash or -1 if the hash is not cached.
+	 */
+	public long lookup(byte[] hash) {
+		lookups.incrementAndGet();
+		Long id = keys.get(new ByteArrayWrapper(hash));
+		if (id == null)
+			return -1;
+		Archive ar = archives.get(id);
+		if (ar != null)
+			ar.used = tick.incrementAndGet();
+		hits.incrementAndGet();
+		return id;
+	}
+
+	/**
+	 * Called when a hash was found in an archive. Loads the hashes of the
+	 * archive in the background if they are not cached.
+	 */
+	public void touch(long id) {
+		if (id < 0 || archives.containsKey(id) || loading.putIfAbsent(id, Boolean.TRUE) != null)
+			return;
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						load(id);
+					} catch (Exception e) {
+						SDFSLogger.getLog().debug("unable to load hashes of archive " + id, e);
+					} finally {
+						loading.remove(id);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			loading.remove(id);
+		}
+	}
+
+	/**
+	 * Loads the hashes of an archive now if they are not cached.
+	 *
+	 * @return the archive if it holds hash, otherwise -1
+	 */
+	public long fetch(long id, byte[] hash) {
+		if (!archives.containsKey(id)) {
+			try {
+				load(id);
+			} catch (Exception e) {
+				SDFSLogger.getLog().debug("unable to load hashes of archive " + id, e);
+			}
+		}
+		Long _id = keys.get(new ByteArrayWrapper(hash));
+		if (_id != null && _id == id) {
+			hits.incrementAndGet();
+			return id;
+		}
+		return -1;
+	}
+
+	/**
+	 * Called when a hash is removed from the index or moved to another
+	 * archive. The archive it was in is no longer loaded.
+	 */
+	public void dropped(byte[] hash, long id) {
+		keys.remove(new ByteArrayWrapper(hash));
+		synchronized (this) {
+			if (dirty.add(id))
+				this.evict(id);
+		}
+	}
+
+	private void load(long id) throws IOException {
+		synchronized (this) {
+			if (closed || dirty.contains(id))
+				return;
+		}
+		SimpleByteArrayLongMap m = HashBlobArchive.getLocalMap(id);
+		if (m == null)
+			return;
+		ArrayList<byte[]> al = new ArrayList<byte[]>();
+		try {
+			if (new File(m.getPath()).lastModified() < since)
+				return;
+			m.iterInit();
+			KeyValuePair kv = m.next();
+			while (kv != null) {
+				al.add(kv.getKey());
+				kv = m.next();
+			}
+		} catch (MapClosedException e) {
+			throw new IOException(e);
+		} finally {
+			m.close();
+		}
+		synchronized (this) {
+			if (closed || dirty.contains(id) || archives.containsKey(id))
+				return;
+			while (archives.size() >= MAX_ARCHIVES) {
+				long lid = -1;
+				long lu = Long.MAX_VALUE;
+				for (Map.Entry<Long, Archive> e : archives.entrySet()) {
+					if (e.getValue().used < lu) {
+						lu = e.getValue().used;
+						lid = e.getKey();
+					}
+				}
+				this.evict(lid);
+			}
+			Archive ar = new Archive(al.toArray(new byte[al.size()][]));
+			ar.used = tick.incrementAndGet();
+			archives.put(id, ar);
+			for (byte[] k : ar.keys) {
+				keys.put(new ByteArrayWrapper(k), id);
+			}
+		}
+		loads.incrementAndGet();
+	}
+
+	private void evict(long id) {
+		Archive ar = archives.remove(id);
+		if (ar != null) {
+			for (byte[] k : ar.keys) {
+				keys.remove(new ByteArrayWrapper(k), id);
+			}
+		}
+	}
+
+	public long getLookups() {
+		return lookups.get();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getLoads() {
+		return loads.get();
+	}
+
+	public int getArchives() {
+		return archives.size();
+	}
+
+	public double getHitRate() {
+		long l = lookups.get();
+		if (l == 0)
+			return 0;
+		return (double) hits.get() / (double) l;
+	}
+
+	/**
+	 * Stops loading and writes the dirty archives so they are not loaded
+	 * after the next open.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		executor.shutdownNow();
+		try {
+			executor.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+		}
+		synchronized (this) {
+			try {
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(new FileOutputStream(dirtyFile)));
+				try {
+					out.writeInt(STREAM_MAGIC);
+					out.writeLong(since);
+					out.writeInt(dirty.size());
+					for (long id : dirty) {
+						out.writeLong(id);
+					}
+				} finally {
+					out.close();
+				}
+			} catch (IOException e) {
+				dirtyFile.delete();
+				SDFSLogger.getLog().warn("unable to write locality cache file " + dirtyFile.getPath(), e);
+			}
+			archives.clear();
+			keys.clear();
+		}
+		if (cache == this)
+			cache = null;
+		SDFSLogger.getLog().info("locality cache closed lookups=" + lookups.get() + " hits=" + hits.get()
+				+ " archives loaded=" + loads.get());
+	}
+
+	private static class Archive {
+		final byte[][] keys;
+		volatile long used;
+
+		Archive(byte[][] keys) {
+			this.keys = keys;
+		}
+	}
+
+}
@@ -24,13 +24,18 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
@@ -85,6 +90,22 @@ public class LongByteArrayMap implements DataMapInterface {
 	private static ConcurrentHashMap<String, ReentrantLock> activeTasks = new ConcurrentHashMap<String, ReentrantLock>();
 	private static ReentrantLock iLock = new ReentrantLock(true);
 	private String lookupFilter = null;
+	/*
+	 * When set, every change to the map file is recorded as a dirty page so
+	 * that only modified regions have to be replicated. The dirty pages are
+	 * journaled next to the map so they survive a restart.
+	 */
+	public static boolean trackDirtyPages = false;
+	public static int MAP_PAGE_SIZE = 64 * 1024;
+	private ConcurrentSkipListSet<Long> dirtyPages = new ConcurrentSkipListSet<Long>();
+	private FileChannel dirtyLog = null;
+	private final Object dirtyLock = new Object();
+	/*
+	 * The length of the map file, kept here so lookups do not have to stat
+	 * the file.
+	 */
+	private final AtomicLong mapLength = new AtomicLong();
+	private final AtomicLong journalSeq = new AtomicLong();
 
 	static {
 		SDFSLogger.getLog().info("File Map Version is = " + Main.MAPVERSION);
@@ -245,7 +266,7 @@ public class LongByteArrayMap implements DataMapInterface {
 				throw new FileClosedException("hashtable [" + this.filePath + "] is close");
 			}
 			long _cpos = getInternalIterFPos();
-			while (_cpos < this.dbFile.length()) {
+			while (_cpos < this.mapLength.get()) {
 				try {
 					ByteBuffer buf = ByteBuffer.wrap(new byte[arrayLength]);
 					long pos = iterPos.get() * Main.CHUNK_LENGTH;
@@ -264,9 +285,9 @@ public class LongByteArrayMap implements DataMapInterface {
 					_cpos = getInternalIterFPos();
 				}
 			}
-			if ((iterPos.get() * arrayLength) + this.offset != this.dbFile.length())
+			if ((iterPos.get() * arrayLength) + this.offset != this.mapLength.get())
 				throw new IOException("did not reach end of file for [" + this.filePath + "] len="
-						+ iterPos.get() * arrayLength + " file len =" + this.dbFile.length());
+						+ iterPos.get() * arrayLength + " file len =" + this.mapLength.get());
 
 			return -1;
 		} finally {
@@ -292,7 +313,7 @@ public class LongByteArrayMap implements DataMapInterface {
 				throw new FileClosedException("hashtable [" + this.filePath + "] is close");
 			}
 			long _cpos = getInternalIterFPos();
-			while (_cpos < this.dbFile.length()) {
+			while (_cpos < this.mapLength.get()) {
 				try {
 					if (nbuf == null) {
 						nbuf = ByteBuffer.allocate(arrayLength);
@@ -338,7 +359,7 @@ public class LongByteArrayMap implements DataMapInterface {
 			}
 			long _cpos = getInternalIterFPos();
 			//SDFSLogger.getLog().info("cpos=" + _cpos + " fl=" +this.dbFile.length());
-			while (_cpos < this.dbFile.length()) {
+			while (_cpos < this.mapLength.get()) {
 				try {
 					ByteBuffer buf = ByteBuffer.wrap(new byte[arrayLength]);
 					pbdb.read(buf, _cpos);
@@ -438,6 +459,9 @@ public class LongByteArrayMap implements DataMapInterface {
 							bdb.write(buf);
 						}
 						bdb.position(1024);
+						// replay only applies to maps that exist on disk
+						if (MapJournal.get() != null)
+							bdb.force(true);
 						bdb.close();
 
 					}
@@ -454,6 +478,9 @@ public class LongByteArrayMap implements DataMapInterface {
 						this.version = 0;
 					}
 					this.intVersion();
+					this.mapLength.set(pbdb.size());
+					if (trackDirtyPages)
+						this.openDirtyLog(!fileExists);
 					// initiall allocate 32k
 					this.closed = false;
 				} catch (Exception e) {
@@ -507,7 +534,11 @@ public class LongByteArrayMap implements DataMapInterface {
 			// }
 			// rf.seek(fpos);
 			// rf.write(data);
-			pbdb.write(ByteBuffer.wrap(data.getBytes()), fpos);
+			byte[] b = data.getBytes();
+			pbdb.write(ByteBuffer.wrap(b), fpos);
+			this.extend(fpos + b.length);
+			this.journal(MapJournal.PUT, fpos, b.length, b);
+			this.markDirty(fpos, b.length);
 		} finally {
 			l.unlock();
 		}
@@ -565,6 +596,9 @@ public class LongByteArrayMap implements DataMapInterface {
 						_bdb.position(_pos);
 						_bdb.write(buff);
 					}
+					this.extend(es);
+					this.journal(MapJournal.ZERO, ls, es - ls, null);
+					this.markDirty(ls, es - ls);
 					if (SDFSLogger.isDebug())
 						SDFSLogger.getLog().debug("trimed from " + ls + " to " + _bdb.position());
 				}
@@ -611,6 +645,10 @@ public class LongByteArrayMap implements DataMapInterface {
 			_bdb = (FileChannel) Files.newByteChannel(bdbf, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
 					StandardOpenOption.READ, StandardOpenOption.SPARSE);
 			_bdb.truncate(fpos);
+			if (fpos < this.mapLength.get())
+				this.mapLength.set(fpos);
+			this.journal(MapJournal.TRUNCATE, fpos, 0, null);
+			this.markDirty(fpos, 1);
 		} catch (Exception e) {
 			// System.exit(-1);
 			throw new IOException(e);
@@ -650,6 +688,9 @@ public class LongByteArrayMap implements DataMapInterface {
 			_bdb = (FileChannel) Files.newByteChannel(bdbf, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
 					StandardOpenOption.READ, StandardOpenOption.SPARSE);
 			_bdb.write(ByteBuffer.wrap(FREE), fpos);
+			this.extend(fpos + FREE.length);
+			this.journal(MapJournal.ZERO, fpos, FREE.length, null);
+			this.markDirty(fpos, FREE.length);
 		} catch (FileClosedException e) {
 			throw e;
 
@@ -686,7 +727,7 @@ public class LongByteArrayMap implements DataMapInterface {
 
 			fpos = this.getMapFilePosition(pos);
 
-			if (fpos > this.dbFile.length())
+			if (fpos > this.mapLength.get())
 				return null;
 			byte[] buf = null;
 			if (version > 1) {
@@ -725,7 +766,15 @@ public class LongByteArrayMap implements DataMapInterface {
 		ReadLock l = this.hashlock.readLock();
 		l.lock();
 		try {
-			this.pbdb.force(false);
+			MapJournal j = MapJournal.get();
+			if (j != null)
+				j.commit(this.journalSeq.get());
+			else
+				this.pbdb.force(false);
+			synchronized (this.dirtyLock) {
+				if (this.dirtyLog != null)
+					this.dirtyLog.force(false);
+			}
 		} finally {
 			l.unlock();
 		}
@@ -775,6 +824,8 @@ public class LongByteArrayMap implements DataMapInterface {
 			f.delete();
 			File cf = new File(this.filePath + ".lz4");
 			cf.delete();
+			getDirtyLogFile(this.filePath).delete();
+			getCloudStateFile(this.filePath).delete();
 			f.getParentFile().delete();
 			if (rmct.get() > 0) {
 				SDFSLogger.getLog().warn("unable to remove orphaned reference total=" + rmct.get());
@@ -870,7 +921,7 @@ public class LongByteArrayMap implements DataMapInterface {
 		ReadLock l = this.hashlock.readLock();
 		l.lock();
 		try {
-			long sz = (this.dbFile.length() - this.offset) / this.arrayLength;
+			long sz = (this.mapLength.get() - this.offset) / this.arrayLength;
 			return sz;
 		} finally {
 			l.unlock();
@@ -907,6 +958,7 @@ public class LongByteArrayMap implements DataMapInterface {
 						this.rf.close();
 					} catch (Exception e) {
 					}
+					this.closeDirtyLog();
 					if (Main.COMPRESS_METADATA) {
 						File df = new File(this.filePath);
 						File cf = new File(this.filePath + ".lz4");
@@ -944,12 +996,222 @@ public class LongByteArrayMap implements DataMapInterface {
 		}
 	}
 
+	private void extend(long len) {
+		long cl = this.mapLength.get();
+		while (len > cl && !this.mapLength.compareAndSet(cl, len))
+			cl = this.mapLength.get();
+	}
+
+	/*
+	 * Records a change to the map file in the map journal, if there is one.
+	 * Must be called after the change is written to the map file.
+	 */
+	private void journal(byte type, long fpos, long len, byte[] data) throws IOException {
+		MapJournal j = MapJournal.get();
+		if (j != null) {
+			long seq = j.append(this, type, fpos, len, data);
+			long cs = this.journalSeq.get();
+			while (seq > cs && !this.journalSeq.compareAndSet(cs, seq))
+				cs = this.journalSeq.get();
+		}
+	}
+
+	/**
+	 * Forces the map file to disk. Called by @see MapJournal before it drops
+	 * the journal records of this map. A closed map was forced when it was
+	 * closed. The map lock is not taken since callers of the journal may
+	 * already hold it.
+	 */
+	void forceMapFile() throws IOException {
+		try {
+			if (!this.closed)
+				this.pbdb.force(false);
+		} catch (ClosedChannelException e) {
+		}
+	}
+
 	@Override
 	public void put(long pos, SparseDataChunk data, int length) throws IOException {
 		// TODO Auto-generated method stub
 
 	}
 
+	private static String getBasePath(String mapPath) {
+		if (mapPath.endsWith(".lz4"))
+			mapPath = mapPath.substring(0, mapPath.length() - 4);
+		return mapPath;
+	}
+
+	public static File getDirtyLogFile(String mapPath) {
+		return new File(getBasePath(mapPath) + ".dirty");
+	}
+
+	/**
+	 * The file used by the cloud replication layer to record which segments of
+	 * this map have been uploaded.
+	 */
+	public static File getCloudStateFile(String mapPath) {
+		return new File(getBasePath(mapPath) + ".cloud");
+	}
+
+	private void openDirtyLog(boolean newFile) throws IOException {
+		synchronized (this.dirtyLock) {
+			File lf = getDirtyLogFile(this.filePath);
+			if (newFile)
+				lf.delete();
+			this.dirtyLog = (FileChannel) Files.newByteChannel(lf.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.READ);
+			long len = this.dirtyLog.size() - (this.dirtyLog.size() % 8);
+			ByteBuffer bf = ByteBuffer.allocate(8);
+			for (long p = 0; p < len; p += 8) {
+				bf.position(0);
+				this.dirtyLog.read(bf, p);
+				bf.position(0);
+				this.dirtyPages.add(bf.getLong());
+			}
+			this.dirtyLog.truncate(len);
+			this.dirtyLog.position(len);
+			if (this.dirtyPages.size() > 0)
+				SDFSLogger.getLog().debug("loaded " + this.dirtyPages.size() + " dirty pages for " + this.filePath);
+		}
+	}
+
+	private void closeDirtyLog() {
+		synchronized (this.dirtyLock) {
+			if (this.dirtyLog != null) {
+				try {
+					this.dirtyLog.force(true);
+					this.dirtyLog.close();
+				} catch (Exception e) {
+				}
+				this.dirtyLog = null;
+				this.dirtyPages.clear();
+			}
+		}
+	}
+
+	private void markDirty(long fpos, long len) {
+		if (this.dirtyLog == null)
+			return;
+		long sp = fpos / MAP_PAGE_SIZE;
+		long ep = (fpos + Math.max(len, 1) - 1) / MAP_PAGE_SIZE;
+		for (long p = sp; p <= ep; p++) {
+			if (this.dirtyPages.add(p)) {
+				synchronized (this.dirtyLock) {
+					try {
+						if (this.dirtyLog != null)
+							this.dirtyLog.write(ByteBuffer.wrap(Longs.toByteArray(p)));
+					} catch (IOException e) {
+						SDFSLogger.getLog().warn("unable to journal dirty page for " + this.filePath, e);
+					}
+				}
+			}
+		}
+	}
+
+	public boolean hasDirtyPages() {
+		return this.dirtyPages.size() > 0;
+	}
+
+	/**
+	 * Removes and returns the pages changed since the last call. Pages changed
+	 * while the caller is replicating them are marked again. Callers must
+	 * either call @see #commitDirtyPages() once the pages are persisted or
+	 * hand them back with @see #redirtyPages(Collection).
+	 */
+	public List<Long> drainDirtyPages() {
+		ArrayList<Long> al = new ArrayList<Long>();
+		Long p = this.dirtyPages.pollFirst();
+		while (p != null) {
+			al.add(p);
+			p = this.dirtyPages.pollFirst();
+		}
+		return al;
+	}
+
+	public void redirtyPages(Collection<Long> pages) {
+		for (Long p : pages) {
+			this.markDirty(p * MAP_PAGE_SIZE, 1);
+		}
+	}
+
+	/**
+	 * Rewrites the dirty page journal so that it only holds pages that have
+	 * not been replicated yet.
+	 */
+	public void commitDirtyPages() throws IOException {
+		synchronized (this.dirtyLock) {
+			if (this.dirtyLog == null)
+				return;
+			this.dirtyLog.truncate(0);
+			this.dirtyLog.position(0);
+			for (Long p : this.dirtyPages) {
+				this.dirtyLog.write(ByteBuffer.wrap(Longs.toByteArray(p)));
+			}
+			this.dirtyLog.force(false);
+		}
+	}
+
+	public String getFilePath() {
+		return this.filePath;
+	}
+
+	public long getMapFileLength() throws FileClosedException, IOException {
+		ReadLock l = this.hashlock.readLock();
+		l.lock();
+		try {
+			if (this.isClosed()) {
+				throw new FileClosedException("hashtable [" + this.filePath + "] is close");
+			}
+			return this.pbdb.size();
+		} finally {
+			l.unlock();
+		}
+	}
+
+	/**
+	 * Reads a page of the underlying map file. The returned array is shorter
+	 * than MAP_PAGE_SIZE for the last page and empty for pages past the end of
+	 * the file.
+	 */
+	public byte[] readPage(long page) throws FileClosedException, IOException {
+		ReadLock l = this.hashlock.readLock();
+		l.lock();
+		try {
+			if (this.isClosed()) {
+				throw new FileClosedException("hashtable [" + this.filePath + "] is close");
+			}
+			long fpos = page * MAP_PAGE_SIZE;
+			long len = Math.min(MAP_PAGE_SIZE, this.pbdb.size() - fpos);
+			if (len <= 0)
+				return new byte[0];
+			ByteBuffer bf = ByteBuffer.allocate((int) len);
+			while (bf.hasRemaining()) {
+				if (this.pbdb.read(bf, fpos + bf.position()) < 0)
+					break;
+			}
+			return bf.array();
+		} finally {
+			l.unlock();
+		}
+	}
+
+	/**
+	 * Returns the file positions of the entries stored, in whole or in part,
+	 * within a page of the map file.
+	 */
+	public List<Long> getPageKeys(long page) {
+		ArrayList<Long> al = new ArrayList<Long>();
+		long sp = page * MAP_PAGE_SIZE;
+		long ep = sp + MAP_PAGE_SIZE;
+		long first = Math.max(0, (sp - this.offset) / this.arrayLength);
+		long last = (ep - 1 - this.offset) / this.arrayLength;
+		for (long i = first; i <= last; i++) {
+			al.add(i * Main.CHUNK_LENGTH);
+		}
+		return al;
+	}
+
 	/*
 	 * public static DataMapInterface convertToV1(LongByteArrayMap map,SDFSEvent
 	 * evt) throws IOException { LongByteArrayMap m = new
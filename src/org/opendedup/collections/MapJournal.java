@@ -0,0 +1,361 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Sam Silverberg sam.silverberg@gmail.com
+ *
+ * This file is part of OpenDedupe SDFS.
+ *
+ * OpenDedupe SDFS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDedupe SDFS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.opendedup.collections;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.opendedup.logging.SDFSLogger;
+
+/**
+ * Append only journal of the updates made to every @see LongByteArrayMap of
+ * the volume. Updates are still written to the map files but the map files
+ * are not forced on sync. A sync instead forces the journal, and concurrent
+ * syncs share a single force of the journal, so the cost of a sync does not
+ * grow with the number of open files or with the size of their maps.
+ *
+ * The journal is written in segments. Once a segment reaches SEGMENT_SIZE a
+ * new segment is started, the maps changed in the old segment are forced and
+ * the old segment is deleted. On mount the segments left behind are replayed
+ * onto the map files in order. Replay stops at the first record of a segment
+ * that is cut short or fails its checksum.
+ *
+ * A record is the type, the path of the map file, the position in the map
+ * file, a length, the data for a put and a CRC32 of all of the above.
+ */
+public class MapJournal {
+	static final byte PUT = 1;
+	static final byte ZERO = 2;
+	static final byte TRUNCATE = 3;
+	public static long SEGMENT_SIZE = 64L * 1024L * 1024L;
+	private static final int MAX_PENDING = 1024 * 1024;
+	private static volatile MapJournal journal = null;
+	private final File dir;
+	private long segment = 0;
+	private FileChannel ch = null;
+	private long written = 0;
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private long appended = 0;
+	private long committed = 0;
+	private HashSet<LongByteArrayMap> dirty = new HashSet<LongByteArrayMap>();
+	private final Object commitLock = new Object();
+	private final AtomicLong commits = new AtomicLong();
+	private final AtomicLong syncs = new AtomicLong();
+
+	private MapJournal(File dir) throws IOException {
+		this.dir = dir;
+		this.openSegment();
+	}
+
+	/**
+	 * Replays any segments left in dir and starts journaling. Must be called
+	 * before any map is opened.
+	 */
+	public static synchronized void open(String dir) throws IOException {
+		File d = new File(dir);
+		d.mkdirs();
+		replay(d);
+		journal = new MapJournal(d);
+		SDFSLogger.getLog().info("map journal started at " + d.getPath());
+	}
+
+	/**
+	 * Stops journaling. All maps must be closed before calling this.
+	 */
+	public static synchronized void close() {
+		if (journal != null) {
+			try {
+				journal.shutdown();
+			} catch (Exception e) {
+				SDFSLogger.getLog().warn("unable to close map journal cleanly", e);
+			}
+			journal = null;
+		}
+	}
+
+	static MapJournal get() {
+		return journal;
+	}
+
+	long append(LongByteArrayMap m, byte type, long fpos, long len, byte[] data) throws IOException {
+		byte[] p = m.getFilePath().getBytes(StandardCharsets.UTF_8);
+		int dl = data == null ? 0 : data.length;
+		ByteBuffer bf = ByteBuffer.allocate(1 + 2 + p.length + 8 + 8 + dl + 4);
+		bf.put(type);
+		bf.putShort((short) p.length);
+		bf.put(p);
+		bf.putLong(fpos);
+		bf.putLong(len);
+		if (data != null)
+			bf.put(data);
+		CRC32 crc = new CRC32();
+		crc.update(bf.array(), 0, bf.position());
+		bf.putInt((int) crc.getValue());
+		long seq = 0;
+		boolean full = false;
+		synchronized (this) {
+			pending.write(bf.array(), 0, bf.capacity());
+			dirty.add(m);
+			seq = ++appended;
+			full = pending.size() >= MAX_PENDING;
+		}
+		if (full) {
+			synchronized (commitLock) {
+				this.write(false);
+			}
+		}
+		return seq;
+	}
+
+	/**
+	 * Makes every record up to seq durable. A caller that finds its records
+	 * already forced by another caller returns without touching the disk.
+	 */
+	void commit(long seq) throws IOException {
+		syncs.incrementAndGet();
+		synchronized (commitLock) {
+			if (committed >= seq)
+				return;
+			this.write(true);
+		}
+	}
+
+	private void write(boolean force) throws IOException {
+		byte[] b = null;
+		long upTo = 0;
+		synchronized (this) {
+			b = pending.toByteArray();
+			pending.reset();
+			upTo = appended;
+		}
+		ByteBuffer bf = ByteBuffer.wrap(b);
+		while (bf.hasRemaining())
+			ch.write(bf);
+		written += b.length;
+		if (force) {
+			ch.force(false);
+			committed = upTo;
+			commits.incrementAndGet();
+		}
+		if (written >= SEGMENT_SIZE)
+			this.roll();
+	}
+
+	/*
+	 * Starts a new segment and retires the current one. Every record in the
+	 * current segment was written to its map before it was appended, so once
+	 * the maps are forced the segment is no longer needed.
+	 */
+	private void roll() throws IOException {
+		HashSet<LongByteArrayMap> maps = null;
+		synchronized (this) {
+			maps = dirty;
+			dirty = new HashSet<LongByteArrayMap>();
+		}
+		FileChannel och = ch;
+		File of = getSegmentFile(segment);
+		segment++;
+		this.openSegment();
+		och.close();
+		for (LongByteArrayMap m : maps) {
+			m.forceMapFile();
+		}
+		of.delete();
+		if (SDFSLogger.isDebug())
+			SDFSLogger.getLog().debug("map journal rolled to segment " + segment + " after forcing " + maps.size()
+					+ " maps");
+	}
+
+	private void openSegment() throws IOException {
+		this.ch = (FileChannel) Files.newByteChannel(getSegmentFile(segment).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		this.written = 0;
+	}
+
+	private File getSegmentFile(long seg) {
+		return new File(dir, seg + ".jnl");
+	}
+
+	private void shutdown() throws IOException {
+		synchronized (commitLock) {
+			this.write(true);
+			HashSet<LongByteArrayMap> maps = null;
+			synchronized (this) {
+				maps = dirty;
+				dirty = new HashSet<LongByteArrayMap>();
+			}
+			for (LongByteArrayMap m : maps) {
+				m.forceMapFile();
+			}
+			ch.close();
+			getSegmentFile(segment).delete();
+		}
+		SDFSLogger.getLog().info("map journal closed after [" + syncs.get() + "] syncs with [" + commits.get()
+				+ "] journal commits");
+	}
+
+	private static void replay(File dir) throws IOException {
+		File[] segs = dir.listFiles((d, name) -> name.endsWith(".jnl"));
+		if (segs == null || segs.length == 0)
+			return;
+		Arrays.sort(segs, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(segNum(a), segNum(b));
+			}
+		});
+		HashMap<String, RandomAccessFile> files = new HashMap<String, RandomAccessFile>();
+		long records = 0;
+		try {
+			for (File seg : segs) {
+				records += replay(seg, files);
+			}
+			for (RandomAccessFile rf : files.values()) {
+				if (rf != null)
+					rf.getChannel().force(true);
+			}
+		} finally {
+			for (RandomAccessFile rf : files.values()) {
+				try {
+					rf.close();
+				} catch (Exception e) {
+				}
+			}
+		}
+		for (File seg : segs) {
+			seg.delete();
+		}
+		SDFSLogger.getLog().info("replayed [" + records + "] map journal records onto [" + files.size()
+				+ "] maps from [" + segs.length + "] segments");
+	}
+
+	private static long segNum(File f) {
+		String n = f.getName();
+		try {
+			return Long.parseLong(n.substring(0, n.length() - 4));
+		} catch (NumberFormatException e) {
+			return Long.MAX_VALUE;
+		}
+	}
+
+	private static long replay(File seg, HashMap<String, RandomAccessFile> files) throws IOException {
+		long records = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(seg), 65536));
+		try {
+			for (;;) {
+				byte type = 0;
+				try {
+					type = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+				try {
+					byte[] p = new byte[in.readShort()];
+					in.readFully(p);
+					long fpos = in.readLong();
+					long len = in.readLong();
+					byte[] data = null;
+					if (type == PUT) {
+						data = new byte[(int) len];
+						in.readFully(data);
+					}
+					int sum = in.readInt();
+					ByteBuffer bf = ByteBuffer.allocate(1 + 2 + p.length + 8 + 8 + (data == null ? 0 : data.length));
+					bf.put(type);
+					bf.putShort((short) p.length);
+					bf.put(p);
+					bf.putLong(fpos);
+					bf.putLong(len);
+					if (data != null)
+						bf.put(data);
+					CRC32 crc = new CRC32();
+					crc.update(bf.array());
+					if ((int) crc.getValue() != sum) {
+						SDFSLogger.getLog().warn("checksum mismatch in map journal " + seg.getPath() + " after ["
+								+ records + "] records");
+						break;
+					}
+					RandomAccessFile rf = getFile(new String(p, StandardCharsets.UTF_8), files);
+					if (rf != null)
+						apply(rf, type, fpos, len, data);
+					records++;
+				} catch (EOFException | NegativeArraySizeException e) {
+					SDFSLogger.getLog().warn("map journal " + seg.getPath() + " cut short after [" + records
+							+ "] records");
+					break;
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return records;
+	}
+
+	/*
+	 * Maps that no longer exist were deleted and maps that were compressed
+	 * were forced when they were closed, so neither needs the records.
+	 */
+	private static RandomAccessFile getFile(String path, HashMap<String, RandomAccessFile> files)
+			throws IOException {
+		if (files.containsKey(path))
+			return files.get(path);
+		RandomAccessFile rf = null;
+		if (new File(path).exists())
+			rf = new RandomAccessFile(path, "rw");
+		files.put(path, rf);
+		return rf;
+	}
+
+	private static void apply(RandomAccessFile rf, byte type, long fpos, long len, byte[] data) throws IOException {
+		FileChannel fc = rf.getChannel();
+		if (type == PUT) {
+			fc.write(ByteBuffer.wrap(data), fpos);
+		} else if (type == ZERO) {
+			ByteBuffer z = ByteBuffer.allocate((int) Math.min(len, 65536));
+			long pos = fpos;
+			while (pos < fpos + len) {
+				z.position(0);
+				z.limit((int) Math.min(z.capacity(), fpos + len - pos));
+				pos += fc.write(z, pos);
+			}
+		} else if (type == TRUNCATE) {
+			fc.truncate(fpos);
+		} else {
+			throw new IOException("unknown map journal record type " + type);
+		}
+	}
+
+}
@@ -24,6 +24,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
@@ -56,15 +59,16 @@ import org.rocksdb.CompactionStyle;
 import org.rocksdb.CompressionType;
 import org.rocksdb.Env;
 import org.rocksdb.FlushOptions;
-import org.rocksdb.IndexType;
 import org.rocksdb.Options;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
 import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
 import org.rocksdb.WriteOptions;
 
 import com.google.common.eventbus.AllowConcurrentEvents;
 import com.google.common.eventbus.Subscribe;
+import com.google.common.primitives.Longs;
 
 public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 	WriteOptions wo = new WriteOptions();
@@ -86,6 +90,22 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 	private List<String> colFamily = new ArrayList<String>();
 	FlushOptions flo = null;
 	private ConcurrentHashMap<ByteArrayWrapper, ByteBuffer> tempHt = new ConcurrentHashMap<ByteArrayWrapper, ByteBuffer>(1024,0.75f,Main.writeThreads);
+	private LocalityCache locality = null;
+	private SparseIndex sparse = null;
+	private SimilarityIndex similarity = null;
+	private RocksDBResources resources = null;
+	// In the split layout the value of a hash is only the archive it is
+	// stored in, which is written once. Its reference count is kept under
+	// the hash followed by COUNT_SUFFIX, next to it in key order, and changes
+	// to the count are merged by the uint64add operator of RocksDB instead of
+	// rewriting the record. Volumes created before the layout existed keep
+	// the archive and the count in one record.
+	public static boolean SPLIT_REFCOUNTS = true;
+	private static final byte COUNT_SUFFIX = 0;
+	private boolean split = false;
+	// set once sparse mode was used, file maps may then point to copies of a
+	// hash that are not in the index
+	private boolean duplicates = false;
 	static boolean windowsLegacy = false;
 	static {
 		if (org.apache.commons.lang3.SystemUtils.IS_OS_WINDOWS) {
@@ -173,6 +193,8 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 			ArrayList<StartShard> shs = new ArrayList<StartShard>();
 			colFamily.add("default");
 			colFamily.add("testing2");
+			this.split = this.checkLayout();
+			this.resources = RocksDBResources.open(dbs.length + 1, bufferSize + bufferSize / dbs.length);
 			for (int i = 0; i < dbs.length; i++) {
 
 				BlockBasedTableConfig blockConfig = new BlockBasedTableConfig();
@@ -187,8 +209,6 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 				// blockConfig.setPinL0FilterAndIndexBlocksInCache(true);
 				blockConfig.setBlockSize(4 * 1024);
 
-				blockConfig.setNoBlockCache(true);
-
 				// options.useFixedLengthPrefixExtractor(3);
 
 				Options options = new Options();
@@ -207,7 +227,6 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 					options.setCompactionReadaheadSize(1024 * 1024 * 25);
 					// options.setUseDirectIoForFlushAndCompaction(true);
 					// options.setUseDirectReads(true);
-					options.setStatistics(new org.rocksdb.Statistics());
 					options.setStatsDumpPeriodSec(60);
 					options.setLevel0FileNumCompactionTrigger(8);
 					options.setMaxBackgroundCompactions(2);
@@ -223,16 +242,16 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 					// LRUCache c = new LRUCache(memperDB);
 					// options.setRowCache(c);
 					// blockConfig.setBlockCacheSize(GB * 2);
-					options.setWriteBufferSize(bufferSize / dbs.length);
 					options.setMaxWriteBufferNumber(3);
 					options.setMinWriteBufferNumberToMerge(2);
 					options.setMaxBytesForLevelBase(fsize * 5);
 					options.setTargetFileSizeBase(fsize);
-
-					blockConfig.setIndexType(IndexType.kTwoLevelIndexSearch);
 					blockConfig.setFormatVersion(2);
 
 				}
+				this.resources.configure(Integer.toString(i), options, blockConfig);
+				if (this.split)
+					options.setMergeOperatorName("uint64add");
 				options.setTableFormatConfig(blockConfig);
 				// options.setAllowMmapWrites(true);
 				// options.setAllowMmapReads(true);
@@ -257,6 +276,9 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 				if (sh.e != null)
 					throw sh.e;
 			}
+			for (int i = 0; i < dbs.length; i++) {
+				this.resources.opened(Integer.toString(i), dbs[i]);
+			}
 
 			for (int i = 0; i < lockMap.length; i++) {
 				lockMap[i] = new ReentrantLock();
@@ -280,7 +302,6 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 			// options.setRowCache(c);
 
 			// blockConfig.setBlockCacheSize(memperDB);
-			blockConfig.setNoBlockCache(true);
 
 			// options.setCompactionReadaheadSize(1024*1024*25);
 			// options.setUseDirectIoForFlushAndCompaction(true);
@@ -288,7 +309,6 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 			if (!windowsLegacy) {
 				options.setCompactionStyle(CompactionStyle.LEVEL);
 				options.setCompressionType(CompressionType.NO_COMPRESSION);
-				options.setWriteBufferSize(GB);
 				options.setMinWriteBufferNumberToMerge(2);
 				options.setMaxWriteBufferNumber(6);
 				options.setLevelZeroFileNumCompactionTrigger(2);
@@ -311,10 +331,24 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 			options.setMaxOpenFiles(-1);
 			// options.setTargetFileSizeBase(512*1024*1024);
 
+			this.resources.configure("rmdb", options, blockConfig);
 			options.setTableFormatConfig(blockConfig);
 			File f = new File(fileName + File.separator + "rmdb");
 			f.mkdirs();
 			rmdb = RocksDB.open(options, f.getPath());
+			this.resources.opened("rmdb", rmdb);
+			if (SparseIndex.ENABLED && LocalityCache.MAX_ARCHIVES <= 0) {
+				LocalityCache.MAX_ARCHIVES = 1024;
+				SDFSLogger.getLog().info("sparse index needs the locality cache, setting it to "
+						+ LocalityCache.MAX_ARCHIVES + " archives");
+			}
+			this.locality = LocalityCache.open(fileName);
+			this.sparse = SparseIndex.open(fileName, dbs);
+			File sf = new File(fileName, "sparse.used");
+			if (this.sparse != null && !sf.exists())
+				sf.createNewFile();
+			this.duplicates = sf.exists();
+			this.similarity = SimilarityIndex.open(fileName, this);
 			HashBlobArchive.registerEventBus(this);
 			bar.finish();
 			this.setUp();
@@ -363,11 +397,29 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 					byte[] v = null;
 					try {
 						v = db.get(b);
-						if (v != null) {
+						if (v != null && this.sparse != null) {
+							// stored again in sparse mode, keep the copy
+							// already in the index
+							long ct = this.getCount(db, b, v);
+							long d = bf.getLong(8);
+							if (ct <= 0) {
+								rmdb.delete(b);
+								this.putCount(db, wo, b, v, Math.max(d, 0));
+							} else if (ct + d < 0) {
+								// released through the copy before it was
+								// committed
+								this.putCount(db, wo, b, v, 0);
+							} else {
+								this.addCount(db, wo, b, v, d);
+							}
+							this.sparse.duplicated();
+						} else if (v != null) {
 							throw new Exception(
 									"Persistent Hashtable already has an entry that exists in the temp hashtable");
 						} else {
-							db.put(owo, b, bf.array());
+							// a double release leaves the count below zero and
+							// counts are never stored below zero
+							this.putEntry(db, owo, b, bf.getLong(0), Math.max(bf.getLong(8), 0));
 						}
 						this.tempHt.remove(new ByteArrayWrapper(b));
 					} catch (Exception e) {
@@ -394,7 +446,7 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 				ByteBuffer bk = this.tempHt.get(new ByteArrayWrapper(hash));
 				bk.position(0);
 				long oval = bk.getLong();
-				if (oval != val) {
+				if (oval != val && !this.duplicates) {
 					SDFSLogger.getLog().debug("When updating reference count for key [" + StringUtils.getHexString(hash)
 							+ "] hash locations didn't match stored val=" + oval + " request value=" + val);
 					return false;
@@ -412,28 +464,36 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 
 				return true;
 			} else {
+				RocksDB db = this.getDB(hash);
 				byte[] v = null;
-				v = this.getDB(hash).get(hash);
+				v = db.get(hash);
 				if (v != null) {
 					ByteBuffer bk = ByteBuffer.wrap(v);
 					long oval = bk.getLong();
-					if (oval != val) {
+					// a copy stored again in sparse mode is counted on the
+					// entry already in the index
+					if (oval != val && !this.duplicates) {
 						SDFSLogger.getLog()
 								.debug("When updating reference count for key [" + StringUtils.getHexString(hash)
 										+ "] hash locations didn't match stored val=" + oval + " request value=" + val);
 						return false;
 					}
 					long oct = ct;
-					ct += bk.getLong();
+					ct += this.getCount(db, hash, v);
 					if (ct <= 0 && oct < 0) {
-						bk.position(8);
-						bk.putLong(System.currentTimeMillis() + rmthreashold);
-						rmdb.put(hash, v);
+						ByteBuffer rk = ByteBuffer.allocate(16);
+						rk.putLong(oval);
+						rk.putLong(System.currentTimeMillis() + rmthreashold);
+						rmdb.put(hash, rk.array());
 					} else if (rmdb.get(hash) != null) {
 						rmdb.delete(hash);
 					}
-					bk.putLong(v.length - 8, ct);
-					getDB(hash).put(wo, hash, v);
+					// counts are not stored below zero so that increments can
+					// be merged without reading them
+					if (ct < 0)
+						this.putCount(db, wo, hash, v, 0);
+					else
+						this.addCount(db, wo, hash, v, oct);
 
 					return true;
 				}
@@ -461,6 +521,9 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 			for (RocksDB db : dbs) {
 				sz += db.getLongProperty("rocksdb.estimate-num-keys");
 			}
+			// the count of each hash is a key of its own
+			if (this.split)
+				sz /= 2;
 			return sz;
 		} catch (RocksDBException e) {
 			SDFSLogger.getLog().error("unable to get lenght for rocksdb", e);
@@ -476,6 +539,8 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 			for (RocksDB db : dbs) {
 				sz += db.getLongProperty("rocksdb.estimate-num-keys");
 			}
+			if (this.split)
+				sz /= 2;
 			return sz * Main.CHUNK_LENGTH;
 		} catch (RocksDBException e) {
 			SDFSLogger.getLog().error("unable to get lenght for rocksdb", e);
@@ -494,6 +559,7 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 			throw new IOException("Hashtable " + this.fileName + " is close");
 		long rmk = 0;
 		try {
+			ArrayList<byte[]> bases = new ArrayList<byte[]>();
 			RocksIterator iter = rmdb.newIterator();
 			SDFSLogger.getLog().info("Removing hashes ");
 			ByteBuffer bk = ByteBuffer.allocateDirect(16);
@@ -514,13 +580,19 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 						if (System.currentTimeMillis() > tm) {
 							v = this.getDB(hash).get(hash);
 							if (v != null) {
-								ByteBuffer nbk = ByteBuffer.wrap(v);
-								long oval = nbk.getLong();
-								long ct = nbk.getLong();
+								long oval = ByteBuffer.wrap(v).getLong();
+								long ct = this.getCount(this.getDB(hash), hash, v);
 								if (ct <= 0 && oval == pos) {
 									ChunkData ck = new ChunkData(pos, iter.key());
 									ck.setmDelete(true);
-									this.getDB(hash).delete(hash);
+									this.deleteEntry(this.getDB(hash), hash);
+									if (this.locality != null)
+										this.locality.dropped(hash, oval);
+									if (this.similarity != null) {
+										byte[] base = this.similarity.removed(hash);
+										if (base != null)
+											bases.add(base);
+									}
 								}
 								rmdb.delete(iter.key());
 							} else {
@@ -537,6 +609,9 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 				}
 
 			}
+			for (byte[] base : bases) {
+				this.releaseReference(base);
+			}
 			if (compact) {
 				SDFSLogger.getLog().info("compacting archives");
 				int i = 0;
@@ -586,6 +661,8 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 			// System.out.println("s="+i);
 			sz += db.getLongProperty("rocksdb.estimate-num-keys");
 		}
+		if (this.split)
+			sz /= 2;
 		long size = sz;
 		this.closed = false;
 		return size;
@@ -634,6 +711,15 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 		// persist = false;
 		if (this.isClosed())
 			throw new HashtableFullException("Hashtable " + this.fileName + " is close");
+		InsertRecord ir = this.putRecord(cm);
+		if (this.locality != null && !ir.getInserted())
+			this.locality.touch(ir.getHashLocs() == null ? -1 : Longs.fromByteArray(ir.getHashLocs()));
+		if (this.similarity != null && cm.recoverd && ir.getInserted())
+			this.similarity.recovered(cm.getHash(), cm.getcPos());
+		return ir;
+	}
+
+	private InsertRecord putRecord(ChunkData cm) throws IOException {
 		// if (persist)
 		// this.flushFullBuffer();
 		Lock l = this.getLock(cm.getHash());
@@ -654,6 +740,17 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 					this.tempHt.put(new ByteArrayWrapper(cm.getHash()), bk);
 					return new InsertRecord(false, pos);
 				}
+				if (this.locality != null) {
+					long pos = this.locality.lookup(cm.getHash());
+					if (pos == -1 && this.sparse != null && this.sparse.isHook(cm.getHash())) {
+						long[] ids = this.sparse.get(cm.getHash());
+						for (int i = 0; ids != null && i < ids.length && pos == -1; i++) {
+							pos = this.locality.fetch(ids[i], cm.getHash());
+						}
+					}
+					if (pos != -1 && this.addLocalityReference(cm.getHash(), cm.references <= 0 ? 1 : cm.references))
+						return new InsertRecord(false, pos);
+				}
 				// Key not found in temporary hash table
 				// Query RocksDB
 				// If key does not exist and sync_on_write is false
@@ -662,16 +759,22 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 				// . The temporary hash table will be flushed later
 				// via an ArchiveSync event. Otherwise update the
 				// RocksDB directly.
+				// In sparse mode the index is not read and the chunk is
+				// stored again if it was not found above.
 				RocksDB db = this.getDB(cm.getHash());
 				byte[] v = null;
-
-				v = db.get(cm.getHash());
+				if (this.sparse == null)
+					v = db.get(cm.getHash());
+				else
+					this.sparse.missed();
 				if (v == null) {
 					try {
 						cm.persistData(true);
 					} catch (org.opendedup.collections.HashExistsException e) {
 						cm.setcPos(e.getPos());
 					}
+					if (this.sparse != null && this.sparse.isHook(cm.getHash()))
+						this.sparse.add(cm.getHash(), cm.getcPos());
 					v = new byte[16];
 					ByteBuffer bf = ByteBuffer.wrap(v);
 					bf.putLong(cm.getcPos());
@@ -684,19 +787,15 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 					return new InsertRecord(true, cm.getcPos());
 				} else {
 					// SDFSLogger.getLog().info("Hash Found");
-					ByteBuffer bk = ByteBuffer.wrap(v);
-					long pos = bk.getLong();
-					long ct = bk.getLong();
+					long pos = ByteBuffer.wrap(v).getLong();
+					long ct = this.getCount(db, cm.getHash(), v);
+					long d = cm.references <= 0 ? 1 : cm.references;
 					if (ct <= 0) {
-						ct = 0;
 						this.rmdb.delete(cm.getHash());
+						this.putCount(db, wo, cm.getHash(), v, d);
+					} else {
+						this.addCount(db, wo, cm.getHash(), v, d);
 					}
-					if (cm.references <= 0)
-						ct++;
-					else
-						ct += cm.references;
-					bk.putLong(8, ct);
-					db.put(wo, cm.getHash(), v);
 					return new InsertRecord(false, pos);
 				}
 			} catch (RocksDBException e) {
@@ -728,8 +827,14 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 					return false;
 				} else {
 					ByteBuffer bk = ByteBuffer.wrap(v);
+					long opos = bk.getLong(0);
 					bk.putLong(0, cm.getcPos());
-					db.put(wo, cm.getHash(), v);
+					if (this.split)
+						db.put(wo, cm.getHash(), Longs.toByteArray(cm.getcPos()));
+					else
+						db.put(wo, cm.getHash(), v);
+					if (this.locality != null && opos != cm.getcPos())
+						this.locality.dropped(cm.getHash(), opos);
 					return true;
 				}
 			} catch (RocksDBException e) {
@@ -843,6 +948,7 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 		}
 		Lock l = this.getLock(cm.getHash());
 		l.lock();
+		byte[] base = null;
 		try {
 
 			try {
@@ -852,7 +958,11 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 
 					return false;
 				} else {
-					db.delete(cm.getHash());
+					this.deleteEntry(db, cm.getHash());
+					if (this.locality != null)
+						this.locality.dropped(cm.getHash(), ByteBuffer.wrap(v).getLong());
+					if (this.similarity != null)
+						base = this.similarity.removed(cm.getHash());
 					return true;
 				}
 			} catch (RocksDBException e) {
@@ -862,6 +972,204 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 		} finally {
 
 			l.unlock();
+			if (base != null)
+				this.releaseReference(base);
+		}
+	}
+
+	/**
+	 * Adds a reference to a hash stored in archive id unless the lock of the
+	 * hash is held by another thread. Used to keep the base of a delta while
+	 * the lock of the delta is held, so it must not wait for another lock.
+	 *
+	 * @return true if the reference was added
+	 */
+	public boolean tryReference(byte[] hash, long id) {
+		ReentrantLock l = this.getLock(hash);
+		if (!l.tryLock())
+			return false;
+		try {
+			ByteBuffer bk = this.tempHt.get(new ByteArrayWrapper(hash));
+			if (bk != null) {
+				if (bk.getLong(0) != id)
+					return false;
+				bk.putLong(8, bk.getLong(8) + 1);
+				return true;
+			}
+			RocksDB db = this.getDB(hash);
+			byte[] v = db.get(hash);
+			if (v == null)
+				return false;
+			long ct = this.getCount(db, hash, v);
+			if (ByteBuffer.wrap(v).getLong(0) != id || ct <= 0)
+				return false;
+			this.addCount(db, wo, hash, v, 1);
+			return true;
+		} catch (RocksDBException e) {
+			SDFSLogger.getLog().debug("unable to reference " + StringUtils.getHexString(hash), e);
+			return false;
+		} finally {
+			l.unlock();
+		}
+	}
+
+	/**
+	 * Adds ct references to a hash unless its lock is held by another thread.
+	 * Used to release the base of a delta while the lock of the delta may be
+	 * held, so it must not wait for another lock.
+	 *
+	 * @return false if the lock is held
+	 */
+	public boolean tryClaim(byte[] hash, long ct) throws IOException {
+		ReentrantLock l = this.getLock(hash);
+		if (!l.tryLock())
+			return false;
+		try {
+			long pos = this.get(hash);
+			if (pos == -1 || !this.claimKey(hash, pos, ct))
+				SDFSLogger.getLog().warn("unable to add [" + ct + "] references to key ["
+						+ StringUtils.getHexString(hash) + "] because it was not found");
+			return true;
+		} finally {
+			l.unlock();
+		}
+	}
+
+	/*
+	 * Drops the reference a removed delta held to its base.
+	 */
+	private void releaseReference(byte[] hash) {
+		try {
+			long pos = this.get(hash);
+			if (pos == -1 || !this.claimKey(hash, pos, -1))
+				SDFSLogger.getLog().warn("unable to release base [" + StringUtils.getHexString(hash) + "]");
+		} catch (IOException e) {
+			SDFSLogger.getLog().warn("unable to release base [" + StringUtils.getHexString(hash) + "]", e);
+		}
+	}
+
+	/*
+	 * Writes the references of a hash found in the locality cache. In the
+	 * split layout the count is merged without reading the index, which is
+	 * safe because counts are never stored below zero. Otherwise the record
+	 * is read and false is returned if it is not in the index. Must be called
+	 * while holding the lock of the hash.
+	 */
+	private boolean addLocalityReference(byte[] hash, long d) throws RocksDBException {
+		RocksDB db = this.getDB(hash);
+		if (this.split) {
+			db.merge(wo, getCountKey(hash), getCountValue(d));
+			return true;
+		}
+		byte[] v = db.get(hash);
+		if (v == null)
+			return false;
+		long ct = this.getCount(db, hash, v);
+		if (ct <= 0) {
+			this.rmdb.delete(hash);
+			this.putCount(db, wo, hash, v, d);
+		} else {
+			this.addCount(db, wo, hash, v, d);
+		}
+		return true;
+	}
+
+	/*
+	 * Returns the split layout for a new volume if SPLIT_REFCOUNTS is set and
+	 * the layout the volume was created with otherwise.
+	 */
+	private boolean checkLayout() throws IOException {
+		File f = new File(fileName, "layout");
+		boolean sp = false;
+		if (f.exists()) {
+			sp = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8).trim().equals("split");
+		} else {
+			sp = SPLIT_REFCOUNTS && !new File(fileName + File.separator + "0").exists();
+			f.getParentFile().mkdirs();
+			Files.write(f.toPath(), (sp ? "split" : "legacy").getBytes(StandardCharsets.UTF_8));
+		}
+		SDFSLogger.getLog().info("hash index layout is " + (sp ? "split" : "legacy"));
+		return sp;
+	}
+
+	private static byte[] getCountKey(byte[] hash) {
+		byte[] k = new byte[hash.length + 1];
+		System.arraycopy(hash, 0, k, 0, hash.length);
+		k[hash.length] = COUNT_SUFFIX;
+		return k;
+	}
+
+	private static byte[] getCountValue(long ct) {
+		return ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(ct).array();
+	}
+
+	/*
+	 * Returns the reference count of a hash whose record is v.
+	 */
+	private long getCount(RocksDB db, byte[] hash, byte[] v) throws RocksDBException {
+		if (!this.split)
+			return ByteBuffer.wrap(v).getLong(8);
+		byte[] c = db.get(getCountKey(hash));
+		if (c == null)
+			return 0;
+		return ByteBuffer.wrap(c).order(ByteOrder.LITTLE_ENDIAN).getLong();
+	}
+
+	/*
+	 * Sets the reference count of a hash whose record is v.
+	 */
+	private void putCount(RocksDB db, WriteOptions o, byte[] hash, byte[] v, long ct) throws RocksDBException {
+		if (this.split) {
+			db.put(o, getCountKey(hash), getCountValue(ct));
+		} else {
+			ByteBuffer.wrap(v).putLong(8, ct);
+			db.put(o, hash, v);
+		}
+	}
+
+	/*
+	 * Adds d to the reference count of a hash whose record is v.
+	 */
+	private void addCount(RocksDB db, WriteOptions o, byte[] hash, byte[] v, long d) throws RocksDBException {
+		if (this.split) {
+			db.merge(o, getCountKey(hash), getCountValue(d));
+		} else {
+			ByteBuffer bk = ByteBuffer.wrap(v);
+			bk.putLong(8, bk.getLong(8) + d);
+			db.put(o, hash, v);
+		}
+	}
+
+	private void putEntry(RocksDB db, WriteOptions o, byte[] hash, long pos, long ct) throws RocksDBException {
+		if (this.split) {
+			WriteBatch wb = new WriteBatch();
+			try {
+				wb.put(hash, Longs.toByteArray(pos));
+				wb.put(getCountKey(hash), getCountValue(ct));
+				db.write(o, wb);
+			} finally {
+				wb.close();
+			}
+		} else {
+			ByteBuffer bf = ByteBuffer.allocate(16);
+			bf.putLong(pos);
+			bf.putLong(ct);
+			db.put(o, hash, bf.array());
+		}
+	}
+
+	private void deleteEntry(RocksDB db, byte[] hash) throws RocksDBException {
+		if (this.split) {
+			WriteBatch wb = new WriteBatch();
+			try {
+				wb.remove(hash);
+				wb.remove(getCountKey(hash));
+				db.write(wo, wb);
+			} finally {
+				wb.close();
+			}
+		} else {
+			db.delete(hash);
 		}
 	}
 
@@ -874,6 +1182,8 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 			if (this.isClosed()) {
 				throw new IOException("hashtable [" + this.fileName + "] is close");
 			}
+			if (this.similarity != null)
+				this.similarity.applyJournal(false);
 			try {
 				for (RocksDB db : dbs) {
 					db.flush(flo);
@@ -891,6 +1201,14 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 		this.syncLock.lock();
 		try {
 			this.closed = true;
+			if (this.sparse != null)
+				this.sparse.close();
+			if (this.similarity != null) {
+				this.similarity.applyJournal(true);
+				this.similarity.close();
+			}
+			if (this.locality != null)
+				this.locality.close();
 			CommandLineProgressBar bar = new CommandLineProgressBar("Closing Hash Tables", dbs.length, System.out);
 			int i = 0;
 			for (RocksDB db : dbs) {
@@ -907,6 +1225,18 @@ public class RocksDBMap implements AbstractMap, AbstractHashesMap {
 				i++;
 			}
 			bar.finish();
+			if (rmdb != null) {
+				try {
+					FlushOptions op = new FlushOptions();
+					op.setWaitForFlush(true);
+					rmdb.flush(op);
+					rmdb.close();
+				} catch (Exception e) {
+					SDFSLogger.getLog().warn("While closing hashtable ", e);
+				}
+			}
+			if (this.resources != null)
+				this.resources.close();
 
 		} finally {
 			this.syncLock.unlock();
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Sam Silverberg sam.silverberg@gmail.com
+ *
+ * This file is part of OpenDedupe SDFS.
+ *
+ * OpenDedupe SDFS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDedupe SDFS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.opendedup.collections;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendedup.logging.SDFSLogger;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.Cache;
+import org.rocksdb.IndexType;
+import org.rocksdb.LRUCache;
+import org.rocksdb.Options;
+import org.rocksdb.RateLimiter;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.Statistics;
+import org.rocksdb.TickerType;
+
+/**
+ * The memory and IO budget shared by the databases of @see RocksDBMap . All
+ * of the shards and the removal database are configured here, so the memory
+ * they use is fixed by the budget and not by the number of shards.
+ *
+ * Half of CACHE_SIZE is a row cache shared by every database, which serves
+ * the point lookups of the hash index. The other half is split into a block
+ * cache for each database that holds its index and filter blocks, with the
+ * blocks of level 0 pinned. WRITE_BUFFER_SIZE is split between the databases.
+ * Each memtable is as large as the share of its database, the size the
+ * shards of the hash index used before the budget existed. The share also
+ * bounds all the memtables of the database together, so a full memtable is
+ * flushed before another one is filled. Flushes and compactions of every database
+ * go through one rate limiter of COMPACTION_RATE bytes per second, so that a
+ * compaction of many shards at once does not starve lookups of IO.
+ *
+ * Each database keeps its own statistics, which are reported through @see
+ * #getStats() .
+ */
+public class RocksDBResources {
+	public static long CACHE_SIZE = 256L * 1024L * 1024L;
+	public static long WRITE_BUFFER_SIZE = -1;
+	public static long COMPACTION_RATE = 256L * 1024L * 1024L;
+	private static volatile RocksDBResources resources = null;
+	private final int count;
+	private final long writeBufferSize;
+	private final Cache rowCache;
+	private final RateLimiter limiter;
+	private final LinkedHashMap<String, Statistics> stats = new LinkedHashMap<String, Statistics>();
+	private final LinkedHashMap<String, RocksDB> dbs = new LinkedHashMap<String, RocksDB>();
+
+	private RocksDBResources(int count, long writeBufferSize) {
+		this.count = count;
+		if (WRITE_BUFFER_SIZE > 0)
+			writeBufferSize = WRITE_BUFFER_SIZE;
+		this.writeBufferSize = writeBufferSize;
+		if (CACHE_SIZE > 0)
+			this.rowCache = new LRUCache(CACHE_SIZE / 2);
+		else
+			this.rowCache = null;
+		if (COMPACTION_RATE > 0)
+			this.limiter = new RateLimiter(COMPACTION_RATE);
+		else
+			this.limiter = null;
+	}
+
+	/**
+	 * Creates the budget for count databases.
+	 *
+	 * @param writeBufferSize
+	 *            the memtable budget of all the databases if WRITE_BUFFER_SIZE
+	 *            is not set
+	 */
+	public static synchronized RocksDBResources open(int count, long writeBufferSize) {
+		resources = new RocksDBResources(count, writeBufferSize);
+		SDFSLogger.getLog().info("rocksdb resources for [" + count + "] databases cache=" + CACHE_SIZE
+				+ " write buffers=" + resources.writeBufferSize + " compaction rate=" + COMPACTION_RATE);
+		return resources;
+	}
+
+	public static RocksDBResources get() {
+		return resources;
+	}
+
+	/**
+	 * Returns the memtable budget of one database.
+	 */
+	public long getWriteBufferShare() {
+		return writeBufferSize / count;
+	}
+
+	/**
+	 * Applies the shared budget to the options of a database.
+	 */
+	public void configure(String name, Options options, BlockBasedTableConfig blockConfig) {
+		if (rowCache != null) {
+			options.setRowCache(rowCache);
+			blockConfig.setNoBlockCache(false);
+			blockConfig.setBlockCacheSize(CACHE_SIZE / 2 / count);
+			blockConfig.setCacheIndexAndFilterBlocks(true);
+			blockConfig.setPinL0FilterAndIndexBlocksInCache(true);
+		} else {
+			blockConfig.setNoBlockCache(true);
+		}
+		blockConfig.setIndexType(IndexType.kTwoLevelIndexSearch);
+		if (limiter != null)
+			options.setRateLimiter(limiter);
+		long share = Math.max(this.getWriteBufferShare(), 4 * 1024 * 1024);
+		options.setWriteBufferSize(share);
+		options.setDbWriteBufferSize(share);
+		Statistics st = new Statistics();
+		options.setStatistics(st);
+		synchronized (this) {
+			stats.put(name, st);
+		}
+	}
+
+	/**
+	 * Records the database opened with the options of name so that its
+	 * properties can be reported.
+	 */
+	public synchronized void opened(String name, RocksDB db) {
+		dbs.put(name, db);
+	}
+
+	/**
+	 * Returns the statistics of each database by name.
+	 */
+	public synchronized List<Map<String, String>> getStats() {
+		ArrayList<Map<String, String>> al = new ArrayList<Map<String, String>>();
+		for (Map.Entry<String, Statistics> e : stats.entrySet()) {
+			LinkedHashMap<String, String> m = new LinkedHashMap<String, String>();
+			Statistics st = e.getValue();
+			m.put("name", e.getKey());
+			m.put("block-cache-hits", Long.toString(st.getTickerCount(TickerType.BLOCK_CACHE_HIT)));
+			m.put("block-cache-misses", Long.toString(st.getTickerCount(TickerType.BLOCK_CACHE_MISS)));
+			m.put("bloom-filter-useful", Long.toString(st.getTickerCount(TickerType.BLOOM_FILTER_USEFUL)));
+			m.put("keys-read", Long.toString(st.getTickerCount(TickerType.NUMBER_KEYS_READ)));
+			m.put("bytes-written", Long.toString(st.getTickerCount(TickerType.BYTES_WRITTEN)));
+			m.put("compaction-read-bytes", Long.toString(st.getTickerCount(TickerType.COMPACT_READ_BYTES)));
+			m.put("compaction-write-bytes", Long.toString(st.getTickerCount(TickerType.COMPACT_WRITE_BYTES)));
+			m.put("stall-micros", Long.toString(st.getTickerCount(TickerType.STALL_MICROS)));
+			RocksDB db = dbs.get(e.getKey());
+			if (db != null) {
+				try {
+					m.put("keys", Long.toString(db.getLongProperty("rocksdb.estimate-num-keys")));
+					m.put("memtable-size", Long.toString(db.getLongProperty("rocksdb.cur-size-all-mem-tables")));
+					m.put("block-cache-usage", Long.toString(db.getLongProperty("rocksdb.block-cache-usage")));
+					m.put("pending-compaction-bytes",
+							Long.toString(db.getLongProperty("rocksdb.estimate-pending-compaction-bytes")));
+				} catch (RocksDBException e1) {
+					SDFSLogger.getLog().debug("unable to get properties of " + e.getKey(), e1);
+				}
+			}
+			al.add(m);
+		}
+		return al;
+	}
+
+	public long getCompactionBytes() {
+		if (limiter == null)
+			return 0;
+		return limiter.getTotalBytesThrough();
+	}
+
+	/**
+	 * Releases the shared objects. The databases must be closed first.
+	 */
+	public synchronized void close() {
+		dbs.clear();
+		for (Statistics st : stats.values()) {
+			st.close();
+		}
+		stats.clear();
+		if (rowCache != null)
+			rowCache.close();
+		if (limiter != null)
+			limiter.close();
+		if (resources == this)
+			resources = null;
+	}
+
+}
@@ -0,0 +1,585 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Sam Silverberg sam.silverberg@gmail.com
+ *
+ * This file is part of OpenDedupe SDFS.
+ *
+ * OpenDedupe SDFS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDedupe SDFS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.opendedup.collections;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.HashBlobArchive;
+import org.opendedup.sdfs.servers.HCServiceProxy;
+import org.opendedup.util.CompressionUtils;
+import org.opendedup.util.StringUtils;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteOptions;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.primitives.Longs;
+
+/**
+ * Stores new chunks that resemble a recently written chunk as a delta against
+ * it. Each chunk is split into FEATURES parts and the largest gear hash of
+ * each part is a feature. The features are grouped into SUPER_FEATURES super
+ * features, so a chunk that differs from another in a few places still shares
+ * at least one super feature with it. The last chunk written with each super
+ * feature is kept in a bounded in memory index.
+ *
+ * A delta lists the ranges copied from its base and the bytes in between. It
+ * is stored by @see HashBlobArchive in place of the chunk and rebuilt when the
+ * chunk is read. A delta is only stored if it is at most MAX_DELTA_RATIO of
+ * the chunk, and a chunk that is itself a delta is only used as a base while
+ * its chain is shorter than MAX_DEPTH.
+ *
+ * A delta adds a reference to its base in the hash index so that the base is
+ * not removed while the delta needs it. The base of each delta is written to a
+ * db in the hash index directory and the reference is dropped when the delta
+ * is removed from the index. The db is opened even when deltas are turned off
+ * so that the deltas written before still release their bases. The base hash
+ * is also the start of the delta record in the archive, so a consistency check
+ * that adds a delta back to the index adds its reference to the base again.
+ *
+ * References are written to the hash index as they change. A reference that
+ * cannot be written at once, because the lock of the base is held or the base
+ * was not recovered yet, is written to a journal db next to the index and
+ * applied on sync. Recent chunks
+ * and rebuilt bases are kept in a cache of BASE_CACHE_SIZE bytes and bases
+ * that are not in it are only read from archives held in the local cache.
+ */
+public class SimilarityIndex {
+	public static boolean ENABLED = false;
+	public static int MAX_DEPTH = 2;
+	public static long MAX_FEATURES = 1000000;
+	public static long BASE_CACHE_SIZE = 64L * 1024L * 1024L;
+	public static double MAX_DELTA_RATIO = 0.5;
+	/**
+	 * Written in place of the uncompressed length of a chunk that is stored
+	 * as a delta.
+	 */
+	public static final int DELTA_CHUNK = -2;
+	private static final int FEATURES = 12;
+	private static final int SUPER_FEATURES = 3;
+	private static final int MIN_CHUNK = 512;
+	private static final int MIN_MATCH = 16;
+	private static final byte LITERAL = 0;
+	private static final byte COPY = 1;
+	private static final long[] GEAR = new long[256];
+	private static volatile SimilarityIndex index = null;
+	private static Cache<ByteArrayWrapper, byte[]> bases = null;
+	private static final AtomicLong reconstructions = new AtomicLong();
+	private final RocksDBMap map;
+	private final RocksDB db;
+	private final RocksDB journal;
+	private final AtomicLong seq = new AtomicLong(System.currentTimeMillis() << 20);
+	private final WriteOptions wo;
+	private final Cache<Long, Base> features;
+	private final AtomicLong deltas = new AtomicLong();
+	private final AtomicLong deltaBytes = new AtomicLong();
+	private final AtomicLong savedBytes = new AtomicLong();
+
+	static {
+		RocksDB.loadLibrary();
+		Random rnd = new Random(0x53444653L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = rnd.nextLong();
+		}
+	}
+
+	private SimilarityIndex(File dir, RocksDBMap map) throws IOException {
+		this.map = map;
+		dir.mkdirs();
+		File jdir = new File(dir.getParentFile(), dir.getName() + "-journal");
+		jdir.mkdirs();
+		try {
+			Options options = new Options();
+			options.setCreateIfMissing(true);
+			wo = new WriteOptions();
+			db = RocksDB.open(options, dir.getPath());
+			journal = RocksDB.open(options, jdir.getPath());
+		} catch (RocksDBException e) {
+			throw new IOException(e);
+		}
+		if (ENABLED)
+			features = CacheBuilder.newBuilder().maximumSize(MAX_FEATURES)
+					.concurrencyLevel(Runtime.getRuntime().availableProcessors()).build();
+		else
+			features = null;
+	}
+
+	/**
+	 * Opens the bases of the deltas of the hash index in dir.
+	 *
+	 * @return the index or null if deltas are turned off and were never
+	 *         written
+	 */
+	public static synchronized SimilarityIndex open(String dir, RocksDBMap map) throws IOException {
+		File f = new File(dir, "similarity");
+		if (!ENABLED && !f.exists())
+			return null;
+		index = new SimilarityIndex(f, map);
+		SDFSLogger.getLog().info("similarity index opened enabled=" + ENABLED + " max depth=" + MAX_DEPTH
+				+ " max features=" + MAX_FEATURES);
+		return index;
+	}
+
+	/**
+	 * Returns the open index or null if there is none.
+	 */
+	public static SimilarityIndex get() {
+		return index;
+	}
+
+	private static synchronized Cache<ByteArrayWrapper, byte[]> getBases() {
+		if (bases == null)
+			bases = CacheBuilder.newBuilder().maximumWeight(BASE_CACHE_SIZE)
+					.weigher(new Weigher<ByteArrayWrapper, byte[]>() {
+						public int weigh(ByteArrayWrapper k, byte[] v) {
+							return v.length;
+						}
+					}).build();
+		return bases;
+	}
+
+	/**
+	 * Returns the super features of a chunk.
+	 */
+	private static long[] superFeatures(byte[] chunk) {
+		long[] ft = new long[FEATURES];
+		Arrays.fill(ft, Long.MIN_VALUE);
+		long h = 0;
+		int p = 0;
+		for (int i = 0; i < FEATURES; i++) {
+			int end = (int) (((long) chunk.length * (i + 1)) / FEATURES);
+			for (; p < end; p++) {
+				h = (h << 1) + GEAR[chunk[p] & 0xff];
+				if (h > ft[i])
+					ft[i] = h;
+			}
+		}
+		int n = FEATURES / SUPER_FEATURES;
+		long[] sf = new long[SUPER_FEATURES];
+		for (int i = 0; i < SUPER_FEATURES; i++) {
+			long s = i;
+			for (int j = 0; j < n; j++) {
+				s = mix(s ^ ft[i * n + j]);
+			}
+			sf[i] = s;
+		}
+		return sf;
+	}
+
+	private static long mix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	private static int anchor(byte[] b, int p) {
+		long v = 0;
+		for (int i = 0; i < MIN_MATCH; i++) {
+			v = v * 31 + b[p + i];
+		}
+		return (int) mix(v);
+	}
+
+	/*
+	 * Returns the copies and literals that build target from base.
+	 */
+	private static byte[] diff(byte[] base, byte[] target) throws IOException {
+		int bits = 32 - Integer.numberOfLeadingZeros(Math.max(base.length / 2, 16));
+		int mask = (1 << bits) - 1;
+		int[] table = new int[1 << bits];
+		Arrays.fill(table, -1);
+		for (int i = 0; i + MIN_MATCH <= base.length; i += 4) {
+			table[anchor(base, i) & mask] = i;
+		}
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(target.length / 4);
+		DataOutputStream out = new DataOutputStream(bos);
+		int lit = 0;
+		int p = 0;
+		while (p + MIN_MATCH <= target.length) {
+			int c = table[anchor(target, p) & mask];
+			if (c < 0 || !matches(base, c, target, p, MIN_MATCH)) {
+				p++;
+				continue;
+			}
+			while (c > 0 && p > lit && base[c - 1] == target[p - 1]) {
+				c--;
+				p--;
+			}
+			int n = MIN_MATCH;
+			while (c + n < base.length && p + n < target.length && base[c + n] == target[p + n])
+				n++;
+			if (p > lit) {
+				out.writeByte(LITERAL);
+				out.writeInt(p - lit);
+				out.write(target, lit, p - lit);
+			}
+			out.writeByte(COPY);
+			out.writeInt(c);
+			out.writeInt(n);
+			p += n;
+			lit = p;
+		}
+		if (target.length > lit) {
+			out.writeByte(LITERAL);
+			out.writeInt(target.length - lit);
+			out.write(target, lit, target.length - lit);
+		}
+		out.flush();
+		return bos.toByteArray();
+	}
+
+	private static boolean matches(byte[] a, int ap, byte[] b, int bp, int n) {
+		for (int i = 0; i < n; i++) {
+			if (a[ap + i] != b[bp + i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Finds a base for a new chunk and builds its delta. The base is
+	 * referenced in the hash index if a delta is returned. It must be passed
+	 * to @see #added(byte[], byte[], long, Delta) once the chunk is written
+	 * or to @see #failed(Delta) if it is not.
+	 */
+	public Delta encode(byte[] hash, byte[] chunk) {
+		Delta d = new Delta();
+		if (!ENABLED || chunk.length < MIN_CHUNK)
+			return d;
+		d.features = superFeatures(chunk);
+		for (int i = 0; i < d.features.length; i++) {
+			Base b = features.getIfPresent(d.features[i]);
+			if (b == null || b.depth >= MAX_DEPTH || Arrays.equals(b.hash, hash))
+				continue;
+			byte[] bb = getBases().getIfPresent(new ByteArrayWrapper(b.hash));
+			if (bb == null && HashBlobArchive.isCached(b.id)) {
+				try {
+					bb = HashBlobArchive.getBlock(b.hash, b.id);
+				} catch (Exception e) {
+					if (SDFSLogger.isDebug())
+						SDFSLogger.getLog().debug("unable to read base in " + b.id, e);
+				}
+			}
+			if (bb == null)
+				continue;
+			try {
+				byte[] ops = diff(bb, chunk);
+				if (ops.length > chunk.length * MAX_DELTA_RATIO)
+					continue;
+				if (!map.tryReference(b.hash, b.id))
+					continue;
+				int dz = -1;
+				if (Main.compress) {
+					dz = ops.length;
+					ops = CompressionUtils.compressLz4(ops);
+				}
+				ByteBuffer bf = ByteBuffer.allocate(2 + b.hash.length + 8 + 1 + 4 + 4 + ops.length);
+				bf.putShort((short) b.hash.length);
+				bf.put(b.hash);
+				bf.putLong(b.id);
+				bf.put((byte) (b.depth + 1));
+				bf.putInt(chunk.length);
+				bf.putInt(dz);
+				bf.put(ops);
+				d.record = bf.array();
+				d.base = b.hash;
+				d.depth = b.depth + 1;
+				return d;
+			} catch (IOException e) {
+				SDFSLogger.getLog().debug("unable to build delta", e);
+			}
+		}
+		return d;
+	}
+
+	/**
+	 * Records a chunk that was written to an archive so that later chunks can
+	 * use it as a base.
+	 */
+	public void added(byte[] hash, byte[] chunk, long id, Delta d) {
+		if (d.record != null) {
+			ByteBuffer bf = ByteBuffer.allocate(8 + d.base.length);
+			bf.putLong(id);
+			bf.put(d.base);
+			try {
+				if (db.get(hash) != null) {
+					// already a delta, keep the reference it holds
+					this.release(d.base);
+				} else {
+					db.put(wo, hash, bf.array());
+				}
+			} catch (RocksDBException e) {
+				// the base stays referenced so the delta can still be read
+				SDFSLogger.getLog().warn("unable to record base of delta " + id, e);
+			}
+			deltas.incrementAndGet();
+			deltaBytes.addAndGet(d.record.length);
+			savedBytes.addAndGet(chunk.length - d.record.length);
+		}
+		if (d.features == null)
+			return;
+		Base b = new Base(hash, id, d.depth);
+		for (long f : d.features) {
+			features.put(f, b);
+		}
+		getBases().put(new ByteArrayWrapper(hash), Arrays.copyOf(chunk, chunk.length));
+	}
+
+	/**
+	 * Drops the reference to the base of a delta that was not written.
+	 */
+	public void failed(Delta d) {
+		if (d.record != null)
+			this.release(d.base);
+	}
+
+	/*
+	 * Drops a reference to a base. Called while the lock of the delta may be
+	 * held, so the reference is journaled if the lock of the base is held.
+	 */
+	private void release(byte[] base) {
+		try {
+			if (map.tryClaim(base, -1))
+				return;
+		} catch (IOException e) {
+			SDFSLogger.getLog().debug("unable to release base [" + StringUtils.getHexString(base) + "]", e);
+		}
+		this.journal(base, -1);
+	}
+
+	private void journal(byte[] base, long ct) {
+		ByteBuffer k = ByteBuffer.allocate(base.length + 8);
+		k.put(base);
+		k.putLong(seq.incrementAndGet());
+		try {
+			journal.put(wo, k.array(), Longs.toByteArray(ct));
+		} catch (RocksDBException e) {
+			SDFSLogger.getLog().warn("unable to journal [" + ct + "] references to base ["
+					+ StringUtils.getHexString(base) + "]", e);
+		}
+	}
+
+	/**
+	 * Writes the journaled references to the hash index. Must not be called
+	 * while holding the lock of a hash. References to bases that are not in
+	 * the index are kept for a consistency check that may still add the base,
+	 * unless closing is set.
+	 */
+	public void applyJournal(boolean closing) {
+		long n = 0;
+		RocksIterator iter = journal.newIterator();
+		try {
+			for (iter.seekToFirst(); iter.isValid(); iter.next()) {
+				byte[] k = iter.key();
+				byte[] base = Arrays.copyOf(k, k.length - 8);
+				long ct = Longs.fromByteArray(iter.value());
+				long pos = map.get(base);
+				if (pos == -1 && ct > 0 && !closing)
+					continue;
+				if (pos == -1 || !map.claimKey(base, pos, ct))
+					SDFSLogger.getLog().warn("unable to add [" + ct + "] references to base ["
+							+ StringUtils.getHexString(base) + "] because it was not found");
+				journal.delete(wo, k);
+				n++;
+			}
+		} catch (IOException | RocksDBException e) {
+			SDFSLogger.getLog().warn("unable to apply similarity journal", e);
+		} finally {
+			iter.close();
+		}
+		if (n > 0 && SDFSLogger.isDebug())
+			SDFSLogger.getLog().debug("applied [" + n + "] journaled base references");
+	}
+
+	/**
+	 * Called when a consistency check adds a hash stored in archive id back to
+	 * the index. If the chunk is stored as a delta its base is recorded and
+	 * referenced again.
+	 */
+	public void recovered(byte[] hash, long id) {
+		try {
+			byte[] base = HashBlobArchive.getDeltaBase(hash, id);
+			if (base == null)
+				return;
+			ByteBuffer bf = ByteBuffer.allocate(8 + base.length);
+			bf.putLong(id);
+			bf.put(base);
+			db.put(wo, hash, bf.array());
+			long pos = map.get(base);
+			if (pos == -1 || !map.claimKey(base, pos, 1))
+				this.journal(base, 1);
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn("unable to recover base of [" + StringUtils.getHexString(hash) + "] in " + id, e);
+		}
+	}
+
+	/**
+	 * Called when a hash is removed from the index.
+	 *
+	 * @return the base it referenced if it was stored as a delta, otherwise
+	 *         null
+	 */
+	public byte[] removed(byte[] hash) throws IOException {
+		try {
+			byte[] v = db.get(hash);
+			if (v == null)
+				return null;
+			db.delete(wo, hash);
+			return Arrays.copyOfRange(v, 8, v.length);
+		} catch (RocksDBException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Returns the hash of the base of a delta written by @see
+	 * #encode(byte[], byte[]) .
+	 */
+	public static byte[] getBase(byte[] record) {
+		ByteBuffer bf = ByteBuffer.wrap(record);
+		byte[] bh = new byte[bf.getShort()];
+		bf.get(bh);
+		return bh;
+	}
+
+	/**
+	 * Rebuilds a chunk from a delta written by @see #encode(byte[], byte[]) .
+	 */
+	public static byte[] decode(byte[] record) throws IOException, DataArchivedException {
+		ByteBuffer bf = ByteBuffer.wrap(record);
+		byte[] bh = new byte[bf.getShort()];
+		bf.get(bh);
+		long bid = bf.getLong();
+		bf.get();
+		byte[] chunk = new byte[bf.getInt()];
+		int dz = bf.getInt();
+		byte[] ops = new byte[bf.remaining()];
+		bf.get(ops);
+		if (dz > 0)
+			ops = CompressionUtils.decompressLz4(ops, dz);
+		ByteArrayWrapper w = new ByteArrayWrapper(bh);
+		byte[] base = getBases().getIfPresent(w);
+		if (base == null) {
+			try {
+				base = HashBlobArchive.getBlock(bh, bid);
+			} catch (DataArchivedException e) {
+				throw e;
+			} catch (Exception e) {
+				base = null;
+			}
+			if (base == null) {
+				// moved to another archive by compaction
+				base = HCServiceProxy.fetchChunk(bh, null, false);
+			}
+			if (base == null)
+				throw new IOException("base of delta not found");
+			getBases().put(w, base);
+		}
+		ByteBuffer ob = ByteBuffer.wrap(ops);
+		int p = 0;
+		while (ob.hasRemaining()) {
+			byte op = ob.get();
+			if (op == LITERAL) {
+				int n = ob.getInt();
+				ob.get(chunk, p, n);
+				p += n;
+			} else {
+				int c = ob.getInt();
+				int n = ob.getInt();
+				System.arraycopy(base, c, chunk, p, n);
+				p += n;
+			}
+		}
+		if (p != chunk.length)
+			throw new IOException("delta rebuilt " + p + " bytes but expected " + chunk.length);
+		reconstructions.incrementAndGet();
+		return chunk;
+	}
+
+	public long getDeltas() {
+		return deltas.get();
+	}
+
+	public long getDeltaBytes() {
+		return deltaBytes.get();
+	}
+
+	public long getSavedBytes() {
+		return savedBytes.get();
+	}
+
+	public static long getReconstructions() {
+		return reconstructions.get();
+	}
+
+	public synchronized void close() {
+		db.close();
+		journal.close();
+		if (features != null)
+			features.invalidateAll();
+		if (index == this)
+			index = null;
+		SDFSLogger.getLog().info("similarity index closed deltas=" + deltas.get() + " saved bytes="
+				+ savedBytes.get() + " rebuilt=" + reconstructions.get());
+	}
+
+	/**
+	 * The result of @see SimilarityIndex#encode(byte[], byte[]) . record is
+	 * null if the chunk is stored whole.
+	 */
+	public static class Delta {
+		byte[] record = null;
+		byte[] base = null;
+		int depth = 0;
+		long[] features = null;
+
+		public byte[] getRecord() {
+			return record;
+		}
+	}
+
+	private static class Base {
+		final byte[] hash;
+		final long id;
+		final int depth;
+
+		Base(byte[] hash, long id, int depth) {
+			this.hash = hash;
+			this.id = id;
+			this.depth = depth;
+		}
+	}
+
+}
@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Sam Silverberg sam.silverberg@gmail.com
+ *
+ * This file is part of OpenDedupe SDFS.
+ *
+ * OpenDedupe SDFS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDedupe SDFS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.opendedup.collections;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendedup.hashing.HashFunctionPool;
+import org.opendedup.logging.SDFSLogger;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksIterator;
+
+/**
+ * The in memory part of the sparse index mode of @see RocksDBMap . One in
+ * SAMPLE_RATE hashes, chosen by their bits so that every node picks the same
+ * ones, is a hook. Hooks are kept in memory with the last MAX_CHAMPIONS
+ * archives they were written to.
+ *
+ * In sparse mode the hash index is not read when a chunk is written. A chunk
+ * that is a hook selects the archives its hook points to and their hashes are
+ * loaded into the @see LocalityCache , which then resolves the hook and the
+ * chunks written around it. A chunk that is not found there is stored again
+ * even if the hash index already has it. When the new archive is committed
+ * the reference counts of such chunks are added to the entries already in the
+ * index and the new copy is left for compaction to remove. Releases of the
+ * copy are counted on the entry in the index and reads of a copy that was
+ * removed fall back to the position in the index. Dedup is traded for
+ * never reading the index on the write path and the chunks stored again are
+ * counted as duplicates.
+ *
+ * Hooks are written to a file on close. The file is removed on open so that
+ * after an unclean shutdown the hooks are rebuilt from the hash index.
+ */
+public class SparseIndex {
+	public static boolean ENABLED = false;
+	public static int SAMPLE_RATE = 64;
+	public static int MAX_CHAMPIONS = 2;
+	private static final int STREAM_MAGIC = 0x53445349;
+	private static volatile SparseIndex index = null;
+	private final File file;
+	private final int mask;
+	private final ConcurrentHashMap<ByteArrayWrapper, long[]> hooks = new ConcurrentHashMap<ByteArrayWrapper, long[]>();
+	private final AtomicLong hookLookups = new AtomicLong();
+	private final AtomicLong hookHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong duplicates = new AtomicLong();
+
+	private SparseIndex(File file) {
+		this.file = file;
+		this.mask = Integer.highestOneBit(Math.max(SAMPLE_RATE, 1)) - 1;
+	}
+
+	/**
+	 * Opens the hooks of the hash index in dir, rebuilding them from dbs if
+	 * they were not written on the last close.
+	 *
+	 * @return the hooks or null if sparse mode is off
+	 */
+	public static synchronized SparseIndex open(String dir, RocksDB[] dbs) throws IOException {
+		File f = new File(dir, "sparse.hooks");
+		if (!ENABLED) {
+			f.delete();
+			return null;
+		}
+		SparseIndex si = new SparseIndex(f);
+		boolean loaded = false;
+		if (f.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			try {
+				if (in.readInt() == STREAM_MAGIC && in.readInt() == si.mask) {
+					while (in.readBoolean()) {
+						byte[] k = new byte[in.readInt()];
+						in.readFully(k);
+						long[] ids = new long[in.readInt()];
+						for (int i = 0; i < ids.length; i++) {
+							ids[i] = in.readLong();
+						}
+						si.hooks.put(new ByteArrayWrapper(k), ids);
+					}
+					loaded = true;
+				}
+			} catch (IOException e) {
+				SDFSLogger.getLog().warn("unable to read sparse index hooks " + f.getPath(), e);
+			} finally {
+				in.close();
+			}
+			f.delete();
+		}
+		if (!loaded) {
+			si.hooks.clear();
+			si.rebuild(dbs);
+		}
+		SDFSLogger.getLog().info("sparse index opened with [" + si.hooks.size() + "] hooks sample rate=1/"
+				+ (si.mask + 1));
+		index = si;
+		return si;
+	}
+
+	/**
+	 * Returns the open hooks or null if there are none.
+	 */
+	public static SparseIndex get() {
+		return index;
+	}
+
+	private void rebuild(RocksDB[] dbs) {
+		SDFSLogger.getLog().info("rebuilding sparse index hooks from the hash index");
+		for (RocksDB db : dbs) {
+			RocksIterator iter = db.newIterator();
+			try {
+				for (iter.seekToFirst(); iter.isValid(); iter.next()) {
+					byte[] k = iter.key();
+					// skips the reference counts of the split layout
+					if (k.length == HashFunctionPool.hashLength && this.isHook(k))
+						this.add(k, ByteBuffer.wrap(iter.value()).getLong());
+				}
+			} finally {
+				iter.close();
+			}
+		}
+	}
+
+	public boolean isHook(byte[] hash) {
+		return (ByteBuffer.wrap(hash).getInt(1) & mask) == 0;
+	}
+
+	/**
+	 * Returns the archives a hook was last written to, the most recent first,
+	 * or null if the hook is not known.
+	 */
+	public long[] get(byte[] hash) {
+		hookLookups.incrementAndGet();
+		long[] ids = hooks.get(new ByteArrayWrapper(hash));
+		if (ids != null)
+			hookHits.incrementAndGet();
+		return ids;
+	}
+
+	/**
+	 * Records that a hook was written to an archive.
+	 */
+	public void add(byte[] hash, long id) {
+		hooks.compute(new ByteArrayWrapper(hash), (k, ids) -> {
+			if (ids == null)
+				return new long[] { id };
+			int n = 1;
+			long[] nids = new long[Math.min(ids.length + 1, MAX_CHAMPIONS)];
+			nids[0] = id;
+			for (int i = 0; i < ids.length && n < nids.length; i++) {
+				if (ids[i] != id)
+					nids[n++] = ids[i];
+			}
+			if (n < nids.length) {
+				long[] _nids = new long[n];
+				System.arraycopy(nids, 0, _nids, 0, n);
+				nids = _nids;
+			}
+			return nids;
+		});
+	}
+
+	/**
+	 * Counts a chunk that was stored without reading the hash index.
+	 */
+	public void missed() {
+		misses.incrementAndGet();
+	}
+
+	/**
+	 * Counts a chunk that was stored again because it was missed.
+	 */
+	public void duplicated() {
+		duplicates.incrementAndGet();
+	}
+
+	public long getHooks() {
+		return hooks.size();
+	}
+
+	public long getHookLookups() {
+		return hookLookups.get();
+	}
+
+	public long getHookHits() {
+		return hookHits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	/**
+	 * Returns the share of the chunks stored without reading the hash index
+	 * that were already stored.
+	 */
+	public double getDuplicateRate() {
+		long m = misses.get();
+		if (m == 0)
+			return 0;
+		return (double) duplicates.get() / (double) m;
+	}
+
+	public synchronized void close() {
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			try {
+				out.writeInt(STREAM_MAGIC);
+				out.writeInt(mask);
+				for (Map.Entry<ByteArrayWrapper, long[]> e : hooks.entrySet()) {
+					byte[] k = e.getKey().getData();
+					out.writeBoolean(true);
+					out.writeInt(k.length);
+					out.write(k);
+					out.writeInt(e.getValue().length);
+					for (long id : e.getValue()) {
+						out.writeLong(id);
+					}
+				}
+				out.writeBoolean(false);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			file.delete();
+			SDFSLogger.getLog().warn("unable to write sparse index hooks " + file.getPath(), e);
+		}
+		if (index == this)
+			index = null;
+		SDFSLogger.getLog().info("sparse index closed hooks=" + hooks.size() + " chunks stored without lookup="
+				+ misses.get() + " stored again=" + duplicates.get());
+	}
+
+}
@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Sam Silverberg sam.silverberg@gmail.com
+ *
+ * This file is part of OpenDedupe SDFS.
+ *
+ * OpenDedupe SDFS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDedupe SDFS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.opendedup.hashing;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * The BLAKE3 hash in its default mode. Input is split into chunks of 1 KB
+ * that are hashed on their own and joined in a binary tree, so the subtrees
+ * of a large input are hashed on the threads of a @see ForkJoinPool . The
+ * output is the same as the serial hash whatever the number of threads.
+ * Outputs up to 32 bytes long are supported.
+ */
+public class Blake3 {
+	private static final int CHUNK_LEN = 1024;
+	private static final int BLOCK_LEN = 64;
+	private static final int CHUNK_START = 1;
+	private static final int CHUNK_END = 2;
+	private static final int PARENT = 4;
+	private static final int ROOT = 8;
+	private static final int[] IV = { 0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A, 0x510E527F, 0x9B05688C,
+			0x1F83D9AB, 0x5BE0CD19 };
+	private static final int[] MSG_PERMUTATION = { 2, 6, 3, 10, 7, 0, 4, 13, 1, 11, 12, 5, 9, 14, 15, 8 };
+
+	/**
+	 * Subtrees at least this long are split across threads.
+	 */
+	public static final int PARALLEL_MIN = 32 * 1024;
+
+	private static int rotr(int w, int c) {
+		return (w >>> c) | (w << (32 - c));
+	}
+
+	private static void g(int[] s, int a, int b, int c, int d, int mx, int my) {
+		s[a] = s[a] + s[b] + mx;
+		s[d] = rotr(s[d] ^ s[a], 16);
+		s[c] = s[c] + s[d];
+		s[b] = rotr(s[b] ^ s[c], 12);
+		s[a] = s[a] + s[b] + my;
+		s[d] = rotr(s[d] ^ s[a], 8);
+		s[c] = s[c] + s[d];
+		s[b] = rotr(s[b] ^ s[c], 7);
+	}
+
+	private static void round(int[] s, int[] m) {
+		g(s, 0, 4, 8, 12, m[0], m[1]);
+		g(s, 1, 5, 9, 13, m[2], m[3]);
+		g(s, 2, 6, 10, 14, m[4], m[5]);
+		g(s, 3, 7, 11, 15, m[6], m[7]);
+		g(s, 0, 5, 10, 15, m[8], m[9]);
+		g(s, 1, 6, 11, 12, m[10], m[11]);
+		g(s, 2, 7, 8, 13, m[12], m[13]);
+		g(s, 3, 4, 9, 14, m[14], m[15]);
+	}
+
+	/*
+	 * Compresses one block into cv. The first 8 words of the result are the
+	 * new chaining value and, for the root, the first 32 bytes of output.
+	 */
+	private static int[] compress(int[] cv, int[] block, long counter, int blockLen, int flags) {
+		int[] s = new int[16];
+		System.arraycopy(cv, 0, s, 0, 8);
+		System.arraycopy(IV, 0, s, 8, 4);
+		s[12] = (int) counter;
+		s[13] = (int) (counter >>> 32);
+		s[14] = blockLen;
+		s[15] = flags;
+		int[] m = block.clone();
+		int[] pm = new int[16];
+		for (int r = 0; r < 7; r++) {
+			round(s, m);
+			if (r < 6) {
+				for (int i = 0; i < 16; i++) {
+					pm[i] = m[MSG_PERMUTATION[i]];
+				}
+				int[] t = m;
+				m = pm;
+				pm = t;
+			}
+		}
+		for (int i = 0; i < 8; i++) {
+			s[i] ^= s[i + 8];
+			s[i + 8] ^= cv[i];
+		}
+		return s;
+	}
+
+	private static int[] words(byte[] b, int off, int len) {
+		int[] w = new int[16];
+		for (int i = 0; i < len; i++) {
+			w[i >> 2] |= (b[off + i] & 0xff) << ((i & 3) << 3);
+		}
+		return w;
+	}
+
+	/*
+	 * Hashes a chunk of at most CHUNK_LEN bytes. The last block is flagged as
+	 * the root if the chunk is the whole input.
+	 */
+	private static int[] chunk(byte[] b, int off, int len, long counter, boolean root) {
+		int[] cv = IV;
+		int blocks = Math.max(1, (len + BLOCK_LEN - 1) / BLOCK_LEN);
+		int[] out = null;
+		for (int i = 0; i < blocks; i++) {
+			int bl = Math.min(BLOCK_LEN, len - i * BLOCK_LEN);
+			int flags = 0;
+			if (i == 0)
+				flags |= CHUNK_START;
+			if (i == blocks - 1) {
+				flags |= CHUNK_END;
+				if (root)
+					flags |= ROOT;
+			}
+			out = compress(cv, words(b, off + i * BLOCK_LEN, bl), counter, bl, flags);
+			cv = out;
+		}
+		return out;
+	}
+
+	private static int[] parent(int[] left, int[] right, boolean root) {
+		int[] block = new int[16];
+		System.arraycopy(left, 0, block, 0, 8);
+		System.arraycopy(right, 0, block, 8, 8);
+		return compress(IV, block, 0, BLOCK_LEN, root ? PARENT | ROOT : PARENT);
+	}
+
+	/*
+	 * Returns the length of the left subtree of an input longer than one
+	 * chunk, the largest power of two chunks that leaves at least one byte on
+	 * the right.
+	 */
+	private static int leftLen(int len) {
+		int chunks = (len + CHUNK_LEN - 1) / CHUNK_LEN;
+		return Integer.highestOneBit(chunks - 1) * CHUNK_LEN;
+	}
+
+	private static int[] subtree(byte[] b, int off, int len, long counter, boolean root) {
+		if (len <= CHUNK_LEN)
+			return chunk(b, off, len, counter, root);
+		int ll = leftLen(len);
+		int[] left = subtree(b, off, ll, counter, false);
+		int[] right = subtree(b, off + ll, len - ll, counter + ll / CHUNK_LEN, false);
+		return parent(left, right, root);
+	}
+
+	private static byte[] output(int[] s, int outLen) {
+		byte[] h = new byte[outLen];
+		for (int i = 0; i < outLen; i++) {
+			h[i] = (byte) (s[i >> 2] >>> ((i & 3) << 3));
+		}
+		return h;
+	}
+
+	/**
+	 * Hashes data on the calling thread.
+	 */
+	public static byte[] hash(byte[] data, int off, int len, int outLen) {
+		if (outLen > 32)
+			throw new IllegalArgumentException("output length " + outLen + " is longer than 32 bytes");
+		return output(subtree(data, off, len, 0, true), outLen);
+	}
+
+	/**
+	 * Hashes data splitting the subtrees of inputs of at least PARALLEL_MIN
+	 * bytes across the threads of pool.
+	 */
+	public static byte[] hash(byte[] data, int off, int len, int outLen, ForkJoinPool pool) {
+		if (pool == null || len < PARALLEL_MIN)
+			return hash(data, off, len, outLen);
+		if (outLen > 32)
+			throw new IllegalArgumentException("output length " + outLen + " is longer than 32 bytes");
+		return output(pool.invoke(new Subtree(data, off, len, 0, true)), outLen);
+	}
+
+	private static class Subtree extends RecursiveTask<int[]> {
+		private static final long serialVersionUID = 1L;
+		private final byte[] b;
+		private final int off;
+		private final int len;
+		private final long counter;
+		private final boolean root;
+
+		Subtree(byte[] b, int off, int len, long counter, boolean root) {
+			this.b = b;
+			this.off = off;
+			this.len = len;
+			this.counter = counter;
+			this.root = root;
+		}
+
+		@Override
+		protected int[] compute() {
+			if (len < PARALLEL_MIN)
+				return subtree(b, off, len, counter, root);
+			int ll = leftLen(len);
+			Subtree left = new Subtree(b, off, ll, counter, false);
+			Subtree right = new Subtree(b, off + ll, len - ll, counter + ll / CHUNK_LEN, false);
+			ForkJoinTask.invokeAll(left, right);
+			return parent(left.join(), right.join(), root);
+		}
+	}
+
+	/**
+	 * Checks the serial and the parallel hash against the published test
+	 * vectors, whose input byte i is i % 251.
+	 */
+	public static void main(String[] args) {
+		int[] lens = { 0, 1, 1023, 1024, 1025, 2048, 2049, 3072, 3073, 4096, 4097, 5120, 5121, 6144, 6145, 7168,
+				7169, 8192, 8193, 16384, 31744, 102400 };
+		String[] digests = {
+				"af1349b9f5f9a1a6a0404dea36dcc9499bcb25c9adc112b7cc9a93cae41f3262",
+				"2d3adedff11b61f14c886e35afa036736dcd87a74d27b5c1510225d0f592e213",
+				"10108970eeda3eb932baac1428c7a2163b0e924c9a9e25b35bba72b28f70bd11",
+				"42214739f095a406f3fc83deb889744ac00df831c10daa55189b5d121c855af7",
+				"d00278ae47eb27b34faecf67b4fe263f82d5412916c1ffd97c8cb7fb814b8444",
+				"e776b6028c7cd22a4d0ba182a8bf62205d2ef576467e838ed6f2529b85fba24a",
+				"5f4d72f40d7a5f82b15ca2b2e44b1de3c2ef86c426c95c1af0b6879522563030",
+				"b98cb0ff3623be03326b373de6b9095218513e64f1ee2edd2525c7ad1e5cffd2",
+				"7124b49501012f81cc7f11ca069ec9226cecb8a2c850cfe644e327d22d3e1cd3",
+				"015094013f57a5277b59d8475c0501042c0b642e531b0a1c8f58d2163229e969",
+				"9b4052b38f1c5fc8b1f9ff7ac7b27cd242487b3d890d15c96a1c25b8aa0fb995",
+				"9cadc15fed8b5d854562b26a9536d9707cadeda9b143978f319ab34230535833",
+				"628bd2cb2004694adaab7bbd778a25df25c47b9d4155a55f8fbd79f2fe154cff",
+				"3e2e5b74e048f3add6d21faab3f83aa44d3b2278afb83b80b3c35164ebeca205",
+				"f1323a8631446cc50536a9f705ee5cb619424d46887f3c376c695b70e0f0507f",
+				"61da957ec2499a95d6b8023e2b0e604ec7f6b50e80a9678b89d2628e99ada77a",
+				"a003fc7a51754a9b3c7fae0367ab3d782dccf28855a03d435f8cfe74605e7817",
+				"aae792484c8efe4f19e2ca7d371d8c467ffb10748d8a5a1ae579948f718a2a63",
+				"bab6c09cb8ce8cf459261398d2e7aef35700bf488116ceb94a36d0f5f1b7bc3b",
+				"f875d6646de28985646f34ee13be9a576fd515f76b5b0a26bb324735041ddde4",
+				"62b6960e1a44bcc1eb1a611a8d6235b6b4b78f32e7abc4fb4c6cdcce94895c47",
+				"bc3e3d41a1146b069abffad3c0d44860cf664390afce4d9661f7902e7943e085" };
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (int i = 0; i < lens.length; i++) {
+				int l = lens[i];
+				byte[] b = new byte[l];
+				for (int j = 0; j < l; j++) {
+					b[j] = (byte) (j % 251);
+				}
+				byte[] expected = BaseEncoding.base16().lowerCase().decode(digests[i]);
+				if (!Arrays.equals(expected, hash(b, 0, l, 32)))
+					throw new IllegalStateException("serial hash is wrong at length " + l);
+				if (!Arrays.equals(expected, hash(b, 0, l, 32, pool)))
+					throw new IllegalStateException("parallel hash is wrong at length " + l);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Sam Silverberg sam.silverberg@gmail.com	
+ *
+ * This file is part of OpenDedupe SDFS.
+ *
+ * OpenDedupe SDFS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDedupe SDFS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.opendedup.hashing;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.opendedup.sdfs.Main;
+
+/**
+ * Fixed length chunks hashed with @see Blake3 . Whole chunks of a large
+ * CHUNK_LENGTH are split by their hash tree across the threads of the hash
+ * pool.
+ */
+public class Blake3HashEngine implements AbstractHashEngine {
+
+	public Blake3HashEngine() {
+	}
+
+	@Override
+	public byte[] getHash(byte[] data) {
+		return Blake3.hash(data, 0, data.length, getHashLenth(), HashFunctionPool.getHashPool());
+	}
+
+	public static int getHashLenth() {
+		return 16;
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+	@Override
+	public boolean isVariableLength() {
+		return false;
+	}
+
+	@Override
+	public int getMaxLen() {
+		return Main.CHUNK_LENGTH;
+	}
+
+	@Override
+	public int getMinLen() {
+		return Main.CHUNK_LENGTH;
+	}
+
+	@Override
+	public void setSeed(int seed) {
+	}
+
+	@Override
+	public List<Finger> getChunks(byte [] b,String fp,String uuid) throws IOException {
+		throw new IOException("not supported");
+	}
+}
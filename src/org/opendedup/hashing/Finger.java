@@ -20,6 +20,7 @@ package org.opendedup.hashing;
 
 import java.io.IOException;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -66,8 +67,18 @@ public class Finger implements Runnable {
 		public List<Finger> fingers;
 		public boolean dedup;
 
+		private void prefetch() {
+			if (fingers.size() > 1) {
+				ArrayList<byte[]> hashes = new ArrayList<byte[]>(fingers.size());
+				for (Finger f : fingers)
+					hashes.add(f.hash);
+				HCServiceProxy.prefetchHashes(hashes);
+			}
+		}
+
 		@Override
 		public void run() {
+			this.prefetch();
 			for (Finger f : fingers) {
 				try {
 					f.hl = HCServiceProxy.writeChunk(f.hash, f.chunk, f.claims, f.lookupFilter, f.uuid);
@@ -82,6 +93,7 @@ public class Finger implements Runnable {
 		}
 
 		public void persist() throws IOException, HashtableFullException {
+			this.prefetch();
 			for (Finger f : fingers) {
 				if (Arrays.equals(f.hash, WritableCacheBuffer.bk))
 					f.hl = new InsertRecord(false, 1);
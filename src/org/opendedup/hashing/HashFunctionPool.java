@@ -18,11 +18,15 @@
  *******************************************************************************/
 package org.opendedup.hashing;
 
+import java.io.File;
 import java.io.IOException;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
 
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
@@ -42,6 +46,10 @@ public class HashFunctionPool {
 	public static final String VARIABLE_HWY_128 = "VARIABLE_HWY_128";
 	public static final String VARIABLE_HWY_256 = "VARIABLE_HWY_256";
 	public static final String VARIABLE_MD5 = "VARIABLE_MD5";
+	public static final String BLAKE3_16 = "blake3_128";
+	public static final String VARIABLE_BLAKE3_128 = "VARIABLE_BLAKE3_128";
+	public static final String VARIABLE_BLAKE3_160 = "VARIABLE_BLAKE3_160";
+	public static final String VARIABLE_BLAKE3_256 = "VARIABLE_BLAKE3_256";
 	public static int hashLength = 16;
 	public static int max_hash_cluster = 1;
 	// public static int min_page_size = Main.CHUNK_LENGTH;
@@ -49,12 +57,17 @@ public class HashFunctionPool {
 	public static int minLen = Main.MIN_CHUNK_LENGTH;
 	public static int maxLen = Main.CHUNK_LENGTH;
 	public static long bytesPerWindow = 48;
+	// threads that engines which split their work share, 1 hashes on the caller
+	public static int hashThreads = Runtime.getRuntime().availableProcessors();
+	private static ForkJoinPool hashPool = null;
 
 	static {
 		if (Main.hashType.equalsIgnoreCase(TIGER_16)) {
 			hashLength = Tiger16HashEngine.getHashLenth();
 		} else if (Main.hashType.equalsIgnoreCase(MURMUR3_16)) {
 			hashLength = Murmur3HashEngine.getHashLenth();
+		} else if (Main.hashType.equalsIgnoreCase(BLAKE3_16)) {
+			hashLength = Blake3HashEngine.getHashLenth();
 		} else if (Main.hashType.toUpperCase().startsWith("VARIABLE_")) {
 			if(Main.hashType.endsWith("256")) {
 				hashLength = 32;
@@ -71,6 +84,36 @@ public class HashFunctionPool {
 		}
 		SDFSLogger.getLog().info("Set hashtype to " + Main.hashType + " hash length = " + hashLength + " maxhashcluster= " + max_hash_cluster + " chunk-length=" + Main.CHUNK_LENGTH + " minlen=" + minLen);
 	}
+
+	/**
+	 * Returns the pool engines split large inputs and batches of chunks
+	 * across, or null if hashThreads is 1 or less.
+	 */
+	public static synchronized ForkJoinPool getHashPool() {
+		if (hashPool == null && hashThreads > 1)
+			hashPool = new ForkJoinPool(hashThreads);
+		return hashPool;
+	}
+
+	/**
+	 * Checks that the hash type matches the one the volume was mounted with
+	 * before. Hashes of another type never match the stored ones, so a volume
+	 * mounted with a different type would store every chunk again and could
+	 * not read the chunks written by the other engine from a hash length it
+	 * does not expect. The type is recorded in dir on the first mount.
+	 */
+	public static void checkHashType(String dir) throws IOException {
+		File f = new File(dir, "hash-type");
+		if (f.exists()) {
+			String ht = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8).trim();
+			if (!ht.equalsIgnoreCase(Main.hashType))
+				throw new IOException("volume was created with hash-type " + ht + " but is configured with "
+						+ Main.hashType);
+		} else {
+			f.getParentFile().mkdirs();
+			Files.write(f.toPath(), Main.hashType.getBytes(StandardCharsets.UTF_8));
+		}
+	}
 	
 	
 
@@ -135,6 +178,14 @@ public class HashFunctionPool {
 		else if (Main.hashType.equalsIgnoreCase(VARIABLE_MD5)) {
 			hc = new VariableMD5HashEngine();
 		}
+		else if (Main.hashType.equalsIgnoreCase(BLAKE3_16)) {
+			hc = new Blake3HashEngine();
+		}
+		else if (Main.hashType.equalsIgnoreCase(VARIABLE_BLAKE3_128)
+				|| Main.hashType.equalsIgnoreCase(VARIABLE_BLAKE3_160)
+				|| Main.hashType.equalsIgnoreCase(VARIABLE_BLAKE3_256)) {
+			hc = new VariableBlake3HashEngine(hashLength);
+		}
 		return hc;
 		}catch(Exception e) {
 			SDFSLogger.getLog().fatal("unable to get engine", e);
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Sam Silverberg sam.silverberg@gmail.com	
+ *
+ * This file is part of OpenDedupe SDFS.
+ *
+ * OpenDedupe SDFS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDedupe SDFS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.opendedup.hashing;
+
+import java.io.IOException;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.rabinfingerprint.handprint.BoundaryDetectors;
+import org.rabinfingerprint.handprint.FingerFactory.ChunkBoundaryDetector;
+import org.rabinfingerprint.handprint.EnhancedFingerFactory;
+import org.rabinfingerprint.handprint.EnhancedFingerFactory.EnhancedChunkVisitor;
+import org.rabinfingerprint.polynomial.Polynomial;
+
+/**
+ * Variable length chunks hashed with @see Blake3 . Chunks are found first and
+ * then hashed together on the threads of the hash pool when there are enough
+ * bytes to share out. A single large chunk is split by its hash tree instead.
+ */
+public class VariableBlake3HashEngine implements AbstractHashEngine {
+
+	static Polynomial p = Polynomial.createFromLong(10923124345206883L);
+	ChunkBoundaryDetector boundaryDetector = BoundaryDetectors.DEFAULT_BOUNDARY_DETECTOR;
+	
+	private EnhancedFingerFactory ff = null;
+	private final int hashLength;
+
+	public VariableBlake3HashEngine(int hashLength) throws NoSuchAlgorithmException {
+		this.hashLength = hashLength;
+		while (ff == null) {
+			SDFSLogger.getLog().info("Variable minLen=" +HashFunctionPool.minLen + " maxlen=" + HashFunctionPool.maxLen + " windowSize=" + HashFunctionPool.bytesPerWindow);
+			ff = new EnhancedFingerFactory(p, HashFunctionPool.bytesPerWindow, boundaryDetector,
+					HashFunctionPool.minLen, HashFunctionPool.maxLen);
+		}
+
+	}
+
+	@Override
+	public byte[] getHash(byte[] data) {
+		return Blake3.hash(data, 0, data.length, hashLength, HashFunctionPool.getHashPool());
+	}
+
+	public List<Finger> getChunks(byte [] data,String lookupFilter,String uuid) throws IOException {
+		final ArrayList<Finger> al = new ArrayList<Finger>();
+		ff.getChunkFingerprints(data, new EnhancedChunkVisitor() {
+			public void visit(long fingerprint, long chunkStart, long chunkEnd,
+					byte[] chunk) {
+				Finger f = new Finger(lookupFilter,uuid);
+				f.chunk = chunk;
+				f.len = (int) (chunkEnd - chunkStart);
+				f.start = (int) chunkStart;
+				al.add(f);
+			}
+		});
+		if (al.size() == 1 || data.length < Blake3.PARALLEL_MIN || HashFunctionPool.getHashPool() == null) {
+			for (Finger f : al) {
+				f.hash = this.getHash(f.chunk);
+			}
+		} else {
+			HashFunctionPool.getHashPool().invoke(new HashFingers(al, 0, al.size(), hashLength));
+		}
+		return al;
+	}
+
+	/*
+	 * Hashes a range of fingers, splitting it while it holds more than
+	 * PARALLEL_MIN bytes.
+	 */
+	private static class HashFingers extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<Finger> fingers;
+		private final int start;
+		private final int end;
+		private final int hashLength;
+
+		HashFingers(List<Finger> fingers, int start, int end, int hashLength) {
+			this.fingers = fingers;
+			this.start = start;
+			this.end = end;
+			this.hashLength = hashLength;
+		}
+
+		@Override
+		protected void compute() {
+			int len = 0;
+			for (int i = start; i < end; i++) {
+				len += fingers.get(i).chunk.length;
+			}
+			if (end - start > 1 && len >= Blake3.PARALLEL_MIN) {
+				int mid = (start + end) >>> 1;
+				invokeAll(new HashFingers(fingers, start, mid, hashLength),
+						new HashFingers(fingers, mid, end, hashLength));
+			} else {
+				for (int i = start; i < end; i++) {
+					Finger f = fingers.get(i);
+					f.hash = Blake3.hash(f.chunk, 0, f.chunk.length, hashLength);
+				}
+			}
+		}
+	}
+
+	public static int getMaxCluster() {
+		return Main.CHUNK_LENGTH / HashFunctionPool.minLen;
+	}
+
+	@Override
+	public void destroy() {
+
+	}
+	
+	@Override
+	public boolean isVariableLength() {
+		return true;
+	}
+
+	@Override
+	public int getMaxLen() {
+		return Main.CHUNK_LENGTH;
+	}
+
+	@Override
+	public int getMinLen() {
+		return HashFunctionPool.minLen;
+	}
+
+	@Override
+	public void setSeed(int seed) {
+		
+		
+	}
+}
@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Sam Silverberg sam.silverberg@gmail.com
+ *
+ * This file is part of OpenDedupe SDFS.
+ *
+ * OpenDedupe SDFS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDedupe SDFS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.opendedup.mtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendedup.collections.DataArchivedException;
+import org.opendedup.collections.LongByteArrayMap;
+import org.opendedup.collections.LongKeyValue;
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.HashBlobArchive;
+import org.opendedup.sdfs.filestore.MetaFileStore;
+import org.opendedup.sdfs.io.HashLocPair;
+import org.opendedup.sdfs.io.MetaDataDedupFile;
+import org.opendedup.sdfs.io.WritableCacheBuffer;
+import org.opendedup.sdfs.notification.SDFSEvent;
+import org.opendedup.sdfs.servers.HCServiceProxy;
+
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Pulls every archive backing a file, or every file under a folder, into the
+ * local archive cache ahead of a restore or boot so that the first read runs
+ * at local disk speed. Archives are fetched in parallel, at most speed KB/s,
+ * each charged at the configured archive size. Archives can also be pinned so
+ * they are not evicted for pinTime ms. Pins are subject to the cap the cache
+ * puts on pinned archives.
+ */
+public class CacheWarmer implements Runnable {
+	private File f = null;
+	private RateLimiter rl = null;
+	private long pinTime = 0;
+	public SDFSEvent fEvt = null;
+	private AtomicLong fetched = new AtomicLong();
+	private AtomicLong cached = new AtomicLong();
+	private AtomicLong failed = new AtomicLong();
+
+	/**
+	 * @param speed
+	 *            the bandwidth budget in KB/s, 0 for unlimited
+	 * @param pinTime
+	 *            how long the archives are pinned in ms, 0 to not pin them
+	 */
+	public CacheWarmer(File f, long speed, long pinTime) {
+		this.f = f;
+		if (speed > 0)
+			this.rl = RateLimiter.create(speed);
+		this.pinTime = pinTime;
+		this.fEvt = SDFSEvent.warmCacheEvent(f.getPath());
+	}
+
+	@Override
+	public void run() {
+		try {
+			long start = System.currentTimeMillis();
+			this.warm();
+			SDFSLogger.getLog().info("took [" + (System.currentTimeMillis() - start) / 1000 + "] seconds to warm ["
+					+ f.getPath() + "] fetching [" + fetched.get() + "] archives with [" + cached.get()
+					+ "] already cached and [" + failed.get() + "] failed");
+			if (failed.get() > 0)
+				fEvt.endEvent("Cache Warm finished for " + f.getPath() + " but [" + failed.get()
+						+ "] archives could not be fetched", SDFSEvent.WARN);
+			else
+				fEvt.endEvent("Cache Warm Succeeded for " + f.getPath());
+		} catch (Exception e) {
+			SDFSLogger.getLog().error("cache warm failed for " + f.getPath(), e);
+			fEvt.endEvent("Cache Warm failed because [" + e.toString() + "]", SDFSEvent.ERROR);
+		}
+	}
+
+	public SDFSEvent getEvent() {
+		return this.fEvt;
+	}
+
+	private void warm() throws IOException, InterruptedException {
+		Set<Long> ids = new HashSet<Long>();
+		this.addArchives(f, ids);
+		fEvt.maxCt = ids.size();
+		fEvt.curCt = 0;
+		SDFSLogger.getLog().info("warming [" + ids.size() + "] archives for " + f.getPath());
+		ExecutorService executor = Executors.newFixedThreadPool(Main.readAheadThreads);
+		try {
+			ArrayList<Future<Void>> fts = new ArrayList<Future<Void>>(ids.size());
+			for (final Long id : ids) {
+				fts.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						warmArchive(id);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> ft : fts) {
+				try {
+					ft.get();
+				} catch (ExecutionException e) {
+					failed.incrementAndGet();
+					SDFSLogger.getLog().debug("unable to warm archive", e.getCause());
+				}
+				fEvt.curCt++;
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void warmArchive(long id) throws IOException, DataArchivedException {
+		if (this.pinTime > 0)
+			HashBlobArchive.pinArchive(id, this.pinTime);
+		if (HashBlobArchive.isCached(id)) {
+			cached.incrementAndGet();
+			return;
+		}
+		if (rl != null)
+			rl.acquire(Math.max(1, HashBlobArchive.MAX_LEN / 1024));
+		HCServiceProxy.cacheData(id);
+		fetched.incrementAndGet();
+	}
+
+	private void addArchives(File file, Set<Long> ids) throws IOException {
+		if (Files.isSymbolicLink(file.toPath()))
+			return;
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+			if (children == null)
+				return;
+			for (File c : children) {
+				this.addArchives(c, ids);
+			}
+		} else {
+			MetaDataDedupFile mf = MetaFileStore.getNCMF(file);
+			if (mf.getDfGuid() != null)
+				getArchives(mf, ids);
+		}
+	}
+
+	/**
+	 * Adds the ids of the archives that hold the data of a file to ids.
+	 */
+	public static void getArchives(MetaDataDedupFile mf, Set<Long> ids) throws IOException {
+		LongByteArrayMap ddb = LongByteArrayMap.getMap(mf.getDfGuid(), mf.getLookupFilter());
+		try {
+			if (ddb.getVersion() < 2)
+				throw new IOException("only files version 2 or later can be cached");
+			ddb.iterInit();
+			LongKeyValue kv = null;
+			while ((kv = ddb.nextKeyValue(false)) != null) {
+				for (HashLocPair p : kv.getValue().getFingers().values()) {
+					if (Main.refCount && Arrays.equals(p.hash, WritableCacheBuffer.bk))
+						continue;
+					long id = Longs.fromByteArray(p.hashloc);
+					if (id != 0)
+						ids.add(id);
+				}
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			ddb.close();
+		}
+	}
+
+}
@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Sam Silverberg sam.silverberg@gmail.com
+ *
+ * This file is part of OpenDedupe SDFS.
+ *
+ * OpenDedupe SDFS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDedupe SDFS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.opendedup.mtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opendedup.collections.DataArchivedException;
+import org.opendedup.collections.LongByteArrayMap;
+import org.opendedup.collections.LongKeyValue;
+import org.opendedup.collections.SparseDataChunk;
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.io.HashLocPair;
+import org.opendedup.sdfs.io.MetaDataDedupFile;
+import org.opendedup.sdfs.io.WritableCacheBuffer;
+import org.opendedup.sdfs.notification.SDFSEvent;
+import org.opendedup.sdfs.servers.HCServiceProxy;
+
+import com.google.common.primitives.Longs;
+
+/**
+ * Restores the contents of a file in archive order rather than file-offset
+ * order. The file's map is scanned once so that every archive backing the file
+ * is recalled (if archived) and fetched a single time. The file is then
+ * processed in windows of at most memoryBudget bytes. Within a window the hash
+ * locations are grouped by archive id, each archive is pulled into the local
+ * cache in parallel, the chunks are copied to their offsets in the window and
+ * the window is written out sequentially.
+ */
+public class RestorePlanner implements Runnable {
+	public static long DEFAULT_BUDGET = 256L * 1024L * 1024L;
+	private static final long MAX_BUDGET = 1024L * 1024L * 1024L;
+	private MetaDataDedupFile f = null;
+	private File dst = null;
+	private int budget;
+	public SDFSEvent fEvt = null;
+	private long archivesFetched = 0;
+	private long chunksFetched = 0;
+
+	public RestorePlanner(MetaDataDedupFile f, File dst, long memoryBudget) throws IOException {
+		this.f = f;
+		this.dst = dst;
+		if (memoryBudget <= 0)
+			memoryBudget = DEFAULT_BUDGET;
+		if (memoryBudget > MAX_BUDGET)
+			memoryBudget = MAX_BUDGET;
+		long windows = memoryBudget / Main.CHUNK_LENGTH;
+		if (windows < 1)
+			windows = 1;
+		this.budget = (int) (windows * Main.CHUNK_LENGTH);
+		fEvt = SDFSEvent.restoreFileEvent(f);
+		fEvt.maxCt = (f.length() / this.budget) + 1;
+		fEvt.curCt = 0;
+	}
+
+	@Override
+	public void run() {
+		try {
+			long start = System.currentTimeMillis();
+			this.restore();
+			SDFSLogger.getLog().info("took [" + (System.currentTimeMillis() - start) / 1000 + "] seconds to restore ["
+					+ f.getPath() + "] to [" + dst.getPath() + "] reading [" + this.archivesFetched
+					+ "] archives and [" + this.chunksFetched + "] chunks");
+			fEvt.endEvent("File Restore Succeeded for " + f.getPath());
+		} catch (Exception e) {
+			SDFSLogger.getLog().error("file restore failed for " + f.getPath(), e);
+			fEvt.endEvent("File Restore failed because [" + e.toString() + "]", SDFSEvent.ERROR);
+		}
+	}
+
+	public SDFSEvent getEvent() {
+		return this.fEvt;
+	}
+
+	private void restore() throws IOException, InterruptedException, ExecutionException, DataArchivedException {
+		SDFSLogger.getLog().info("Starting planned restore for " + f.getPath() + " with a window of " + this.budget
+				+ " bytes");
+		if (Main.checkArchiveOnRead) {
+			// issues exactly one restore request per archive and waits for
+			// all of them to complete before any data is read
+			RestoreArchive.recoverArchives(f);
+		}
+		LongByteArrayMap ddb = LongByteArrayMap.getMap(f.getDfGuid(), f.getLookupFilter());
+		if (ddb.getVersion() < 2)
+			throw new IOException("only files version 2 or later can be restored");
+		ExecutorService executor = Executors.newFixedThreadPool(Main.readAheadThreads);
+		RandomAccessFile raf = new RandomAccessFile(dst, "rw");
+		try {
+			// holes are never written so old contents must not survive
+			raf.setLength(0);
+			FileChannel ch = raf.getChannel();
+			byte[] window = new byte[this.budget];
+			TreeMap<Long, TreeMap<Integer, HashLocPair>> entries = new TreeMap<Long, TreeMap<Integer, HashLocPair>>();
+			long windowStart = 0;
+			ddb.iterInit();
+			for (;;) {
+				LongKeyValue kv = ddb.nextKeyValue(false);
+				if (kv == null || kv.getKey() >= windowStart + this.budget) {
+					if (entries.size() > 0) {
+						this.fillWindow(window, windowStart, entries, executor);
+						this.writeWindow(ch, window, windowStart);
+						Arrays.fill(window, (byte) 0);
+						entries.clear();
+					}
+					if (kv == null)
+						break;
+					windowStart = (kv.getKey() / this.budget) * this.budget;
+					fEvt.curCt = windowStart / this.budget;
+				}
+				SparseDataChunk ck = kv.getValue();
+				entries.put(kv.getKey(), ck.getFingers());
+			}
+			raf.setLength(f.length());
+			ch.force(true);
+		} finally {
+			executor.shutdown();
+			try {
+				raf.close();
+			} catch (Exception e) {
+			}
+			ddb.close();
+		}
+	}
+
+	/**
+	 * Groups the hash locations of the window by archive id, caches each
+	 * archive once and copies every chunk to its offset in the window.
+	 */
+	private void fillWindow(byte[] window, long windowStart, TreeMap<Long, TreeMap<Integer, HashLocPair>> entries,
+			ExecutorService executor)
+			throws IOException, InterruptedException, ExecutionException, DataArchivedException {
+		TreeMap<Long, ArrayList<Piece>> byArchive = new TreeMap<Long, ArrayList<Piece>>();
+		for (Entry<Long, TreeMap<Integer, HashLocPair>> e : entries.entrySet()) {
+			for (HashLocPair p : e.getValue().values()) {
+				long id = Longs.fromByteArray(p.hashloc);
+				if (id == 0)
+					break;
+				if (Arrays.equals(p.hash, WritableCacheBuffer.bk))
+					continue;
+				ArrayList<Piece> al = byArchive.get(id);
+				if (al == null) {
+					al = new ArrayList<Piece>();
+					byArchive.put(id, al);
+				}
+				al.add(new Piece((int) (e.getKey() - windowStart), p));
+			}
+		}
+		ArrayList<Future<Void>> prefetch = new ArrayList<Future<Void>>(byArchive.size());
+		for (final Long id : byArchive.keySet()) {
+			prefetch.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					HCServiceProxy.cacheData(id);
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> ft : prefetch) {
+			try {
+				ft.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof DataArchivedException)
+					throw (DataArchivedException) e.getCause();
+				SDFSLogger.getLog().debug("unable to prefetch archive", e.getCause());
+			}
+		}
+		for (ArrayList<Piece> al : byArchive.values()) {
+			HashMap<ByteBuffer, byte[]> chunks = new HashMap<ByteBuffer, byte[]>();
+			for (Piece pc : al) {
+				HashLocPair p = pc.p;
+				ByteBuffer hk = ByteBuffer.wrap(p.hash);
+				byte[] ck = chunks.get(hk);
+				if (ck == null) {
+					ck = HCServiceProxy.fetchChunk(p.hash, p.hashloc, true);
+					chunks.put(hk, ck);
+					this.chunksFetched++;
+				}
+				int len = p.nlen;
+				if (len > ck.length - p.offset)
+					len = ck.length - p.offset;
+				System.arraycopy(ck, p.offset, window, pc.bufPos + p.pos, len);
+			}
+			this.archivesFetched++;
+		}
+	}
+
+	private void writeWindow(FileChannel ch, byte[] window, long windowStart) throws IOException {
+		long remaining = f.length() - windowStart;
+		if (remaining <= 0)
+			return;
+		int len = this.budget;
+		if (remaining < len)
+			len = (int) remaining;
+		ByteBuffer bf = ByteBuffer.wrap(window, 0, len);
+		long pos = windowStart;
+		while (bf.hasRemaining())
+			pos += ch.write(bf, pos);
+	}
+
+	private static class Piece {
+		int bufPos;
+		HashLocPair p;
+
+		Piece(int bufPos, HashLocPair p) {
+			this.bufPos = bufPos;
+			this.p = p;
+		}
+	}
+
+}
@@ -21,6 +21,8 @@ package org.opendedup.mtools;
 import java.io.File;
 
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.RejectedExecutionHandler;
@@ -32,19 +34,43 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.cloud.FileReplicationService;
+import org.opendedup.sdfs.filestore.cloud.SyncManifest;
 import org.opendedup.sdfs.io.MetaDataDedupFile;
 import org.opendedup.sdfs.io.WritableCacheBuffer.BlockPolicy;
 import org.opendedup.sdfs.io.events.MFileSync;
 import org.opendedup.sdfs.io.events.SFileSync;
 import org.opendedup.sdfs.notification.FDiskEvent;
 import org.opendedup.sdfs.notification.SDFSEvent;
-import org.opendedup.util.FileCounts;
 
 import com.google.common.eventbus.EventBus;
 
+/**
+ * Brings the metadata and map objects of the volume in the cloud up to date
+ * with the local volume.
+ *
+ * The volume is walked once and every file is checked against the @see
+ * SyncManifest of the objects already uploaded. A file with the size and
+ * modified time recorded in the manifest is skipped. A file that changed is
+ * hashed and only uploaded if its digest differs from the recorded one.
+ * Objects recorded as deleted in the manifest whose delete did not reach the
+ * cloud are deleted again.
+ * Objects that the copy of the manifest in the cloud shows were uploaded by
+ * someone else since the last resync are conflicts. They are left alone and
+ * counted. A full resync uploads every file, as resyncs did before the
+ * manifest existed.
+ */
 public class SyncFS {
 	private AtomicLong files = new AtomicLong(0);
 	private AtomicLong errorfiles = new AtomicLong(0);
+	private AtomicLong uploaded = new AtomicLong(0);
+	private AtomicLong unchanged = new AtomicLong(0);
+	private AtomicLong conflicts = new AtomicLong(0);
+	private long deleted = 0;
+	private long seen = 0;
+	private boolean full = false;
+	private SyncManifest manifest = null;
+	private Set<String> remoteConflicts = new HashSet<String>();
 	private FDiskEvent fEvt = null;
 	private transient RejectedExecutionHandler executionHandler = new BlockPolicy();
 	private transient BlockingQueue<Runnable> worksQueue = new ArrayBlockingQueue<Runnable>(
@@ -68,23 +94,40 @@ public class SyncFS {
 						+ Main.volume.getName() );
 	}
 
+	/**
+	 * @param full
+	 *            upload every file whether or not it changed
+	 */
+	public SyncFS(String now, boolean full) throws IOException {
+		this(now);
+		this.full = full;
+	}
+
 	public static void registerListener(Object obj) {
 		eventBus.register(obj);
 	}
 
 	public void init() throws IOException {
 		File f = new File(Main.volume.getPath());
-		long entries = FileCounts.getCount(f, false);
 		try {
-			long sz = FileCounts.getSize(f, false);
-			fEvt.maxCt = sz;
+			if (FileReplicationService.service == null)
+				throw new IOException("cloud sync is not enabled for "
+						+ Main.volume.getName());
+			manifest = FileReplicationService.getManifest();
+			if (manifest != null) {
+				if (!full)
+					remoteConflicts = FileReplicationService
+							.getRemoteConflicts();
+				// about half of the entries are maps
+				fEvt.maxCt = manifest.getEstimatedEntries() / 2;
+			}
 			if (fEvt.maxCt == 0)
 				fEvt.maxCt = 1;
-
-			SDFSLogger.getLog().info("entries = " + entries);
 			SDFSLogger.getLog().info(
 					"Starting Cloud Storage Conistancy Check for "
-							+ Main.volume.getName() + " file size = " + sz);
+							+ Main.volume.getName() + " full=" + full
+							+ " remote conflicts="
+							+ remoteConflicts.size());
 			long start = System.currentTimeMillis();
 
 			this.traverse(f);
@@ -94,18 +137,28 @@ public class SyncFS {
 						.getLog()
 						.debug("Awaiting Cloud Storage Conistancy Check completion of threads.");
 			}
-			SDFSLogger.getLog().info(
-					"took [" + (System.currentTimeMillis() - start) / 1000
-							+ "] seconds to check ["
-							+ (files.get() + this.errorfiles.get())
-							+ "] files. errors when checking ["
-							+ errorfiles.get() + "] files");
-
-			fEvt.endEvent("took [" + (System.currentTimeMillis() - start)
+			if (manifest != null) {
+				this.deleteRemoved();
+				if (conflicts.get() == 0 && errorfiles.get() == 0)
+					FileReplicationService.uploadManifest();
+				else
+					// keep the copy in the cloud so the next resync finds
+					// the same conflicts
+					SDFSLogger.getLog().warn(
+							"not uploading sync manifest because of ["
+									+ conflicts.get() + "] conflicts and ["
+									+ errorfiles.get() + "] errors");
+			}
+			String msg = "took [" + (System.currentTimeMillis() - start)
 					/ 1000 + "] seconds to check ["
 					+ (files.get() + this.errorfiles.get())
-					+ "] files. Errors checking [" + errorfiles.get()
-					+ "] files");
+					+ "] files. Uploaded [" + uploaded.get()
+					+ "] objects, skipped [" + unchanged.get()
+					+ "] unchanged objects, deleted [" + deleted
+					+ "] objects, conflicts [" + conflicts.get()
+					+ "]. Errors checking [" + errorfiles.get() + "] files";
+			SDFSLogger.getLog().info(msg);
+			fEvt.endEvent(msg);
 		} catch (Exception e) {
 			SDFSLogger.getLog()
 					.info("Cloud Storage Conistancy Check failed", e);
@@ -123,10 +176,25 @@ public class SyncFS {
 				traverse(new File(dir, children[i]));
 			}
 		} else {
+			seen++;
+			if (seen > fEvt.maxCt)
+				fEvt.maxCt = seen;
 			executor.execute(new CheckDedupFile(this, dir));
 		}
 	}
 
+	private void deleteRemoved() {
+		for (String key : manifest.getRemoved()) {
+			try {
+				FileReplicationService.deleteObject(key);
+				deleted++;
+			} catch (Exception e) {
+				SDFSLogger.getLog().warn("unable to delete " + key, e);
+				this.errorfiles.incrementAndGet();
+			}
+		}
+	}
+
 	public SDFSEvent getEvt() {
 		return this.fEvt;
 	}
@@ -135,14 +203,14 @@ public class SyncFS {
 
 	private void checkDedupFile(MetaDataDedupFile mf) {
 		try {
-			eventBus.post(new MFileSync(mf));
+			this.syncObject(new File(mf.getPath()), mf);
 			if (mf.getDedupFile(false) != null) {
 				File directory = new File(Main.dedupDBStore + File.separator
 						+ mf.getDfGuid().substring(0, 2) + File.separator
 						+ mf.getDfGuid());
 				File dbf = new File(directory.getPath() + File.separator
 						+ mf.getDfGuid() + ".map");
-				eventBus.post(new SFileSync(dbf));
+				this.syncObject(dbf, null);
 			}
 
 			l.lock();
@@ -150,10 +218,59 @@ public class SyncFS {
 			l.unlock();
 			this.files.incrementAndGet();
 		} catch (Exception e) {
+			SDFSLogger.getLog().debug("unable to sync " + mf.getPath(), e);
 			this.errorfiles.incrementAndGet();
 		}
 	}
 
+	/*
+	 * Uploads the metadata file of mf or, if mf is null, the map file f unless
+	 * the manifest shows it has not changed since it was last uploaded.
+	 */
+	private void syncObject(File f, MetaDataDedupFile mf) throws IOException {
+		String key = null;
+		byte[] digest = null;
+		if (manifest != null) {
+			key = mf != null ? SyncManifest.metaKey(f.getPath()) : SyncManifest
+					.ddbKey(f.getPath());
+			if (!full) {
+				if (remoteConflicts.contains(key)) {
+					SDFSLogger.getLog().warn(
+							"skipping " + key
+									+ " because it was changed in the cloud");
+					conflicts.incrementAndGet();
+					return;
+				}
+				if (manifest.isUnchanged(key, f)) {
+					unchanged.incrementAndGet();
+					return;
+				}
+			}
+			digest = SyncManifest.digest(f);
+			SyncManifest.Entry e = manifest.get(key);
+			if (!full && e != null && e.hasDigest(digest)) {
+				manifest.touch(key, f);
+				unchanged.incrementAndGet();
+				return;
+			}
+		}
+		boolean synced = false;
+		if (mf != null) {
+			MFileSync evt = new MFileSync(mf);
+			evt.digest = digest;
+			eventBus.post(evt);
+			synced = evt.synced;
+		} else {
+			SFileSync evt = new SFileSync(f);
+			evt.digest = digest;
+			eventBus.post(evt);
+			synced = evt.synced;
+		}
+		if (!synced)
+			throw new IOException("unable to upload " + f.getPath());
+		uploaded.incrementAndGet();
+	}
+
 	private static class CheckDedupFile implements Runnable {
 
 		SyncFS fd = null;
@@ -13,9 +13,17 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
+import org.opendedup.collections.LocalityCache;
+import org.opendedup.collections.MapJournal;
+import org.opendedup.collections.RocksDBMap;
+import org.opendedup.collections.RocksDBResources;
+import org.opendedup.collections.SimilarityIndex;
+import org.opendedup.collections.SparseIndex;
 import org.opendedup.hashing.HashFunctionPool;
 import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.io.SmallWriteLog;
 import org.opendedup.sdfs.io.Volume;
+import org.opendedup.sdfs.io.WriteProfile;
 import org.opendedup.sdfs.servers.HCServiceProxy;
 import org.opendedup.util.EncryptUtils;
 import org.opendedup.util.StorageUnit;
@@ -290,6 +298,24 @@ public class Config {
 		Main.safeClose = Boolean.parseBoolean(cache.getAttribute("safe-close"));
 		// Makes sure writes are sync'd when set to true.
 		Main.safeSync = Boolean.parseBoolean(cache.getAttribute("safe-sync"));
+		if (cache.hasAttribute("map-journal"))
+			Main.mapJournal = Boolean.parseBoolean(cache.getAttribute("map-journal"));
+		if (cache.hasAttribute("map-journal-segment-size"))
+			MapJournal.SEGMENT_SIZE = Long.parseLong(cache.getAttribute("map-journal-segment-size")) * 1024L * 1024L;
+		if (cache.hasAttribute("small-write-log"))
+			Main.smallWriteLog = Boolean.parseBoolean(cache.getAttribute("small-write-log"));
+		if (cache.hasAttribute("small-write-log-fold-age"))
+			SmallWriteLog.FOLD_AGE = Long.parseLong(cache.getAttribute("small-write-log-fold-age")) * 1000L;
+		if (cache.hasAttribute("write-profile"))
+			WriteProfile.ENABLED = Boolean.parseBoolean(cache.getAttribute("write-profile"));
+		if (cache.hasAttribute("write-profile-entropy"))
+			WriteProfile.ENTROPY_THRESHOLD = Double.parseDouble(cache.getAttribute("write-profile-entropy"));
+		if (cache.hasAttribute("write-profile-max-dup-rate"))
+			WriteProfile.MAX_DUP_RATE = Double.parseDouble(cache.getAttribute("write-profile-max-dup-rate"));
+		if (cache.hasAttribute("write-profile-window"))
+			WriteProfile.WINDOW = Integer.parseInt(cache.getAttribute("write-profile-window"));
+		if (cache.hasAttribute("write-profile-probe-interval"))
+			WriteProfile.PROBE_INTERVAL = Integer.parseInt(cache.getAttribute("write-profile-probe-interval"));
 		Main.writeThreads = Integer.parseInt(cache.getAttribute("write-threads"));
 		if (cache.hasAttribute("min-variable-segment-size")) {
 
@@ -301,6 +327,9 @@ public class Config {
 			SDFSLogger.getLog().info("Setting hash engine to " + Main.hashType);
 		}
 		
+		if (cache.hasAttribute("hash-threads")) {
+			HashFunctionPool.hashThreads = Integer.parseInt(cache.getAttribute("hash-threads"));
+		}
 		if (cache.hasAttribute("hash-seed")) {
 			Main.hashSeed = Integer.parseInt(cache.getAttribute("hash-seed"));
 		}
@@ -326,6 +355,12 @@ public class Config {
 			Main.maxWriteBuffers = 80;
 		Main.maxOpenFiles = Integer.parseInt(cache.getAttribute("max-open-files"));
 		Main.maxInactiveFileTime = Integer.parseInt(cache.getAttribute("max-file-inactive")) * 1000;
+		if (cache.hasAttribute("flush-max-dirty-age"))
+			Main.flushMaxDirtyAge = Long.parseLong(cache.getAttribute("flush-max-dirty-age")) * 1000;
+		if (cache.hasAttribute("flush-max-file-dirty-size"))
+			Main.flushMaxFileDirtyBytes = Long.parseLong(cache.getAttribute("flush-max-file-dirty-size"));
+		if (cache.hasAttribute("flush-max-dirty-size"))
+			Main.flushMaxDirtyBytes = Long.parseLong(cache.getAttribute("flush-max-dirty-size"));
 		Main.fDkiskSchedule = cache.getAttribute("claim-hash-schedule");
 
 		Element permissions = (Element) doc.getElementsByTagName("permissions").item(0);
@@ -369,6 +404,16 @@ public class Config {
 		if (localChunkStore.hasAttribute("enable-lookup-filter")) {
 			Main.enableLookupFilter = Boolean.parseBoolean(localChunkStore.getAttribute("enable-lookup-filter"));
 		}
+		if (localChunkStore.hasAttribute("map-max-delta-segments")) {
+			Main.mapMaxDeltaSegments = Integer.parseInt(localChunkStore.getAttribute("map-max-delta-segments"));
+		}
+		if (localChunkStore.hasAttribute("lookup-filter-cache-size")) {
+			Main.lookupFilterCacheSize = Long.parseLong(localChunkStore.getAttribute("lookup-filter-cache-size"));
+		}
+		if (localChunkStore.hasAttribute("lookup-filter-write-buffer-size")) {
+			Main.lookupFilterWriteBufferSize = Long
+					.parseLong(localChunkStore.getAttribute("lookup-filter-write-buffer-size"));
+		}
 		if (localChunkStore.hasAttribute("cluster-config"))
 			Main.DSEClusterConfig = localChunkStore.getAttribute("cluster-config");
 		if (localChunkStore.hasAttribute("cluster-dse-password"))
@@ -389,6 +434,34 @@ public class Config {
 			Main.parallelDBCount = Integer.parseInt(localChunkStore.getAttribute("parallel-db-count"));
 		if (localChunkStore.hasAttribute("hashdb-class"))
 			Main.hashesDBClass = localChunkStore.getAttribute("hashdb-class");
+		if (localChunkStore.hasAttribute("locality-cache-archives"))
+			LocalityCache.MAX_ARCHIVES = Integer.parseInt(localChunkStore.getAttribute("locality-cache-archives"));
+		if (localChunkStore.hasAttribute("hash-db-split-refcounts"))
+			RocksDBMap.SPLIT_REFCOUNTS = Boolean.parseBoolean(localChunkStore.getAttribute("hash-db-split-refcounts"));
+		if (localChunkStore.hasAttribute("hash-db-cache-size"))
+			RocksDBResources.CACHE_SIZE = Long.parseLong(localChunkStore.getAttribute("hash-db-cache-size"))
+					* 1024L * 1024L;
+		if (localChunkStore.hasAttribute("hash-db-write-buffer-size"))
+			RocksDBResources.WRITE_BUFFER_SIZE = Long
+					.parseLong(localChunkStore.getAttribute("hash-db-write-buffer-size")) * 1024L * 1024L;
+		if (localChunkStore.hasAttribute("hash-db-compaction-rate"))
+			RocksDBResources.COMPACTION_RATE = Long.parseLong(localChunkStore.getAttribute("hash-db-compaction-rate"))
+					* 1024L * 1024L;
+		if (localChunkStore.hasAttribute("sparse-index"))
+			SparseIndex.ENABLED = Boolean.parseBoolean(localChunkStore.getAttribute("sparse-index"));
+		if (localChunkStore.hasAttribute("sparse-index-sample-rate"))
+			SparseIndex.SAMPLE_RATE = Integer.parseInt(localChunkStore.getAttribute("sparse-index-sample-rate"));
+		if (localChunkStore.hasAttribute("sparse-index-champions"))
+			SparseIndex.MAX_CHAMPIONS = Integer.parseInt(localChunkStore.getAttribute("sparse-index-champions"));
+		if (localChunkStore.hasAttribute("similarity-detection"))
+			SimilarityIndex.ENABLED = Boolean.parseBoolean(localChunkStore.getAttribute("similarity-detection"));
+		if (localChunkStore.hasAttribute("similarity-max-depth"))
+			SimilarityIndex.MAX_DEPTH = Integer.parseInt(localChunkStore.getAttribute("similarity-max-depth"));
+		if (localChunkStore.hasAttribute("similarity-index-size"))
+			SimilarityIndex.MAX_FEATURES = Long.parseLong(localChunkStore.getAttribute("similarity-index-size"));
+		if (localChunkStore.hasAttribute("similarity-base-cache-size"))
+			SimilarityIndex.BASE_CACHE_SIZE = Long.parseLong(localChunkStore.getAttribute("similarity-base-cache-size"))
+					* 1024L * 1024L;
 		if (localChunkStore.getElementsByTagName("extended-config").getLength() > 0) {
 			Main.chunkStoreConfig = (Element) localChunkStore.getElementsByTagName("extended-config").item(0);
 		}
@@ -402,6 +475,8 @@ public class Config {
 		}
 		if (localChunkStore.hasAttribute("encryption-iv"))
 			Main.chunkStoreEncryptionIV = localChunkStore.getAttribute("encryption-iv");
+		if (localChunkStore.hasAttribute("encryption-mode"))
+			Main.chunkStoreEncryptionMode = localChunkStore.getAttribute("encryption-mode");
 		Main.hashDBStore = localChunkStore.getAttribute("hash-db-store");
 
 		if (localChunkStore.hasAttribute("compress")) {
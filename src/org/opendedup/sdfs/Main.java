@@ -53,6 +53,11 @@ public class Main {
 	public static int REPLICATION_THREADS=8;
 
 	public static boolean COMPRESS_METADATA = false;
+	/**
+	 * The number of delta segments uploaded for a file map before the map is
+	 * uploaded in full again.
+	 */
+	public static int mapMaxDeltaSegments = 16;
 	public static boolean syncDL = false;
 
 	public static StandAloneGCScheduler pFullSched = null;
@@ -157,6 +162,11 @@ public class Main {
 	 * whether encryption should be enabled for the DSE
 	 */
 	public static boolean chunkStoreEncryptionEnabled = false;
+	/**
+	 * Cipher mode used for new chunks, cbc or gcm. Chunks written in either mode
+	 * can be read regardless of this setting.
+	 */
+	public static String chunkStoreEncryptionMode = "cbc";
 
 	/**
 	 * The location where database of deduped hashes will be stores and written
@@ -291,12 +301,38 @@ public class Main {
 	 * false unless needed. This is used on the client.
 	 */
 	public static boolean safeSync = true;
+	/**
+	 * If set, changes to file maps are journaled and a sync forces the journal
+	 * rather than each map file. @see org.opendedup.collections.MapJournal
+	 */
+	public static boolean mapJournal = false;
+	/**
+	 * If set, writes over part of a chunk are kept in a log instead of reading
+	 * the chunk first. @see org.opendedup.sdfs.io.SmallWriteLog
+	 */
+	public static boolean smallWriteLog = false;
 	/**
 	 * The maximum about of time that a file is inactive before it is close.
 	 * Inactivity is determined by the time the file was last accessed. @see
 	 * com.annesam.sdfs.filestore.OpenFileMonitor . This is used on the client.
 	 */
 	public static int maxInactiveFileTime = 15 * 60 * 1000;
+	/**
+	 * The maximum time, in milliseconds, a write buffer can stay dirty before
+	 * it is flushed by the @see
+	 * org.opendedup.sdfs.filestore.FlushScheduler .
+	 */
+	public static long flushMaxDirtyAge = 15 * 1000;
+	/**
+	 * The amount of dirty data an individual file can hold before all of its
+	 * dirty buffers are flushed.
+	 */
+	public static long flushMaxFileDirtyBytes = 16 * 1024 * 1024;
+	/**
+	 * The amount of dirty data the volume can hold before writers are held
+	 * back until flushes catch up. Set to 0 to disable.
+	 */
+	public static long flushMaxDirtyBytes = Runtime.getRuntime().maxMemory() / 4;
 	/**
 	 * Specifies whether the Dedup Storage Engine will store data to AWS S3 or
 	 * not. This is set on the chunk store.
@@ -370,4 +406,12 @@ public class Main {
 	public static boolean rebuildHashTable = false;
 
 	public static boolean enableLookupFilter = false;
+	/**
+	 * Block cache shared by all lookup filters
+	 */
+	public static long lookupFilterCacheSize = 256L * 1024L * 1024L;
+	/**
+	 * Total memtable budget shared by all lookup filters
+	 */
+	public static long lookupFilterWriteBufferSize = 128L * 1024L * 1024L;
 }
@@ -55,6 +55,7 @@ public class VolumeConfigWriter {
 	boolean safe_close = true;
 	boolean vrts_appliance = false;
 	boolean safe_sync = true;
+	boolean map_journal = false;
 	int write_threads = (short) (Runtime.getRuntime().availableProcessors());
 	boolean dedup_files = true;
 	int chunk_size = 256;
@@ -104,6 +105,7 @@ public class VolumeConfigWriter {
 	String chunk_store_encryption_key = PassPhrase.getNext();
 	String chunk_store_iv = PassPhrase.getIV();
 	boolean chunk_store_encrypt = false;
+	String chunk_store_encryption_mode = Main.chunkStoreEncryptionMode;
 	String hashType = HashFunctionPool.VARIABLE_MD5;
 	String chunk_store_class = "org.opendedup.sdfs.filestore.BatchFileChunkStore";
 	String gc_class = "org.opendedup.sdfs.filestore.gc.PFullGC";
@@ -237,15 +239,21 @@ public class VolumeConfigWriter {
 			String ht = cmd.getOptionValue("hash-type");
 			if (ht.equalsIgnoreCase(HashFunctionPool.TIGER_16) || ht.equalsIgnoreCase(HashFunctionPool.TIGER_24)
 					|| ht.equalsIgnoreCase(HashFunctionPool.MURMUR3_16)
-					|| ht.equalsIgnoreCase(HashFunctionPool.VARIABLE_MURMUR3))
+					|| ht.equalsIgnoreCase(HashFunctionPool.VARIABLE_MURMUR3)
+					|| ht.equalsIgnoreCase(HashFunctionPool.BLAKE3_16)
+					|| ht.equalsIgnoreCase(HashFunctionPool.VARIABLE_BLAKE3_128)
+					|| ht.equalsIgnoreCase(HashFunctionPool.VARIABLE_BLAKE3_160)
+					|| ht.equalsIgnoreCase(HashFunctionPool.VARIABLE_BLAKE3_256))
 				this.hashType = ht;
 			else {
 				System.out.println(
 						"Invalid Hash Type. Must be " + HashFunctionPool.TIGER_16 + " " + HashFunctionPool.TIGER_24
-								+ " " + HashFunctionPool.MURMUR3_16 + " " + HashFunctionPool.VARIABLE_MURMUR3);
+								+ " " + HashFunctionPool.MURMUR3_16 + " " + HashFunctionPool.VARIABLE_MURMUR3 + " "
+								+ HashFunctionPool.BLAKE3_16 + " " + HashFunctionPool.VARIABLE_BLAKE3_128 + " "
+								+ HashFunctionPool.VARIABLE_BLAKE3_160 + " " + HashFunctionPool.VARIABLE_BLAKE3_256);
 				System.exit(-1);
 			}
-			if (ht.equalsIgnoreCase(HashFunctionPool.VARIABLE_MURMUR3)) {
+			if (ht.toUpperCase().startsWith("VARIABLE_")) {
 				this.chunk_store_class = "org.opendedup.sdfs.filestore.BatchFileChunkStore";
 				this.compress = true;
 			} else if (cmd.hasOption("chunkstore-class")) {
@@ -272,6 +280,14 @@ public class VolumeConfigWriter {
 			String iv = cmd.getOptionValue("chunk-store-iv");
 			this.chunk_store_iv = iv;
 		}
+		if (cmd.hasOption("chunk-store-encryption-mode")) {
+			String mode = cmd.getOptionValue("chunk-store-encryption-mode");
+			if (!mode.equalsIgnoreCase("cbc") && !mode.equalsIgnoreCase("gcm")) {
+				System.err.println("Encryption mode must be cbc or gcm");
+				System.exit(-1);
+			}
+			this.chunk_store_encryption_mode = mode.toLowerCase();
+		}
 
 		if (cmd.hasOption("ext")) {
 			this.ext = true;
@@ -289,6 +305,9 @@ public class VolumeConfigWriter {
 		if (cmd.hasOption("io-safe-sync")) {
 			this.safe_sync = Boolean.parseBoolean(cmd.getOptionValue("io-safe-sync"));
 		}
+		if (cmd.hasOption("io-map-journal")) {
+			this.map_journal = Boolean.parseBoolean(cmd.getOptionValue("io-map-journal"));
+		}
 		if(cmd.hasOption("glacier-in-days")) {
 			this.glacierInDays = Integer.parseInt(cmd.getOptionValue("glacier-in-days"));
 			this.refreshBlobs = true;
@@ -634,6 +653,7 @@ public class VolumeConfigWriter {
 		io.setAttribute("meta-file-cache", Integer.toString(this.meta_file_cache));
 		io.setAttribute("safe-close", Boolean.toString(this.safe_close));
 		io.setAttribute("safe-sync", Boolean.toString(this.safe_sync));
+		io.setAttribute("map-journal", Boolean.toString(this.map_journal));
 		io.setAttribute("write-threads", Integer.toString(this.write_threads));
 		io.setAttribute("claim-hash-schedule", this.fdisk_schedule);
 		io.setAttribute("read-ahead", Boolean.toString(this.readAhead));
@@ -680,6 +700,7 @@ public class VolumeConfigWriter {
 		cs.setAttribute("encrypt", Boolean.toString(this.chunk_store_encrypt));
 		cs.setAttribute("encryption-key", this.chunk_store_encryption_key);
 		cs.setAttribute("encryption-iv", this.chunk_store_iv);
+		cs.setAttribute("encryption-mode", this.chunk_store_encryption_mode);
 		cs.setAttribute("max-repl-batch-sz", Integer.toString(Main.MAX_REPL_BATCH_SZ));
 		cs.setAttribute("hash-db-store", this.chunk_store_hashdb_location);
 		cs.setAttribute("chunkstore-class", this.chunk_store_class);
@@ -1053,6 +1074,11 @@ public class VolumeConfigWriter {
 								+ "Setting this to true will ensure that no data loss will occur if the system is turned off abrubtly"
 								+ " at the cost of slower speed. \n Defaults to: \n false")
 				.hasArg().withArgName("true|false").create());
+		options.addOption(OptionBuilder.withLongOpt("io-map-journal")
+				.withDescription(
+						"If true changes to file maps are written to a shared journal and a sync forces the journal instead"
+								+ " of every map file. Concurrent syncs share a single write to the journal. \n Defaults to: \n false")
+				.hasArg().withArgName("true|false").create());
 		options.addOption(OptionBuilder.withLongOpt("io-write-threads")
 				.withDescription(
 						"The number of threads that can be used to process data writted to the file system. \n Defaults to: \n 16")
@@ -1147,10 +1173,14 @@ public class VolumeConfigWriter {
 				.withDescription(
 						"This is the type of hash engine used to calculate a unique hash. The valid options for hash-type are "
 								+ HashFunctionPool.TIGER_16 + " " + HashFunctionPool.TIGER_24 + " "
-								+ HashFunctionPool.MURMUR3_16 + " " + HashFunctionPool.VARIABLE_MURMUR3
+								+ HashFunctionPool.MURMUR3_16 + " " + HashFunctionPool.VARIABLE_MURMUR3 + " "
+								+ HashFunctionPool.BLAKE3_16 + " " + HashFunctionPool.VARIABLE_BLAKE3_128 + " "
+								+ HashFunctionPool.VARIABLE_BLAKE3_160 + " " + HashFunctionPool.VARIABLE_BLAKE3_256
 								+ " This Defaults to " + HashFunctionPool.VARIABLE_MURMUR3)
 				.hasArg().withArgName(HashFunctionPool.TIGER_16 + "|" + HashFunctionPool.TIGER_24 + "|"
-						+ HashFunctionPool.MURMUR3_16 + "|" + HashFunctionPool.VARIABLE_MURMUR3)
+						+ HashFunctionPool.MURMUR3_16 + "|" + HashFunctionPool.VARIABLE_MURMUR3 + "|"
+						+ HashFunctionPool.BLAKE3_16 + "|" + HashFunctionPool.VARIABLE_BLAKE3_128 + "|"
+						+ HashFunctionPool.VARIABLE_BLAKE3_160 + "|" + HashFunctionPool.VARIABLE_BLAKE3_256)
 				.create());
 		options.addOption(OptionBuilder.withLongOpt("chunk-store-encrypt")
 				.withDescription(
@@ -1165,6 +1195,11 @@ public class VolumeConfigWriter {
 				.withDescription(
 						"The encryption  initialization vector (IV) used for encrypting data. If not specified a strong key will be generated automatically")
 				.hasArg().withArgName("String").create());
+		options.addOption(OptionBuilder.withLongOpt("chunk-store-encryption-mode")
+				.withDescription(
+						"The cipher mode used to encrypt new chunks. gcm authenticates every chunk and uses a unique nonce per chunk."
+								+ " Existing cbc chunks remain readable after switching. The default for this is cbc")
+				.hasArg().withArgName("cbc|gcm").create());
 		options.addOption(OptionBuilder.withLongOpt("encrypt-config")
 				.withDescription(
 						"Encrypt security sensitive encryption parameters with the admin password")
@@ -0,0 +1,394 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Sam Silverberg sam.silverberg@gmail.com
+ *
+ * This file is part of OpenDedupe SDFS.
+ *
+ * OpenDedupe SDFS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDedupe SDFS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.opendedup.sdfs.filestore;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendedup.logging.SDFSLogger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+/**
+ * Local archive cache with frequency based admission (W-TinyLFU style).
+ *
+ * Archives are loaded into a small LRU admission window. When an archive is
+ * pushed out of the window it is only admitted into the main segment if it has
+ * been used more than once recently, according to a count-min frequency
+ * sketch, or if it is pinned. Everything else is dropped. A single sequential
+ * scan therefore only churns the window and the hot archives in the main
+ * segment survive it.
+ *
+ * Pinned archives, for example archives that recently written chunks went to
+ * or deduped against, are weighed as zero for as long as the pin is valid so
+ * they are never evicted by size. The total size of pinned archives is capped.
+ *
+ * An archive can be loaded again while it moves from the window to the main
+ * segment, so both segments may briefly hold an instance for the same id. The
+ * instances share the local archive, which is only removed once neither
+ * segment holds the id.
+ */
+public class ArchiveCache {
+	private final LoadingCache<Long, HashBlobArchive> window;
+	private final Cache<Long, HashBlobArchive> main;
+	private final RemovalListener<Long, HashBlobArchive> evictionListener;
+	private final FrequencySketch sketch;
+	private final int admitFrequency;
+	private final long pinTime;
+	private final long maxPinnedBytes;
+	private final ConcurrentHashMap<Long, Long> pins = new ConcurrentHashMap<Long, Long>();
+	private final ConcurrentHashMap<Long, Integer> pinnedWeights = new ConcurrentHashMap<Long, Integer>();
+	private final AtomicLong pinnedBytes = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong admissions = new AtomicLong();
+	private final AtomicLong rejections = new AtomicLong();
+	private volatile long nextPinSweep = 0;
+	private static final long PIN_SWEEP_INTERVAL = 10 * 1000;
+	private final ThreadLocal<Long> lastRecorded = new ThreadLocal<Long>();
+
+	/**
+	 * @param maxWeight
+	 *            total size of the cache in bytes
+	 * @param windowPercent
+	 *            percentage of maxWeight used as admission window. 100 makes
+	 *            this a plain LRU cache.
+	 * @param minWindowWeight
+	 *            lower bound for the window, the size of two archives
+	 * @param admitFrequency
+	 *            archives used more often than this are admitted from the
+	 *            window into the main segment
+	 * @param pinTime
+	 *            how long a pin lasts in milliseconds
+	 * @param maxPinPercent
+	 *            percentage of maxWeight that pinned archives may take
+	 */
+	public ArchiveCache(long maxWeight, int windowPercent, long minWindowWeight, int admitFrequency, long pinTime,
+			int maxPinPercent, final Weigher<Long, HashBlobArchive> weigher,
+			RemovalListener<Long, HashBlobArchive> evictionListener, CacheLoader<Long, HashBlobArchive> loader) {
+		long windowWeight = Math.min(maxWeight, Math.max(maxWeight * windowPercent / 100, minWindowWeight));
+		long mainWeight = maxWeight - windowWeight;
+		this.evictionListener = evictionListener;
+		this.admitFrequency = admitFrequency;
+		this.pinTime = pinTime;
+		this.maxPinnedBytes = maxWeight * maxPinPercent / 100;
+		// the minimum window holds two archives
+		long expectedEntries = maxWeight / Math.max(minWindowWeight / 2, 1);
+		this.sketch = new FrequencySketch(expectedEntries);
+		Weigher<Long, HashBlobArchive> pw = new Weigher<Long, HashBlobArchive>() {
+			public int weigh(Long k, HashBlobArchive g) {
+				int sz = weigher.weigh(k, g);
+				if (isPinned(k) && !pinnedWeights.containsKey(k)) {
+					if (pinnedBytes.addAndGet(sz) <= maxPinnedBytes) {
+						pinnedWeights.put(k, sz);
+						return 0;
+					}
+					pinnedBytes.addAndGet(-1 * sz);
+				}
+				return sz;
+			}
+		};
+		window = CacheBuilder.newBuilder().maximumWeight(windowWeight).concurrencyLevel(1).weigher(pw)
+				.removalListener(new RemovalListener<Long, HashBlobArchive>() {
+					public void onRemoval(RemovalNotification<Long, HashBlobArchive> removal) {
+						onWindowRemoval(removal);
+					}
+				}).build(loader);
+		if (mainWeight > 0) {
+			main = CacheBuilder.newBuilder().maximumWeight(mainWeight).weigher(pw)
+					.removalListener(new RemovalListener<Long, HashBlobArchive>() {
+						public void onRemoval(RemovalNotification<Long, HashBlobArchive> removal) {
+							onMainRemoval(removal);
+						}
+					}).build();
+		} else {
+			main = null;
+		}
+		SDFSLogger.getLog().info("Archive cache window size=" + windowWeight + " main size=" + mainWeight
+				+ " admit frequency=" + admitFrequency + " max pinned=" + this.maxPinnedBytes);
+	}
+
+	private void onWindowRemoval(RemovalNotification<Long, HashBlobArchive> removal) {
+		if (removal.getCause() == RemovalCause.REPLACED && removal.getValue() == window.getIfPresent(removal.getKey()))
+			return;
+		this.releasePin(removal.getKey());
+		if (removal.wasEvicted() && main != null) {
+			if (this.isHeld(removal.getKey()))
+				return;
+			if (this.isPinned(removal.getKey()) || sketch.frequency(removal.getKey()) > this.admitFrequency) {
+				admissions.incrementAndGet();
+				main.put(removal.getKey(), removal.getValue());
+				return;
+			}
+			rejections.incrementAndGet();
+		}
+		if (removal.wasEvicted())
+			evictions.incrementAndGet();
+		if (!this.isHeld(removal.getKey()))
+			this.evictionListener.onRemoval(removal);
+	}
+
+	private void onMainRemoval(RemovalNotification<Long, HashBlobArchive> removal) {
+		if (removal.getCause() == RemovalCause.REPLACED && removal.getValue() == main.getIfPresent(removal.getKey()))
+			return;
+		this.releasePin(removal.getKey());
+		if (this.isHeld(removal.getKey()))
+			return;
+		if (removal.wasEvicted())
+			evictions.incrementAndGet();
+		this.evictionListener.onRemoval(removal);
+	}
+
+	/*
+	 * Checks by id and not by instance, so an instance loaded in the meantime
+	 * keeps the local archive.
+	 */
+	private boolean isHeld(Long id) {
+		return window.asMap().containsKey(id) || (main != null && main.asMap().containsKey(id));
+	}
+
+	private void releasePin(Long id) {
+		Integer w = pinnedWeights.remove(id);
+		if (w != null)
+			pinnedBytes.addAndGet(-1 * w);
+	}
+
+	private void record(Long id) {
+		// consecutive reads of the same archive by one thread, as in a
+		// sequential restore, count as one use
+		if (!id.equals(lastRecorded.get())) {
+			lastRecorded.set(id);
+			sketch.increment(id);
+		}
+	}
+
+	public HashBlobArchive get(Long id) throws ExecutionException {
+		this.sweepPins();
+		this.record(id);
+		HashBlobArchive har = null;
+		if (main != null)
+			har = main.getIfPresent(id);
+		if (har == null)
+			har = window.getIfPresent(id);
+		if (har != null) {
+			hits.incrementAndGet();
+			return har;
+		}
+		misses.incrementAndGet();
+		return window.get(id);
+	}
+
+	public HashBlobArchive getIfPresent(Long id) {
+		HashBlobArchive har = null;
+		if (main != null)
+			har = main.getIfPresent(id);
+		if (har == null)
+			har = window.getIfPresent(id);
+		return har;
+	}
+
+	public void put(Long id, HashBlobArchive har) {
+		if (main != null && main.getIfPresent(id) != null)
+			main.put(id, har);
+		else
+			window.put(id, har);
+	}
+
+	/**
+	 * Re-weighs an archive whose size on disk changed
+	 */
+	public void refresh(Long id) {
+		HashBlobArchive har = null;
+		if (main != null && (har = main.getIfPresent(id)) != null) {
+			this.releasePin(id);
+			main.put(id, har);
+		} else if ((har = window.getIfPresent(id)) != null) {
+			this.releasePin(id);
+			window.put(id, har);
+		}
+	}
+
+	public void invalidate(Long id) {
+		window.invalidate(id);
+		if (main != null)
+			main.invalidate(id);
+	}
+
+	public void cleanUp() {
+		window.cleanUp();
+		if (main != null)
+			main.cleanUp();
+	}
+
+	public long size() {
+		long sz = window.size();
+		if (main != null)
+			sz += main.size();
+		return sz;
+	}
+
+	public void pin(long id) {
+		if (this.pinTime <= 0)
+			return;
+		this.pin(id, this.pinTime);
+	}
+
+	/**
+	 * Pins an archive for duration ms. A pin that has longer to run is kept.
+	 */
+	public void pin(long id, long duration) {
+		long now = System.currentTimeMillis();
+		Long exp = pins.get(id);
+		// only touch the map when the pin is half way to expiring
+		if (exp == null || (exp - now) < (duration / 2)) {
+			pins.put(id, now + duration);
+			if (exp == null && !pinnedWeights.containsKey(id))
+				this.refresh(id);
+		}
+	}
+
+	public boolean isPinned(long id) {
+		Long exp = pins.get(id);
+		return exp != null && exp > System.currentTimeMillis();
+	}
+
+	private void sweepPins() {
+		long now = System.currentTimeMillis();
+		if (now < nextPinSweep)
+			return;
+		nextPinSweep = now + PIN_SWEEP_INTERVAL;
+		Iterator<Map.Entry<Long, Long>> iter = pins.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Long, Long> e = iter.next();
+			if (e.getValue() <= now) {
+				iter.remove();
+				// re-weigh so the archive competes for space again
+				if (pinnedWeights.containsKey(e.getKey()))
+					this.refresh(e.getKey());
+			}
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public double getHitRate() {
+		long h = hits.get();
+		long t = h + misses.get();
+		if (t == 0)
+			return 1.0;
+		return (double) h / (double) t;
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getAdmissions() {
+		return admissions.get();
+	}
+
+	public long getRejections() {
+		return rejections.get();
+	}
+
+	public long getPinnedBytes() {
+		return pinnedBytes.get();
+	}
+
+	public int getPinnedCount() {
+		return pinnedWeights.size();
+	}
+
+	/**
+	 * Count-min sketch with four rows of saturating counters. All counters are
+	 * halved once the number of increments reaches ten times the table size so
+	 * old popularity fades.
+	 */
+	static class FrequencySketch {
+		private static final int MAX_COUNT = 15;
+		private static final long[] SEEDS = new long[] { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+				0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+		private final int[][] table;
+		private final int mask;
+		private final int sampleSize;
+		private int additions = 0;
+
+		FrequencySketch(long expectedEntries) {
+			int sz = 1024;
+			while (sz < expectedEntries * 16 && sz < (1 << 24))
+				sz <<= 1;
+			table = new int[SEEDS.length][sz];
+			mask = sz - 1;
+			sampleSize = sz * 10;
+		}
+
+		private int index(long id, int row) {
+			long h = (id + SEEDS[row]) * SEEDS[row];
+			h ^= h >>> 32;
+			return (int) h & mask;
+		}
+
+		synchronized void increment(long id) {
+			boolean added = false;
+			for (int i = 0; i < table.length; i++) {
+				int idx = index(id, i);
+				if (table[i][idx] < MAX_COUNT) {
+					table[i][idx]++;
+					added = true;
+				}
+			}
+			if (added && ++additions >= sampleSize)
+				reset();
+		}
+
+		synchronized int frequency(long id) {
+			int f = MAX_COUNT;
+			for (int i = 0; i < table.length; i++) {
+				f = Math.min(f, table[i][index(id, i)]);
+			}
+			return f;
+		}
+
+		private void reset() {
+			for (int[] row : table) {
+				for (int i = 0; i < row.length; i++) {
+					row[i] >>>= 1;
+				}
+			}
+			additions = additions / 2;
+		}
+	}
+}
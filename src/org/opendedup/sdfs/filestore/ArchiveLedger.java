@@ -0,0 +1,296 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Sam Silverberg sam.silverberg@gmail.com
+ *
+ * This file is part of OpenDedupe SDFS.
+ *
+ * OpenDedupe SDFS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDedupe SDFS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.opendedup.sdfs.filestore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opendedup.logging.SDFSLogger;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+
+import com.google.common.primitives.Longs;
+
+/**
+ * Keeps a local record of how much of every archive is still referenced. An
+ * entry is added when an archive is written and the dead object count of the
+ * archive is increased each time a hash stored in it is dropped from the hash
+ * db. Dropped references are collected in memory and written to the ledger in
+ * a single batch by @see #flush(List, Map) . Bytes are tracked per archive so
+ * live and dead bytes are estimated from the share of dead objects.
+ *
+ * The ledger is the authority for garbage collection of archives. Copies of it
+ * stored in the cloud are only checkpoints used to seed a rebuilt volume.
+ */
+public class ArchiveLedger {
+	private static final int CHECKPOINT_MAGIC = 0x53444c47;
+	private RocksDB db = null;
+	private WriteOptions wo = null;
+	private ConcurrentHashMap<Long, AtomicInteger> pending = new ConcurrentHashMap<Long, AtomicInteger>();
+	private String path = null;
+	private boolean closed = false;
+
+	static {
+		RocksDB.loadLibrary();
+	}
+
+	public ArchiveLedger(File dir) throws IOException {
+		dir.mkdirs();
+		this.path = dir.getPath();
+		try {
+			Options options = new Options();
+			options.setCreateIfMissing(true);
+			wo = new WriteOptions();
+			wo.setSync(false);
+			db = RocksDB.open(options, this.path);
+		} catch (RocksDBException e) {
+			throw new IOException(e);
+		}
+		SDFSLogger.getLog().info("Archive ledger opened at [" + this.path + "]");
+	}
+
+	/**
+	 * Records a newly written archive as fully live.
+	 */
+	public synchronized void addArchive(long id, long bytes, long compressedBytes, int objects) throws IOException {
+		if (closed)
+			throw new IOException("archive ledger is closed");
+		Entry e = new Entry(id, bytes, compressedBytes, objects, 0);
+		try {
+			db.put(wo, Longs.toByteArray(id), e.toBytes());
+		} catch (RocksDBException e1) {
+			throw new IOException(e1);
+		}
+	}
+
+	/**
+	 * Records that one hash stored in an archive is no longer referenced.
+	 */
+	public void dropReference(long id) {
+		AtomicInteger ct = pending.get(id);
+		if (ct == null) {
+			ct = new AtomicInteger(0);
+			AtomicInteger _ct = pending.putIfAbsent(id, ct);
+			if (_ct != null)
+				ct = _ct;
+		}
+		ct.incrementAndGet();
+	}
+
+	public int getPendingArchives() {
+		return pending.size();
+	}
+
+	/**
+	 * Writes all dropped references to the ledger.
+	 *
+	 * @param dead
+	 *            receives the entries of archives that have no live objects
+	 *            left
+	 * @param unknown
+	 *            receives the dropped reference counts of archives that are
+	 *            not in the ledger, such as archives written before it existed
+	 */
+	public synchronized void flush(List<Entry> dead, Map<Long, Integer> unknown) throws IOException {
+		if (closed)
+			throw new IOException("archive ledger is closed");
+		if (pending.size() == 0)
+			return;
+		HashMap<Long, Integer> drops = new HashMap<Long, Integer>();
+		for (Long id : pending.keySet()) {
+			AtomicInteger ct = pending.remove(id);
+			if (ct != null)
+				drops.put(id, ct.get());
+		}
+		WriteBatch batch = new WriteBatch();
+		try {
+			for (Map.Entry<Long, Integer> d : drops.entrySet()) {
+				Entry e = this.get(d.getKey());
+				if (e == null) {
+					unknown.put(d.getKey(), d.getValue());
+					continue;
+				}
+				e.deadObjects += d.getValue();
+				if (e.deadObjects > e.objects)
+					e.deadObjects = e.objects;
+				batch.put(Longs.toByteArray(e.id), e.toBytes());
+				if (e.isDead())
+					dead.add(e);
+			}
+			db.write(wo, batch);
+		} catch (RocksDBException e1) {
+			// put the drops back so they are applied on the next flush
+			for (Map.Entry<Long, Integer> d : drops.entrySet()) {
+				for (int i = 0; i < d.getValue(); i++)
+					this.dropReference(d.getKey());
+			}
+			throw new IOException(e1);
+		} finally {
+			batch.close();
+		}
+	}
+
+	public Entry get(long id) throws IOException {
+		try {
+			byte[] v = db.get(Longs.toByteArray(id));
+			if (v == null)
+				return null;
+			return new Entry(id, v);
+		} catch (RocksDBException e) {
+			throw new IOException(e);
+		}
+	}
+
+	public synchronized void remove(long id) throws IOException {
+		if (closed)
+			throw new IOException("archive ledger is closed");
+		try {
+			db.delete(wo, Longs.toByteArray(id));
+		} catch (RocksDBException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Writes a copy of every entry to a file so that it can be stored with
+	 * the rest of the volume metadata.
+	 */
+	public synchronized void checkpoint(File f) throws IOException {
+		if (closed)
+			throw new IOException("archive ledger is closed");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+		RocksIterator iter = db.newIterator();
+		try {
+			out.writeInt(CHECKPOINT_MAGIC);
+			for (iter.seekToFirst(); iter.isValid(); iter.next()) {
+				out.writeBoolean(true);
+				out.write(iter.key());
+				out.write(iter.value());
+			}
+			out.writeBoolean(false);
+		} finally {
+			iter.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Loads the entries of a checkpoint written by @see #checkpoint(File) .
+	 * Entries already in the ledger are replaced.
+	 */
+	public synchronized int load(File f) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		int ct = 0;
+		try {
+			if (in.readInt() != CHECKPOINT_MAGIC)
+				throw new IOException("invalid archive ledger checkpoint " + f.getPath());
+			byte[] k = new byte[8];
+			byte[] v = new byte[Entry.LEN];
+			while (in.readBoolean()) {
+				in.readFully(k);
+				in.readFully(v);
+				db.put(wo, k, v);
+				ct++;
+			}
+		} catch (RocksDBException e) {
+			throw new IOException(e);
+		} finally {
+			in.close();
+		}
+		SDFSLogger.getLog().info("loaded [" + ct + "] entries into archive ledger from " + f.getPath());
+		return ct;
+	}
+
+	public boolean isEmpty() {
+		RocksIterator iter = db.newIterator();
+		try {
+			iter.seekToFirst();
+			return !iter.isValid();
+		} finally {
+			iter.close();
+		}
+	}
+
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			db.close();
+		} finally {
+			SDFSLogger.getLog().info("Archive ledger [" + this.path + "] closed");
+		}
+	}
+
+	public static class Entry {
+		static final int LEN = 24;
+		public final long id;
+		public long bytes;
+		public long compressedBytes;
+		public int objects;
+		public int deadObjects;
+
+		Entry(long id, long bytes, long compressedBytes, int objects, int deadObjects) {
+			this.id = id;
+			this.bytes = bytes;
+			this.compressedBytes = compressedBytes;
+			this.objects = objects;
+			this.deadObjects = deadObjects;
+		}
+
+		Entry(long id, byte[] v) {
+			ByteBuffer bf = ByteBuffer.wrap(v);
+			this.id = id;
+			this.bytes = bf.getLong();
+			this.compressedBytes = bf.getLong();
+			this.objects = bf.getInt();
+			this.deadObjects = bf.getInt();
+		}
+
+		byte[] toBytes() {
+			ByteBuffer bf = ByteBuffer.wrap(new byte[LEN]);
+			bf.putLong(bytes);
+			bf.putLong(compressedBytes);
+			bf.putInt(objects);
+			bf.putInt(deadObjects);
+			return bf.array();
+		}
+
+		public boolean isDead() {
+			return this.deadObjects >= this.objects;
+		}
+	}
+
+}
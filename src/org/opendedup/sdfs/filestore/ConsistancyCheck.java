@@ -88,6 +88,7 @@ public class ConsistancyCheck {
 		@Override
 		public void run() {
 			running = true;
+			IOScheduler.setIOClass(IOScheduler.IOClass.SCRUB);
 			try {
 				ChunkData data = store.getNextChunck();
 				if (data == null)
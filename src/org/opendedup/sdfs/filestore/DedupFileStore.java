@@ -61,9 +61,10 @@ public class DedupFileStore {
 	 * files from the openFile hashmap.
 	 */
 	static {
-		if (Main.maxInactiveFileTime > 0 && !Main.blockDev) {
+		if (Main.maxInactiveFileTime > 0 && !Main.blockDev && !Main.safeClose) {
 			openFileMonitor = new OpenFileMonitor(10000, Main.maxInactiveFileTime);
 		} 
+		FlushScheduler.start();
 
 	}
 
@@ -320,6 +321,7 @@ public class DedupFileStore {
 			SDFSLogger.getLog().debug("Open Files = " + openFile.size());
 		if (openFileMonitor != null)
 			openFileMonitor.close();
+		FlushScheduler.stop();
 		if (openFile.size() > 0) {
 			Object[] dfs = getArray();
 			SDFSLogger.getLog().info("closing openfiles of size " + dfs.length);
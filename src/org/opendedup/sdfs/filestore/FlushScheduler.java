@@ -0,0 +1,293 @@
+package org.opendedup.sdfs.filestore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.io.SparseDedupFile;
+import org.opendedup.sdfs.io.WritableCacheBuffer;
+
+/**
+ *
+ * Schedules the flushing of dirty write buffers. Buffers are registered when
+ * they are written to and removed when they are persisted, so only files with
+ * dirty data are ever visited. A buffer is flushed when it has been dirty for
+ * longer than @see Main#flushMaxDirtyAge or when its file holds more than @see
+ * Main#flushMaxFileDirtyBytes . Writers are held back while the total amount
+ * of dirty data is above @see Main#flushMaxDirtyBytes .
+ *
+ */
+public class FlushScheduler implements Runnable {
+
+	private static final ConcurrentHashMap<String, DirtyFile> dirtyFiles = new ConcurrentHashMap<String, DirtyFile>();
+	private static final AtomicLong dirtyBytes = new AtomicLong(0);
+	private static final AtomicLong throttled = new AtomicLong(0);
+	private static final Object throttleLock = new Object();
+	private static volatile int waiters = 0;
+	private static FlushScheduler scheduler = null;
+	private static final int MAX_THROTTLE_WAIT = 30 * 1000;
+	private int interval = 1000;
+	private volatile boolean closed = false;
+	private boolean done = false;
+	private Thread th = null;
+
+	private FlushScheduler(int interval) {
+		this.interval = interval;
+		th = new Thread(this);
+		th.setName("SDFS Flush Scheduler");
+		th.setDaemon(true);
+		th.start();
+	}
+
+	public static synchronized void start() {
+		if (scheduler == null) {
+			int interval = (int) Math.max(Math.min(Main.flushMaxDirtyAge / 4, 1000), 100);
+			scheduler = new FlushScheduler(interval);
+			SDFSLogger.getLog().info("Flush scheduler started max-dirty-age=" + Main.flushMaxDirtyAge
+					+ " max-file-dirty-size=" + Main.flushMaxFileDirtyBytes + " max-dirty-size="
+					+ Main.flushMaxDirtyBytes);
+		}
+	}
+
+	public static synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.close();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Registers a buffer as dirty. Only the first write after the buffer was
+	 * last persisted is recorded.
+	 */
+	public static void dirtied(SparseDedupFile df, WritableCacheBuffer bf) {
+		Long pos = bf.getFilePosition();
+		for (;;) {
+			DirtyFile d = dirtyFiles.get(df.getGUID());
+			if (d == null) {
+				d = new DirtyFile(df);
+				DirtyFile _d = dirtyFiles.putIfAbsent(df.getGUID(), d);
+				if (_d != null)
+					d = _d;
+			}
+			synchronized (d) {
+				if (d.removed)
+					continue;
+				DirtyBuffer db = d.buffers.get(pos);
+				if (db != null && db.bf == bf)
+					return;
+				d.buffers.put(pos, new DirtyBuffer(bf));
+				if (db == null) {
+					d.bytes += Main.CHUNK_LENGTH;
+					dirtyBytes.addAndGet(Main.CHUNK_LENGTH);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Removes a buffer that has been persisted or discarded.
+	 */
+	public static void cleaned(SparseDedupFile df, WritableCacheBuffer bf) {
+		DirtyFile d = dirtyFiles.get(df.getGUID());
+		if (d == null)
+			return;
+		synchronized (d) {
+			DirtyBuffer db = d.buffers.get(bf.getFilePosition());
+			if (db == null || db.bf != bf)
+				return;
+			d.buffers.remove(bf.getFilePosition());
+			d.bytes -= Main.CHUNK_LENGTH;
+			dirtyBytes.addAndGet(-1 * Main.CHUNK_LENGTH);
+			if (d.buffers.size() == 0) {
+				d.removed = true;
+				dirtyFiles.remove(df.getGUID(), d);
+			}
+		}
+		release();
+	}
+
+	/**
+	 * Drops every buffer of a file. Called once the file has been closed and
+	 * all of its buffers written.
+	 */
+	public static void removed(SparseDedupFile df) {
+		DirtyFile d = dirtyFiles.get(df.getGUID());
+		if (d == null)
+			return;
+		synchronized (d) {
+			d.removed = true;
+			dirtyBytes.addAndGet(-1 * d.bytes);
+			d.bytes = 0;
+			d.buffers.clear();
+			dirtyFiles.remove(df.getGUID(), d);
+		}
+		release();
+	}
+
+	/**
+	 * Blocks the calling writer while the volume holds more dirty data than
+	 * allowed. This must be called before any file or buffer lock is taken.
+	 */
+	public static void throttle() {
+		if (Main.flushMaxDirtyBytes <= 0 || dirtyBytes.get() <= Main.flushMaxDirtyBytes)
+			return;
+		throttled.incrementAndGet();
+		long end = System.currentTimeMillis() + MAX_THROTTLE_WAIT;
+		synchronized (throttleLock) {
+			waiters++;
+			try {
+				FlushScheduler sc = scheduler;
+				if (sc != null)
+					sc.wake();
+				while (dirtyBytes.get() > Main.flushMaxDirtyBytes) {
+					long wt = end - System.currentTimeMillis();
+					if (wt <= 0) {
+						SDFSLogger.getLog().warn("dirty data [" + dirtyBytes.get() + "] still above ["
+								+ Main.flushMaxDirtyBytes + "] after " + MAX_THROTTLE_WAIT + " ms");
+						break;
+					}
+					throttleLock.wait(Math.min(wt, 100));
+				}
+			} catch (InterruptedException e) {
+
+			} finally {
+				waiters--;
+			}
+		}
+	}
+
+	private static void release() {
+		if (waiters > 0 && dirtyBytes.get() <= Main.flushMaxDirtyBytes) {
+			synchronized (throttleLock) {
+				throttleLock.notifyAll();
+			}
+		}
+	}
+
+	public static long getDirtyBytes() {
+		return dirtyBytes.get();
+	}
+
+	public static int getDirtyFiles() {
+		return dirtyFiles.size();
+	}
+
+	public static long getThrottledWrites() {
+		return throttled.get();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!closed) {
+				synchronized (this) {
+					try {
+						this.wait(this.interval);
+					} catch (InterruptedException e) {
+						if (this.closed)
+							break;
+					}
+				}
+				try {
+					this.flushDue();
+				} catch (Exception e) {
+					SDFSLogger.getLog().warn("unable to flush dirty buffers", e);
+				}
+			}
+		} finally {
+			done = true;
+		}
+	}
+
+	private synchronized void wake() {
+		this.notifyAll();
+	}
+
+	private void flushDue() {
+		if (dirtyFiles.size() == 0)
+			return;
+		long now = System.currentTimeMillis();
+		long flushed = 0;
+		ArrayList<DirtyBuffer> pending = null;
+		boolean pressure = Main.flushMaxDirtyBytes > 0 && dirtyBytes.get() > (Main.flushMaxDirtyBytes / 4) * 3;
+		if (pressure)
+			pending = new ArrayList<DirtyBuffer>();
+		for (DirtyFile d : dirtyFiles.values()) {
+			boolean fileOver = Main.flushMaxFileDirtyBytes > 0 && d.bytes >= Main.flushMaxFileDirtyBytes;
+			for (DirtyBuffer db : d.buffers.values()) {
+				if (db.requested > 0 && (now - db.requested) < Main.flushMaxDirtyAge)
+					continue;
+				if (fileOver || (now - db.dirtied) >= Main.flushMaxDirtyAge) {
+					db.requested = now;
+					d.df.flushDirtyBuffer(db.bf);
+					flushed += Main.CHUNK_LENGTH;
+				} else if (pressure) {
+					db.df = d.df;
+					pending.add(db);
+				}
+			}
+		}
+		if (pressure) {
+			// flush the oldest buffers across all files until the dirty data
+			// is expected to drop back under half of the cap
+			long target = dirtyBytes.get() - flushed - (Main.flushMaxDirtyBytes / 2);
+			Collections.sort(pending, new Comparator<DirtyBuffer>() {
+				@Override
+				public int compare(DirtyBuffer o1, DirtyBuffer o2) {
+					return Long.compare(o1.dirtied, o2.dirtied);
+				}
+			});
+			for (DirtyBuffer db : pending) {
+				if (target <= 0)
+					break;
+				db.requested = now;
+				db.df.flushDirtyBuffer(db.bf);
+				target -= Main.CHUNK_LENGTH;
+			}
+		}
+	}
+
+	/**
+	 * Closes the FlushScheduler thread.
+	 */
+	public void close() {
+		this.closed = true;
+		th.interrupt();
+		while (!done) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	private static class DirtyFile {
+		final SparseDedupFile df;
+		final ConcurrentHashMap<Long, DirtyBuffer> buffers = new ConcurrentHashMap<Long, DirtyBuffer>();
+		volatile long bytes = 0;
+		boolean removed = false;
+
+		DirtyFile(SparseDedupFile df) {
+			this.df = df;
+		}
+	}
+
+	private static class DirtyBuffer {
+		final WritableCacheBuffer bf;
+		final long dirtied = System.currentTimeMillis();
+		volatile long requested = 0;
+		SparseDedupFile df;
+
+		DirtyBuffer(WritableCacheBuffer bf) {
+			this.bf = bf;
+		}
+	}
+
+}
@@ -24,7 +24,6 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -38,6 +37,7 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.spec.IvParameterSpec;
 
 //import objectexplorer.MemoryMeasurer;
@@ -48,10 +48,12 @@ import org.opendedup.collections.HashExistsException;
 import org.opendedup.collections.MapClosedException;
 import org.opendedup.collections.SimpleByteArrayLongMap;
 import org.opendedup.collections.SimpleByteArrayLongMap.KeyValuePair;
+import org.opendedup.collections.SimilarityIndex;
 import org.opendedup.hashing.AbstractHashEngine;
 import org.opendedup.hashing.HashFunctionPool;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.io.WriteProfile;
 import org.opendedup.sdfs.io.events.ArchiveSync;
 import org.opendedup.sdfs.filestore.cloud.FileReplicationService;
 import org.opendedup.sdfs.io.events.HashBlobArchiveUploaded;
@@ -60,6 +62,7 @@ import org.opendedup.util.CompressionUtils;
 import org.opendedup.util.EncryptUtils;
 import org.opendedup.util.PassPhrase;
 import org.opendedup.util.StringUtils;
+import org.w3c.dom.Element;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
@@ -69,9 +72,6 @@ import com.google.common.cache.RemovalNotification;
 import com.google.common.cache.Weigher;
 import com.google.common.eventbus.EventBus;
 import com.google.common.io.BaseEncoding;
-import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListenableFutureTask;
-import com.google.common.util.concurrent.RateLimiter;
 
 public class HashBlobArchive implements Runnable, Serializable {
 	/**
@@ -115,15 +115,17 @@ public class HashBlobArchive implements Runnable, Serializable {
 	private static long LOCAL_CACHE_SIZE = 209715200;
 	public static int MAP_CACHE_SIZE = 200;
 	public static ConnectionChecker cc = null;
-	public static RateLimiter rrl = null;
-	public static RateLimiter wrl = null;
 	public static boolean REMOVE_FROM_CACHE = true;
 	public static boolean DISABLE_WRITE = false;
 	public static boolean VERIFY_READS = false;
 	public static boolean VERIFY_WRITES = false;
 	public static boolean SMART_CACHE = false;
+	public static int CACHE_WINDOW_PERCENT = 10;
+	public static int CACHE_ADMIT_FREQUENCY = 1;
+	public static long CACHE_PIN_TIME = 30 * 60 * 1000;
+	public static int CACHE_MAX_PIN_PERCENT = 25;
 	private static LoadingCache<Long, SimpleByteArrayLongMap> cmaps = null;
-	private static LoadingCache<Long, HashBlobArchive> archives = null;
+	private static ArchiveCache archives = null;
 	private static LoadingCache<Long, SimpleByteArrayLongMap> maps = null;
 	private static LoadingCache<Long, FileChannel> openFiles = null;
 	private static LoadingCache<Long, SimpleByteArrayLongMap> wMaps = null;
@@ -165,6 +167,43 @@ public class HashBlobArchive implements Runnable, Serializable {
 		return (archives.getIfPresent(id) != null);
 	}
 
+	/**
+	 * Keeps an archive in the local cache for CACHE_PIN_TIME. Used for archives
+	 * that recently written chunks were stored in or deduped against.
+	 */
+	public static void pinArchive(long id) {
+		ArchiveCache ac = archives;
+		if (ac != null)
+			ac.pin(id);
+	}
+
+	public static void pinArchive(long id, long duration) {
+		ArchiveCache ac = archives;
+		if (ac != null)
+			ac.pin(id, duration);
+	}
+
+	public static ArchiveCache getArchiveCache() {
+		return archives;
+	}
+
+	private static void configureCache(Element config) {
+		if (config == null)
+			return;
+		if (config.hasAttribute("cache-admission-window")) {
+			CACHE_WINDOW_PERCENT = Integer.parseInt(config.getAttribute("cache-admission-window"));
+		}
+		if (config.hasAttribute("cache-admission-frequency")) {
+			CACHE_ADMIT_FREQUENCY = Integer.parseInt(config.getAttribute("cache-admission-frequency"));
+		}
+		if (config.hasAttribute("cache-pin-time")) {
+			CACHE_PIN_TIME = Long.parseLong(config.getAttribute("cache-pin-time")) * 1000;
+		}
+		if (config.hasAttribute("cache-max-pin-percent")) {
+			CACHE_MAX_PIN_PERCENT = Integer.parseInt(config.getAttribute("cache-max-pin-percent"));
+		}
+	}
+
 	public static long getCompressedLength() {
 
 		return compressedLength.get();
@@ -199,6 +238,20 @@ public class HashBlobArchive implements Runnable, Serializable {
 		return getRawMap(id);
 	}
 
+	/**
+	 * Opens the key map of an archive if it is on local disk. Unlike @see
+	 * #getMap(long) it never fetches the map from the chunk store. The caller
+	 * must close the map.
+	 *
+	 * @return the map or null if it is not on local disk
+	 */
+	public static SimpleByteArrayLongMap getLocalMap(long id) throws IOException {
+		File lf = new File(getPath(id).getPath() + ".map");
+		if (!lf.exists() || lf.length() == 0)
+			return null;
+		return new SimpleByteArrayLongMap(lf.getPath(), MAX_HM_SZ, VERSION);
+	}
+
 	public static String getStrings(long id) throws IOException {
 		HashBlobArchive har = null;
 		File f = getPath(id);
@@ -281,6 +334,7 @@ public class HashBlobArchive implements Runnable, Serializable {
 		l.lock();
 		try {
 			store = nstore;
+			configureCache(Main.chunkStoreConfig);
 			chunk_location = new File(Main.chunkStore);
 			if (!chunk_location.exists()) {
 				chunk_location.mkdirs();
@@ -563,10 +617,7 @@ public class HashBlobArchive implements Runnable, Serializable {
 					SDFSLogger.getLog().error("error while closing ", e);
 				}
 			}
-			if (kbps == 0)
-				rrl = null;
-			else
-				rrl = RateLimiter.create(kbps);
+			IOScheduler.setVolumeReadSpeed(kbps);
 			if (Main.volume != null && update) {
 				try {
 					Main.volume.writeUpdate();
@@ -658,10 +709,7 @@ public class HashBlobArchive implements Runnable, Serializable {
 					SDFSLogger.getLog().error("error while closing ", e);
 				}
 			}
-			if (kbps == 0)
-				wrl = null;
-			else
-				wrl = RateLimiter.create(kbps);
+			IOScheduler.setVolumeWriteSpeed(kbps);
 			if (Main.volume != null && update) {
 				try {
 					Main.volume.writeUpdate();
@@ -676,17 +724,11 @@ public class HashBlobArchive implements Runnable, Serializable {
 	}
 
 	public static double getReadSpeed() {
-		if (rrl == null)
-			return 0;
-		else
-			return rrl.getRate();
+		return IOScheduler.getVolumeReadSpeed();
 	}
 
 	public static double getWriteSpeed() {
-		if (wrl == null)
-			return 0;
-		else
-			return wrl.getRate();
+		return IOScheduler.getVolumeWriteSpeed();
 	}
 
 	public static long getCacheSize() {
@@ -740,11 +782,21 @@ public class HashBlobArchive implements Runnable, Serializable {
 		if (uuid == null || uuid.trim() == "") {
 			uuid = "default";
 		}
+		SimilarityIndex si = SimilarityIndex.get();
+		SimilarityIndex.Delta d = null;
+		if (si != null)
+			d = si.encode(hash, chunk);
+		byte[] delta = d == null ? null : d.getRecord();
+		boolean written = false;
 		try {
 			for (;;) {
 				try {
 					HashBlobArchive ar = writableArchives.get(uuid);
-					ar.putChunk(hash, chunk);
+					ar.putChunk(hash, chunk, delta);
+					pinArchive(ar.id);
+					written = true;
+					if (d != null)
+						si.added(hash, chunk, ar.id, d);
 					return ar.id;
 				} catch (HashExistsException e) {
 					throw e;
@@ -756,12 +808,16 @@ public class HashBlobArchive implements Runnable, Serializable {
 					try {
 						HashBlobArchive ar = writableArchives.get(uuid);
 						if (ar != null && ar.writeable)
-							ar.putChunk(hash, chunk);
+							ar.putChunk(hash, chunk, delta);
 						else {
-							ar = new HashBlobArchive(hash, chunk);
+							ar = new HashBlobArchive(hash, chunk, delta);
 							ar.uuid = uuid;
 							writableArchives.put(uuid, ar);
 						}
+						pinArchive(ar.id);
+						written = true;
+						if (d != null)
+							si.added(hash, chunk, ar.id, d);
 						return ar.id;
 					} catch (Exception e1) {
 						l.unlock();
@@ -782,33 +838,29 @@ public class HashBlobArchive implements Runnable, Serializable {
 		} finally {
 			if (l != null)
 				l.unlock();
+			if (!written && d != null)
+				si.failed(d);
 		}
 	}
 
 	private static AtomicLong cSz = new AtomicLong();
 
-	private boolean reloading = false;
-
 	private static void buildCache() throws IOException {
-		archives = CacheBuilder.newBuilder().maximumWeight(LOCAL_CACHE_SIZE)
-				.weigher(new Weigher<Long, HashBlobArchive>() {
+		long minWindow = Math.min(LOCAL_CACHE_SIZE, 2L * (MAX_LEN + (long) (MAX_LEN * LEN_VARIANCE)));
+		archives = new ArchiveCache(LOCAL_CACHE_SIZE, CACHE_WINDOW_PERCENT, minWindow, CACHE_ADMIT_FREQUENCY,
+				CACHE_PIN_TIME, CACHE_MAX_PIN_PERCENT, new Weigher<Long, HashBlobArchive>() {
 					public int weigh(Long k, HashBlobArchive g) {
 						SDFSLogger.getLog().debug("getting size for " + k + " size=" + Math.toIntExact(g.getFSize()));
 
 						return Math.toIntExact(g.getFSize());
 					}
-				}).removalListener(new RemovalListener<Long, HashBlobArchive>() {
+				}, new RemovalListener<Long, HashBlobArchive>() {
 					public void onRemoval(RemovalNotification<Long, HashBlobArchive> removal) {
-						if (!SMART_CACHE || (SMART_CACHE && !removal.getValue().reloading)) {
-							SDFSLogger.getLog().debug("removing " + removal.getKey() + " from cache");
-							cSz.addAndGet(-1 * removal.getValue().getFSize());
-							removal.getValue().removeCache();
-						} else {
-							removal.getValue().reloading = false;
-						}
-
+						SDFSLogger.getLog().debug("removing " + removal.getKey() + " from cache");
+						cSz.addAndGet(-1 * removal.getValue().getFSize());
+						removal.getValue().removeCache();
 					}
-				}).build(new CacheLoader<Long, HashBlobArchive>() {
+				}, new CacheLoader<Long, HashBlobArchive>() {
 					public HashBlobArchive load(Long hashid) throws Exception {
 						try {
 							HashBlobArchive har = null;
@@ -827,21 +879,6 @@ public class HashBlobArchive implements Runnable, Serializable {
 							throw e;
 						}
 					}
-
-					public ListenableFuture<HashBlobArchive> reload(final Long key, HashBlobArchive archive) {
-						if (SMART_CACHE)
-							archive.reloading = true;
-						else
-							archive.reloading = false;
-						ListenableFutureTask<HashBlobArchive> task = ListenableFutureTask
-								.create(new Callable<HashBlobArchive>() {
-									public HashBlobArchive call() {
-										return archive;
-									}
-								});
-						executor.execute(task);
-						return task;
-					}
 				});
 		if (REMOVE_FROM_CACHE) {
 			SDFSLogger.getLog().info("############################ Caching Local Files ##############################");
@@ -910,6 +947,19 @@ public class HashBlobArchive implements Runnable, Serializable {
 	}
 
 	public static byte[] getBlock(byte[] hash, long hbid) throws IOException, DataArchivedException {
+		return getBlock(hash, hbid, false);
+	}
+
+	/**
+	 * Returns the hash of the base of a chunk stored as a delta in archive
+	 * hbid or null if the chunk is stored whole.
+	 */
+	public static byte[] getDeltaBase(byte[] hash, long hbid) throws IOException, DataArchivedException {
+		return getBlock(hash, hbid, true);
+	}
+
+	private static byte[] getBlock(byte[] hash, long hbid, boolean baseOnly)
+			throws IOException, DataArchivedException {
 		HashBlobArchive archive = rchunks.get(hbid);
 		if (archive == null) {
 			try {
@@ -929,7 +979,7 @@ public class HashBlobArchive implements Runnable, Serializable {
 		}
 		byte[] z = null;
 		try {
-			z = archive.getChunk(hash);
+			z = archive.getChunk(hash, baseOnly);
 		} catch (Exception e) {
 			SDFSLogger.getLog().debug("exception while getting", e);
 			archives.invalidate(hbid);
@@ -943,7 +993,7 @@ public class HashBlobArchive implements Runnable, Serializable {
 				else
 					throw new IOException(e1.getCause());
 			}
-			z = archive.getChunk(hash);
+			z = archive.getChunk(hash, baseOnly);
 		}
 		if (z != null && Main.REFRESH_BLOBS) {
 			FileReplicationService.refreshArchive(hbid);
@@ -1008,7 +1058,7 @@ public class HashBlobArchive implements Runnable, Serializable {
 
 	}
 
-	private HashBlobArchive(byte[] hash, byte[] chunk)
+	private HashBlobArchive(byte[] hash, byte[] chunk, byte[] delta)
 			throws IOException, ArchiveFullException, ReadOnlyArchiveException {
 
 		for (;;) {
@@ -1046,7 +1096,7 @@ public class HashBlobArchive implements Runnable, Serializable {
 				}
 				this.ivspec = new IvParameterSpec(biv);
 			}
-			this.putChunk(hash, chunk);
+			this.putChunk(hash, chunk, delta);
 
 			executor.execute(this);
 			break;
@@ -1106,7 +1156,7 @@ public class HashBlobArchive implements Runnable, Serializable {
 		if (cacheReads || VERSION == 0)
 			this.loadData();
 		if (SDFSLogger.isDebug())
-			SDFSLogger.getLog().debug("Hit Rate = " + archives.stats().hitRate());
+			SDFSLogger.getLog().debug("Hit Rate = " + archives.getHitRate());
 		if (VERSION > 0 && cacheReads) {
 			RandomAccessFile zraf = new RandomAccessFile(f, "rw");
 			FileChannel zfc = zraf.getChannel();
@@ -1157,7 +1207,7 @@ public class HashBlobArchive implements Runnable, Serializable {
 
 		}
 		if (SDFSLogger.isDebug())
-			SDFSLogger.getLog().debug("Hit Rate = " + archives.stats().hitRate());
+			SDFSLogger.getLog().debug("Hit Rate = " + archives.getHitRate());
 	}
 
 	public long getID() {
@@ -1175,6 +1225,15 @@ public class HashBlobArchive implements Runnable, Serializable {
 
 	private void putChunk(byte[] hash, byte[] chunk)
 			throws IOException, ArchiveFullException, ReadOnlyArchiveException {
+		this.putChunk(hash, chunk, null);
+	}
+
+	/*
+	 * Writes a chunk, or its delta from @see SimilarityIndex if delta is not
+	 * null.
+	 */
+	private void putChunk(byte[] hash, byte[] chunk, byte[] delta)
+			throws IOException, ArchiveFullException, ReadOnlyArchiveException {
 
 		if (VERIFY_WRITES) {
 			byte[] _hash = eng.getHash(chunk);
@@ -1189,17 +1248,38 @@ public class HashBlobArchive implements Runnable, Serializable {
 			try {
 				int nz = -1;
 				int al = chunk.length;
-				if (Main.compress) {
-					nz = chunk.length;
-					chunk = CompressionUtils.compressLz4(chunk);
+				if (delta != null) {
+					nz = SimilarityIndex.DELTA_CHUNK;
+					chunk = delta;
+				} else if (Main.compress && WriteProfile.ENABLED && WriteProfile.isIncompressible(chunk)) {
+					WriteProfile.storedUncompressed(chunk.length);
+				} else if (Main.compress) {
+					long ts = System.nanoTime();
+					byte[] cb = CompressionUtils.compressLz4(chunk);
+					if (WriteProfile.ENABLED)
+						WriteProfile.compressed(chunk.length, System.nanoTime() - ts);
+					// stored as is when compression does not make it smaller
+					if (cb.length < chunk.length) {
+						nz = chunk.length;
+						chunk = cb;
+					}
 				}
 				ByteBuffer bf = ByteBuffer.wrap(new byte[4 + chunk.length]);
 				bf.putInt(nz);
 				bf.put(chunk);
-				if (Main.chunkStoreEncryptionEnabled) {
+				byte[] plain = null;
+				int clen = 0;
+				if (Main.chunkStoreEncryptionEnabled && EncryptUtils.isGCMMode()) {
+					// encrypted after the write offset is known, the nonce
+					// is derived from it
+					plain = bf.array();
+					clen = EncryptUtils.gcmLength(plain.length);
+				} else if (Main.chunkStoreEncryptionEnabled) {
 					chunk = EncryptUtils.encryptCBC(bf.array(), ivspec);
+					clen = chunk.length;
 				} else {
 					chunk = bf.array();
+					clen = chunk.length;
 				}
 				FileChannel ch = null;
 				long cp = -1;
@@ -1231,27 +1311,27 @@ public class HashBlobArchive implements Runnable, Serializable {
 					}
 
 					cp = np.get();
-					np.set(cp + 4 + hash.length + 4 + chunk.length);
+					np.set(cp + 4 + hash.length + 4 + clen);
 					try {
 						boolean ins = true;
 						if (VERSION == 0) {
 							try {
 								ins = wMaps.get(this.id).put(hash, (int) cp + 4 + hash.length);
 								SDFSLogger.getLog()
-										.debug("0 put  len " + chunk.length + " into " + this.id + " " + ins);
+										.debug("0 put  len " + clen + " into " + this.id + " " + ins);
 							} catch (IllegalStateException e) {
 								throw new ArchiveFullException("archive full");
 							}
 						} else {
 							ByteBuffer hf = ByteBuffer.allocate(8);
 							hf.putInt((int) cp + 4 + hash.length);
-							hf.putInt(chunk.length);
+							hf.putInt(clen);
 							hf.position(0);
 							// int zd = (int) cp + 4 + hash.length;
 							try {
 								ins = wMaps.get(this.id).put(hash, hf.getLong());
 								SDFSLogger.getLog()
-										.debug("0 put  len " + chunk.length + " into " + this.id + " " + ins);
+										.debug("0 put  len " + clen + " into " + this.id + " " + ins);
 							} catch (IllegalStateException e) {
 								throw new ArchiveFullException("archive full");
 							}
@@ -1289,11 +1369,14 @@ public class HashBlobArchive implements Runnable, Serializable {
 				} finally {
 					l.unlock();
 				}
-				ByteBuffer buf = ByteBuffer.allocateDirect(4 + hash.length + 4 + chunk.length);
+				ByteBuffer buf = ByteBuffer.allocateDirect(4 + hash.length + 4 + clen);
 				buf.putInt(hash.length);
 				buf.put(hash);
-				buf.putInt(chunk.length);
-				buf.put(chunk);
+				buf.putInt(clen);
+				if (plain != null)
+					EncryptUtils.encryptGCM(ByteBuffer.wrap(plain), buf, hash, this.id, cp);
+				else
+					buf.put(chunk);
 				this.uncompressedLength.addAndGet(al);
 				buf.position(0);
 
@@ -1400,6 +1483,10 @@ public class HashBlobArchive implements Runnable, Serializable {
 	}
 
 	private void loadData() throws Exception {
+		// charged before the lock so that a throttled download does not hold
+		// up other readers of the archive. The size is not known before the
+		// download, so a full archive is assumed unless there is a local copy.
+		IOScheduler.acquireRead(f.exists() && f.length() > 0 ? f.length() : MAX_LEN);
 		synchronized (f) {
 			/*
 			 * if (f.exists() && f.length() > 0) {
@@ -1446,12 +1533,6 @@ public class HashBlobArchive implements Runnable, Serializable {
 				}
 				SDFSLogger.getLog().debug("loading " + this.id);
 				store.getBytes(this.id, f);
-				if (rrl != null) {
-					int _sz = 1;
-					if (f.length() > 1024)
-						_sz = toIntExact(f.length() / 1024);
-					rrl.acquire(_sz);
-				}
 
 			} catch (Exception e) {
 				throw e;
@@ -1464,7 +1545,11 @@ public class HashBlobArchive implements Runnable, Serializable {
 	int smOffset = offset;
 	private HashMap<Integer, ReentrantLock> hl = new HashMap<Integer, ReentrantLock>();
 
-	private byte[] getChunk(byte[] hash) throws IOException, DataArchivedException {
+	/*
+	 * Reads a chunk. If baseOnly is set only the hash of the base of a delta
+	 * is returned, or null if the chunk is stored whole.
+	 */
+	private byte[] getChunk(byte[] hash, boolean baseOnly) throws IOException, DataArchivedException {
 		byte[] ub = null;
 
 		long pos = 0;
@@ -1758,10 +1843,10 @@ public class HashBlobArchive implements Runnable, Serializable {
 			// rf.seek(pos - HashFunctionPool.hashLength);
 
 		} catch (ClosedChannelException e) {
-			return getChunk(hash);
+			return getChunk(hash, baseOnly);
 		} catch (MapClosedException e) {
 			maps.invalidate(this.id);
-			return getChunk(hash);
+			return getChunk(hash, baseOnly);
 		} catch (IOException e) {
 			throw e;
 		} catch (Exception e) {
@@ -1772,26 +1857,52 @@ public class HashBlobArchive implements Runnable, Serializable {
 
 			l.unlock();
 		}
+		boolean verify = VERIFY_READS;
+		boolean cbcFallback = false;
 		try {
 			if (Main.chunkStoreEncryptionEnabled) {
-				ub = EncryptUtils.decryptCBC(ub, ivspec);
+				if (EncryptUtils.isGCM(ub)) {
+					try {
+						ub = EncryptUtils.decryptGCM(ub, hash);
+					} catch (AEADBadTagException e) {
+						// a legacy cbc chunk can start with the gcm marker. Only
+						// accept it if the data matches its hash
+						try {
+							ub = EncryptUtils.decryptCBC(ub, ivspec);
+						} catch (IOException e1) {
+							throw new IOException("chunk in [" + this.id + "] at [" + pos + "] failed authentication",
+									e);
+						}
+						verify = true;
+						cbcFallback = true;
+					}
+				} else {
+					ub = EncryptUtils.decryptCBC(ub, ivspec);
+				}
 			}
 
 			ByteBuffer bf = ByteBuffer.wrap(ub);
 			int cpz = bf.getInt();
 			byte[] cp = new byte[bf.remaining()];
 			bf.get(cp);
+			if (baseOnly)
+				return cpz == SimilarityIndex.DELTA_CHUNK ? SimilarityIndex.getBase(cp) : null;
 			if (cpz > 0) {
 				cp = CompressionUtils.decompressLz4(cp, cpz);
+			} else if (cpz == SimilarityIndex.DELTA_CHUNK) {
+				cp = SimilarityIndex.decode(cp);
 			}
 			// SDFSLogger.getLog().info("got " + cp.length + " cpz " +cpz);
-			if (VERIFY_READS) {
+			if (verify) {
 				byte[] _hash = eng.getHash(cp);
 				if (!Arrays.equals(_hash, hash)) {
 					SDFSLogger.getLog()
 							.error("hash mismatch on read  at " + pos + " " + nlen + " flen " + f.length() + " file="
 									+ f.getPath() + " expected " + StringUtils.getHexString(hash) + " recieved "
 									+ StringUtils.getHexString(_hash));
+					if (cbcFallback)
+						throw new IOException(
+								"chunk in [" + this.id + "] at [" + pos + "] failed authentication");
 				}
 			}
 			return cp;
@@ -1983,7 +2094,7 @@ public class HashBlobArchive implements Runnable, Serializable {
 				_har = new HashBlobArchive(true, ssz, (int) ofl);
 				for (KeyValuePair _p : ar) {
 					try {
-						byte ck[] = this.getChunk(_p.getKey());
+						byte ck[] = this.getChunk(_p.getKey(), false);
 						SDFSLogger.getLog().debug("[" + StringUtils.getHexString(_p.getKey()) + "] " + ck.length);
 						_har.putChunk(_p.getKey(), ck);
 					} catch (HashExistsException e) {
@@ -2050,12 +2161,7 @@ public class HashBlobArchive implements Runnable, Serializable {
 		Lock l = this.lock.readLock();
 		l.lock();
 		try {
-			if (wrl != null) {
-				int _sz = 1;
-				if (f.length() > 1024)
-					_sz = (int) (f.length() / 1024);
-				wrl.acquire(_sz);
-			}
+			IOScheduler.acquireWrite(f.length());
 			store.writeHashBlobArchive(this, nid);
 			eventUploadBus.post(new HashBlobArchiveUploaded(this));
 		} catch (Exception e) {
@@ -2431,4 +2537,4 @@ public class HashBlobArchive implements Runnable, Serializable {
 		}
 	}
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Sam Silverberg sam.silverberg@gmail.com
+ *
+ * This file is part of OpenDedupe SDFS.
+ *
+ * OpenDedupe SDFS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDedupe SDFS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.opendedup.sdfs.filestore;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.util.XMLUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Schedules archive I/O in a hierarchy of token buckets. Every request is
+ * charged to the bucket of its priority class and then to the bucket of the
+ * volume, both in KB. Foreground requests can also be charged to a bucket of
+ * the file they are for.
+ *
+ * The class of a request is taken from the thread making it. Threads run as
+ * @see IOClass#FOREGROUND unless a background task sets its class with @see
+ * #setIOClass(IOClass) . A class yields to the classes above it: while a
+ * higher class has made a request within the last PRECEDENCE_WINDOW ms a
+ * request waits, for at most MAX_DEFER ms so that background work is never
+ * starved completely.
+ *
+ * A rate of 0 means unlimited.
+ */
+public class IOScheduler {
+	public enum IOClass {
+		FOREGROUND, REPLICATION, GC, SCRUB
+	}
+
+	public static long PRECEDENCE_WINDOW = 100;
+	public static long MAX_DEFER = 2000;
+	private static final int CLASSES = IOClass.values().length;
+	private static final ThreadLocal<IOClass> current = new ThreadLocal<IOClass>() {
+		@Override
+		protected IOClass initialValue() {
+			return IOClass.FOREGROUND;
+		}
+	};
+	private static volatile RateLimiter readVolume = null;
+	private static volatile RateLimiter writeVolume = null;
+	private static final RateLimiter[] readClass = new RateLimiter[CLASSES];
+	private static final RateLimiter[] writeClass = new RateLimiter[CLASSES];
+	private static final ConcurrentHashMap<String, RateLimiter[]> fileLimits = new ConcurrentHashMap<String, RateLimiter[]>();
+	private static final AtomicLong[] lastActive = new AtomicLong[CLASSES];
+	private static final AtomicLong[] kbRead = new AtomicLong[CLASSES];
+	private static final AtomicLong[] kbWritten = new AtomicLong[CLASSES];
+	private static final AtomicLong[] deferred = new AtomicLong[CLASSES];
+
+	static {
+		for (int i = 0; i < CLASSES; i++) {
+			lastActive[i] = new AtomicLong(0);
+			kbRead[i] = new AtomicLong(0);
+			kbWritten[i] = new AtomicLong(0);
+			deferred[i] = new AtomicLong(0);
+		}
+	}
+
+	/**
+	 * Sets the class of the I/O made by the current thread.
+	 *
+	 * @return the previous class of the thread so it can be restored
+	 */
+	public static IOClass setIOClass(IOClass cls) {
+		IOClass pcls = current.get();
+		current.set(cls);
+		return pcls;
+	}
+
+	public static IOClass getIOClass() {
+		return current.get();
+	}
+
+	public static void acquireRead(long bytes) {
+		acquire(readVolume, readClass, kbRead, bytes);
+	}
+
+	public static void acquireWrite(long bytes) {
+		acquire(writeVolume, writeClass, kbWritten, bytes);
+	}
+
+	private static void acquire(RateLimiter vol, RateLimiter[] cls, AtomicLong[] stats, long bytes) {
+		int c = current.get().ordinal();
+		int kb = toKB(bytes);
+		markActive(c);
+		if (c > 0)
+			yieldTo(c);
+		stats[c].addAndGet(kb);
+		RateLimiter rl = cls[c];
+		if (rl != null)
+			rl.acquire(kb);
+		if (vol != null)
+			vol.acquire(kb);
+	}
+
+	/**
+	 * Called for every read and write of an open file. Marks foreground I/O as
+	 * active and charges the request to the limit of the file, if there is
+	 * one.
+	 */
+	public static void fileIO(String path, long bytes, boolean write) {
+		markActive(IOClass.FOREGROUND.ordinal());
+		if (fileLimits.isEmpty())
+			return;
+		RateLimiter[] rl = fileLimits.get(path);
+		if (rl == null)
+			return;
+		RateLimiter l = write ? rl[1] : rl[0];
+		if (l != null)
+			l.acquire(toKB(bytes));
+	}
+
+	private static void markActive(int c) {
+		long now = System.currentTimeMillis();
+		// avoid a write to the shared counter on every request
+		if (lastActive[c].get() != now)
+			lastActive[c].lazySet(now);
+	}
+
+	private static void yieldTo(int c) {
+		long start = System.currentTimeMillis();
+		boolean waited = false;
+		for (;;) {
+			long now = System.currentTimeMillis();
+			if (now - start >= MAX_DEFER)
+				return;
+			boolean busy = false;
+			for (int i = 0; i < c; i++) {
+				if (now - lastActive[i].get() < PRECEDENCE_WINDOW) {
+					busy = true;
+					break;
+				}
+			}
+			if (!busy)
+				return;
+			if (!waited) {
+				deferred[c].incrementAndGet();
+				waited = true;
+			}
+			try {
+				Thread.sleep(5);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private static int toKB(long bytes) {
+		if (bytes <= 1024)
+			return 1;
+		return (int) Math.min(Integer.MAX_VALUE, bytes / 1024);
+	}
+
+	private static RateLimiter create(double kbps) {
+		if (kbps <= 0)
+			return null;
+		return RateLimiter.create(kbps);
+	}
+
+	private static double getRate(RateLimiter rl) {
+		if (rl == null)
+			return 0;
+		return rl.getRate();
+	}
+
+	public static void setVolumeReadSpeed(double kbps) {
+		readVolume = create(kbps);
+	}
+
+	public static void setVolumeWriteSpeed(double kbps) {
+		writeVolume = create(kbps);
+	}
+
+	public static double getVolumeReadSpeed() {
+		return getRate(readVolume);
+	}
+
+	public static double getVolumeWriteSpeed() {
+		return getRate(writeVolume);
+	}
+
+	public static void setClassSpeed(IOClass cls, double readKbps, double writeKbps) {
+		readClass[cls.ordinal()] = create(readKbps);
+		writeClass[cls.ordinal()] = create(writeKbps);
+		SDFSLogger.getLog().info("set io class " + cls + " read speed to " + readKbps + " KB/s and write speed to "
+				+ writeKbps + " KB/s");
+	}
+
+	/**
+	 * Returns the read and write speeds of a class in KB/s.
+	 */
+	public static double[] getClassSpeed(IOClass cls) {
+		return new double[] { getRate(readClass[cls.ordinal()]), getRate(writeClass[cls.ordinal()]) };
+	}
+
+	/**
+	 * Returns the read and write speeds of a file in KB/s.
+	 */
+	public static double[] getFileSpeed(String path) {
+		RateLimiter[] rl = fileLimits.get(path);
+		if (rl == null)
+			return new double[] { 0, 0 };
+		return new double[] { getRate(rl[0]), getRate(rl[1]) };
+	}
+
+	/**
+	 * Sets the limits of a file. The file is released from any limit when both
+	 * speeds are 0.
+	 *
+	 * @param path
+	 *            the path of the file in the volume as used by its
+	 *            MetaDataDedupFile
+	 */
+	public static void setFileSpeed(String path, double readKbps, double writeKbps) {
+		if (readKbps <= 0 && writeKbps <= 0)
+			fileLimits.remove(path);
+		else
+			fileLimits.put(path, new RateLimiter[] { create(readKbps), create(writeKbps) });
+		SDFSLogger.getLog().info("set file " + path + " read speed to " + readKbps + " KB/s and write speed to "
+				+ writeKbps + " KB/s");
+	}
+
+	public static Element toXML() throws Exception {
+		Document doc = XMLUtils.getXMLDoc("io-scheduler");
+		Element root = doc.getDocumentElement();
+		root.setAttribute("read-speed", Double.toString(getRate(readVolume)));
+		root.setAttribute("write-speed", Double.toString(getRate(writeVolume)));
+		root.setAttribute("precedence-window", Long.toString(PRECEDENCE_WINDOW));
+		root.setAttribute("max-defer", Long.toString(MAX_DEFER));
+		for (IOClass cls : IOClass.values()) {
+			int c = cls.ordinal();
+			Element el = doc.createElement("io-class");
+			el.setAttribute("name", cls.name().toLowerCase());
+			el.setAttribute("priority", Integer.toString(c));
+			el.setAttribute("read-speed", Double.toString(getRate(readClass[c])));
+			el.setAttribute("write-speed", Double.toString(getRate(writeClass[c])));
+			el.setAttribute("kb-read", Long.toString(kbRead[c].get()));
+			el.setAttribute("kb-written", Long.toString(kbWritten[c].get()));
+			el.setAttribute("deferred", Long.toString(deferred[c].get()));
+			root.appendChild(el);
+		}
+		for (String path : fileLimits.keySet()) {
+			RateLimiter[] rl = fileLimits.get(path);
+			if (rl == null)
+				continue;
+			Element el = doc.createElement("file");
+			el.setAttribute("path", path);
+			el.setAttribute("read-speed", Double.toString(getRate(rl[0])));
+			el.setAttribute("write-speed", Double.toString(getRate(rl[1])));
+			root.appendChild(el);
+		}
+		return (Element) root.cloneNode(true);
+	}
+
+}
@@ -14,7 +14,8 @@ import org.opendedup.sdfs.io.DedupFile;
  *         This class initiates a thread that is used to monitor open files
  *         within the DedupFileStore. It will close them if left open and
  *         untouched for longer than the @see
- *         com.annesam.sdfs.Main#maxInactiveFileTime .
+ *         com.annesam.sdfs.Main#maxInactiveFileTime . Dirty buffers are
+ *         written out by the @see FlushScheduler .
  * 
  */
 public class OpenFileMonitor implements Runnable {
@@ -77,8 +78,6 @@ public class OpenFileMonitor implements Runnable {
 													+ df.getMetaFile()
 															.getPath(), e);
 								}
-							} else if (!Main.safeSync) {
-								df.sync(true);
 							}
 						} catch (NoSuchFileException e) {
 							try {
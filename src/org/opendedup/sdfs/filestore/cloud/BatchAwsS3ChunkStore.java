@@ -31,6 +31,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
@@ -39,6 +40,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.PosixFileAttributes;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
@@ -67,6 +69,7 @@ import static java.lang.Math.toIntExact;
 
 import org.apache.commons.compress.utils.IOUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.conn.ssl.TrustStrategy;
 import org.jets3t.service.utils.ServiceUtils;
@@ -75,6 +78,7 @@ import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
 import org.opendedup.sdfs.filestore.AbstractBatchStore;
 import org.opendedup.sdfs.filestore.AbstractChunkStore;
+import org.opendedup.sdfs.filestore.ArchiveLedger;
 import org.opendedup.sdfs.filestore.ChunkData;
 import org.opendedup.sdfs.servers.HCServiceProxy;
 import org.opendedup.util.CompressionUtils;
@@ -107,6 +111,10 @@ import com.amazonaws.services.s3.model.BucketLifecycleConfiguration;
 import com.amazonaws.services.s3.model.BucketLifecycleConfiguration.Transition;
 import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PartETag;
@@ -129,7 +137,10 @@ import com.google.common.io.BaseEncoding;
 import org.opendedup.collections.HashExistsException;
 import org.opendedup.fsync.SyncFSScheduler;
 import org.opendedup.sdfs.filestore.HashBlobArchive;
+import org.opendedup.sdfs.filestore.IOScheduler;
 import org.opendedup.sdfs.filestore.StringResult;
+import org.opendedup.sdfs.filestore.cloud.S3StreamPipeline.DigestingInputStream;
+import org.opendedup.sdfs.filestore.cloud.S3StreamPipeline.MultipartOutputStream;
 import org.opendedup.sdfs.filestore.cloud.utils.EncyptUtils;
 import org.opendedup.sdfs.filestore.cloud.utils.FileUtils;
 
@@ -151,6 +162,10 @@ public class BatchAwsS3ChunkStore implements AbstractChunkStore, AbstractBatchSt
 	private BasicAWSCredentials awsCredentials = null;
 	private HashMap<Long, Integer> deletes = new HashMap<Long, Integer>();
 	private HashSet<Long> refresh = new HashSet<Long>();
+	private ArchiveLedger ledger = null;
+	private long ledgerCheckpointInterval = 60 * 60 * 1000;
+	private long lastLedgerCheckpoint = System.currentTimeMillis();
+	private static final int MAX_DELETE_KEYS = 1000;
 	private String name;
 	private Region bucketLocation = null;
 	AmazonS3 s3Service = null;
@@ -248,6 +263,10 @@ public class BatchAwsS3ChunkStore implements AbstractChunkStore, AbstractBatchSt
 			SDFSLogger.getLog().info("############ Closing Bucket##################");
 			if (this.standAlone) {
 				HashBlobArchive.close();
+				if (this.ledger != null) {
+					this.checkpointLedger();
+					this.ledger.close();
+				}
 
 				ObjectMetadata omd = s3Service.getObjectMetadata(name, binm);
 				Map<String, String> md = null;
@@ -358,6 +377,10 @@ public class BatchAwsS3ChunkStore implements AbstractChunkStore, AbstractBatchSt
 
 	@Override
 	public void deleteChunk(byte[] hash, long start, int len) throws IOException {
+		if (this.ledger != null) {
+			this.ledger.dropReference(start);
+			return;
+		}
 		delLock.lock();
 		try {
 			if (this.deletes.containsKey(start)) {
@@ -507,6 +530,10 @@ public class BatchAwsS3ChunkStore implements AbstractChunkStore, AbstractBatchSt
 			if (config.hasAttribute("delete-unclaimed")) {
 				this.deleteUnclaimed = Boolean.parseBoolean(config.getAttribute("delete-unclaimed"));
 			}
+			if (config.hasAttribute("ledger-checkpoint-interval")) {
+				this.ledgerCheckpointInterval = Long.parseLong(config.getAttribute("ledger-checkpoint-interval"))
+						* 1000;
+			}
 			if (config.hasAttribute("glacier-archive-days")) {
 				this.glacierDays = Integer.parseInt(config.getAttribute("glacier-archive-days"));
 				if (this.glacierDays > 0) {
@@ -810,6 +837,7 @@ public class BatchAwsS3ChunkStore implements AbstractChunkStore, AbstractBatchSt
 				s3Service.deleteBucketLifecycleConfiguration(this.name);
 			}
 			if (this.standAlone) {
+				this.openLedger();
 				HashBlobArchive.init(this);
 				HashBlobArchive.setReadSpeed(rsp, false);
 				HashBlobArchive.setWriteSpeed(wsp, false);
@@ -1141,6 +1169,8 @@ public class BatchAwsS3ChunkStore implements AbstractChunkStore, AbstractBatchSt
 				s3Service.putObject(req);
 				if (this.simpleMD)
 					this.updateObject("keys/" + haName, md);
+				if (this.ledger != null)
+					this.ledger.addArchive(id, arc.uncompressedLength.get(), csz, arc.getSz());
 				return;
 			} catch (Throwable e1) {
 				// SDFSLogger.getLog().warn("unable to upload " + arc.getID() + " with id " +
@@ -1574,6 +1604,8 @@ public class BatchAwsS3ChunkStore implements AbstractChunkStore, AbstractBatchSt
 
 	@Override
 	public void run() {
+		// deletes and refreshes run behind everything else
+		IOScheduler.setIOClass(IOScheduler.IOClass.GC);
 		while (!closed) {
 			try {
 				Thread.sleep(60000);
@@ -1637,11 +1669,10 @@ public class BatchAwsS3ChunkStore implements AbstractChunkStore, AbstractBatchSt
 						}
 					}
 
-					if (this.deletes.size() > 0) {
+					if (this.ledger != null) {
+						this.collectArchives();
+					} else if (this.deletes.size() > 0) {
 						SDFSLogger.getLog().info("running garbage collection");
-						BlockingQueue<Runnable> worksQueue = new SynchronousQueue<Runnable>();
-						ThreadPoolExecutor executor = new ThreadPoolExecutor(1, Main.dseIOThreads, 10, TimeUnit.SECONDS,
-								worksQueue, new ThreadPoolExecutor.CallerRunsPolicy());
 						this.delLock.lock();
 						HashMap<Long, Integer> odel = null;
 						try {
@@ -1652,18 +1683,7 @@ public class BatchAwsS3ChunkStore implements AbstractChunkStore, AbstractBatchSt
 						} finally {
 							this.delLock.unlock();
 						}
-						Set<Long> iter = odel.keySet();
-						for (Long k : iter) {
-							DeleteObject obj = new DeleteObject();
-							obj.k = k;
-							obj.odel = odel;
-							obj.st = this;
-							executor.execute(obj);
-						}
-						executor.shutdown();
-						while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
-							SDFSLogger.getLog().debug("Awaiting deletion task completion of threads.");
-						}
+						this.runDeleteObjects(odel);
 						SDFSLogger.getLog().info("done running garbage collection");
 					}
 				}
@@ -1702,6 +1722,230 @@ public class BatchAwsS3ChunkStore implements AbstractChunkStore, AbstractBatchSt
 
 	}
 
+	private void runDeleteObjects(HashMap<Long, Integer> odel) throws InterruptedException {
+		BlockingQueue<Runnable> worksQueue = new SynchronousQueue<Runnable>();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, Main.dseIOThreads, 10, TimeUnit.SECONDS, worksQueue,
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		Set<Long> iter = odel.keySet();
+		for (Long k : iter) {
+			DeleteObject obj = new DeleteObject();
+			obj.k = k;
+			obj.odel = odel;
+			obj.st = this;
+			executor.execute(obj);
+		}
+		executor.shutdown();
+		while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+			SDFSLogger.getLog().debug("Awaiting deletion task completion of threads.");
+		}
+	}
+
+	private void openLedger() throws IOException {
+		File ld = new File(Main.hashDBStore + File.separator + "archiveledger");
+		this.ledger = new ArchiveLedger(ld);
+		if (this.ledger.isEmpty()) {
+			File f = new File(this.staged_sync_location, RandomGUID.getGuid() + ".ledger");
+			try {
+				this.downloadFile(this.getLedgerName(), f, "ledger");
+				this.ledger.load(f);
+			} catch (Exception e) {
+				SDFSLogger.getLog().debug("no archive ledger checkpoint found", e);
+			} finally {
+				f.delete();
+			}
+		}
+	}
+
+	private String getLedgerName() {
+		return "archive-ledger-" + Main.DSEID;
+	}
+
+	private void checkpointLedger() {
+		File f = new File(this.staged_sync_location, RandomGUID.getGuid() + ".ledger");
+		try {
+			this.ledger.checkpoint(f);
+			this.uploadFile(f, this.getLedgerName(), "ledger", new HashMap<String, String>(), false);
+			this.lastLedgerCheckpoint = System.currentTimeMillis();
+			SDFSLogger.getLog().debug("checkpointed archive ledger");
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn("unable to checkpoint archive ledger", e);
+		} finally {
+			f.delete();
+		}
+	}
+
+	/**
+	 * Applies dropped references to the archive ledger and removes the
+	 * archives that are no longer referenced using multi object deletes. The
+	 * claims of each archive are still checked against the hash index before
+	 * it is removed. Archives the ledger does not know about are checked
+	 * against their claims one at a time as before.
+	 */
+	private void collectArchives() throws IOException, InterruptedException {
+		if (this.ledger.getPendingArchives() > 0) {
+			SDFSLogger.getLog().info("running garbage collection");
+			ArrayList<ArchiveLedger.Entry> dead = new ArrayList<ArchiveLedger.Entry>();
+			HashMap<Long, Integer> unknown = new HashMap<Long, Integer>();
+			this.ledger.flush(dead, unknown);
+			int removed = 0;
+			if (this.deleteUnclaimed && dead.size() > 0)
+				removed = this.deleteArchives(dead);
+			if (unknown.size() > 0)
+				this.runDeleteObjects(unknown);
+			SDFSLogger.getLog().info("done running garbage collection removed [" + removed + "] of [" + dead.size()
+					+ "] unreferenced archives checked [" + unknown.size() + "] unknown archives");
+		}
+		if ((System.currentTimeMillis() - this.lastLedgerCheckpoint) > this.ledgerCheckpointInterval)
+			this.checkpointLedger();
+	}
+
+	private int deleteArchives(List<ArchiveLedger.Entry> entries) throws IOException {
+		ArrayList<KeyVersion> keys = new ArrayList<KeyVersion>();
+		HashMap<String, Long> owners = new HashMap<String, Long>();
+		Set<Long> failed = new HashSet<Long>();
+		ArrayList<ArchiveLedger.Entry> unclaimed = new ArrayList<ArchiveLedger.Entry>();
+		ArrayList<ArchiveLedger.Entry> dead = new ArrayList<ArchiveLedger.Entry>();
+		for (ArchiveLedger.Entry e : entries) {
+			int claims = 0;
+			try {
+				claims = this.getClaims(e.id);
+			} catch (Exception e1) {
+				SDFSLogger.getLog().warn("unable to check claims of archive " + e.id, e1);
+				this.ledger.dropReference(e.id);
+				continue;
+			}
+			if (claims > 0) {
+				// the ledger is behind the hash index, leave the archive to
+				// the claim checks of unknown archives
+				SDFSLogger.getLog().warn("archive " + e.id + " still has [" + claims
+						+ "] claimed objects, removing it from the archive ledger");
+				this.ledger.remove(e.id);
+			} else {
+				dead.add(e);
+			}
+		}
+		if (this.clustered) {
+			// remove this node's claims first, the archive itself is only
+			// removed once no other node claims it
+			for (ArchiveLedger.Entry e : dead) {
+				this.addDeleteKey(keys, owners, this.getClaimName(e.id), e.id);
+			}
+			failed.addAll(this.deleteKeys(keys, owners));
+			keys.clear();
+			for (ArchiveLedger.Entry e : dead) {
+				if (failed.contains(e.id))
+					continue;
+				String haName = EncyptUtils.encHashArchiveName(e.id, Main.chunkStoreEncryptionEnabled);
+				ObjectListing ol = s3Service.listObjects(this.getName(), "claims/keys/" + haName + "/");
+				if (ol.getObjectSummaries().size() == 0)
+					unclaimed.add(e);
+			}
+		} else {
+			unclaimed.addAll(dead);
+		}
+		for (ArchiveLedger.Entry e : unclaimed) {
+			String haName = EncyptUtils.encHashArchiveName(e.id, Main.chunkStoreEncryptionEnabled);
+			this.addDeleteKey(keys, owners, "blocks/" + haName + this.dExt, e.id);
+			this.addDeleteKey(keys, owners, "keys/" + haName, e.id);
+		}
+		failed.addAll(this.deleteKeys(keys, owners));
+		int removed = 0;
+		for (ArchiveLedger.Entry e : dead) {
+			if (failed.contains(e.id)) {
+				// dead entries are clamped so dropping another reference just
+				// queues the archive for the next run
+				this.ledger.dropReference(e.id);
+				continue;
+			}
+			this.ledger.remove(e.id);
+			HashBlobArchive.removeCache(e.id);
+			if (this.standAlone) {
+				HashBlobArchive.addToLength(-1 * e.bytes);
+				HashBlobArchive.addToCompressedLength(-1 * e.compressedBytes);
+				if (HashBlobArchive.getLength() < 0) {
+					HashBlobArchive.setLength(0);
+				}
+				if (HashBlobArchive.getCompressedLength() < 0) {
+					HashBlobArchive.setCompressedLength(0);
+				}
+			}
+			removed++;
+		}
+		return removed;
+	}
+
+	/*
+	 * Returns the number of objects of an archive that are still in the hash
+	 * index or 0 if the archive is gone.
+	 */
+	private int getClaims(long id) throws Exception {
+		String haName = EncyptUtils.encHashArchiveName(id, Main.chunkStoreEncryptionEnabled);
+		S3Object kobj = null;
+		try {
+			kobj = s3Service.getObject(this.name, "keys/" + haName);
+		} catch (AmazonS3Exception e) {
+			if (e.getStatusCode() == 404)
+				return 0;
+			throw e;
+		}
+		try {
+			return this.getClaimedObjects(kobj, id);
+		} finally {
+			try {
+				kobj.close();
+			} catch (Exception e) {
+			}
+		}
+	}
+
+	private void addDeleteKey(List<KeyVersion> keys, Map<String, Long> owners, String key, long id) {
+		keys.add(new KeyVersion(key));
+		owners.put(key, id);
+		if (this.simpleMD) {
+			keys.add(new KeyVersion(key + mdExt));
+			owners.put(key + mdExt, id);
+		}
+	}
+
+	/**
+	 * Deletes keys in batches of up to 1000 and returns the ids of the
+	 * archives that could not be removed completely.
+	 */
+	private Set<Long> deleteKeys(List<KeyVersion> keys, Map<String, Long> owners) {
+		HashSet<Long> failed = new HashSet<Long>();
+		for (int i = 0; i < keys.size(); i += MAX_DELETE_KEYS) {
+			List<KeyVersion> batch = new ArrayList<KeyVersion>(
+					keys.subList(i, Math.min(i + MAX_DELETE_KEYS, keys.size())));
+			try {
+				s3Service.deleteObjects(new DeleteObjectsRequest(this.name).withKeys(batch).withQuiet(true));
+			} catch (MultiObjectDeleteException e) {
+				for (DeleteError de : e.getErrors()) {
+					if (!"NoSuchKey".equals(de.getCode())) {
+						SDFSLogger.getLog().warn("unable to delete " + de.getKey() + " " + de.getMessage());
+						failed.add(owners.get(de.getKey()));
+					}
+				}
+			} catch (Exception e) {
+				// not every s3 compatible endpoint supports multi object deletes
+				SDFSLogger.getLog().debug("multi object delete failed, deleting objects one at a time", e);
+				for (KeyVersion kv : batch) {
+					try {
+						s3Service.deleteObject(this.name, kv.getKey());
+					} catch (AmazonS3Exception e1) {
+						if (e1.getStatusCode() != 404) {
+							SDFSLogger.getLog().warn("unable to delete " + kv.getKey(), e1);
+							failed.add(owners.get(kv.getKey()));
+						}
+					} catch (Exception e1) {
+						SDFSLogger.getLog().warn("unable to delete " + kv.getKey(), e1);
+						failed.add(owners.get(kv.getKey()));
+					}
+				}
+			}
+		}
+		return failed;
+	}
+
 	public Iterator<String> getNextObjectList(String prefix) {
 		// this.s3clientLock.readLock().lock();
 		try {
@@ -1916,149 +2160,79 @@ public class BatchAwsS3ChunkStore implements AbstractChunkStore, AbstractBatchSt
 				throw new IOException(e1);
 			}
 		} else {
-			String rnd = RandomGUID.getGuid();
-			File p = new File(this.staged_sync_location, rnd);
-			File z = new File(this.staged_sync_location, rnd + ".z");
-			File e = new File(this.staged_sync_location, rnd + ".e");
-			while (z.exists()) {
-				rnd = RandomGUID.getGuid();
-				p = new File(this.staged_sync_location, rnd);
-				z = new File(this.staged_sync_location, rnd + ".z");
-				e = new File(this.staged_sync_location, rnd + ".e");
-			}
+			ObjectMetadata md = new ObjectMetadata();
+			// metaData is reused if the upload is retried
+			HashMap<String, String> umd = new HashMap<String, String>(metaData);
+			umd.putAll(FileUtils.getFileMetaData(f, Main.chunkStoreEncryptionEnabled));
+			md.setUserMetadata(umd);
+			md.setContentType("binary/octet-stream");
+			byte[] ivb = null;
+			if (!disableComp) {
+				if (Main.chunkStoreEncryptionEnabled)
+					ivb = PassPhrase.getByteIV();
+				md.addUserMetadata("lz4compress", Boolean.toString(Main.compress));
+				md.addUserMetadata("encrypt", Boolean.toString(Main.chunkStoreEncryptionEnabled));
+				if (ivb != null)
+					md.addUserMetadata("ivspec", BaseEncoding.base64().encode(ivb));
+				md.addUserMetadata("lastmodified", Long.toString(f.lastModified()));
+			}
+			// the file is read once and compressed, encrypted and hashed on
+			// its way into the upload parts
+			MultipartOutputStream mout = new MultipartOutputStream(s3Service, this.name, pth, md,
+					S3StreamPipeline.PART_SIZE, this.md5sum || !this.simpleS3);
 			try {
-				byte[] ivb = null;
-				if (disableComp) {
-					p = f;
-				} else {
-					BufferedInputStream is = new BufferedInputStream(new FileInputStream(f));
-					BufferedOutputStream os = new BufferedOutputStream(new FileOutputStream(p));
-					IOUtils.copy(is, os);
-					os.flush();
-					os.close();
-					is.close();
-					if (Main.compress) {
-						CompressionUtils.compressFile(p, z);
-						p.delete();
-						p = z;
-					}
-
-					if (Main.chunkStoreEncryptionEnabled) {
-						try {
-							ivb = PassPhrase.getByteIV();
-							EncryptUtils.encryptFile(p, e, new IvParameterSpec(ivb));
-
-						} catch (Exception e1) {
-							throw new IOException(e1);
-						}
-						p.delete();
-						p = e;
-					}
-				}
-				String objName = pth;
-				ObjectMetadata md = new ObjectMetadata();
-				Map<String, String> umd = FileUtils.getFileMetaData(f, Main.chunkStoreEncryptionEnabled);
-				metaData.putAll(umd);
-				md.setUserMetadata(metaData);
+				OutputStream out = mout;
 				if (!disableComp) {
-					md.addUserMetadata("lz4compress", Boolean.toString(Main.compress));
-					md.addUserMetadata("encrypt", Boolean.toString(Main.chunkStoreEncryptionEnabled));
-					if (ivb != null)
-						md.addUserMetadata("ivspec", BaseEncoding.base64().encode(ivb));
-					md.addUserMetadata("lastmodified", Long.toString(f.lastModified()));
+					if (Main.chunkStoreEncryptionEnabled)
+						out = EncryptUtils.encryptStream(out, new IvParameterSpec(ivb));
+					if (Main.compress)
+						out = CompressionUtils.compressStream(out);
 				}
-				if (simpleS3) {
-					md.setContentType("binary/octet-stream");
-					in = new BufferedInputStream(new FileInputStream(p), 32768);
-					try {
-						if (md5sum) {
-							byte[] md5Hash = ServiceUtils.computeMD5Hash(in);
-							in.close();
-							String mds = BaseEncoding.base64().encode(md5Hash);
-							md.setContentMD5(mds);
-							md.addUserMetadata("md5sum", mds);
-						}
-
-					} catch (NoSuchAlgorithmException e2) {
-						SDFSLogger.getLog().error("while hashing", e2);
-						throw new IOException(e2);
+				in = new BufferedInputStream(new FileInputStream(f), 32768);
+				IOUtils.copy(in, out);
+				out.close();
+				if (mout.isMultipart() && (this.md5sum || !this.simpleS3)) {
+					md.addUserMetadata("md5sum", mout.getMD5());
+					if (!this.simpleMD) {
+						// the metadata of a multipart upload is sent before
+						// its digest is known, so it is copied in place with
+						// the digest
+						CopyObjectRequest creq = new CopyObjectRequest(this.name, pth, this.name, pth)
+								.withNewObjectMetadata(md);
+						tx.copy(creq).waitForCopyResult();
 					}
-
-					in = new FileInputStream(p);
-					md.setContentLength(p.length());
+				}
+				if (this.isClustered())
+					this.checkoutFile(pth);
+				if (this.simpleMD)
+					this.updateObject(pth, md);
+				SDFSLogger.getLog().debug("uploaded=" + f.getPath() + " lm=" + md.getUserMetadata().get("lastmodified")
+						+ " sz=" + mout.getLength());
+			} catch (AmazonS3Exception e1) {
+				mout.abort();
+				if (e1.getStatusCode() == 409) {
 					try {
-						PutObjectRequest req = new PutObjectRequest(this.name, objName, p).withMetadata(md);
-						this.multiPartUpload(req, p);
-						if (this.isClustered())
-							this.checkoutFile(pth);
+						s3Service.deleteObject(this.name, pth);
 						if (this.simpleMD)
-							this.updateObject(pth, md);
-						SDFSLogger.getLog()
-								.debug("uploaded=" + f.getPath() + " lm=" + md.getUserMetadata().get("lastmodified"));
-					} catch (AmazonS3Exception e1) {
-						if (e1.getStatusCode() == 409) {
-							try {
-								s3Service.deleteObject(this.name, objName);
-								if (this.simpleMD)
-									s3Service.deleteObject(this.name, objName + mdExt);
-								this.uploadFile(f, to, pp, metaData, disableComp);
-								return;
-							} catch (Exception e2) {
-								throw new IOException(e2);
-							}
-						} else {
-
-							throw new IOException(e1);
-						}
-					} catch (Exception e1) {
-						throw new IOException(e1);
+							s3Service.deleteObject(this.name, pth + mdExt);
+						this.uploadFile(f, to, pp, metaData, disableComp);
+						return;
+					} catch (Exception e2) {
+						throw new IOException(e2);
 					}
 				} else {
-					try {
-						md.setContentType("binary/octet-stream");
-						in = new BufferedInputStream(new FileInputStream(p), 32768);
-						byte[] md5Hash = ServiceUtils.computeMD5Hash(in);
-						in.close();
-						String mds = BaseEncoding.base64().encode(md5Hash);
-						md.setContentMD5(mds);
-						md.addUserMetadata("md5sum", mds);
 
-						md.setContentLength(p.length());
-						PutObjectRequest req = new PutObjectRequest(this.name, objName, in, md);
-						multiPartUpload(req, p);
-						if (this.isClustered())
-							this.checkoutFile(pth);
-					} catch (AmazonS3Exception e1) {
-						if (e1.getStatusCode() == 409) {
-							try {
-								s3Service.deleteObject(this.name, objName);
-								if (this.simpleMD)
-									s3Service.deleteObject(this.name, objName + mdExt);
-								this.uploadFile(f, to, pp, metaData, disableComp);
-								return;
-							} catch (Exception e2) {
-								throw new IOException(e2);
-							}
-						} else {
-
-							throw new IOException(e1);
-						}
-					} catch (Exception e1) {
-						// SDFSLogger.getLog().error("error uploading", e1);
-						throw new IOException(e1);
-					}
+					throw new IOException(e1);
 				}
+			} catch (IOException e1) {
+				mout.abort();
+				throw e1;
+			} catch (Exception e1) {
+				mout.abort();
+				throw new IOException(e1);
 			} finally {
-				try {
-					if (in != null)
-						in.close();
-				} finally {
-					if (!disableComp) {
-						p.delete();
-						z.delete();
-						e.delete();
-					}
-				}
+				if (in != null)
+					in.close();
 			}
 		}
 
@@ -2123,51 +2297,12 @@ public class BatchAwsS3ChunkStore implements AbstractChunkStore, AbstractBatchSt
 		// this.s3clientLock.readLock().lock();
 		while (nm.startsWith(File.separator))
 			nm = nm.substring(1);
-
-		String rnd = RandomGUID.getGuid();
-		File p = new File(this.staged_sync_location, rnd);
-		File z = new File(this.staged_sync_location, rnd + ".uz");
-		File e = new File(this.staged_sync_location, rnd + ".de");
-		while (z.exists()) {
-			rnd = RandomGUID.getGuid();
-			p = new File(this.staged_sync_location, rnd);
-			z = new File(this.staged_sync_location, rnd + ".uz");
-			e = new File(this.staged_sync_location, rnd + ".de");
-		}
-		if (nm.startsWith(File.separator))
-			nm = nm.substring(1);
 		String haName = EncyptUtils.encString(nm, Main.chunkStoreEncryptionEnabled);
 		// haName = haName.replaceAll("\\", "/");
-		Map<String, String> mp = null;
-		byte[] shash = null;
+		String key = pp + "/" + haName;
 		try {
-			if (this.simpleS3) {
-				S3Object obj = null;
-				SDFSLogger.getLog().info("downloading " + pp + "/" + haName);
-				obj = s3Service.getObject(this.name, pp + "/" + haName);
-				BufferedInputStream in = new BufferedInputStream(obj.getObjectContent());
-				BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(p));
-				IOUtils.copy(in, out);
-				out.flush();
-				out.close();
-				in.close();
-				mp = this.getUserMetaData(pp + "/" + haName);
-				SDFSLogger.getLog().debug("mp sz=" + mp.size());
-				try {
-					if (obj != null)
-						obj.close();
-				} catch (Exception e1) {
-				}
-			} else {
-				SDFSLogger.getLog().info("downloading " + pp + "/" + haName);
-				this.multiPartDownload(pp + "/" + haName, p);
-				mp = this.getUserMetaData(pp + "/" + haName);
-				if (md5sum && mp.containsKey("md5sum")) {
-					shash = BaseEncoding.base64().decode(mp.get("md5sum"));
-				}
-			}
-			if (shash != null && !FileUtils.fileValid(p, shash))
-				throw new IOException("file " + p.getPath() + " is corrupt");
+			SDFSLogger.getLog().info("downloading " + key);
+			Map<String, String> mp = this.getUserMetaData(key);
 			boolean encrypt = false;
 			boolean lz4compress = false;
 			if (mp.containsKey("encrypt")) {
@@ -2194,47 +2329,80 @@ public class BatchAwsS3ChunkStore implements AbstractChunkStore, AbstractBatchSt
 			} else if (mp.containsKey("directory")) {
 				to.mkdirs();
 				FileUtils.setFileMetaData(to, mp, encrypt);
-				p.delete();
 			} else {
-				if (encrypt) {
-					if (ivb != null) {
-						EncryptUtils.decryptFile(p, e, new IvParameterSpec(ivb));
-					} else {
-						EncryptUtils.decryptFile(p, e);
-					}
-					p.delete();
-					p = e;
-				}
-				if (lz4compress) {
-					CompressionUtils.decompressFile(p, z);
-					p.delete();
-					p = z;
-				}
-
 				File parent = to.getParentFile();
 				if (!parent.exists())
 					parent.mkdirs();
-				BufferedInputStream is = new BufferedInputStream(new FileInputStream(p));
-				BufferedOutputStream os = new BufferedOutputStream(new FileOutputStream(to));
-				IOUtils.copy(is, os);
-				os.flush();
-				os.close();
-				is.close();
+				try {
+					this.streamDownload(key, to, mp, encrypt, lz4compress, ivb, false);
+				} catch (GeneralSecurityException | IOException e1) {
+					if (!encrypt)
+						throw e1;
+					// objects written before the encryption key was set
+					SDFSLogger.getLog().debug("retrying " + key + " with the old key", e1);
+					this.streamDownload(key, to, mp, encrypt, lz4compress, ivb, true);
+				}
 				FileUtils.setFileMetaData(to, mp, encrypt);
 				SDFSLogger.getLog().debug("updated " + to + " sz=" + to.length());
 			}
 
 		} catch (Exception e1) {
 			throw new IOException(e1);
-		} finally {
-
-			p.delete();
-			z.delete();
-			e.delete();
 		}
 
 	}
 
+	/**
+	 * Reads an object once, checking its md5 while it is decrypted and
+	 * decompressed straight into the destination file.
+	 */
+	private void streamDownload(String key, File to, Map<String, String> mp, boolean encrypt, boolean lz4compress,
+			byte[] ivb, boolean useOldKey) throws IOException, GeneralSecurityException {
+		long partSize = 0;
+		if (mp.containsKey("partsize"))
+			partSize = Long.parseLong(mp.get("partsize"));
+		S3Object obj = s3Service.getObject(this.name, key);
+		OutputStream out = null;
+		boolean valid = false;
+		try {
+			DigestingInputStream din = new DigestingInputStream(obj.getObjectContent(), partSize);
+			InputStream in = din;
+			if (encrypt) {
+				IvParameterSpec spec = null;
+				if (ivb != null)
+					spec = new IvParameterSpec(ivb);
+				in = EncryptUtils.decryptStream(in, spec, useOldKey);
+			}
+			if (lz4compress)
+				in = CompressionUtils.decompressStream(in);
+			out = new BufferedOutputStream(new FileOutputStream(to));
+			IOUtils.copy(in, out);
+			// drain anything left behind by the cipher so the digest covers
+			// the whole object
+			IOUtils.copy(din, new NullOutputStream());
+			out.close();
+			out = null;
+			String etag = obj.getObjectMetadata().getETag();
+			if (mp.containsKey("md5sum")) {
+				if (!din.getMD5().equals(mp.get("md5sum")))
+					throw new IOException("file " + key + " is corrupt");
+			} else if (partSize > 0 && etag != null && etag.contains("-")) {
+				if (!din.etagMatches(etag))
+					throw new IOException("file " + key + " is corrupt");
+			}
+			valid = true;
+		} finally {
+			if (out != null)
+				out.close();
+			try {
+				obj.close();
+			} catch (Exception e1) {
+			}
+			if (!valid)
+				to.delete();
+		}
+	}
+
 	@Override
 	public void deleteFile(String nm, String pp) throws IOException {
 		// this.s3clientLock.readLock().lock();
@@ -9,6 +9,7 @@ import java.nio.file.attribute.PosixFileAttributes;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
@@ -65,6 +66,7 @@ public class FileReplicationService {
 	private transient BlockingQueue<Runnable> worksQueue = new ArrayBlockingQueue<Runnable>(2);
 	private transient ThreadPoolExecutor executor = null;
 	public static FileReplicationService service = null;
+	private SyncManifest manifest = null;
 
 	private static EventBus eventUploadBus = new EventBus();
 
@@ -82,9 +84,110 @@ public class FileReplicationService {
 			SDFSFileSystem.registerListener(this);
 		SyncFS.registerListener(this);
 		HCServiceProxy.registerListener(this);
+		LongByteArrayMap.trackDirtyPages = true;
+		try {
+			this.manifest = new SyncManifest(
+					new File(new File(Main.dedupDBStore).getParent() + File.separator + "syncmanifest"));
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn("unable to open sync manifest, resyncs will upload every file", e);
+		}
 		service = this;
 	}
 
+	/**
+	 * Returns the manifest of uploaded objects or null if there is none.
+	 */
+	public static SyncManifest getManifest() {
+		if (service == null)
+			return null;
+		return service.manifest;
+	}
+
+	private void recordUpload(String key, File f, byte[] digest) {
+		if (manifest == null)
+			return;
+		try {
+			manifest.uploaded(key, f, digest);
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn("unable to record upload of " + key + " in sync manifest", e);
+		}
+	}
+
+	private void recordDeleted(String key) {
+		if (manifest == null)
+			return;
+		try {
+			manifest.deleted(key);
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn("unable to record delete of " + key + " in sync manifest", e);
+		}
+	}
+
+	private void recordDelete(String key) {
+		if (manifest == null)
+			return;
+		try {
+			manifest.remove(key);
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn("unable to remove " + key + " from sync manifest", e);
+		}
+	}
+
+	/**
+	 * Deletes an object recorded in the sync manifest from the cloud and from
+	 * the manifest.
+	 */
+	public static void deleteObject(String key) throws IOException {
+		File f = SyncManifest.getLocalFile(key);
+		if (key.startsWith("files")) {
+			service.deleteFile(f);
+		} else {
+			String dbn = f.getPath().substring(sl);
+			service.sync.deleteFile(dbn, "ddb");
+			MapSegmentSync.delete(service.sync, dbn, new File(Main.dedupDBStore));
+			service.recordDelete(key);
+		}
+	}
+
+	/**
+	 * Downloads the copy of the sync manifest uploaded by the last resync of
+	 * this volume and returns the objects uploaded by someone else since.
+	 * Returns an empty set if there is no copy.
+	 */
+	public static Set<String> getRemoteConflicts() throws IOException {
+		if (service == null || service.manifest == null)
+			return new HashSet<String>();
+		File tmp = File.createTempFile("syncmanifest", ".dl", new File(Main.dedupDBStore).getParentFile());
+		try {
+			try {
+				service.sync.downloadFile(Long.toString(Main.DSEID), tmp, "syncmanifest");
+			} catch (Exception e) {
+				SDFSLogger.getLog().info("no sync manifest found in the cloud for " + Main.DSEID);
+				return new HashSet<String>();
+			}
+			return service.manifest.getConflicts(tmp);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Uploads a copy of the sync manifest for the next resync to compare
+	 * with.
+	 */
+	public static void uploadManifest() throws IOException {
+		if (service == null || service.manifest == null)
+			return;
+		File tmp = File.createTempFile("syncmanifest", ".ul", new File(Main.dedupDBStore).getParentFile());
+		try {
+			service.manifest.write(tmp);
+			service.sync.uploadFile(tmp, Long.toString(Main.DSEID), "syncmanifest", new HashMap<String, String>(),
+					false);
+		} finally {
+			tmp.delete();
+		}
+	}
+
 	private MetaDataDedupFile downloadMetaFile(String fname, File to) throws Exception {
 		int tries = 0;
 		for (;;) {
@@ -119,7 +222,7 @@ public class FileReplicationService {
 			f.delete();
 			try {
 
-				sync.downloadFile(dlf, f, "ddb");
+				MapSegmentSync.download(sync, dlf, f);
 				SDFSLogger.getLog().debug("downloaded " + f.getPath() + " sz=" + f.length());
 
 				return f;
@@ -253,6 +356,7 @@ public class FileReplicationService {
 
 				}
 			}
+			this.recordDeleted(SyncManifest.metaKey(f.getPath()));
 			int tries = 0;
 			boolean done = false;
 			while (!done) {
@@ -263,6 +367,7 @@ public class FileReplicationService {
 					if (!isSymlink && f.isDirectory())
 						fn = fn + DM;
 					this.sync.deleteFile(fn, "files");
+					this.recordDelete(SyncManifest.metaKey(f.getPath()));
 					done = true;
 				} catch (Exception e) {
 					if (tries > maxTries)
@@ -299,8 +404,12 @@ public class FileReplicationService {
 							if (evt.mf.writeLock.tryLock(5, TimeUnit.SECONDS)) {
 								try {
 									SDFSLogger.getLog().debug("writem=" + evt.mf.getPath() + " len=" + evt.mf.length());
-									this.sync.uploadFile(new File(evt.mf.getPath()), evt.mf.getPath().substring(pl),
+									File f = new File(evt.mf.getPath());
+									this.sync.uploadFile(f, evt.mf.getPath().substring(pl),
 											"files", new HashMap<String, String>(), false);
+									if (manifest != null && f.isFile())
+										this.recordUpload(SyncManifest.metaKey(f.getPath()), f,
+												SyncManifest.digest(f));
 								} finally {
 									evt.mf.writeLock.unlock();
 								}
@@ -388,18 +497,42 @@ public class FileReplicationService {
 					try {
 						if (evt.sf.isDirty()) {
 							SDFSLogger.getLog().debug("writed " + evt.sf.getDatabasePath().substring(sl));
-							this.sync.uploadFile(new File(evt.sf.getDatabasePath()),
-									evt.sf.getDatabasePath().substring(sl), "ddb", new HashMap<String, String>(),
-									false);
+							String dbn = evt.sf.getDatabasePath().substring(sl);
+							List<Long> pages = null;
+							if (evt.sf.bdb instanceof LongByteArrayMap) {
+								LongByteArrayMap m = (LongByteArrayMap) evt.sf.bdb;
+								pages = MapSegmentSync.upload(this.sync, m, dbn);
+								if (pages == null)
+									MapSegmentSync.uploadBase(this.sync, new File(evt.sf.getDatabasePath()), m, dbn);
+							} else {
+								this.sync.uploadFile(new File(evt.sf.getDatabasePath()), dbn, "ddb",
+										new HashMap<String, String>(), false);
+							}
+							this.recordUpload(SyncManifest.ddbKey(evt.sf.getDatabasePath()),
+									new File(evt.sf.getDatabasePath()), null);
 							if (Main.REFRESH_BLOBS) {
-								evt.sf.bdb.iterInit();
-								SparseDataChunk ck = evt.sf.bdb.nextValue(false);
-								while (ck != null) {
-									Collection<HashLocPair> pr = ck.getFingers().values();
-									for (HashLocPair p : pr) {
-										this.sync.addRefresh(Longs.fromByteArray(p.hashloc));
+								if (pages == null) {
+									evt.sf.bdb.iterInit();
+									SparseDataChunk ck = evt.sf.bdb.nextValue(false);
+									while (ck != null) {
+										Collection<HashLocPair> pr = ck.getFingers().values();
+										for (HashLocPair p : pr) {
+											this.sync.addRefresh(Longs.fromByteArray(p.hashloc));
+										}
+										ck = evt.sf.bdb.nextValue(false);
+									}
+								} else {
+									LongByteArrayMap m = (LongByteArrayMap) evt.sf.bdb;
+									for (Long pg : pages) {
+										for (Long k : m.getPageKeys(pg)) {
+											SparseDataChunk ck = m.get(k);
+											if (ck == null)
+												continue;
+											for (HashLocPair p : ck.getFingers().values()) {
+												this.sync.addRefresh(Longs.fromByteArray(p.hashloc));
+											}
+										}
 									}
-									ck = evt.sf.bdb.nextValue(false);
 								}
 							}
 							eventUploadBus.post(evt);
@@ -437,9 +570,9 @@ public class FileReplicationService {
 					try {
 						if (SDFSLogger.isDebug())
 							SDFSLogger.getLog().debug("writed " + evt.sf.getPath());
-						this.sync.uploadFile(evt.sf, evt.sf.getPath().substring(sl), "ddb",
-								new HashMap<String, String>(), false);
-
+						MapSegmentSync.uploadBase(this.sync, evt.sf, null, evt.sf.getPath().substring(sl));
+						this.recordUpload(SyncManifest.ddbKey(evt.sf.getPath()), evt.sf, evt.digest);
+						evt.synced = true;
 						done = true;
 					} catch (Exception e) {
 						if (tries > maxTries)
@@ -473,8 +606,11 @@ public class FileReplicationService {
 				try {
 					if (SDFSLogger.isDebug())
 						SDFSLogger.getLog().debug("writem " + evt.mf.getPath());
-					this.sync.uploadFile(new File(evt.mf.getPath()), evt.mf.getPath().substring(pl), "files",
+					File f = new File(evt.mf.getPath());
+					this.sync.uploadFile(f, evt.mf.getPath().substring(pl), "files",
 							new HashMap<String, String>(), false);
+					this.recordUpload(SyncManifest.metaKey(f.getPath()), f, evt.digest);
+					evt.synced = true;
 					done = true;
 				} catch (Exception e) {
 					if (tries > maxTries)
@@ -499,6 +635,7 @@ public class FileReplicationService {
 		try {
 			ReentrantLock l = this.getLock(evt.sfp);
 			l.lock();
+			this.recordDeleted(SyncManifest.ddbKey(evt.sfp));
 			int tries = 0;
 			boolean done = false;
 			while (!done) {
@@ -507,6 +644,8 @@ public class FileReplicationService {
 						SDFSLogger.getLog().debug("dels " + evt.sfp);
 					SDFSLogger.getLog().debug("dels " + evt.sfp);
 					this.sync.deleteFile(evt.sfp.substring(sl), "ddb");
+					MapSegmentSync.delete(this.sync, evt.sfp.substring(sl), new File(Main.dedupDBStore));
+					this.recordDelete(SyncManifest.ddbKey(evt.sfp));
 					done = true;
 					eventUploadBus.post(evt);
 				} catch (Exception e) {
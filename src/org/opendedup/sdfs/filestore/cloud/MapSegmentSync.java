@@ -0,0 +1,297 @@
+package org.opendedup.sdfs.filestore.cloud;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+
+import org.opendedup.collections.LongByteArrayMap;
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.util.RandomGUID;
+
+/**
+ *
+ * Replicates file maps as a base object plus a chain of delta segments. Each
+ * delta segment holds the pages of the map that changed since the previous
+ * upload. A manifest object named [map].segments records the generation of
+ * the base object, its name and the number of delta segments that apply to
+ * it. Once the chain grows past @see Main#mapMaxDeltaSegments or its size
+ * reaches half of the base object the map is uploaded in full as a new
+ * generation named [map].[generation]. The manifest is switched to it before
+ * the old base and segments are removed, so a failed upload leaves the old
+ * generation whole.
+ *
+ * Volumes that have no manifest, or a manifest without a base name, are
+ * treated as a base object named [map].
+ *
+ */
+public class MapSegmentSync {
+	private static final int DELTA_MAGIC = 0x53444d44;
+	private static final String GEN = "generation";
+	private static final String SEGS = "segments";
+	private static final String DSZ = "delta-size";
+	private static final String BSZ = "base-size";
+	private static final String BASE = "base";
+
+	/**
+	 * Uploads the changes to a map.
+	 *
+	 * @param sync
+	 *            the cloud file sync to upload to
+	 * @param map
+	 *            the open map to upload
+	 * @param name
+	 *            the name of the base object relative to the ddb folder
+	 * @return the pages that were uploaded or null if the whole map was
+	 *         uploaded
+	 * @throws Exception
+	 */
+	public static List<Long> upload(AbstractCloudFileSync sync, LongByteArrayMap map, String name) throws Exception {
+		File sf = LongByteArrayMap.getCloudStateFile(map.getFilePath());
+		Properties st = readState(sf);
+		if (st == null)
+			return null;
+		int segs = Integer.parseInt(st.getProperty(SEGS));
+		long dsz = Long.parseLong(st.getProperty(DSZ));
+		long bsz = Long.parseLong(st.getProperty(BSZ));
+		if (segs >= Main.mapMaxDeltaSegments || dsz >= (bsz / 2))
+			return null;
+		List<Long> pages = map.drainDirtyPages();
+		if (pages.size() == 0)
+			return pages;
+		File df = new File(map.getFilePath() + "." + RandomGUID.getGuid() + ".delta");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(df)));
+			try {
+				out.writeInt(DELTA_MAGIC);
+				out.writeLong(map.getMapFileLength());
+				out.writeInt(pages.size());
+				for (Long p : pages) {
+					byte[] b = map.readPage(p);
+					out.writeLong(p * LongByteArrayMap.MAP_PAGE_SIZE);
+					out.writeInt(b.length);
+					out.write(b);
+				}
+			} finally {
+				out.close();
+			}
+			String gen = st.getProperty(GEN);
+			segs++;
+			sync.uploadFile(df, segmentName(name, gen, segs), "ddb", new HashMap<String, String>(), false);
+			st.setProperty(SEGS, Integer.toString(segs));
+			st.setProperty(DSZ, Long.toString(dsz + df.length()));
+			writeManifest(sync, st, sf, name);
+			map.commitDirtyPages();
+			SDFSLogger.getLog().debug("uploaded " + pages.size() + " pages for " + name + " as segment " + segs);
+			return pages;
+		} catch (Exception e) {
+			map.redirtyPages(pages);
+			throw e;
+		} finally {
+			df.delete();
+		}
+	}
+
+	/**
+	 * Uploads a map in full, starting a new generation and removing the delta
+	 * segments of the previous one.
+	 */
+	public static void uploadBase(AbstractCloudFileSync sync, File mapFile, LongByteArrayMap map, String name)
+			throws Exception {
+		List<Long> pages = null;
+		if (map != null)
+			pages = map.drainDirtyPages();
+		try {
+			File sf = LongByteArrayMap.getCloudStateFile(mapFile.getPath());
+			Properties ost = readState(sf);
+			// without local state the generation in the cloud is not known,
+			// so a new one must not reuse its names
+			long gen = System.currentTimeMillis();
+			if (ost != null)
+				gen = Long.parseLong(ost.getProperty(GEN)) + 1;
+			String base = name + "." + gen;
+			sync.uploadFile(mapFile, base, "ddb", new HashMap<String, String>(), false);
+			Properties st = new Properties();
+			st.setProperty(GEN, Long.toString(gen));
+			st.setProperty(BASE, base);
+			st.setProperty(SEGS, "0");
+			st.setProperty(DSZ, "0");
+			st.setProperty(BSZ, Long.toString(mapFile.length()));
+			writeManifest(sync, st, sf, name);
+			if (map != null)
+				map.commitDirtyPages();
+			if (ost != null) {
+				deleteSegments(sync, name, ost);
+				if (ost.getProperty(BASE) == null) {
+					try {
+						sync.deleteFile(name, "ddb");
+					} catch (Exception e) {
+						SDFSLogger.getLog().warn("unable to delete base " + name, e);
+					}
+				} else {
+					deleteBase(sync, name, ost);
+				}
+			}
+		} catch (Exception e) {
+			if (pages != null)
+				map.redirtyPages(pages);
+			throw e;
+		}
+	}
+
+	/**
+	 * Downloads the base object of a map and applies its delta segments.
+	 */
+	public static void download(AbstractCloudFileSync sync, String name, File to) throws Exception {
+		Properties st = downloadManifest(sync, name, to.getParentFile());
+		sync.downloadFile(st == null ? name : st.getProperty(BASE, name), to, "ddb");
+		File sf = LongByteArrayMap.getCloudStateFile(to.getPath());
+		LongByteArrayMap.getDirtyLogFile(to.getPath()).delete();
+		if (st == null) {
+			sf.delete();
+			return;
+		}
+		String gen = st.getProperty(GEN);
+		int segs = Integer.parseInt(st.getProperty(SEGS));
+		for (int i = 1; i <= segs; i++) {
+			File df = new File(to.getPath() + "." + RandomGUID.getGuid() + ".delta");
+			try {
+				sync.downloadFile(segmentName(name, gen, i), df, "ddb");
+				applySegment(df, to);
+			} finally {
+				df.delete();
+			}
+		}
+		writeState(st, sf);
+		SDFSLogger.getLog().debug("applied " + segs + " segments to " + to.getPath());
+	}
+
+	/**
+	 * Removes the manifest, base and delta segments of a map.
+	 */
+	public static void delete(AbstractCloudFileSync sync, String name, File tmpDir) {
+		try {
+			Properties st = downloadManifest(sync, name, tmpDir);
+			if (st != null) {
+				deleteSegments(sync, name, st);
+				deleteBase(sync, name, st);
+				sync.deleteFile(name + ".segments", "ddb");
+			}
+		} catch (Exception e) {
+			SDFSLogger.getLog().debug("unable to delete segments for " + name, e);
+		}
+	}
+
+	private static void applySegment(File df, File to) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(df)));
+		RandomAccessFile rf = new RandomAccessFile(to, "rw");
+		try {
+			if (in.readInt() != DELTA_MAGIC)
+				throw new IOException("invalid map segment " + df.getPath());
+			long len = in.readLong();
+			int pages = in.readInt();
+			for (int i = 0; i < pages; i++) {
+				long pos = in.readLong();
+				byte[] b = new byte[in.readInt()];
+				in.readFully(b);
+				rf.seek(pos);
+				rf.write(b);
+			}
+			rf.setLength(len);
+		} finally {
+			in.close();
+			rf.close();
+		}
+	}
+
+	private static void deleteSegments(AbstractCloudFileSync sync, String name, Properties st) {
+		String gen = st.getProperty(GEN);
+		int segs = Integer.parseInt(st.getProperty(SEGS));
+		for (int i = 1; i <= segs; i++) {
+			try {
+				sync.deleteFile(segmentName(name, gen, i), "ddb");
+			} catch (Exception e) {
+				SDFSLogger.getLog().warn("unable to delete segment " + segmentName(name, gen, i), e);
+			}
+		}
+	}
+
+	/*
+	 * Removes the base object of a generation. The base of a manifest without
+	 * a base name is the object named name, which is left to the caller.
+	 */
+	private static void deleteBase(AbstractCloudFileSync sync, String name, Properties st) {
+		String base = st.getProperty(BASE);
+		if (base == null || base.equals(name))
+			return;
+		try {
+			sync.deleteFile(base, "ddb");
+		} catch (Exception e) {
+			SDFSLogger.getLog().warn("unable to delete base " + base, e);
+		}
+	}
+
+	private static String segmentName(String name, String gen, int seg) {
+		return name + ".d" + gen + "-" + seg;
+	}
+
+	private static Properties downloadManifest(AbstractCloudFileSync sync, String name, File tmpDir) {
+		File mf = new File(tmpDir, RandomGUID.getGuid() + ".segments");
+		try {
+			sync.downloadFile(name + ".segments", mf, "ddb");
+			return readState(mf);
+		} catch (Exception e) {
+			SDFSLogger.getLog().debug("no segments found for " + name);
+			return null;
+		} finally {
+			mf.delete();
+		}
+	}
+
+	private static void writeManifest(AbstractCloudFileSync sync, Properties st, File sf, String name)
+			throws Exception {
+		File tf = new File(sf.getPath() + ".tmp");
+		try {
+			writeState(st, tf);
+			sync.uploadFile(tf, name + ".segments", "ddb", new HashMap<String, String>(), false);
+			writeState(st, sf);
+		} finally {
+			tf.delete();
+		}
+	}
+
+	private static Properties readState(File sf) throws IOException {
+		if (!sf.exists())
+			return null;
+		Properties st = new Properties();
+		FileInputStream in = new FileInputStream(sf);
+		try {
+			st.load(in);
+		} finally {
+			in.close();
+		}
+		if (st.getProperty(GEN) == null || st.getProperty(SEGS) == null)
+			return null;
+		return st;
+	}
+
+	private static void writeState(Properties st, File sf) throws IOException {
+		FileOutputStream out = new FileOutputStream(sf);
+		try {
+			st.store(out, "map segments");
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,273 @@
+package org.opendedup.sdfs.filestore.cloud;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opendedup.logging.SDFSLogger;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.google.common.io.BaseEncoding;
+
+/**
+ *
+ * Streaming upload and download helpers for objects stored through the S3
+ * api. Data is read from the source once and passed through compression,
+ * encryption and md5 digests straight into the upload parts, so no staged
+ * copies are needed. Only the AmazonS3 interface is used which allows any S3
+ * compatible endpoint, including an in-process stand-in, to be used.
+ *
+ */
+public class S3StreamPipeline {
+	public static int PART_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * An OutputStream that uploads what is written to it as an S3 object.
+	 * Objects that fit within a single part are sent with a single put, larger
+	 * objects are sent as a multipart upload. At most one part is buffered in
+	 * memory.
+	 */
+	public static class MultipartOutputStream extends OutputStream {
+		private final AmazonS3 s3;
+		private final String bucket;
+		private final String key;
+		private final ObjectMetadata md;
+		private final boolean md5sum;
+		private final byte[] buf;
+		private int pos = 0;
+		private int partNum = 0;
+		private String uploadId = null;
+		private List<PartETag> partETags = new ArrayList<PartETag>();
+		private MessageDigest digest;
+		private String md5 = null;
+		private long length = 0;
+		private boolean closed = false;
+
+		public MultipartOutputStream(AmazonS3 s3, String bucket, String key, ObjectMetadata md, int partSize,
+				boolean md5sum) throws IOException {
+			this.s3 = s3;
+			this.bucket = bucket;
+			this.key = key;
+			this.md = md;
+			this.md5sum = md5sum;
+			this.buf = new byte[partSize];
+			try {
+				this.digest = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e);
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (pos == buf.length)
+				this.uploadPart(false);
+			buf[pos++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (pos == buf.length)
+					this.uploadPart(false);
+				int l = Math.min(len, buf.length - pos);
+				System.arraycopy(b, off, buf, pos, l);
+				pos += l;
+				off += l;
+				len -= l;
+			}
+		}
+
+		private void uploadPart(boolean last) throws IOException {
+			try {
+				if (uploadId == null) {
+					md.addUserMetadata("partsize", Integer.toString(buf.length));
+					InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(bucket, key, md);
+					uploadId = s3.initiateMultipartUpload(initRequest).getUploadId();
+				}
+				partNum++;
+				digest.update(buf, 0, pos);
+				UploadPartRequest req = new UploadPartRequest().withBucketName(bucket).withKey(key)
+						.withUploadId(uploadId).withPartNumber(partNum)
+						.withInputStream(new ByteArrayInputStream(buf, 0, pos)).withPartSize(pos).withLastPart(last);
+				if (md5sum)
+					req.setMd5Digest(md5(buf, 0, pos));
+				partETags.add(s3.uploadPart(req).getPartETag());
+				length += pos;
+				pos = 0;
+			} catch (IOException | RuntimeException e) {
+				this.abort();
+				throw e;
+			} catch (Exception e) {
+				this.abort();
+				throw new IOException(e);
+			}
+		}
+
+		/**
+		 * Discards anything written so far. Used instead of close when the
+		 * source could not be read completely.
+		 */
+		public void abort() {
+			closed = true;
+			if (uploadId != null) {
+				try {
+					s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+				} catch (Exception e) {
+					SDFSLogger.getLog().warn("unable to abort upload of " + key, e);
+				}
+				uploadId = null;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			if (uploadId == null) {
+				digest.update(buf, 0, pos);
+				md5 = BaseEncoding.base64().encode(digest.digest());
+				md.setContentLength(pos);
+				if (md5sum) {
+					md.setContentMD5(md5);
+					md.addUserMetadata("md5sum", md5);
+				}
+				length = pos;
+				s3.putObject(new PutObjectRequest(bucket, key, new ByteArrayInputStream(buf, 0, pos), md));
+			} else {
+				this.uploadPart(true);
+				md5 = BaseEncoding.base64().encode(digest.digest());
+				try {
+					s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags));
+				} catch (RuntimeException e) {
+					this.abort();
+					throw e;
+				}
+			}
+		}
+
+		/**
+		 * The base64 md5 of the whole object. Only available after close.
+		 */
+		public String getMD5() {
+			return this.md5;
+		}
+
+		public long getLength() {
+			return this.length;
+		}
+
+		public boolean isMultipart() {
+			return this.partNum > 0;
+		}
+	}
+
+	/**
+	 * An InputStream that computes the md5 of everything read through it as
+	 * well as the multipart ETag S3 reports for an object uploaded in parts of
+	 * the given size.
+	 */
+	public static class DigestingInputStream extends FilterInputStream {
+		private final MessageDigest digest;
+		private final MessageDigest partDigest;
+		private final MessageDigest etagDigest;
+		private final long partSize;
+		private long partPos = 0;
+		private int parts = 0;
+
+		public DigestingInputStream(InputStream in, long partSize) throws IOException {
+			super(in);
+			this.partSize = partSize;
+			try {
+				this.digest = MessageDigest.getInstance("MD5");
+				this.partDigest = MessageDigest.getInstance("MD5");
+				this.etagDigest = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e);
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b != -1)
+				this.update(new byte[] { (byte) b }, 0, 1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int r = in.read(b, off, len);
+			if (r > 0)
+				this.update(b, off, r);
+			return r;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			throw new IOException("skip not supported");
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		private void update(byte[] b, int off, int len) {
+			digest.update(b, off, len);
+			if (partSize <= 0)
+				return;
+			while (len > 0) {
+				int l = (int) Math.min(len, partSize - partPos);
+				partDigest.update(b, off, l);
+				partPos += l;
+				off += l;
+				len -= l;
+				if (partPos == partSize)
+					this.endPart();
+			}
+		}
+
+		private void endPart() {
+			etagDigest.update(partDigest.digest());
+			parts++;
+			partPos = 0;
+		}
+
+		public String getMD5() {
+			return BaseEncoding.base64().encode(digest.digest());
+		}
+
+		/**
+		 * Checks a multipart ETag in the form [hex md5 of part md5s]-[parts]
+		 * against the data read.
+		 */
+		public boolean etagMatches(String etag) {
+			if (partPos > 0)
+				this.endPart();
+			String et = BaseEncoding.base16().lowerCase().encode(etagDigest.digest()) + "-" + parts;
+			return et.equalsIgnoreCase(etag.replace("\"", ""));
+		}
+	}
+
+	private static String md5(byte[] b, int off, int len) throws NoSuchAlgorithmException {
+		MessageDigest d = MessageDigest.getInstance("MD5");
+		d.update(b, off, len);
+		return BaseEncoding.base64().encode(d.digest());
+	}
+
+}
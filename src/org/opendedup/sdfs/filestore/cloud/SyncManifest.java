@@ -0,0 +1,390 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Sam Silverberg sam.silverberg@gmail.com
+ *
+ * This file is part of OpenDedupe SDFS.
+ *
+ * OpenDedupe SDFS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDedupe SDFS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.opendedup.sdfs.filestore.cloud;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.primitives.Longs;
+import com.google.common.primitives.UnsignedBytes;
+
+/**
+ * Keeps a local record of every metadata and map object uploaded for the
+ * volume. An entry holds the generation of the upload, taken from a counter of
+ * the manifest that only grows, and the size, modified time and digest of the
+ * local file as it was uploaded. @see org.opendedup.mtools.SyncFS uses the
+ * manifest to upload only the objects that changed since they were last
+ * uploaded and to delete the objects whose delete did not reach the cloud.
+ * Deletes are recorded with @see #deleted(String) before the object is
+ * deleted from the cloud. A local file that is merely missing is never
+ * treated as deleted, since a map may only exist compressed.
+ *
+ * Keys are the object names, "files" followed by the path of the metadata
+ * file in the volume or "ddb" followed by the path of the map file in the
+ * dedup db store. A copy of the manifest is uploaded after every resync and
+ * the copy of the last resync is compared with the local manifest to find
+ * objects uploaded by someone else since.
+ */
+public class SyncManifest {
+	private static final int STREAM_MAGIC = 0x5344534d;
+	private static final Comparator<byte[]> cmp = UnsignedBytes.lexicographicalComparator();
+	private static final byte[] GEN_KEY = "#generation".getBytes(StandardCharsets.UTF_8);
+	private static final String DELETED_PREFIX = "#deleted/";
+	private RocksDB db = null;
+	private WriteOptions wo = null;
+	private String path = null;
+	private boolean closed = false;
+	private long generation = 0;
+
+	static {
+		RocksDB.loadLibrary();
+	}
+
+	public SyncManifest(File dir) throws IOException {
+		dir.mkdirs();
+		this.path = dir.getPath();
+		try {
+			Options options = new Options();
+			options.setCreateIfMissing(true);
+			wo = new WriteOptions();
+			wo.setSync(false);
+			db = RocksDB.open(options, this.path);
+			byte[] g = db.get(GEN_KEY);
+			if (g != null)
+				generation = Longs.fromByteArray(g);
+		} catch (RocksDBException e) {
+			throw new IOException(e);
+		}
+		SDFSLogger.getLog().info("Sync manifest opened at [" + this.path + "]");
+	}
+
+	public static String metaKey(String path) {
+		return "files" + path.substring(Main.volume.getPath().length());
+	}
+
+	public static String ddbKey(String path) {
+		return "ddb" + path.substring(Main.dedupDBStore.length());
+	}
+
+	/**
+	 * Returns the local file an object was uploaded from.
+	 */
+	public static File getLocalFile(String key) {
+		if (key.startsWith("files"))
+			return new File(Main.volume.getPath() + key.substring(5));
+		else
+			return new File(Main.dedupDBStore + key.substring(3));
+	}
+
+	/**
+	 * Returns a digest of the contents of a file.
+	 */
+	public static byte[] digest(File f) throws IOException {
+		return Files.asByteSource(f).hash(Hashing.murmur3_128()).asBytes();
+	}
+
+	public Entry get(String key) throws IOException {
+		try {
+			byte[] v = db.get(key.getBytes(StandardCharsets.UTF_8));
+			if (v == null)
+				return null;
+			return new Entry(v);
+		} catch (RocksDBException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Returns true if the file has the size and modified time it had when it
+	 * was last uploaded.
+	 */
+	public boolean isUnchanged(String key, File f) throws IOException {
+		Entry e = this.get(key);
+		return e != null && e.size == f.length() && e.mtime == f.lastModified();
+	}
+
+	/**
+	 * Records that an object was uploaded from a file.
+	 *
+	 * @param digest
+	 *            the digest of the file or null if it was not computed
+	 */
+	public synchronized Entry uploaded(String key, File f, byte[] digest) throws IOException {
+		if (closed)
+			throw new IOException("sync manifest is closed");
+		Entry e = new Entry(generation + 1, f.length(), f.lastModified(), digest);
+		WriteBatch batch = new WriteBatch();
+		try {
+			batch.put(GEN_KEY, Longs.toByteArray(e.generation));
+			batch.put(key.getBytes(StandardCharsets.UTF_8), e.toBytes());
+			batch.remove(deletedKey(key));
+			db.write(wo, batch);
+		} catch (RocksDBException e1) {
+			throw new IOException(e1);
+		} finally {
+			batch.close();
+		}
+		generation = e.generation;
+		return e;
+	}
+
+	/**
+	 * Records that a changed file still has the contents it was uploaded
+	 * with, so it is not hashed again until it changes.
+	 */
+	public synchronized void touch(String key, File f) throws IOException {
+		if (closed)
+			throw new IOException("sync manifest is closed");
+		Entry e = this.get(key);
+		if (e == null)
+			return;
+		e.size = f.length();
+		e.mtime = f.lastModified();
+		try {
+			db.put(wo, key.getBytes(StandardCharsets.UTF_8), e.toBytes());
+		} catch (RocksDBException e1) {
+			throw new IOException(e1);
+		}
+	}
+
+	/**
+	 * Records that the local file of an object was deleted. The object stays
+	 * in the manifest until it is deleted from the cloud and removed with
+	 * @see #remove(String) .
+	 */
+	public synchronized void deleted(String key) throws IOException {
+		if (closed)
+			throw new IOException("sync manifest is closed");
+		try {
+			if (db.get(key.getBytes(StandardCharsets.UTF_8)) != null)
+				db.put(wo, deletedKey(key), new byte[0]);
+		} catch (RocksDBException e) {
+			throw new IOException(e);
+		}
+	}
+
+	public synchronized void remove(String key) throws IOException {
+		if (closed)
+			throw new IOException("sync manifest is closed");
+		WriteBatch batch = new WriteBatch();
+		try {
+			batch.remove(key.getBytes(StandardCharsets.UTF_8));
+			batch.remove(deletedKey(key));
+			db.write(wo, batch);
+		} catch (RocksDBException e) {
+			throw new IOException(e);
+		} finally {
+			batch.close();
+		}
+	}
+
+	/**
+	 * Returns the keys of the objects recorded as deleted that are still in
+	 * the manifest.
+	 */
+	public List<String> getRemoved() {
+		ArrayList<String> al = new ArrayList<String>();
+		byte[] prefix = DELETED_PREFIX.getBytes(StandardCharsets.UTF_8);
+		RocksIterator iter = db.newIterator();
+		try {
+			for (iter.seek(prefix); iter.isValid(); iter.next()) {
+				String key = new String(iter.key(), StandardCharsets.UTF_8);
+				if (!key.startsWith(DELETED_PREFIX))
+					break;
+				al.add(key.substring(DELETED_PREFIX.length()));
+			}
+		} finally {
+			iter.close();
+		}
+		return al;
+	}
+
+	private static byte[] deletedKey(String key) {
+		return (DELETED_PREFIX + key).getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static boolean isInternal(byte[] k) {
+		return k.length > 0 && k[0] == '#';
+	}
+
+	public long getEstimatedEntries() {
+		try {
+			return db.getLongProperty("rocksdb.estimate-num-keys");
+		} catch (RocksDBException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Writes a copy of every entry to a file in key order so that it can be
+	 * uploaded and compared by @see #getConflicts(File) .
+	 */
+	public synchronized void write(File f) throws IOException {
+		if (closed)
+			throw new IOException("sync manifest is closed");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+		RocksIterator iter = db.newIterator();
+		try {
+			out.writeInt(STREAM_MAGIC);
+			out.writeLong(generation);
+			for (iter.seekToFirst(); iter.isValid(); iter.next()) {
+				byte[] k = iter.key();
+				if (isInternal(k))
+					continue;
+				out.writeBoolean(true);
+				out.writeInt(k.length);
+				out.write(k);
+				out.write(iter.value());
+			}
+			out.writeBoolean(false);
+		} finally {
+			iter.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Compares a copy written by @see #write(File) with the manifest in a
+	 * single pass over both. Both are in key order. Copies written from this
+	 * manifest never hold a generation above the one of the manifest, so an
+	 * object with a greater generation in the copy was uploaded by someone
+	 * else.
+	 *
+	 * @return the keys of the objects uploaded by someone else since they
+	 *         were last uploaded from here
+	 */
+	public Set<String> getConflicts(File f) throws IOException {
+		HashSet<String> conflicts = new HashSet<String>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		RocksIterator iter = db.newIterator();
+		try {
+			if (in.readInt() != STREAM_MAGIC)
+				throw new IOException("invalid sync manifest " + f.getPath());
+			in.readLong();
+			long gen = 0;
+			synchronized (this) {
+				gen = generation;
+			}
+			iter.seekToFirst();
+			byte[] v = new byte[Entry.LEN];
+			while (in.readBoolean()) {
+				byte[] k = new byte[in.readInt()];
+				in.readFully(k);
+				in.readFully(v);
+				int c = -1;
+				while (iter.isValid() && (c = cmp.compare(iter.key(), k)) < 0)
+					iter.next();
+				long rgen = new Entry(v).generation;
+				if (!iter.isValid() || c != 0) {
+					if (rgen > gen)
+						conflicts.add(new String(k, StandardCharsets.UTF_8));
+				} else if (rgen > new Entry(iter.value()).generation) {
+					conflicts.add(new String(k, StandardCharsets.UTF_8));
+				}
+			}
+		} finally {
+			iter.close();
+			in.close();
+		}
+		return conflicts;
+	}
+
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			db.close();
+		} finally {
+			SDFSLogger.getLog().info("Sync manifest [" + this.path + "] closed");
+		}
+	}
+
+	public static class Entry {
+		static final int LEN = 41;
+		public long generation;
+		public long size;
+		public long mtime;
+		public byte[] digest;
+
+		Entry(long generation, long size, long mtime, byte[] digest) {
+			this.generation = generation;
+			this.size = size;
+			this.mtime = mtime;
+			this.digest = digest;
+		}
+
+		Entry(byte[] v) {
+			ByteBuffer bf = ByteBuffer.wrap(v);
+			this.generation = bf.getLong();
+			this.size = bf.getLong();
+			this.mtime = bf.getLong();
+			if (bf.get() == 1) {
+				this.digest = new byte[16];
+				bf.get(this.digest);
+			}
+		}
+
+		byte[] toBytes() {
+			ByteBuffer bf = ByteBuffer.wrap(new byte[LEN]);
+			bf.putLong(generation);
+			bf.putLong(size);
+			bf.putLong(mtime);
+			if (digest != null) {
+				bf.put((byte) 1);
+				bf.put(digest, 0, 16);
+			}
+			return bf.array();
+		}
+
+		/**
+		 * Returns true if the digest of the uploaded file is known and equal
+		 * to d.
+		 */
+		public boolean hasDigest(byte[] d) {
+			return digest != null && Arrays.equals(digest, d);
+		}
+	}
+
+}
@@ -26,6 +26,7 @@ import java.util.concurrent.locks.Lock;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
 import org.opendedup.sdfs.filestore.DedupFileStore;
+import org.opendedup.sdfs.filestore.IOScheduler;
 import org.opendedup.sdfs.notification.SDFSEvent;
 import org.opendedup.sdfs.servers.HCServiceProxy;
 
@@ -47,6 +48,7 @@ public class ManualGC {
 
 		
 		l.lock();
+		IOScheduler.IOClass pcls = IOScheduler.setIOClass(IOScheduler.IOClass.GC);
 		try {
 			
 			long rm = 0;
@@ -120,6 +122,7 @@ public class ManualGC {
 					+ Main.volume.getName());
 			return rm;
 		} finally {
+			IOScheduler.setIOClass(pcls);
 			l.unlock();
 		}
 	}
@@ -35,6 +35,7 @@ import org.opendedup.buse.driver.BUSEMkDev;
 import org.opendedup.buse.sdfsdev.BlockDeviceBeforeClosedEvent;
 import org.opendedup.buse.sdfsdev.BlockDeviceClosedEvent;
 import org.opendedup.buse.sdfsdev.BlockDeviceOpenEvent;
+import org.opendedup.buse.sdfsdev.NBDExport;
 import org.opendedup.buse.sdfsdev.SDFSBlockDev;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
@@ -61,6 +62,9 @@ public class BlockDev implements Externalizable {
 	String mappedDev;
 	String statusMsg = "Stopped";
 	SDFSBlockDev dev = null;
+	NBDExport nbd = null;
+	int nbdPort = 0;
+	String nbdListenAddr = "127.0.0.1";
 	public static final byte STOPPED = 0;
 	public static final byte SYNC = 1;
 	public static final byte STARTED = 2;
@@ -100,6 +104,10 @@ public class BlockDev implements Externalizable {
 		}
 		this.startOnInit = Boolean.parseBoolean(el
 				.getAttribute("start-on-init"));
+		if (el.hasAttribute("nbd-port"))
+			this.nbdPort = Integer.parseInt(el.getAttribute("nbd-port"));
+		if (el.hasAttribute("nbd-listen-address"))
+			this.nbdListenAddr = el.getAttribute("nbd-listen-address");
 	}
 
 	public MetaDataDedupFile getMF() throws IOException {
@@ -144,7 +152,8 @@ public class BlockDev implements Externalizable {
 			throw new IOException(
 					"cannot shrink a block device while it is online");
 
-		BUSEMkDev.setSize(devPath, size);
+		if (this.nbdPort == 0)
+			BUSEMkDev.setSize(devPath, size);
 		this.size = size;
 		this.mf.setLength(size, true);
 
@@ -266,6 +275,8 @@ public class BlockDev implements Externalizable {
 		this.statusMsg = "Started [" + this.devName + "] at ["
 				+ this.internalPath + "] on [" + this.mappedDev
 				+ "] with size [" + this.size + "]";
+		else if (this.nbd != null)
+			this.statusMsg = "Started [" + this.nbd.getAddress() + "] ";
 		else
 			this.statusMsg = "Started [" + this.devPath + "] ";
 		SDFSLogger.getLog().debug(this.statusMsg);
@@ -282,6 +293,10 @@ public class BlockDev implements Externalizable {
 		root.setAttribute("uuid", this.uuid);
 		root.setAttribute("status", Byte.toString(this.status));
 		root.setAttribute("mappeddev", this.mappedDev);
+		if (this.nbdPort > 0) {
+			root.setAttribute("nbd-port", Integer.toString(this.nbdPort));
+			root.setAttribute("nbd-listen-address", this.nbdListenAddr);
+		}
 
 		if (this.statusMsg != null)
 			root.setAttribute("status-msg", this.statusMsg);
@@ -300,6 +315,14 @@ public class BlockDev implements Externalizable {
 					+ "] already started");
 		}
 		this.statusMsg = "Starting";
+		if (this.nbdPort > 0) {
+			// served in process, no nbd device is used
+			nbd = new NBDExport(this, this.nbdListenAddr, this.nbdPort,
+					Main.writeThreads);
+			Thread th = new Thread(nbd);
+			th.start();
+			return;
+		}
 		if(this.devPath == null || this.devPath.length() == 0)
 			this.devPath = dp;
 		dev = new SDFSBlockDev(this);
@@ -313,9 +336,14 @@ public class BlockDev implements Externalizable {
 		if (this.status == STOPPED)
 			throw new IOException("Device [" + this.devName
 					+ "] already stopped");
-		dev.close();
+		if (this.nbd != null) {
+			nbd.close();
+			this.nbd = null;
+		} else {
+			dev.close();
+			this.dev = null;
+		}
 		this.statusMsg = "Device Stopped";
-		this.dev = null;
 	}
 
 	public String getInternalPath() {
@@ -334,6 +362,27 @@ public class BlockDev implements Externalizable {
 		this.startOnInit = startOnInit;
 	}
 
+	public int getNbdPort() {
+		return nbdPort;
+	}
+
+	/**
+	 * Serves the device over NBD on the given port from within the volume
+	 * instead of through an nbd device. 0 disables it. Takes effect the next
+	 * time the device is started.
+	 */
+	public void setNbdPort(int nbdPort) {
+		this.nbdPort = nbdPort;
+	}
+
+	public String getNbdListenAddr() {
+		return nbdListenAddr;
+	}
+
+	public void setNbdListenAddr(String nbdListenAddr) {
+		this.nbdListenAddr = nbdListenAddr;
+	}
+
 	public boolean isStopped() {
 		return this.status == STOPPED;
 	}
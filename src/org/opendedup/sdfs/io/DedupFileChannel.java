@@ -25,9 +25,12 @@ import java.nio.ByteBuffer;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import org.opendedup.collections.DataArchivedException;
+import org.opendedup.collections.HashtableFullException;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.mtools.RestoreArchive;
 import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.FlushScheduler;
+import org.opendedup.sdfs.filestore.IOScheduler;
 import org.opendedup.sdfs.notification.SDFSEvent;
 import org.opendedup.util.RandomGUID;
 
@@ -291,6 +294,9 @@ public class DedupFileChannel {
 								+ new String(_zb, "UTF-8"));
 			}
 		}
+		FlushScheduler.throttle();
+		WriteAdmission.admit();
+		IOScheduler.fileIO(mf.getPath(), len, true);
 		Lock l = df.getReadLock();
 		l.lock();
 		try {
@@ -335,6 +341,7 @@ public class DedupFileChannel {
 					try {
 						writeBuffer = df.getWriteBuffer(filePos);
 						writeBuffer.write(b, startPos);
+						FlushScheduler.dirtied(df, (WritableCacheBuffer) writeBuffer);
 
 						
 						/*
@@ -504,6 +511,7 @@ public class DedupFileChannel {
 					"fc reading " + mf.getPath() + " spos="
 							+ filePos + " buffcap=" + buf.capacity() + " len="
 							+ siz + " bcpos=" + bufPos);
+		IOScheduler.fileIO(mf.getPath(), siz, false);
 		Lock l = df.getReadLock();
 		l.lock();
 		try {
@@ -743,6 +751,64 @@ public class DedupFileChannel {
 		this.flags = flags;
 	}
 
+	/**
+	 * Deallocates [offset, offset + len) without changing the length of the
+	 * file. Whole chunks in the range are dropped from the map, which releases
+	 * their references, and the partial chunks at either end are overwritten
+	 * with zeros.
+	 */
+	public void punchHole(long offset, long len) throws IOException,
+			DataArchivedException, ReadOnlyException {
+		long end = offset + len;
+		if (end > mf.length() && !Main.blockDev)
+			end = mf.length();
+		if (end <= offset)
+			return;
+		long as = ((offset + Main.CHUNK_LENGTH - 1) / Main.CHUNK_LENGTH)
+				* Main.CHUNK_LENGTH;
+		long ae = (end / Main.CHUNK_LENGTH) * Main.CHUNK_LENGTH;
+		if (as >= ae) {
+			this.writeZeros(offset, end - offset);
+			return;
+		}
+		if (offset < as)
+			this.writeZeros(offset, as - offset);
+		if (end > ae)
+			this.writeZeros(ae, end - ae);
+		long max = (Integer.MAX_VALUE / Main.CHUNK_LENGTH) * Main.CHUNK_LENGTH;
+		Lock l = df.getWriteLock();
+		l.lock();
+		try {
+			df.flushRange(as, ae);
+			long pos = as;
+			while (pos < ae) {
+				int n = (int) Math.min(max, ae - pos);
+				df.trim(pos, n);
+				pos += n;
+			}
+		} catch (HashtableFullException e) {
+			throw new IOException(e);
+		} finally {
+			l.unlock();
+		}
+		mf.setLastModified(System.currentTimeMillis());
+		if (SDFSLogger.isDebug())
+			SDFSLogger.getLog().debug(
+					"punched hole in " + mf.getPath() + " from " + offset
+							+ " to " + end + " trimmed " + as + " to " + ae);
+	}
+
+	private void writeZeros(long pos, long len) throws IOException,
+			DataArchivedException, ReadOnlyException {
+		byte[] z = new byte[(int) Math.min(len, Main.CHUNK_LENGTH)];
+		while (len > 0) {
+			int n = (int) Math.min(len, z.length);
+			this.writeFile(ByteBuffer.wrap(z), n, 0, pos, true);
+			pos += n;
+			len -= n;
+		}
+	}
+
 	public void trim(long start, int len) throws IOException {
 		Lock l = df.getReadLock();
 		l.lock();
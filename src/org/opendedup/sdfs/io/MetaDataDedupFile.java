@@ -781,7 +781,8 @@ public class MetaDataDedupFile implements java.io.Externalizable {
 						SDFSLogger.getLog()
 								.debug("copy dedup file for : " + file.getPath() + " guid :" + file.getDfGuid());
 					if (file.dfGuid != null) {
-						if (DedupFileStore.fileOpen(file))
+						if (DedupFileStore.fileOpen(file)
+								|| (SmallWriteLog.get() != null && SmallWriteLog.get().hasEntries(file.dfGuid)))
 							file.getDedupFile(false).copyTo(npath, true);
 						else {
 							File sdbdirectory = new File(Main.dedupDBStore + File.separator
@@ -0,0 +1,369 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Sam Silverberg sam.silverberg@gmail.com
+ *
+ * This file is part of OpenDedupe SDFS.
+ *
+ * OpenDedupe SDFS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDedupe SDFS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.opendedup.sdfs.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.filestore.DedupFileStore;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.WriteOptions;
+
+import com.google.common.primitives.Longs;
+
+/**
+ * Holds the writes that cover only part of a chunk so that they can be kept
+ * without reading the rest of the chunk. A @see WritableCacheBuffer that has
+ * only been written in part keeps the written extents and, when it is
+ * flushed, stores them here instead of fetching the chunks it overlaps to
+ * build a whole chunk. The extents are laid over the chunk again when the
+ * buffer is next opened, so reads of logged data never reach the chunk store.
+ *
+ * Extents are folded into their chunk when the buffer is written in full,
+ * when they have not been written for FOLD_AGE, and before the file is
+ * closed, copied or truncated. An entry is removed only after the map of its
+ * file is synced with the folded chunk.
+ *
+ * Entries are written without forcing and @see #sync() forces them with the
+ * next sync of a file. Keys are the GUID of the file followed by the
+ * position of the chunk. Entries left by an unclean shutdown are laid over
+ * their chunks when the file is next opened and folded when it is closed.
+ */
+public class SmallWriteLog {
+	public static long FOLD_AGE = 5 * 60 * 1000;
+	private static final byte[] SYNC_KEY = "#sync".getBytes(StandardCharsets.UTF_8);
+	private static volatile SmallWriteLog log = null;
+	private final String path;
+	private final RocksDB db;
+	private final WriteOptions wo;
+	private final WriteOptions swo;
+	private boolean unsynced = false;
+	private boolean closed = false;
+	private final Thread folder;
+	private final AtomicLong logged = new AtomicLong();
+	private final AtomicLong loggedBytes = new AtomicLong();
+	private final AtomicLong folds = new AtomicLong();
+
+	static {
+		RocksDB.loadLibrary();
+	}
+
+	private SmallWriteLog(File dir) throws IOException {
+		dir.mkdirs();
+		this.path = dir.getPath();
+		try {
+			Options options = new Options();
+			options.setCreateIfMissing(true);
+			wo = new WriteOptions();
+			wo.setSync(false);
+			swo = new WriteOptions();
+			swo.setSync(true);
+			db = RocksDB.open(options, this.path);
+		} catch (RocksDBException e) {
+			throw new IOException(e);
+		}
+		this.folder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				foldCold();
+			}
+		}, "small-write-log-folder");
+		this.folder.setDaemon(true);
+		this.folder.start();
+	}
+
+	public static synchronized void open(String dir) throws IOException {
+		log = new SmallWriteLog(new File(dir));
+		SDFSLogger.getLog().info("small write log started at " + dir + " with [" + log.getEntries()
+				+ "] entries left from the last mount");
+	}
+
+	/**
+	 * Stops the log. All files must be closed before calling this.
+	 */
+	public static synchronized void close() {
+		if (log != null) {
+			log.shutdown();
+			log = null;
+		}
+	}
+
+	public static SmallWriteLog get() {
+		return log;
+	}
+
+	private static byte[] getKey(String guid, long pos) {
+		byte[] g = guid.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer bf = ByteBuffer.allocate(1 + g.length + 8);
+		bf.put((byte) 'e');
+		bf.put(g);
+		bf.putLong(pos);
+		return bf.array();
+	}
+
+	private static byte[] getPrefix(String guid) {
+		byte[] g = guid.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer bf = ByteBuffer.allocate(1 + g.length);
+		bf.put((byte) 'e');
+		bf.put(g);
+		return bf.array();
+	}
+
+	private static boolean startsWith(byte[] k, byte[] prefix) {
+		return k.length >= prefix.length && Arrays.equals(Arrays.copyOf(k, prefix.length), prefix);
+	}
+
+	/**
+	 * Returns the logged extents of a chunk keyed by their offset in the
+	 * chunk, or null if there are none.
+	 */
+	public TreeMap<Integer, byte[]> get(String guid, long pos) throws IOException {
+		try {
+			byte[] v = db.get(getKey(guid, pos));
+			if (v == null)
+				return null;
+			ByteBuffer bf = ByteBuffer.wrap(v);
+			bf.getLong();
+			int n = bf.getInt();
+			TreeMap<Integer, byte[]> extents = new TreeMap<Integer, byte[]>();
+			for (int i = 0; i < n; i++) {
+				int off = bf.getInt();
+				byte[] b = new byte[bf.getInt()];
+				bf.get(b);
+				extents.put(off, b);
+			}
+			return extents;
+		} catch (RocksDBException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Replaces the logged extents of a chunk.
+	 */
+	public void put(String guid, long pos, TreeMap<Integer, byte[]> extents) throws IOException {
+		int len = 8 + 4;
+		for (byte[] b : extents.values()) {
+			len += 8 + b.length;
+		}
+		ByteBuffer bf = ByteBuffer.allocate(len);
+		bf.putLong(System.currentTimeMillis());
+		bf.putInt(extents.size());
+		for (Map.Entry<Integer, byte[]> e : extents.entrySet()) {
+			bf.putInt(e.getKey());
+			bf.putInt(e.getValue().length);
+			bf.put(e.getValue());
+		}
+		try {
+			synchronized (this) {
+				if (closed)
+					throw new IOException("small write log is closed");
+				db.put(wo, getKey(guid, pos), bf.array());
+				unsynced = true;
+			}
+		} catch (RocksDBException e) {
+			throw new IOException(e);
+		}
+		logged.incrementAndGet();
+		loggedBytes.addAndGet(len);
+	}
+
+	public void remove(String guid, long pos) throws IOException {
+		try {
+			synchronized (this) {
+				if (!closed)
+					db.delete(wo, getKey(guid, pos));
+			}
+		} catch (RocksDBException e) {
+			throw new IOException(e);
+		}
+		folds.incrementAndGet();
+	}
+
+	/**
+	 * Removes every entry of a file that was deleted.
+	 */
+	public void removeAll(String guid) throws IOException {
+		for (long pos : this.getPositions(guid)) {
+			try {
+				synchronized (this) {
+					if (!closed)
+						db.delete(wo, getKey(guid, pos));
+				}
+			} catch (RocksDBException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the positions of the chunks of a file that have logged extents.
+	 */
+	public List<Long> getPositions(String guid) {
+		return this.getPositions(guid, Long.MAX_VALUE);
+	}
+
+	private List<Long> getPositions(String guid, long before) {
+		ArrayList<Long> al = new ArrayList<Long>();
+		byte[] prefix = getPrefix(guid);
+		RocksIterator iter = db.newIterator();
+		try {
+			for (iter.seek(prefix); iter.isValid() && startsWith(iter.key(), prefix); iter.next()) {
+				byte[] k = iter.key();
+				if (k.length != prefix.length + 8)
+					continue;
+				if (Longs.fromByteArray(Arrays.copyOf(iter.value(), 8)) < before)
+					al.add(ByteBuffer.wrap(k).getLong(prefix.length));
+			}
+		} finally {
+			iter.close();
+		}
+		return al;
+	}
+
+	public boolean hasEntries(String guid) {
+		byte[] prefix = getPrefix(guid);
+		RocksIterator iter = db.newIterator();
+		try {
+			iter.seek(prefix);
+			return iter.isValid() && startsWith(iter.key(), prefix);
+		} finally {
+			iter.close();
+		}
+	}
+
+	/**
+	 * Forces every entry written so far. A forced write also forces the
+	 * writes made before it.
+	 */
+	public void sync() throws IOException {
+		synchronized (this) {
+			if (!unsynced || closed)
+				return;
+			try {
+				db.put(swo, SYNC_KEY, Longs.toByteArray(System.currentTimeMillis()));
+			} catch (RocksDBException e) {
+				throw new IOException(e);
+			}
+			unsynced = false;
+		}
+	}
+
+	public long getEntries() {
+		try {
+			return db.getLongProperty("rocksdb.estimate-num-keys");
+		} catch (RocksDBException e) {
+			return 0;
+		}
+	}
+
+	public long getLogged() {
+		return logged.get();
+	}
+
+	public long getLoggedBytes() {
+		return loggedBytes.get();
+	}
+
+	public long getFolds() {
+		return folds.get();
+	}
+
+	/*
+	 * Folds the entries of open files that have not been written for
+	 * FOLD_AGE. Entries of files that are not open are folded when the file
+	 * is next opened and closed.
+	 */
+	private void foldCold() {
+		while (!closed) {
+			try {
+				Thread.sleep(Math.max(FOLD_AGE / 4, 1000));
+			} catch (InterruptedException e) {
+				break;
+			}
+			HashMap<String, List<Long>> cold = new HashMap<String, List<Long>>();
+			long before = System.currentTimeMillis() - FOLD_AGE;
+			RocksIterator iter = null;
+			synchronized (this) {
+				if (closed)
+					break;
+				iter = db.newIterator();
+			}
+			try {
+				for (iter.seek(new byte[] { 'e' }); iter.isValid() && iter.key()[0] == 'e'; iter.next()) {
+					byte[] k = iter.key();
+					String guid = new String(k, 1, k.length - 9, StandardCharsets.UTF_8);
+					if (!cold.containsKey(guid) && DedupFileStore.get(guid) != null)
+						cold.put(guid, this.getPositions(guid, before));
+				}
+			} finally {
+				iter.close();
+			}
+			for (Map.Entry<String, List<Long>> e : cold.entrySet()) {
+				SparseDedupFile df = DedupFileStore.get(e.getKey());
+				if (df == null)
+					continue;
+				for (long pos : e.getValue()) {
+					try {
+						df.foldLoggedWrite(pos);
+					} catch (Exception e1) {
+						SDFSLogger.getLog().debug("unable to fold logged writes of " + e.getKey() + " at " + pos, e1);
+					}
+				}
+			}
+		}
+	}
+
+	private void shutdown() {
+		synchronized (this) {
+			if (closed)
+				return;
+			try {
+				db.put(swo, SYNC_KEY, Longs.toByteArray(System.currentTimeMillis()));
+			} catch (RocksDBException e) {
+				SDFSLogger.getLog().warn("unable to sync small write log", e);
+			}
+			closed = true;
+		}
+		folder.interrupt();
+		try {
+			folder.join(60000);
+		} catch (InterruptedException e) {
+		}
+		synchronized (this) {
+			db.close();
+		}
+		SDFSLogger.getLog().info("small write log closed after logging [" + logged.get() + "] chunks ["
+				+ loggedBytes.get() + "] bytes and folding [" + folds.get() + "]");
+	}
+
+}
@@ -25,6 +25,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.UUID;
@@ -34,6 +35,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -51,6 +53,7 @@ import org.opendedup.hashing.ThreadPool;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
 import org.opendedup.sdfs.filestore.DedupFileStore;
+import org.opendedup.sdfs.filestore.FlushScheduler;
 import org.opendedup.sdfs.filestore.HashBlobArchive;
 import org.opendedup.sdfs.filestore.MetaFileStore;
 import org.opendedup.sdfs.io.events.DataHashed;
@@ -93,6 +96,7 @@ public class SparseDedupFile implements DedupFile {
 	protected boolean errOccured = false;
 	public boolean isCopyExt;
 	private boolean reconstructed = false;
+	private final WriteProfile profile = WriteProfile.ENABLED ? new WriteProfile() : null;
 
 	public static AbstractHashEngine eng = HashFunctionPool.getHashEngine();
 	private ConcurrentHashMap<Long, WritableCacheBuffer> openBuffers = new ConcurrentHashMap<Long, WritableCacheBuffer>(
@@ -156,6 +160,11 @@ public class SparseDedupFile implements DedupFile {
 	static {
 
 	}
+	// Chunks whose logged writes were written to the map, waiting for the
+	// map to be synced before their entries are removed from the
+	// SmallWriteLog
+	private final ConcurrentHashMap<Long, Long> foldedWrites = new ConcurrentHashMap<Long, Long>();
+	private static final AtomicLong foldSeq = new AtomicLong();
 
 	public static synchronized void flushThreadPool() {
 		pool.flush();
@@ -246,6 +255,7 @@ public class SparseDedupFile implements DedupFile {
 		dest.mkdirs();
 		try {
 			ch = this.getChannel(-1);
+			this.foldLoggedWrites();
 			this.writeCache();
 			this.sync(true);
 			bdb.copy(dest.getPath() + File.separator + this.GUID + ".map", true);
@@ -275,6 +285,12 @@ public class SparseDedupFile implements DedupFile {
 		this.syncLock.lock();
 		try {
 			this.deleted = true;
+			if (SmallWriteLog.get() != null) {
+				synchronized (this.foldedWrites) {
+					SmallWriteLog.get().removeAll(this.GUID);
+					this.foldedWrites.clear();
+				}
+			}
 			if (Main.refCount) {
 
 				File directory = new File(
@@ -408,7 +424,28 @@ public class SparseDedupFile implements DedupFile {
 
 					try {
 						List<Finger> fs = null;
-						fs = eng.getChunks(writeBuffer.getFlushedBuffer(), this.mf.getLookupFilter(), this.GUID);
+						byte[] fb = writeBuffer.getFlushedBuffer();
+						double entropy = 0;
+						boolean whole = false;
+						if (profile != null && eng.isVariableLength()) {
+							entropy = WriteProfile.entropy(fb);
+							whole = profile.hashWhole(entropy);
+						}
+						long ts = System.nanoTime();
+						if (whole) {
+							Finger f = new Finger(this.mf.getLookupFilter(), this.GUID);
+							f.chunk = fb;
+							f.hash = eng.getHash(fb);
+							f.len = fb.length;
+							f.start = 0;
+							fs = new ArrayList<Finger>(1);
+							fs.add(f);
+							WriteProfile.hashedWhole(fb.length, System.nanoTime() - ts);
+						} else {
+							fs = eng.getChunks(fb, this.mf.getLookupFilter(), this.GUID);
+							if (profile != null)
+								WriteProfile.chunked(fb.length, System.nanoTime() - ts);
+						}
 						DataHashed dh = new DataHashed(this.mf, this, fs);
 						eventBus.post(dh);
 						HashMap<ByteArrayWrapper, Finger> mp = new HashMap<ByteArrayWrapper, Finger>();
@@ -537,6 +574,8 @@ public class SparseDedupFile implements DedupFile {
 								// + f.chunk.length);
 							}
 						}
+						if (profile != null && eng.isVariableLength())
+							profile.written(fb.length, dups, entropy, whole);
 						writeBuffer.setDoop(dups);
 						writeBuffer.setAR(ar);
 
@@ -661,6 +700,15 @@ public class SparseDedupFile implements DedupFile {
 		if (this.errOccured) {
 			throw new IOException("write error occured");
 		}
+		if (this.getLoggedWrites(pos) != null) {
+			try {
+				this.foldLoggedWrite(pos);
+				this.writeCache();
+			} catch (DataArchivedException | HashtableFullException e) {
+				throw new IOException(e);
+			}
+			pck = null;
+		}
 		if (pck != null && pck.getFpos() == pos)
 			return pck;
 		else
@@ -794,7 +842,11 @@ public class SparseDedupFile implements DedupFile {
 				if (SDFSLogger.isDebug())
 					wt = System.currentTimeMillis() - tm;
 				HCServiceProxy.sync();
+				if (SmallWriteLog.get() != null)
+					SmallWriteLog.get().sync();
+				HashMap<Long, Long> folded = new HashMap<Long, Long>(this.foldedWrites);
 				this.bdb.sync();
+				this.removeFoldedWrites(folded);
 				if (SDFSLogger.isDebug())
 					st = System.currentTimeMillis() - tm - wt;
 				if (SDFSLogger.isDebug())
@@ -954,6 +1006,19 @@ public class SparseDedupFile implements DedupFile {
 		this.writeBuffers.invalidate(bf.getFilePosition());
 	}
 
+	/**
+	 * Called by the @see FlushScheduler to write out a buffer that has been
+	 * dirty for too long.
+	 */
+	public void flushDirtyBuffer(WritableCacheBuffer bf) {
+		long pos = bf.getFilePosition();
+		if (this.closed || (!this.openBuffers.containsKey(pos) && !this.flushingBuffers.containsKey(pos))) {
+			FlushScheduler.cleaned(this, bf);
+			return;
+		}
+		this.writeBuffers.invalidate(pos);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -989,6 +1054,12 @@ public class SparseDedupFile implements DedupFile {
 
 					}
 				}
+				try {
+					if (!this.deleted)
+						this.foldLoggedWrites();
+				} catch (Exception e) {
+					SDFSLogger.getLog().error("unable to fold logged writes of " + this.databasePath, e);
+				}
 				try {
 					int nwb = this.writeCache();
 					int twb = 0;
@@ -1013,7 +1084,9 @@ public class SparseDedupFile implements DedupFile {
 					
 					
 					try {
+						HashMap<Long, Long> folded = new HashMap<Long, Long>(this.foldedWrites);
 						this.bdb.sync();
+						this.removeFoldedWrites(folded);
 					} catch (Exception e) {
 					}
 					try {
@@ -1055,6 +1128,7 @@ public class SparseDedupFile implements DedupFile {
 		} finally {
 			try {
 				DedupFileStore.removeOpenDedupFile(this.GUID);
+				FlushScheduler.removed(this);
 				bdb = null;
 				this.closed = true;
 				this.dirty = false;
@@ -1264,6 +1338,7 @@ public class SparseDedupFile implements DedupFile {
 				throw new IOException("file already closed");
 			}
 
+			this.foldLoggedWrites();
 			this.writeCache();
 			if (size == 0) {
 				this.mf.getIOMonitor().clearAllCounters(true);
@@ -1277,6 +1352,71 @@ public class SparseDedupFile implements DedupFile {
 
 	}
 
+	/**
+	 * Returns the extents of a chunk kept in the @see SmallWriteLog or null if
+	 * there are none or they were already written to the map.
+	 */
+	TreeMap<Integer, byte[]> getLoggedWrites(long pos) throws IOException {
+		SmallWriteLog swl = SmallWriteLog.get();
+		if (swl == null)
+			return null;
+		synchronized (this.foldedWrites) {
+			if (this.foldedWrites.containsKey(pos))
+				return null;
+			return swl.get(this.GUID, pos);
+		}
+	}
+
+	void logWrites(long pos, TreeMap<Integer, byte[]> extents) throws IOException {
+		SmallWriteLog swl = SmallWriteLog.get();
+		if (swl == null)
+			throw new IOException("small write log is closed");
+		synchronized (this.foldedWrites) {
+			swl.put(this.GUID, pos, extents);
+			this.foldedWrites.remove(pos);
+		}
+	}
+
+	/*
+	 * Called once the logged writes of a chunk are written to the map. The
+	 * log entry is removed after the map is synced.
+	 */
+	void loggedWriteFolded(long pos) {
+		this.foldedWrites.put(pos, foldSeq.incrementAndGet());
+	}
+
+	private void removeFoldedWrites(HashMap<Long, Long> folded) throws IOException {
+		SmallWriteLog swl = SmallWriteLog.get();
+		if (swl == null || folded.isEmpty())
+			return;
+		synchronized (this.foldedWrites) {
+			for (Entry<Long, Long> e : folded.entrySet()) {
+				if (this.foldedWrites.remove(e.getKey(), e.getValue()))
+					swl.remove(this.GUID, e.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Lays the logged writes of a chunk over the chunk and writes it to the
+	 * map in the background.
+	 */
+	public void foldLoggedWrite(long pos) throws IOException, FileClosedException, DataArchivedException {
+		WritableCacheBuffer wb = (WritableCacheBuffer) this.getWriteBuffer(pos);
+		wb.foldLog();
+		this.writeBuffers.invalidate(pos);
+	}
+
+	private void foldLoggedWrites() throws IOException, FileClosedException, DataArchivedException {
+		SmallWriteLog swl = SmallWriteLog.get();
+		if (swl == null)
+			return;
+		for (long pos : swl.getPositions(this.GUID)) {
+			if (!this.foldedWrites.containsKey(pos))
+				this.foldLoggedWrite(pos);
+		}
+	}
+
 	private DedupChunk createNewChunk(long location) {
 		DedupChunk ck = new DedupChunk(location, Main.CHUNK_LENGTH, true, new TreeMap<Integer, HashLocPair>(), false);
 		return ck;
@@ -1320,6 +1460,7 @@ public class SparseDedupFile implements DedupFile {
 
 	public void removeOpenBuffer(WritableCacheBuffer bf) {
 		this.openBuffers.remove(bf.getFilePosition());
+		FlushScheduler.cleaned(this, bf);
 		// SDFSLogger.getLog().info("Size is " +this.openBuffers.size());
 	}
 
@@ -1327,8 +1468,61 @@ public class SparseDedupFile implements DedupFile {
 		return this.flushingBuffers.containsKey(writeBuffer.getFilePosition());
 	}
 
+	/**
+	 * Writes out and drops every buffer that holds part of [start, end) so the
+	 * map can be changed underneath them. The logged writes of the chunks in
+	 * the range are folded into the map first.
+	 */
+	public void flushRange(long start, long end) throws IOException, HashtableFullException {
+		SmallWriteLog swl = SmallWriteLog.get();
+		boolean folded = false;
+		if (swl != null) {
+			try {
+				for (long pos : swl.getPositions(this.GUID)) {
+					if (pos + Main.CHUNK_LENGTH > start && pos < end && !this.foldedWrites.containsKey(pos)) {
+						this.foldLoggedWrite(pos);
+						folded = true;
+					}
+				}
+			} catch (FileClosedException | DataArchivedException e) {
+				throw new IOException(e);
+			}
+		}
+		if (folded || this.inRange(this.openBuffers.keySet(), start, end)
+				|| this.inRange(this.flushingBuffers.keySet(), start, end)
+				|| this.inRange(this.writeBuffers.asMap().keySet(), start, end))
+			this.writeCache();
+	}
+
+	private boolean inRange(Iterable<Long> positions, long start, long end) {
+		for (Long pos : positions) {
+			if (pos + Main.CHUNK_LENGTH > start && pos < end)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Drops the whole chunks in [start, start + len) from the map along with
+	 * their logged writes, so they are not written back later.
+	 */
 	@Override
 	public void trim(long start, int len) throws IOException {
+		SmallWriteLog swl = SmallWriteLog.get();
+		if (swl != null) {
+			long as = ((start + Main.CHUNK_LENGTH - 1) / Main.CHUNK_LENGTH) * Main.CHUNK_LENGTH;
+			long ae = ((start + len) / Main.CHUNK_LENGTH) * Main.CHUNK_LENGTH;
+			if (as < ae) {
+				synchronized (this.foldedWrites) {
+					for (long pos : swl.getPositions(this.GUID)) {
+						if (pos >= as && pos < ae) {
+							swl.remove(this.GUID, pos);
+							this.foldedWrites.remove(pos);
+						}
+					}
+				}
+			}
+		}
 		try {
 			this.bdb.trim(start, len);
 		} catch (FileClosedException e) {
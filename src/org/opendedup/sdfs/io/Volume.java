@@ -30,6 +30,7 @@ import java.util.concurrent.locks.ReentrantLock;
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.apache.ignite.Ignite;
+import org.opendedup.cassandra.NearCachedClusterIndex;
 import org.opendedup.hashing.HashFunctionPool;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
@@ -262,6 +263,15 @@ public class Volume implements java.io.Serializable {
 		if (vol.hasAttribute("cluster-response-timeout"))
 			Main.ClusterRSPTimeout = Integer.parseInt(vol
 					.getAttribute("cluster-response-timeout"));
+		if (vol.hasAttribute("cluster-index"))
+			NearCachedClusterIndex.INDEX_TYPE = vol
+					.getAttribute("cluster-index");
+		if (vol.hasAttribute("cluster-near-cache-size"))
+			NearCachedClusterIndex.CACHE_SIZE = Long.parseLong(vol
+					.getAttribute("cluster-near-cache-size"));
+		if (vol.hasAttribute("cluster-near-cache-ttl"))
+			NearCachedClusterIndex.CACHE_TTL = Long.parseLong(vol
+					.getAttribute("cluster-near-cache-ttl"));
 		
 	}
 	
@@ -367,6 +377,12 @@ public class Volume implements java.io.Serializable {
 		if (vol.hasAttribute("allow-external-links"))
 			Main.allowExternalSymlinks = Boolean.parseBoolean(vol
 					.getAttribute("allow-external-links"));
+		if (vol.hasAttribute("write-throttle-percent"))
+			WriteAdmission.THROTTLE_PERCENT = Double.parseDouble(vol
+					.getAttribute("write-throttle-percent"));
+		if (vol.hasAttribute("write-throttle-max-delay"))
+			WriteAdmission.MAX_DELAY = Long.parseLong(vol
+					.getAttribute("write-throttle-max-delay"));
 		
 		SDFSLogger.getLog().info("Setting volume size to " + this.capacity);
 		if (this.fullPercentage > 0)
@@ -550,7 +566,7 @@ public class Volume implements java.io.Serializable {
 	}
 
 	public boolean isFull() {
-		return this.volumeFull;
+		return this.volumeFull || WriteAdmission.isExhausted();
 		/*
 		 * long avail = pathF.getUsableSpace(); if(avail < minFree) {
 		 * SDFSLogger.getLog().warn("Drive is almost full space left is [" +
@@ -26,7 +26,7 @@ import org.opendedup.sdfs.servers.HCServiceProxy;
 public class VolumeFullThread implements Runnable {
 	private final Volume vol;
 	private Thread th = null;
-	private long duration = 15 * 1000;
+	private long duration = WriteAdmission.SAMPLE_INTERVAL;
 	boolean closed = false;
 	boolean full = false;
 
@@ -42,6 +42,7 @@ public class VolumeFullThread implements Runnable {
 
 			try {
 				Thread.sleep(duration);
+				WriteAdmission.sample(vol);
 				vol.setVolumeFull(this.isFull());
 			} catch (Exception e) {
 				if (SDFSLogger.isDebug())
@@ -75,7 +76,9 @@ public class VolumeFullThread implements Runnable {
 	private long offset = Main.CHUNK_LENGTH * 10;
 
 	public synchronized boolean isFull() throws Exception {
-		long avail = vol.pathF.getUsableSpace();
+		// space reserved by buffers that are being flushed is already taken
+		long reserved = WriteAdmission.getReservedBytes();
+		long avail = vol.pathF.getUsableSpace() - reserved;
 		if (avail < (offset)) {
 			if(!full) {
 			SDFSLogger.getLog().warn(
@@ -99,7 +102,7 @@ public class VolumeFullThread implements Runnable {
 			}
 			full = true;
 			return true;
-		} else if (!Main.ignoreDSEHTSize &&(HCServiceProxy.getDSESize() + offset) >= HCServiceProxy
+		} else if (!Main.ignoreDSEHTSize &&(HCServiceProxy.getDSESize() + reserved + offset) >= HCServiceProxy
 				.getDSEMaxSize()) {
 			if(!full) {
 			SDFSLogger.getLog().warn(
@@ -114,7 +117,7 @@ public class VolumeFullThread implements Runnable {
 			}
 			full = true;
 			return true;
-		} else if ((HCServiceProxy.getSize() + 10000) >= HCServiceProxy
+		} else if ((HCServiceProxy.getSize() + WriteAdmission.getReservedEntries() + 10000) >= HCServiceProxy
 				.getMaxSize()) {
 			if(!full) {
 			SDFSLogger.getLog().warn(
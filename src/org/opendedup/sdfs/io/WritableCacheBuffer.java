@@ -34,6 +34,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.opendedup.collections.DataArchivedException;
+import org.opendedup.collections.HashtableFullException;
 import org.opendedup.collections.LongByteArrayMap;
 import org.opendedup.collections.SparseDataChunk;
 import org.opendedup.hashing.AbstractHashEngine;
@@ -42,6 +43,7 @@ import org.opendedup.hashing.HashFunctionPool;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
 import org.opendedup.sdfs.filestore.DedupFileStore;
+import org.opendedup.sdfs.filestore.FlushScheduler;
 import org.opendedup.sdfs.servers.HCServiceProxy;
 import org.opendedup.util.StringUtils;
 
@@ -82,9 +84,13 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 	private boolean reconstructed;
 	private boolean hlAdded = false;
 	private boolean direct = false;
+	private int reservedLength = 0;
 	protected ReentrantLock lobj = new ReentrantLock() ;
 	private TreeMap<Integer, HashLocPair> ar = new TreeMap<Integer, HashLocPair>();
 	private TreeMap<Integer, HashLocPair> _ar = null;
+	// Extents written over a chunk that was not read, see SmallWriteLog
+	private TreeMap<Integer, byte[]> logExtents = null;
+	private boolean logged = false;
 	int sz;
 	private static SynchronousQueue<Runnable> lworksQueue = null;
 	private static ThreadPoolExecutor lexecutor = null;
@@ -121,6 +127,8 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 		this.setLength(Main.CHUNK_LENGTH);
 		this.endPosition = this.getFilePosition() + this.getLength();
 		this.setWritable(true);
+		this.logExtents = this.df.getLoggedWrites(this.position);
+		this.logged = this.logExtents != null;
 	}
 
 	/*
@@ -158,6 +166,8 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 		if (this.df.bdb.getVersion() >= 2) {
 			this.direct = true;
 		}
+		this.logExtents = this.df.getLoggedWrites(this.position);
+		this.logged = this.logExtents != null;
 	}
 
 	/*
@@ -236,6 +246,11 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 				return _b;
 			}
 		}
+		if (this.buf == null && this.logExtents != null) {
+			byte[] _b = this.readLogged(startPos, len);
+			if (_b != null)
+				return _b;
+		}
 		try {
 			this.initBuffer();
 		} catch (InterruptedException e) {
@@ -406,6 +421,19 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 
 				}
 			}
+			if (this.logExtents != null) {
+				byte[] b = this.buf.array();
+				Entry<Integer, byte[]> le = this.logExtents.lastEntry();
+				if (le.getKey() + le.getValue().length > b.length)
+					b = Arrays.copyOf(b, Main.CHUNK_LENGTH);
+				for (Entry<Integer, byte[]> e : this.logExtents.entrySet()) {
+					System.arraycopy(e.getValue(), 0, b, e.getKey(), e.getValue().length);
+				}
+				this.bar = b;
+				this.buf = ByteBuffer.wrap(b);
+				this.logExtents = null;
+				this.dirty = true;
+			}
 		} finally {
 			lobj.unlock();
 		}
@@ -502,6 +530,100 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 		}
 	}
 
+	/*
+	 * Keeps a write over part of the chunk without reading the chunk. Once the
+	 * extents cover the whole chunk they become the buffer.
+	 */
+	private void logWrite(byte[] b, int pos) {
+		if (this.logExtents == null)
+			this.logExtents = new TreeMap<Integer, byte[]>();
+		int ep = pos + b.length;
+		Integer k = this.logExtents.floorKey(pos);
+		if (k == null)
+			k = this.logExtents.ceilingKey(pos);
+		while (k != null && k < ep) {
+			byte[] e = this.logExtents.get(k);
+			int eep = k + e.length;
+			if (eep > pos) {
+				this.logExtents.remove(k);
+				if (k < pos)
+					this.logExtents.put(k, Arrays.copyOfRange(e, 0, pos - k));
+				if (eep > ep)
+					this.logExtents.put(ep, Arrays.copyOfRange(e, ep - k, e.length));
+			}
+			k = this.logExtents.higherKey(k);
+		}
+		this.logExtents.put(pos, Arrays.copyOf(b, b.length));
+		int covered = 0;
+		for (byte[] e : this.logExtents.values()) {
+			covered += e.length;
+		}
+		if (covered >= Main.CHUNK_LENGTH) {
+			this.bar = new byte[Main.CHUNK_LENGTH];
+			for (Entry<Integer, byte[]> e : this.logExtents.entrySet()) {
+				System.arraycopy(e.getValue(), 0, this.bar, e.getKey(), e.getValue().length);
+			}
+			this.buf = ByteBuffer.wrap(this.bar);
+			this.logExtents = null;
+		}
+		this.hlAdded = false;
+	}
+
+	/*
+	 * Returns the range from the logged extents or null if they do not cover
+	 * all of it.
+	 */
+	private byte[] readLogged(int startPos, int len) {
+		byte[] dd = new byte[len];
+		int p = startPos;
+		int ep = startPos + len;
+		while (p < ep) {
+			Integer k = this.logExtents.floorKey(p);
+			if (k == null)
+				return null;
+			byte[] e = this.logExtents.get(k);
+			if (k + e.length <= p)
+				return null;
+			int n = Math.min(k + e.length, ep) - p;
+			System.arraycopy(e, p - k, dd, p - startPos, n);
+			p += n;
+		}
+		return dd;
+	}
+
+	/*
+	 * Writes the buffer to the file map, or only its extents to the small
+	 * write log if the chunk was never read.
+	 */
+	private void writeBuffer() throws IOException, HashtableFullException, FileClosedException, DataArchivedException {
+		if (this.buf == null && this.logExtents != null && !this.hlAdded) {
+			this.df.logWrites(this.position, this.logExtents);
+			this.logged = true;
+		} else {
+			this.df.writeCache(this);
+			if (this.logged) {
+				this.df.loggedWriteFolded(this.position);
+				this.logged = false;
+			}
+		}
+	}
+
+	/**
+	 * Lays the logged extents over the chunk so that the buffer is written
+	 * to the file map when it is next flushed.
+	 */
+	public void foldLog() throws IOException, DataArchivedException {
+		lobj.lock();
+		try {
+			if (this.logExtents != null)
+				this.initBuffer();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} finally {
+			lobj.unlock();
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -533,10 +655,14 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 				this.buf = ByteBuffer.wrap(b);
 			} else {
 
-				if (this.buf == null && this.reconstructed && HashFunctionPool.max_hash_cluster > 1) {
+				if (this.buf == null && this.reconstructed && HashFunctionPool.max_hash_cluster > 1
+						&& this.logExtents == null) {
 					
 					
 						this.wm(b, pos);
+				} else if (this.buf == null && !this.newChunk && !this.hlAdded && this.accelBuffer == null
+						&& SmallWriteLog.get() != null) {
+					this.logWrite(b, pos);
 				} else {
 					// SDFSLogger.getLog().info("writing at " + pos + " recon="
 					// + this.reconstructed + " sz=" + this.ar.size());
@@ -558,6 +684,13 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 			if (this.flushing)
 				throw new BufferClosedException("Buffer Flushing");
 
+			if (this.logExtents != null) {
+				try {
+					this.initBuffer();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
 			if (!this.dirty && this.buf != null) {
 				this.buf = null;
 			}
@@ -872,6 +1005,7 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 			}
 			this.flushing = true;
 			if (this.dirty || this.isHlAdded()) {
+					this.reserveSpace();
 					this.df.putBufferIntoFlush(this);
 					lexecutor.execute(this);
 			} else {
@@ -929,7 +1063,7 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 						this.reReference();
 						this.df.updateExtents(this);
 					} else {
-						this.df.writeCache(this);
+						this.writeBuffer();
 					}
 					this.closed = true;
 					this.flushing = false;
@@ -946,14 +1080,11 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 				SDFSLogger.getLog().warn("unable to close " + this.position, e);
 				df.writeBuffers.put(this.getFilePosition(), this);
 				this.open();
+				FlushScheduler.dirtied(df, this);
 				SDFSLogger.getLog().warn("re-opened" + this.position);
 				throw new IOException(e);
 			} finally {
-				try {
-
-				} catch (Exception e) {
-				}
-
+				this.releaseSpace();
 			}
 		} finally {
 			if (lobj.isLocked())
@@ -984,7 +1115,7 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 					SDFSLogger.getLog().debug(this.getFilePosition() + " already closed");
 			} else {
 
-				this.df.writeCache(this);
+				this.writeBuffer();
 				df.removeBufferFromFlush(this);
 				this.closed = true;
 				this.flushing = false;
@@ -993,10 +1124,29 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 		} catch (Exception e) {
 			throw new IOException(e);
 		} finally {
+			this.releaseSpace();
 			this.batchprocessed = false;
 		}
 	}
 
+	/*
+	 * Reserves the worst case space a flush of this buffer can take, see
+	 * WriteAdmission.
+	 */
+	private void reserveSpace() {
+		if (this.reservedLength == 0) {
+			this.reservedLength = Math.max(this.length, 1);
+			WriteAdmission.reserve(this.reservedLength, HashFunctionPool.max_hash_cluster);
+		}
+	}
+
+	private void releaseSpace() {
+		if (this.reservedLength > 0) {
+			WriteAdmission.release(this.reservedLength, HashFunctionPool.max_hash_cluster);
+			this.reservedLength = 0;
+		}
+	}
+
 	public byte[] getFlushedBuffer()
 			throws BufferClosedException, IOException, InterruptedException, DataArchivedException {
 		if (this.closed) {
@@ -1026,7 +1176,7 @@ public class WritableCacheBuffer implements DedupChunkInterface, Runnable {
 		lobj.lock();
 
 		try {
-			this.df.writeCache(this);
+			this.writeBuffer();
 			this.closed = true;
 		} catch (Exception e) {
 			SDFSLogger.getLog().fatal("Error while closing", e);
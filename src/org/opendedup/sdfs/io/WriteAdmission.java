@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Sam Silverberg sam.silverberg@gmail.com
+ *
+ * This file is part of OpenDedupe SDFS.
+ *
+ * OpenDedupe SDFS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDedupe SDFS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.opendedup.sdfs.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.servers.HCServiceProxy;
+
+/**
+ * Admission control for writes as a volume fills up. Every write buffer that
+ * is being flushed reserves the space it could use in the worst case, its
+ * full length uncompressed and one hash table entry per chunk, and releases
+ * the reservation once the flush is done.
+ *
+ * Headroom is the smallest fraction left of the local disk, the volume
+ * capacity, the DSE and the hash table once the reservations are taken out.
+ * Disk, DSE and hash table usage are sampled by @see VolumeFullThread every
+ * SAMPLE_INTERVAL ms, the reservations and the volume size are current. Once
+ * headroom falls below THROTTLE_PERCENT writes are delayed, more as headroom
+ * shrinks, up to MAX_DELAY ms per write. The volume is full when there is no
+ * headroom left.
+ */
+public class WriteAdmission {
+	public static double THROTTLE_PERCENT = 5;
+	public static long MAX_DELAY = 50;
+	public static long SAMPLE_INTERVAL = 1000;
+	private static final AtomicLong reservedBytes = new AtomicLong();
+	private static final AtomicLong reservedEntries = new AtomicLong();
+	private static final AtomicLong throttled = new AtomicLong();
+	private static volatile long diskFree = Long.MAX_VALUE;
+	private static volatile long diskTotal = Long.MAX_VALUE;
+	private static volatile long dseFree = Long.MAX_VALUE;
+	private static volatile long dseMax = Long.MAX_VALUE;
+	private static volatile long htFree = Long.MAX_VALUE;
+	private static volatile long htMax = Long.MAX_VALUE;
+
+	/**
+	 * Takes a new sample of the disk, DSE and hash table usage.
+	 */
+	static void sample(Volume vol) {
+		diskTotal = Math.max(1, vol.pathF.getTotalSpace());
+		diskFree = vol.pathF.getUsableSpace() - offset();
+		if (Main.ignoreDSEHTSize) {
+			dseFree = Long.MAX_VALUE;
+			dseMax = Long.MAX_VALUE;
+		} else {
+			dseMax = Math.max(1, HCServiceProxy.getDSEMaxSize());
+			dseFree = dseMax - HCServiceProxy.getDSESize() - offset();
+		}
+		htMax = Math.max(1, HCServiceProxy.getMaxSize());
+		htFree = htMax - HCServiceProxy.getSize() - 10000;
+	}
+
+	private static long offset() {
+		return Main.CHUNK_LENGTH * 10L;
+	}
+
+	public static void reserve(long bytes, long entries) {
+		reservedBytes.addAndGet(bytes);
+		reservedEntries.addAndGet(entries);
+	}
+
+	public static void release(long bytes, long entries) {
+		reservedBytes.addAndGet(-1 * bytes);
+		reservedEntries.addAndGet(-1 * entries);
+	}
+
+	/**
+	 * @return the fraction of the tightest limit that is still free, 0 or
+	 *         less when the volume is full
+	 */
+	public static double getHeadroom() {
+		long rb = reservedBytes.get();
+		double h = (double) (diskFree - rb) / (double) diskTotal;
+		h = Math.min(h, (double) (dseFree - rb) / (double) dseMax);
+		h = Math.min(h, (double) (htFree - reservedEntries.get()) / (double) htMax);
+		Volume vol = Main.volume;
+		if (vol != null) {
+			long cap = Math.max(1, vol.getCapacity());
+			h = Math.min(h, (double) (cap - vol.getCurrentSize() - offset()) / (double) cap);
+		}
+		return h;
+	}
+
+	public static boolean isExhausted() {
+		return getHeadroom() <= 0;
+	}
+
+	/**
+	 * Delays the calling writer in proportion to how little headroom is
+	 * left. This must be called before any file or buffer lock is taken.
+	 */
+	public static void admit() {
+		double tp = THROTTLE_PERCENT / 100;
+		if (tp <= 0 || MAX_DELAY <= 0)
+			return;
+		double h = getHeadroom();
+		if (h >= tp)
+			return;
+		if (h < 0)
+			h = 0;
+		long delay = (long) (MAX_DELAY * (1 - (h / tp)));
+		if (delay <= 0)
+			return;
+		if (throttled.incrementAndGet() % 10000 == 1)
+			SDFSLogger.getLog().info("throttling writes, volume headroom is [" + (h * 100) + "%]");
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public static long getReservedBytes() {
+		return reservedBytes.get();
+	}
+
+	public static long getReservedEntries() {
+		return reservedEntries.get();
+	}
+
+	public static long getThrottledWrites() {
+		return throttled.get();
+	}
+
+}
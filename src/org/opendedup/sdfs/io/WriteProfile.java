@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Sam Silverberg sam.silverberg@gmail.com
+ *
+ * This file is part of OpenDedupe SDFS.
+ *
+ * OpenDedupe SDFS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDedupe SDFS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.opendedup.sdfs.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks whether the data written to a file is worth chunking and
+ * compressing. The entropy of each buffer is estimated from a sample of its
+ * bytes. Once WINDOW buffers in a row were nearly all high entropy and found
+ * less than MAX_DUP_RATE duplicate data, the buffers of the file are hashed
+ * whole instead of being split into variable length chunks. Every
+ * PROBE_INTERVAL buffers one is still chunked, and a probe that finds
+ * duplicate data or a buffer of lower entropy switches the file back.
+ *
+ * Files that have not written WINDOW buffers yet follow the profile of the
+ * volume, which is fed by every file. Chunks of high entropy are stored
+ * without compression by @see org.opendedup.sdfs.filestore.HashBlobArchive .
+ * The time saved is estimated from the time the skipped work takes on the
+ * data that is still chunked and compressed.
+ */
+public class WriteProfile {
+	public static boolean ENABLED = false;
+	public static double ENTROPY_THRESHOLD = 7.5;
+	public static double MAX_DUP_RATE = 0.02;
+	public static int WINDOW = 32;
+	public static int PROBE_INTERVAL = 16;
+	private static final int SAMPLE_SIZE = 1024;
+	private static final WriteProfile volume = new WriteProfile();
+	private static final AtomicLong chunkedBytes = new AtomicLong();
+	private static final AtomicLong chunkNanos = new AtomicLong();
+	private static final AtomicLong wholeBytes = new AtomicLong();
+	private static final AtomicLong wholeNanos = new AtomicLong();
+	private static final AtomicLong compressedBytes = new AtomicLong();
+	private static final AtomicLong compressNanos = new AtomicLong();
+	private static final AtomicLong uncompressedBytes = new AtomicLong();
+	private boolean whole = false;
+	private boolean decided = false;
+	private int buffers = 0;
+	private int highEntropy = 0;
+	private int probe = 0;
+	private long bytes = 0;
+	private long dupBytes = 0;
+
+	/**
+	 * Returns the entropy in bits per byte of a sample of up to SAMPLE_SIZE
+	 * bytes spread over b.
+	 */
+	public static double entropy(byte[] b) {
+		if (b.length == 0)
+			return 0;
+		int n = Math.min(b.length, SAMPLE_SIZE);
+		int stride = b.length / n;
+		int[] counts = new int[256];
+		for (int i = 0; i < n; i++) {
+			counts[b[i * stride] & 0xff]++;
+		}
+		double e = 0;
+		for (int c : counts) {
+			if (c > 0) {
+				double p = (double) c / n;
+				e -= p * Math.log(p);
+			}
+		}
+		return e / Math.log(2);
+	}
+
+	public static boolean isIncompressible(byte[] b) {
+		return entropy(b) >= ENTROPY_THRESHOLD;
+	}
+
+	/**
+	 * Returns true if a buffer with the given entropy should be hashed whole
+	 * instead of chunked.
+	 */
+	public boolean hashWhole(double entropy) {
+		synchronized (this) {
+			if (decided) {
+				if (!whole)
+					return false;
+				if (entropy < ENTROPY_THRESHOLD) {
+					this.switchBack();
+					return false;
+				}
+				if (++probe >= PROBE_INTERVAL) {
+					probe = 0;
+					return false;
+				}
+				return true;
+			}
+		}
+		return volume != this && volume.hashWhole(entropy);
+	}
+
+	/**
+	 * Records a buffer that was written with dups bytes found as duplicates.
+	 */
+	public void written(int len, int dups, double entropy, boolean hashedWhole) {
+		if (volume != this)
+			volume.written(len, dups, entropy, hashedWhole);
+		if (hashedWhole)
+			return;
+		synchronized (this) {
+			if (whole && dups > len * MAX_DUP_RATE) {
+				this.switchBack();
+				return;
+			}
+			buffers++;
+			bytes += len;
+			dupBytes += dups;
+			if (entropy >= ENTROPY_THRESHOLD)
+				highEntropy++;
+			if (buffers >= WINDOW) {
+				whole = highEntropy >= buffers * 0.9 && dupBytes <= bytes * MAX_DUP_RATE;
+				decided = true;
+				this.reset();
+			}
+		}
+	}
+
+	private void switchBack() {
+		whole = false;
+		decided = true;
+		this.reset();
+	}
+
+	private void reset() {
+		buffers = 0;
+		highEntropy = 0;
+		probe = 0;
+		bytes = 0;
+		dupBytes = 0;
+	}
+
+	public static void chunked(int len, long nanos) {
+		chunkedBytes.addAndGet(len);
+		chunkNanos.addAndGet(nanos);
+	}
+
+	public static void hashedWhole(int len, long nanos) {
+		wholeBytes.addAndGet(len);
+		wholeNanos.addAndGet(nanos);
+	}
+
+	public static void compressed(int len, long nanos) {
+		compressedBytes.addAndGet(len);
+		compressNanos.addAndGet(nanos);
+	}
+
+	public static void storedUncompressed(int len) {
+		uncompressedBytes.addAndGet(len);
+	}
+
+	public static long getHashedWholeBytes() {
+		return wholeBytes.get();
+	}
+
+	public static long getUncompressedBytes() {
+		return uncompressedBytes.get();
+	}
+
+	/**
+	 * Returns an estimate of the time saved by hashing buffers whole and
+	 * storing chunks uncompressed in milliseconds.
+	 */
+	public static long getTimeSaved() {
+		double saved = 0;
+		long cb = chunkedBytes.get();
+		if (cb > 0)
+			saved += (double) chunkNanos.get() / cb * wholeBytes.get() - wholeNanos.get();
+		long zb = compressedBytes.get();
+		if (zb > 0)
+			saved += (double) compressNanos.get() / zb * uncompressedBytes.get();
+		return Math.max(0, (long) (saved / 1000000));
+	}
+
+}
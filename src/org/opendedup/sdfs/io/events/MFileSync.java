@@ -23,6 +23,8 @@ import org.opendedup.sdfs.io.MetaDataDedupFile;
 public class MFileSync {
 
 	public MetaDataDedupFile mf;
+	public byte[] digest = null;
+	public boolean synced = false;
 
 	public MFileSync(MetaDataDedupFile f) {
 		this.mf = f;
@@ -22,6 +22,8 @@ import java.io.File;
 
 public class SFileSync {
 	public File sf = null;
+	public byte[] digest = null;
+	public boolean synced = false;
 
 	public SFileSync(File f) {
 		this.sf = f;
@@ -1,25 +1,21 @@
 package org.opendedup.sdfs.mgmt;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
 import org.opendedup.sdfs.filestore.MetaFileStore;
-import org.opendedup.sdfs.io.MetaDataDedupFile;
 import org.opendedup.sdfs.notification.SDFSEvent;
-import org.opendedup.util.DeleteDir;
-import org.opendedup.util.OSValidator;
+import org.opendedup.sdfs.replication.ArchiveStreamWriter;
 import org.opendedup.util.RandomGUID;
 import org.w3c.dom.Element;
 
-import de.schlichtherle.truezip.file.TFile;
-import de.schlichtherle.truezip.file.TVFS;
-
 public class ArchiveOutCmd implements Runnable {
 	SDFSEvent evt = null;
-	private File nf = null;
 	private File nft = null;
 	private File f = null;
 	private File vp = null;
@@ -42,11 +38,9 @@ public class ArchiveOutCmd implements Runnable {
 		af = new File(Main.volume.getPath() + File.separator +"sdfsactiverepl"
 				+ File.separator + guid+File.separator + srcPath );
 		SDFSLogger.getLog().debug("Replication snapshot = " + af.getPath());
-		nf = new File(vp.getPath() + File.separator + "archives"
-				+ File.separator + guid);
-		SDFSLogger.getLog().debug("Replication staging = " + nf.getPath());
-		nft = new File(nf.getPath() + ".tar.gz");
-		SDFSLogger.getLog().debug("Created replication snapshot");
+		nft = new File(vp.getPath() + File.separator + "archives"
+				+ File.separator + guid + ".sdar");
+		SDFSLogger.getLog().debug("Replication archive = " + nft.getPath());
 		evt = SDFSEvent.archiveOutEvent("Archiving out " + srcPath);
 		evt.extendedInfo = nft.getPath() + "," + "sdfsactiverepl"
 				+ File.separator + guid;
@@ -69,8 +63,7 @@ public class ArchiveOutCmd implements Runnable {
 
 			evt.maxCt = 4;
 			evt.addChild(sevt);
-			MetaDataDedupFile mf = null;
-			mf = MetaFileStore.snapshot(f.getPath(), af.getPath(), false, sevt);
+			MetaFileStore.snapshot(f.getPath(), af.getPath(), false, sevt);
 			evt.curCt = 2;
 
 			SDFSEvent eevt = SDFSEvent.archiveOutEvent("Archiving out "
@@ -78,33 +71,24 @@ public class ArchiveOutCmd implements Runnable {
 			sevt.endEvent("Created Snapshot of " + srcPath);
 			evt.addChild(eevt);
 			SDFSLogger.getLog().debug("Created replication snapshot");
-			eevt.maxCt = 3;
 			eevt.curCt = 0;
-			mf.copyTo(nf.getPath(), true, true);
-			eevt.curCt = 1;
-			MetaFileStore.removeMetaFile(af.getPath(), true,false,true);
-			eevt.curCt = 2;
-			SDFSLogger.getLog().debug("Copied out replication snapshot");
-			if (OSValidator.isWindows()) {
-				TFile dest = new TFile(nf.getPath() + ".tar.gz");
-				TFile src = new TFile(nf);
-				SDFSLogger.getLog().debug(
-						"created archive " + nf.getPath() + ".tar.gz");
-				TVFS.umount(dest);
-				TVFS.umount(src);
-				TVFS.umount(dest.getInnerArchive());
-			} else {
-				String cmd = null;
-				if(uselz4)
-					cmd = "tar cpf - " +nf.getPath() + " . | lz4 -z - " +nf.getPath() + ".tar.lz4";
+			// the snapshot is streamed straight into the archive, chunks and
+			// all, so nothing is staged on disk first
+			nft.getParentFile().mkdirs();
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(nft), 65536);
+			ArchiveStreamWriter wr = null;
+			try {
+				wr = new ArchiveStreamWriter(out, uselz4, eevt);
+				wr.write(af);
+			} finally {
+				if (wr != null)
+					wr.close();
 				else
-					cmd = "tar -cpzf " + nf.getPath() + ".tar.gz -C "
-							+ nf.getPath() + " .";
-				Process p = Runtime.getRuntime().exec(cmd
-						, null, nf);
-				p.waitFor();
+					out.close();
 			}
-			eevt.curCt = 3;
+			eevt.maxCt = wr.getFiles();
+			MetaFileStore.removeMetaFile(af.getPath(), true,false,true);
+			SDFSLogger.getLog().debug("Streamed out replication snapshot");
 			evt.curCt = 4;
 
 			if (nft.exists())
@@ -123,15 +107,10 @@ public class ArchiveOutCmd implements Runnable {
 			} catch(Exception e1) {
 				
 			}
+			nft.delete();
 			evt.endEvent("Archive Out failed", SDFSEvent.ERROR, e);
 
 		} finally {
-			try {
-				DeleteDir.deleteDirectory(nf);
-			} catch (Exception e) {
-				SDFSLogger.getLog().warn(
-						"error while deleting " + nf.getPath(), e);
-			}
 			SDFSLogger.getLog().info("Exited Replication task [" + sc + "]");
 		}
 
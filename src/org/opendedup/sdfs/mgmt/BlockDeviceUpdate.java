@@ -21,6 +21,10 @@ public class BlockDeviceUpdate {
 			}
 			if (param.equalsIgnoreCase("autostart"))
 				dev.setStartOnInit(Boolean.parseBoolean(value));
+			if (param.equalsIgnoreCase("nbd-port"))
+				dev.setNbdPort(Integer.parseInt(value));
+			if (param.equalsIgnoreCase("nbd-listen-address"))
+				dev.setNbdListenAddr(value);
 			Main.volume.writeUpdate();
 			return dev.getElement();
 		}
@@ -1,9 +1,18 @@
 package org.opendedup.sdfs.mgmt;
 
 import java.io.IOException;
+import java.util.Map;
 
+import org.opendedup.collections.LocalityCache;
+import org.opendedup.collections.RocksDBResources;
+import org.opendedup.collections.SimilarityIndex;
+import org.opendedup.collections.SparseIndex;
 import org.opendedup.hashing.HashFunctionPool;
 import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.ArchiveCache;
+import org.opendedup.sdfs.filestore.HashBlobArchive;
+import org.opendedup.sdfs.io.SmallWriteLog;
+import org.opendedup.sdfs.io.WriteProfile;
 import org.opendedup.sdfs.servers.HCServiceProxy;
 import org.opendedup.util.XMLUtils;
 import org.w3c.dom.Document;
@@ -45,6 +54,65 @@ public class GetDSE {
 					Long.toString(HCServiceProxy.getCacheSize()));
 			root.setAttribute("max-cache-size",
 					Long.toString(HCServiceProxy.getMaxCacheSize()));
+			ArchiveCache ac = HashBlobArchive.getArchiveCache();
+			if (ac != null) {
+				root.setAttribute("cache-hits", Long.toString(ac.getHits()));
+				root.setAttribute("cache-misses", Long.toString(ac.getMisses()));
+				root.setAttribute("cache-hit-rate", Double.toString(ac.getHitRate()));
+				root.setAttribute("cache-evictions", Long.toString(ac.getEvictions()));
+				root.setAttribute("cache-admissions", Long.toString(ac.getAdmissions()));
+				root.setAttribute("cache-rejections", Long.toString(ac.getRejections()));
+				root.setAttribute("cache-pinned-archives", Integer.toString(ac.getPinnedCount()));
+				root.setAttribute("cache-pinned-size", Long.toString(ac.getPinnedBytes()));
+			}
+			LocalityCache lc = LocalityCache.get();
+			if (lc != null) {
+				root.setAttribute("locality-cache-lookups", Long.toString(lc.getLookups()));
+				root.setAttribute("locality-cache-hits", Long.toString(lc.getHits()));
+				root.setAttribute("locality-cache-hit-rate", Double.toString(lc.getHitRate()));
+				root.setAttribute("locality-cache-avoided-lookups", Long.toString(lc.getHits()));
+				root.setAttribute("locality-cache-loads", Long.toString(lc.getLoads()));
+				root.setAttribute("locality-cache-archives", Integer.toString(lc.getArchives()));
+			}
+			SparseIndex si = SparseIndex.get();
+			if (si != null) {
+				root.setAttribute("sparse-index-hooks", Long.toString(si.getHooks()));
+				root.setAttribute("sparse-index-hook-lookups", Long.toString(si.getHookLookups()));
+				root.setAttribute("sparse-index-hook-hits", Long.toString(si.getHookHits()));
+				root.setAttribute("sparse-index-misses", Long.toString(si.getMisses()));
+				root.setAttribute("sparse-index-duplicates", Long.toString(si.getDuplicates()));
+				root.setAttribute("sparse-index-duplicate-rate", Double.toString(si.getDuplicateRate()));
+			}
+			RocksDBResources rr = RocksDBResources.get();
+			if (rr != null) {
+				root.setAttribute("hash-db-compaction-bytes", Long.toString(rr.getCompactionBytes()));
+				for (Map<String, String> st : rr.getStats()) {
+					Element el = doc.createElement("hash-db");
+					for (Map.Entry<String, String> e : st.entrySet()) {
+						el.setAttribute(e.getKey(), e.getValue());
+					}
+					root.appendChild(el);
+				}
+			}
+			SimilarityIndex sim = SimilarityIndex.get();
+			if (sim != null) {
+				root.setAttribute("similarity-deltas", Long.toString(sim.getDeltas()));
+				root.setAttribute("similarity-delta-bytes", Long.toString(sim.getDeltaBytes()));
+				root.setAttribute("similarity-saved-bytes", Long.toString(sim.getSavedBytes()));
+				root.setAttribute("similarity-rebuilt", Long.toString(SimilarityIndex.getReconstructions()));
+			}
+			SmallWriteLog swl = SmallWriteLog.get();
+			if (swl != null) {
+				root.setAttribute("small-write-log-entries", Long.toString(swl.getEntries()));
+				root.setAttribute("small-write-log-logged", Long.toString(swl.getLogged()));
+				root.setAttribute("small-write-log-logged-bytes", Long.toString(swl.getLoggedBytes()));
+				root.setAttribute("small-write-log-folds", Long.toString(swl.getFolds()));
+			}
+			if (WriteProfile.ENABLED) {
+				root.setAttribute("write-profile-hashed-whole-bytes", Long.toString(WriteProfile.getHashedWholeBytes()));
+				root.setAttribute("write-profile-uncompressed-bytes", Long.toString(WriteProfile.getUncompressedBytes()));
+				root.setAttribute("write-profile-time-saved", Long.toString(WriteProfile.getTimeSaved()));
+			}
 			root.setAttribute("listen-encrypted",
 					Boolean.toString(Main.sdfsCliSSL));
 			root.setAttribute("ecryption-key", Main.chunkStoreEncryptionKey);
@@ -0,0 +1,19 @@
+package org.opendedup.sdfs.mgmt;
+
+import java.io.IOException;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.filestore.IOScheduler;
+import org.w3c.dom.Element;
+
+public class GetIOScheduler {
+
+	public Element getResult() throws IOException {
+		try {
+			return IOScheduler.toXML();
+		} catch (Exception e) {
+			SDFSLogger.getLog().error("unable to fetch io scheduler", e);
+			throw new IOException("request to fetch io scheduler failed because " + e.toString());
+		}
+	}
+}
@@ -516,7 +516,7 @@ public class MgmtWebServer implements Container {
 					case "syncfiles":
 
 						try {
-							Element msg = new SyncFSCmd().getResult();
+							Element msg = new SyncFSCmd().getResult(Boolean.parseBoolean(qry.get("full")));
 							result.setAttribute("status", "success");
 							result.setAttribute("msg", "command completed successfully");
 							result.appendChild(doc.adoptNode(msg));
@@ -538,6 +538,31 @@ public class MgmtWebServer implements Container {
 							SDFSLogger.getLog().warn("setwritespeed", e);
 						}
 						break;
+					case "setioscheduler":
+						try {
+							Element msg = new SetIOScheduler().getResult(qry.get("ioclass"), file, qry.get("readsp"),
+									qry.get("writesp"), qry.get("window"), qry.get("maxdefer"));
+							result.setAttribute("status", "success");
+							result.setAttribute("msg", "command completed successfully");
+							result.appendChild(doc.adoptNode(msg));
+						} catch (IOException e) {
+							result.setAttribute("status", "failed");
+							result.setAttribute("msg", e.toString());
+							SDFSLogger.getLog().warn("setioscheduler", e);
+						}
+						break;
+					case "getioscheduler":
+						try {
+							Element msg = new GetIOScheduler().getResult();
+							result.setAttribute("status", "success");
+							result.setAttribute("msg", "command completed successfully");
+							result.appendChild(doc.adoptNode(msg));
+						} catch (IOException e) {
+							result.setAttribute("status", "failed");
+							result.setAttribute("msg", e.toString());
+							SDFSLogger.getLog().warn("getioscheduler", e);
+						}
+						break;
 					case "deletearchive":
 
 						try {
@@ -795,6 +820,22 @@ public class MgmtWebServer implements Container {
 							SDFSLogger.getLog().warn("error", e);
 						}
 						break;
+					case "restorefile":
+						try {
+							long budget = -1;
+							if (qry.containsKey("budget"))
+								budget = Long.parseLong(qry.get("budget"));
+							Element msg = new RestoreFileCmd().getResult(file, qry.get("dstfile"), budget);
+							result.setAttribute("status", "success");
+							result.setAttribute("msg", "file restore started successfully");
+							doc.adoptNode(msg);
+							result.appendChild(msg);
+						} catch (Exception e) {
+							result.setAttribute("status", "failed");
+							result.setAttribute("msg", e.toString());
+							SDFSLogger.getLog().warn("restorefile", e);
+						}
+						break;
 					case "importarchive":
 						try {
 							String server = qry.get("server");
@@ -986,6 +1027,25 @@ public class MgmtWebServer implements Container {
 							SDFSLogger.getLog().debug("info", e);
 						}
 						break;
+					case "warmcache":
+						try {
+							long speed = 0;
+							long pinTime = 0;
+							if (qry.containsKey("speed"))
+								speed = Long.parseLong(qry.get("speed"));
+							if (qry.containsKey("pintime"))
+								pinTime = Long.parseLong(qry.get("pintime"));
+							Element wmsg = new WarmCacheCmd().getResult(file, speed, pinTime);
+							result.setAttribute("status", "success");
+							result.setAttribute("msg", "cache warm started successfully");
+							doc.adoptNode(wmsg);
+							result.appendChild(wmsg);
+						} catch (Exception e) {
+							result.setAttribute("status", "failed");
+							result.setAttribute("msg", e.toString());
+							SDFSLogger.getLog().warn("warmcache", e);
+						}
+						break;
 					case "event":
 						try {
 							String uuid = qry.get("uuid");
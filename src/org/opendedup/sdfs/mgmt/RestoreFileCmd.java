@@ -0,0 +1,42 @@
+package org.opendedup.sdfs.mgmt;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.opendedup.mtools.RestorePlanner;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.MetaFileStore;
+import org.opendedup.sdfs.io.MetaDataDedupFile;
+import org.w3c.dom.Element;
+
+public class RestoreFileCmd {
+
+	public Element getResult(String file, String dstFile, long budget) throws IOException {
+		File f = new File(Main.volume.getPath() + File.separator + file);
+		if (!f.exists())
+			throw new IOException("Path not found [" + file + "]");
+		if (f.isDirectory())
+			throw new IOException("Path is a directory [" + file + "]");
+		if (dstFile == null)
+			throw new IOException("Destination not specified");
+		File dst = new File(dstFile);
+		String vol = new File(Main.volume.getPath()).getCanonicalPath();
+		String dp = dst.getCanonicalPath();
+		if (dp.equals(vol) || dp.startsWith(vol + File.separator))
+			throw new IOException("Destination cannot be within the volume [" + dstFile + "]");
+		if (dst.getParentFile() != null)
+			dst.getParentFile().mkdirs();
+		MetaDataDedupFile mf = MetaFileStore.getMF(f);
+		RestorePlanner rp = new RestorePlanner(mf, dst, budget);
+		Thread th = new Thread(rp);
+		th.start();
+		try {
+			return rp.getEvent().toXML();
+		} catch (ParserConfigurationException e) {
+			throw new IOException(e);
+		}
+	}
+
+}
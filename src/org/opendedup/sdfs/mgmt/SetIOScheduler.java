@@ -0,0 +1,58 @@
+package org.opendedup.sdfs.mgmt;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.IOScheduler;
+import org.w3c.dom.Element;
+
+public class SetIOScheduler {
+
+	/**
+	 * Sets the limits of an io class, of a file or of the scheduler itself.
+	 * Speeds are in KB/s and 0 removes a limit. A speed that is not given
+	 * keeps its current value.
+	 *
+	 * @param cls
+	 *            the io class to set, foreground, replication, gc or scrub
+	 * @param file
+	 *            the file to set, relative to the volume, if cls is null
+	 */
+	public Element getResult(String cls, String file, String rsp, String wsp, String window, String defer)
+			throws IOException {
+		try {
+			if (window != null)
+				IOScheduler.PRECEDENCE_WINDOW = Long.parseLong(window);
+			if (defer != null)
+				IOScheduler.MAX_DEFER = Long.parseLong(defer);
+			if (cls != null) {
+				IOScheduler.IOClass c = null;
+				try {
+					c = IOScheduler.IOClass.valueOf(cls.toUpperCase());
+				} catch (IllegalArgumentException e) {
+					throw new IOException("unknown io class " + cls);
+				}
+				double[] cur = IOScheduler.getClassSpeed(c);
+				IOScheduler.setClassSpeed(c, getSpeed(rsp, cur[0]), getSpeed(wsp, cur[1]));
+			} else if (file != null) {
+				File f = new File(Main.volume.getPath() + File.separator + file);
+				double[] cur = IOScheduler.getFileSpeed(f.getPath());
+				IOScheduler.setFileSpeed(f.getPath(), getSpeed(rsp, cur[0]), getSpeed(wsp, cur[1]));
+			}
+			return IOScheduler.toXML();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			SDFSLogger.getLog().error("unable to set io scheduler", e);
+			throw new IOException("request to set io scheduler failed because " + e.toString());
+		}
+	}
+
+	private static double getSpeed(String sp, double current) {
+		if (sp == null || sp.trim().length() == 0)
+			return current;
+		return Double.parseDouble(sp);
+	}
+}
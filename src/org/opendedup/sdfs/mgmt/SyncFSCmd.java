@@ -10,9 +10,9 @@ public class SyncFSCmd implements Runnable {
 	int minutes = 0;
 	SyncFS fd = null;
 
-	public Element getResult() throws IOException {
+	public Element getResult(boolean full) throws IOException {
 		// minutes = Integer.parseInt(cmd);
-		fd = new SyncFS("now");
+		fd = new SyncFS("now", full);
 		Thread th = new Thread(this);
 		th.start();
 		try {
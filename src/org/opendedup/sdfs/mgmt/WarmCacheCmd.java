@@ -0,0 +1,38 @@
+package org.opendedup.sdfs.mgmt;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.opendedup.mtools.CacheWarmer;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.HashBlobArchive;
+import org.w3c.dom.Element;
+
+public class WarmCacheCmd {
+
+	/**
+	 * @param speed
+	 *            the bandwidth budget in KB/s, 0 for unlimited
+	 * @param pinTime
+	 *            how long the archives stay pinned in seconds, 0 to not pin
+	 *            them
+	 */
+	public Element getResult(String file, long speed, long pinTime) throws IOException {
+		File f = new File(Main.volume.getPath() + File.separator + file);
+		if (!f.exists())
+			throw new IOException("Path not found [" + file + "]");
+		if (HashBlobArchive.getArchiveCache() == null)
+			throw new IOException("volume does not use a local archive cache");
+		CacheWarmer cw = new CacheWarmer(f, speed, pinTime * 1000);
+		Thread th = new Thread(cw);
+		th.start();
+		try {
+			return cw.getEvent().toXML();
+		} catch (ParserConfigurationException e) {
+			throw new IOException(e);
+		}
+	}
+
+}
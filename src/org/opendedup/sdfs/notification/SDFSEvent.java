@@ -90,6 +90,8 @@ public class SDFSEvent implements java.io.Serializable {
 	public transient static final Type RAE = new Type("Cache File");
 	public transient static final Type CF = new Type("Importing Cloud File");
 	public transient static final Type ARCHIVERESTORE = new Type("Restore from Glacier");
+	public transient static final Type RESTOREFILE = new Type("Restore File");
+	public transient static final Type WARMCACHE = new Type("Warm Local Cache");
 	public transient static final Type WER = new Type("Write Error");
 	public transient static final Type DISCO = new Type("Storage Pool Disconnected");
 	public transient static final Type RECO = new Type("Storage Pool Reconnected");
@@ -249,6 +251,19 @@ public class SDFSEvent implements java.io.Serializable {
 		return event;
 	}
 
+	public static SDFSEvent restoreFileEvent(MetaDataDedupFile f) {
+		SDFSEvent event = new SDFSEvent(RESTOREFILE, getTarget(), "Restoring " + f.getPath() + " in archive order",
+				RUNNING);
+
+		return event;
+	}
+
+	public static SDFSEvent warmCacheEvent(String path) {
+		SDFSEvent event = new SDFSEvent(WARMCACHE, getTarget(), "Caching archives of " + path + " Locally", RUNNING);
+
+		return event;
+	}
+
 	public static SDFSEvent cszEvent(String shortMsg) {
 		SDFSEvent event = new SDFSEvent(CSZ, getTarget(), shortMsg, RUNNING);
 
@@ -18,10 +18,12 @@
  *******************************************************************************/
 package org.opendedup.sdfs.replication;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
-
-
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 
@@ -31,6 +33,7 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import org.apache.commons.io.FileUtils;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.filestore.IOScheduler;
 import org.opendedup.sdfs.filestore.MetaFileStore;
 import org.opendedup.sdfs.filestore.gc.GCMain;
 import org.opendedup.sdfs.io.MetaDataDedupFile;
@@ -53,6 +56,7 @@ public class ArchiveImporter {
 	private boolean closed = false;
 	private static ConcurrentHashMap<String, ArchiveImporter> runningJobs = new ConcurrentHashMap<String, ArchiveImporter>();
 	SDFSEvent ievt = null;
+	ArchiveStreamReader rdr = null;
 	MetaFileImport imp = null;
 
 	public static void stopJob(String id) {
@@ -61,13 +65,25 @@ public class ArchiveImporter {
 
 	public void close() {
 		this.closed = true;
+		if (this.rdr != null)
+			rdr.close();
 		if (this.imp != null)
 			imp.close();
 	}
 
+	/**
+	 * Imports an archive written by @see ArchiveStreamWriter . The archive
+	 * holds every chunk its files reference, so it is read straight into a
+	 * staging folder of the volume without unpacking it first or fetching
+	 * blocks from the source server. Compression of the archive is read from
+	 * its header. Archives written by earlier versions are tar files and are
+	 * imported as before, with useLz4 telling how they were compressed.
+	 */
 	public Element importArchive(String srcArchive, String dest, String server,
 			String password, int port, int maxSz, SDFSEvent evt, boolean useSSL,boolean useLz4)
 			throws Exception {
+		if (!isArchiveStream(new File(srcArchive)))
+			return this.importLegacyArchive(srcArchive, dest, server, password, port, maxSz, evt, useSSL, useLz4);
 		ievt = SDFSEvent.archiveImportEvent("Importing " + srcArchive
 				+ " from " + server + ":" + port + " to " + dest, evt);
 		ReadLock l = GCMain.gclock.readLock();
@@ -86,169 +102,56 @@ public class ArchiveImporter {
 								+ port + " to " + dest);
 				if (!f.exists())
 					throw new IOException("File does not exist " + srcArchive);
-				if (OSValidator.isWindows()) {
-
-					TFile srcRoot = new TFile(new File(srcArchive + "/"));
-					ievt.maxCt = FileCounts.getSize(srcRoot);
-
-					SDFSLogger.getLog().info("Tar file size is " + ievt.maxCt);
-					TFile srcFilesRoot = new TFile(new File(srcArchive
-							+ "/files/"));
-					TFile srcFiles = null;
-					try {
-						srcFiles = srcFilesRoot.listFiles()[0];
-					} catch (Exception e) {
-						SDFSLogger.getLog().error(
-								"Replication archive is corrupt " + srcArchive
-										+ " size of "
-										+ new File(srcArchive).length(), e);
-						throw e;
-					}
-					TFile tfDstFiles = new TFile(Main.volume.getPath()
-							+ File.separator + sdest);
-					this.export(srcFiles, tfDstFiles);
-					srcFiles = new TFile(new File(srcArchive + "/ddb/"));
-					File ddb = new File(Main.dedupDBStore + File.separator);
-					if (!ddb.exists())
-						ddb.mkdirs();
-					TFile mDstFiles = new TFile(Main.dedupDBStore
-							+ File.separator);
-					this.export(srcFiles, mDstFiles);
-					TVFS.umount(srcFiles);
-					TVFS.umount(mDstFiles);
-					TVFS.umount(srcRoot.getInnerArchive());
-				} else {
-					ievt.maxCt = 3;
-					File stg = null;
-					try {
-						stg = new File(new File(srcArchive).getParentFile()
-								.getPath()
-								+ File.separator
-								+ RandomGUID.getGuid());
-						stg.mkdirs();
-						
-						String expFile = "tar -xzpf " + srcArchive + " -C "
-								+ stg.getPath();
-						if(useLz4)
-							expFile = "lz4 -dc " + srcArchive + " | tar -xpf -";
-						int xt = ProcessWorker.runProcess(expFile);
-						if (xt != 0)
-							throw new IOException("expand failed in " + expFile
-									+ " exit value was " + xt);
-						ievt.curCt++;
-						SDFSLogger.getLog().info(
-								"executed " + expFile + " exit code was " + xt);
-						File srcFilesRoot = new File(stg.getPath()
-								+ File.separator + "files");
-						File srcFiles = null;
-						try {
-							srcFiles = srcFilesRoot.listFiles()[0];
-						} catch (Exception e) {
-							SDFSLogger.getLog().error(
-									"Replication archive is corrupt "
-											+ srcArchive + " size of "
-											+ new File(srcArchive).length(), e);
-							throw e;
-						}
-						SDFSLogger.getLog().info(
-								"setting up staging at " + fDstFiles.getPath());
-						fDstFiles.getParentFile().mkdirs();
-						String cpCmd = "cp -rfap " + srcFiles + " " + fDstFiles;
-
-						xt = ProcessWorker.runProcess(cpCmd);
-						if (xt != 0)
-							throw new IOException("copy failed in " + cpCmd
-									+ " exit value was " + xt);
-						SDFSLogger.getLog().info(
-								"executed " + cpCmd + " exit code was " + xt);
-						ievt.curCt++;
-						srcFiles = new File(stg.getPath() + File.separator
-								+ "ddb");
-						File ddb = new File(Main.dedupDBStore + File.separator);
-						if (!ddb.exists())
-							ddb.mkdirs();
-						if (srcFiles.exists()) {
-							cpCmd = "cp -rfap " + srcFiles + File.separator
-									+ " " + ddb.getParentFile().getPath();
-							xt = ProcessWorker.runProcess(cpCmd);
-							if (xt != 0)
-								throw new IOException("copy failed in " + cpCmd
-										+ " exit value was " + xt);
-						}
-						SDFSLogger.getLog().info(
-								"executed " + cpCmd + " exit code was " + xt);
-						ievt.endEvent("Staging completed successfully");
-					} catch (Exception e) {
-						ievt.endEvent(e.getMessage(), SDFSEvent.ERROR);
-						throw e;
-					} finally {
-						// FileUtils.deleteDirectory(stg);
-						Process p = Runtime.getRuntime().exec("rm -rf " + stg);
-						p.waitFor();
-						f.delete();
-					}
-
+				rdr = new ArchiveStreamReader(fDstFiles.getPath(), ievt);
+				InputStream in = new BufferedInputStream(new FileInputStream(f), 65536);
+				IOScheduler.IOClass pcls = IOScheduler.setIOClass(IOScheduler.IOClass.REPLICATION);
+				try {
+					rdr.read(in);
+					ievt.endEvent("Import of archive completed successfully");
+				} catch (Exception e) {
+					ievt.endEvent(e.getMessage(), SDFSEvent.ERROR);
+					throw e;
+				} finally {
+					IOScheduler.setIOClass(pcls);
+					in.close();
+					f.delete();
 				}
-				MgmtServerConnection.baseHmac = MgmtServerConnection.initAuth(password,server,port,useSSL);
-				imp = new MetaFileImport(Main.volume.getPath() + File.separator
-						+ sdest, server, MgmtServerConnection.baseHmac, port, maxSz, evt, useSSL);
-				imp.runImport();
-				if (imp.isCorrupt()) {
-
-					// evt.endEvent("Import failed for " + srcArchive +
-					// " because not all the data could be imported from " +
-					// server,SDFSEvent.WARN);
-					SDFSLogger
-							.getLog()
-							.warn("Import failed for "
-									+ srcArchive
-									+ " because not all the data could be imported from "
-									+ server);
-					SDFSLogger.getLog().warn("rolling back import");
-					rollBackImport(Main.volume.getPath() + File.separator
-							+ sdest);
-					SDFSLogger.getLog().warn("Import rolled back");
-					throw new IOException(
-							"uable to import files: There are files that are missing blocks");
-				} else {
-					
-					commitImport(Main.volume.getPath() + File.separator + dest,
-							Main.volume.getPath() + File.separator + sdest);
-					DocumentBuilderFactory factory = DocumentBuilderFactory
-							.newInstance();
-					DocumentBuilder builder;
-					builder = factory.newDocumentBuilder();
+				commitImport(Main.volume.getPath() + File.separator + dest,
+						Main.volume.getPath() + File.separator + sdest);
+				DocumentBuilderFactory factory = DocumentBuilderFactory
+						.newInstance();
+				DocumentBuilder builder;
+				builder = factory.newDocumentBuilder();
 
-					DOMImplementation impl = builder.getDOMImplementation();
-					// Document.
-					Document doc = impl.createDocument(null,
-							"replication-import", null);
-					// Root element.
-					Element root = doc.getDocumentElement();
-					root.setAttribute("src", srcArchive);
-					root.setAttribute("dest", dest);
-					root.setAttribute("srcserver", server);
-					root.setAttribute("srcserverport", Integer.toString(port));
-					root.setAttribute("batchsize", Integer.toString(maxSz));
-					root.setAttribute("filesimported",
-							Long.toString(imp.getFilesProcessed()));
-					root.setAttribute("bytesimported",
-							Long.toString(imp.getBytesTransmitted()));
-					root.setAttribute("entriesimported",
-							Long.toString(imp.getEntries()));
-					root.setAttribute("virtualbytesimported",
-							Long.toString(imp.getVirtualBytesTransmitted()));
-					root.setAttribute("starttime",
-							Long.toString(imp.getStartTime()));
-					root.setAttribute("endtime",
-							Long.toString(imp.getEndTime()));
-					root.setAttribute("volume", Main.volume.getName());
-					root.setAttribute("volumeconfig",
-							Main.volume.getConfigPath());
-					evt.endEvent(srcArchive + " from " + server + ":" + port
-							+ " to " + dest + " imported successfully");
-					return (Element) root.cloneNode(true);
-				}
+				DOMImplementation impl = builder.getDOMImplementation();
+				// Document.
+				Document doc = impl.createDocument(null,
+						"replication-import", null);
+				// Root element.
+				Element root = doc.getDocumentElement();
+				root.setAttribute("src", srcArchive);
+				root.setAttribute("dest", dest);
+				root.setAttribute("srcserver", server);
+				root.setAttribute("srcserverport", Integer.toString(port));
+				root.setAttribute("batchsize", Integer.toString(maxSz));
+				root.setAttribute("filesimported",
+						Long.toString(rdr.getFilesImported()));
+				root.setAttribute("bytesimported",
+						Long.toString(rdr.getBytesImported()));
+				root.setAttribute("entriesimported",
+						Long.toString(rdr.getChunksImported()));
+				root.setAttribute("virtualbytesimported",
+						Long.toString(rdr.getVirtualBytesImported()));
+				root.setAttribute("starttime",
+						Long.toString(rdr.getStartTime()));
+				root.setAttribute("endtime",
+						Long.toString(rdr.getEndTime()));
+				root.setAttribute("volume", Main.volume.getName());
+				root.setAttribute("volumeconfig",
+						Main.volume.getConfigPath());
+				evt.endEvent(srcArchive + " from " + server + ":" + port
+						+ " to " + dest + " imported successfully");
+				return (Element) root.cloneNode(true);
 			} catch (Exception e) {
 				SDFSLogger.getLog().warn("rolling back import ", e);
 				rollBackImport(Main.volume.getPath() + File.separator + sdest);
@@ -260,12 +163,6 @@ public class ArchiveImporter {
 				throw e;
 			}
 		} finally {
-			try {
-
-			} catch (Exception e) {
-				if (SDFSLogger.isDebug())
-					SDFSLogger.getLog().debug("error", e);
-			}
 			runningJobs.remove(evt.uid);
 			l.unlock();
 		}
@@ -321,32 +218,259 @@ public class ArchiveImporter {
 		
 	}
 
-	private void export(File file, File dst)
-			throws ReplicationCanceledException, IOException {
-		if (SDFSLogger.isDebug())
-			SDFSLogger.getLog().debug(
-					"extracting " + file.getPath() + " to " + dst.getPath());
-		if (!closed) {
-			if (OSValidator.isWindows())
-				TFile.cp_rp(file, dst, TArchiveDetector.NULL);
-			/*
-			 * if (file.isDirectory()) { dst.mkdirs(); // All files and
-			 * subdirectories TFile[] files = file.listFiles(); for (int i = 0;
-			 * i < files.length; i++) { File dstF = new File(dst,
-			 * files[i].getName()); if (files[i].isFile()) {
-			 * files[i].cp_p(dstF); ievt.curCt += dstF.length(); } else {
-			 * export(files[i], dstF); } } } else {
-			 * dst.getParentFile().mkdirs();
-			 * 
-			 * }
-			 */
-
-		} else {
-			throw new ReplicationCanceledException(
-					"replication job was canceled");
-		}
-	}
-
+	private void export(File file, File dst)
+			throws ReplicationCanceledException, IOException {
+		if (SDFSLogger.isDebug())
+			SDFSLogger.getLog().debug(
+					"extracting " + file.getPath() + " to " + dst.getPath());
+		if (!closed) {
+			if (OSValidator.isWindows())
+				TFile.cp_rp(file, dst, TArchiveDetector.NULL);
+			/*
+			 * if (file.isDirectory()) { dst.mkdirs(); // All files and
+			 * subdirectories TFile[] files = file.listFiles(); for (int i = 0;
+			 * i < files.length; i++) { File dstF = new File(dst,
+			 * files[i].getName()); if (files[i].isFile()) {
+			 * files[i].cp_p(dstF); ievt.curCt += dstF.length(); } else {
+			 * export(files[i], dstF); } } } else {
+			 * dst.getParentFile().mkdirs();
+			 * 
+			 * }
+			 */
+
+		} else {
+			throw new ReplicationCanceledException(
+					"replication job was canceled");
+		}
+	}
+
+	/*
+	 * Returns true if the file starts with the magic of @see
+	 * ArchiveStreamWriter .
+	 */
+	private static boolean isArchiveStream(File f) throws IOException {
+		if (!f.exists() || f.length() < 4)
+			return false;
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		try {
+			return in.readInt() == ArchiveStreamWriter.MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * Imports an archive written by the tar based archive-out of earlier
+	 * versions. The archive is unpacked and the blocks its files reference are
+	 * fetched from the source server.
+	 */
+	private Element importLegacyArchive(String srcArchive, String dest, String server,
+			String password, int port, int maxSz, SDFSEvent evt, boolean useSSL,boolean useLz4)
+			throws Exception {
+		ievt = SDFSEvent.archiveImportEvent("Importing " + srcArchive
+				+ " from " + server + ":" + port + " to " + dest, evt);
+		ReadLock l = GCMain.gclock.readLock();
+		l.lock();
+		runningJobs.put(evt.uid, this);
+		String sdest = dest + "." + RandomGUID.getGuid();
+		File f = new File(srcArchive);
+		File fDstFiles = new File(Main.volume.getPath() + File.separator
+				+ sdest);
+		try {
+
+			SDFSLogger.getLog().info("setting up staging at " + sdest);
+			try {
+				SDFSLogger.getLog().info(
+						"Importing " + srcArchive + " from " + server + ":"
+								+ port + " to " + dest);
+				if (!f.exists())
+					throw new IOException("File does not exist " + srcArchive);
+				if (OSValidator.isWindows()) {
+
+					TFile srcRoot = new TFile(new File(srcArchive + "/"));
+					ievt.maxCt = FileCounts.getSize(srcRoot);
+
+					SDFSLogger.getLog().info("Tar file size is " + ievt.maxCt);
+					TFile srcFilesRoot = new TFile(new File(srcArchive
+							+ "/files/"));
+					TFile srcFiles = null;
+					try {
+						srcFiles = srcFilesRoot.listFiles()[0];
+					} catch (Exception e) {
+						SDFSLogger.getLog().error(
+								"Replication archive is corrupt " + srcArchive
+										+ " size of "
+										+ new File(srcArchive).length(), e);
+						throw e;
+					}
+					TFile tfDstFiles = new TFile(Main.volume.getPath()
+							+ File.separator + sdest);
+					this.export(srcFiles, tfDstFiles);
+					srcFiles = new TFile(new File(srcArchive + "/ddb/"));
+					File ddb = new File(Main.dedupDBStore + File.separator);
+					if (!ddb.exists())
+						ddb.mkdirs();
+					TFile mDstFiles = new TFile(Main.dedupDBStore
+							+ File.separator);
+					this.export(srcFiles, mDstFiles);
+					TVFS.umount(srcFiles);
+					TVFS.umount(mDstFiles);
+					TVFS.umount(srcRoot.getInnerArchive());
+				} else {
+					ievt.maxCt = 3;
+					File stg = null;
+					try {
+						stg = new File(new File(srcArchive).getParentFile()
+								.getPath()
+								+ File.separator
+								+ RandomGUID.getGuid());
+						stg.mkdirs();
+						
+						String expFile = "tar -xzpf " + srcArchive + " -C "
+								+ stg.getPath();
+						if(useLz4)
+							expFile = "lz4 -dc " + srcArchive + " | tar -xpf -";
+						int xt = ProcessWorker.runProcess(expFile);
+						if (xt != 0)
+							throw new IOException("expand failed in " + expFile
+									+ " exit value was " + xt);
+						ievt.curCt++;
+						SDFSLogger.getLog().info(
+								"executed " + expFile + " exit code was " + xt);
+						File srcFilesRoot = new File(stg.getPath()
+								+ File.separator + "files");
+						File srcFiles = null;
+						try {
+							srcFiles = srcFilesRoot.listFiles()[0];
+						} catch (Exception e) {
+							SDFSLogger.getLog().error(
+									"Replication archive is corrupt "
+											+ srcArchive + " size of "
+											+ new File(srcArchive).length(), e);
+							throw e;
+						}
+						SDFSLogger.getLog().info(
+								"setting up staging at " + fDstFiles.getPath());
+						fDstFiles.getParentFile().mkdirs();
+						String cpCmd = "cp -rfap " + srcFiles + " " + fDstFiles;
+
+						xt = ProcessWorker.runProcess(cpCmd);
+						if (xt != 0)
+							throw new IOException("copy failed in " + cpCmd
+									+ " exit value was " + xt);
+						SDFSLogger.getLog().info(
+								"executed " + cpCmd + " exit code was " + xt);
+						ievt.curCt++;
+						srcFiles = new File(stg.getPath() + File.separator
+								+ "ddb");
+						File ddb = new File(Main.dedupDBStore + File.separator);
+						if (!ddb.exists())
+							ddb.mkdirs();
+						if (srcFiles.exists()) {
+							cpCmd = "cp -rfap " + srcFiles + File.separator
+									+ " " + ddb.getParentFile().getPath();
+							xt = ProcessWorker.runProcess(cpCmd);
+							if (xt != 0)
+								throw new IOException("copy failed in " + cpCmd
+										+ " exit value was " + xt);
+						}
+						SDFSLogger.getLog().info(
+								"executed " + cpCmd + " exit code was " + xt);
+						ievt.endEvent("Staging completed successfully");
+					} catch (Exception e) {
+						ievt.endEvent(e.getMessage(), SDFSEvent.ERROR);
+						throw e;
+					} finally {
+						// FileUtils.deleteDirectory(stg);
+						Process p = Runtime.getRuntime().exec("rm -rf " + stg);
+						p.waitFor();
+						f.delete();
+					}
+
+				}
+				MgmtServerConnection.baseHmac = MgmtServerConnection.initAuth(password,server,port,useSSL);
+				imp = new MetaFileImport(Main.volume.getPath() + File.separator
+						+ sdest, server, MgmtServerConnection.baseHmac, port, maxSz, evt, useSSL);
+				imp.runImport();
+				if (imp.isCorrupt()) {
+
+					// evt.endEvent("Import failed for " + srcArchive +
+					// " because not all the data could be imported from " +
+					// server,SDFSEvent.WARN);
+					SDFSLogger
+							.getLog()
+							.warn("Import failed for "
+									+ srcArchive
+									+ " because not all the data could be imported from "
+									+ server);
+					SDFSLogger.getLog().warn("rolling back import");
+					rollBackImport(Main.volume.getPath() + File.separator
+							+ sdest);
+					SDFSLogger.getLog().warn("Import rolled back");
+					throw new IOException(
+							"uable to import files: There are files that are missing blocks");
+				} else {
+					
+					commitImport(Main.volume.getPath() + File.separator + dest,
+							Main.volume.getPath() + File.separator + sdest);
+					DocumentBuilderFactory factory = DocumentBuilderFactory
+							.newInstance();
+					DocumentBuilder builder;
+					builder = factory.newDocumentBuilder();
+
+					DOMImplementation impl = builder.getDOMImplementation();
+					// Document.
+					Document doc = impl.createDocument(null,
+							"replication-import", null);
+					// Root element.
+					Element root = doc.getDocumentElement();
+					root.setAttribute("src", srcArchive);
+					root.setAttribute("dest", dest);
+					root.setAttribute("srcserver", server);
+					root.setAttribute("srcserverport", Integer.toString(port));
+					root.setAttribute("batchsize", Integer.toString(maxSz));
+					root.setAttribute("filesimported",
+							Long.toString(imp.getFilesProcessed()));
+					root.setAttribute("bytesimported",
+							Long.toString(imp.getBytesTransmitted()));
+					root.setAttribute("entriesimported",
+							Long.toString(imp.getEntries()));
+					root.setAttribute("virtualbytesimported",
+							Long.toString(imp.getVirtualBytesTransmitted()));
+					root.setAttribute("starttime",
+							Long.toString(imp.getStartTime()));
+					root.setAttribute("endtime",
+							Long.toString(imp.getEndTime()));
+					root.setAttribute("volume", Main.volume.getName());
+					root.setAttribute("volumeconfig",
+							Main.volume.getConfigPath());
+					evt.endEvent(srcArchive + " from " + server + ":" + port
+							+ " to " + dest + " imported successfully");
+					return (Element) root.cloneNode(true);
+				}
+			} catch (Exception e) {
+				SDFSLogger.getLog().warn("rolling back import ", e);
+				rollBackImport(Main.volume.getPath() + File.separator + sdest);
+				SDFSLogger.getLog().warn("Import rolled back");
+
+				if (!evt.isDone())
+					evt.endEvent("Import failed and was rolled back ",
+							SDFSEvent.ERROR, e);
+				throw e;
+			}
+		} finally {
+			try {
+
+			} catch (Exception e) {
+				if (SDFSLogger.isDebug())
+					SDFSLogger.getLog().debug("error", e);
+			}
+			runningJobs.remove(evt.uid);
+			l.unlock();
+		}
+
+	}
+
 	public static void main(String[] args) throws IOException {
 	}
 
@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Sam Silverberg sam.silverberg@gmail.com
+ *
+ * This file is part of OpenDedupe SDFS.
+ *
+ * OpenDedupe SDFS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDedupe SDFS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.opendedup.sdfs.replication;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+import org.opendedup.collections.HashtableFullException;
+import org.opendedup.collections.LongByteArrayMap;
+import org.opendedup.collections.SparseDataChunk;
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.io.FileClosedException;
+import org.opendedup.sdfs.io.HashLocPair;
+import org.opendedup.sdfs.io.MetaDataDedupFile;
+import org.opendedup.sdfs.io.WritableCacheBuffer;
+import org.opendedup.sdfs.notification.SDFSEvent;
+import org.opendedup.sdfs.servers.HCServiceProxy;
+import org.opendedup.util.CompressionUtils;
+import org.opendedup.util.RandomGUID;
+
+import com.google.common.primitives.Longs;
+
+/**
+ * Imports a stream written by @see ArchiveStreamWriter into the volume in a
+ * single pass. Chunks are written to the dedup store as they are read and map
+ * records are pointed at their local locations, so nothing is unpacked to
+ * disk and no blocks need to be fetched from the source afterwards. Every
+ * imported file gets a new map guid.
+ */
+public class ArchiveStreamReader {
+	private String dest = null;
+	private SDFSEvent evt = null;
+	private boolean closed = false;
+	private long filesImported = 0;
+	private long chunksImported = 0;
+	private long bytesImported = 0;
+	private long virtualBytesImported = 0;
+	private long startTime = 0;
+	private long endTime = 0;
+
+	/**
+	 * @param dest
+	 *            the path in the volume the root of the archive is imported
+	 *            to
+	 */
+	public ArchiveStreamReader(String dest, SDFSEvent evt) {
+		this.dest = dest;
+		this.evt = evt;
+	}
+
+	public void close() {
+		this.closed = true;
+	}
+
+	public void read(InputStream is) throws IOException, ReplicationCanceledException {
+		this.startTime = System.currentTimeMillis();
+		DataInputStream hdr = new DataInputStream(is);
+		if (hdr.readInt() != ArchiveStreamWriter.MAGIC)
+			throw new IOException("not an sdfs archive stream");
+		int version = hdr.readInt();
+		if (version > ArchiveStreamWriter.VERSION)
+			throw new IOException("unsupported archive stream version " + version);
+		byte comp = hdr.readByte();
+		InputStream cis = null;
+		if (comp == ArchiveStreamWriter.COMP_LZ4)
+			cis = CompressionUtils.decompressStream(is);
+		else if (comp == ArchiveStreamWriter.COMP_GZIP)
+			cis = new GZIPInputStream(is, 65536);
+		else
+			throw new IOException("unsupported archive stream compression " + comp);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(cis, 65536));
+		MetaDataDedupFile mf = null;
+		LongByteArrayMap mp = null;
+		try {
+			for (;;) {
+				if (this.closed)
+					throw new ReplicationCanceledException("archive import canceled");
+				byte t = in.readByte();
+				switch (t) {
+				case ArchiveStreamWriter.DIR:
+					this.getFile(in.readUTF()).mkdirs();
+					break;
+				case ArchiveStreamWriter.SYMLINK: {
+					File f = this.getFile(in.readUTF());
+					String target = in.readUTF();
+					f.getParentFile().mkdirs();
+					Files.createSymbolicLink(f.toPath(), Paths.get(target));
+					break;
+				}
+				case ArchiveStreamWriter.FILE: {
+					File f = this.getFile(in.readUTF());
+					byte[] md = new byte[in.readInt()];
+					in.readFully(md);
+					f.getParentFile().mkdirs();
+					FileOutputStream fout = new FileOutputStream(f);
+					try {
+						fout.write(md);
+					} finally {
+						fout.close();
+					}
+					mf = MetaDataDedupFile.getFile(f.getPath());
+					if (mf.getDfGuid() != null) {
+						mf.setDfGuid(RandomGUID.getGuid());
+						mp = LongByteArrayMap.getMap(mf.getDfGuid(), mf.getLookupFilter());
+					}
+					mf.setImporting(true);
+					mf.sync();
+					break;
+				}
+				case ArchiveStreamWriter.CHUNK: {
+					byte[] hash = new byte[in.readShort()];
+					in.readFully(hash);
+					byte[] data = new byte[in.readInt()];
+					in.readFully(data);
+					HCServiceProxy.writeChunk(hash, data, 1, mf.getLookupFilter(), null);
+					chunksImported++;
+					bytesImported += data.length;
+					break;
+				}
+				case ArchiveStreamWriter.MAP:
+					this.readMapRecord(in, mf, mp);
+					break;
+				case ArchiveStreamWriter.MAP_END:
+					if (mp != null) {
+						mp.close();
+						mp = null;
+					}
+					Main.volume.updateCurrentSize(mf.length(), true);
+					mf.setImporting(false);
+					mf.setDirty(true);
+					mf.sync();
+					if (mf.getDfGuid() != null)
+						mf.getDedupFile(false).forceRemoteSync();
+					virtualBytesImported += mf.length();
+					filesImported++;
+					mf = null;
+					if (evt != null)
+						evt.curCt = filesImported;
+					break;
+				case ArchiveStreamWriter.END:
+					this.endTime = System.currentTimeMillis();
+					SDFSLogger.getLog().info("imported [" + filesImported + "] files to " + dest + " with ["
+							+ chunksImported + "] chunks of [" + bytesImported + "] bytes");
+					return;
+				default:
+					throw new IOException("archive stream is corrupt, unknown record type " + t);
+				}
+			}
+		} catch (HashtableFullException | FileClosedException e) {
+			throw new IOException(e);
+		} finally {
+			if (mp != null)
+				mp.close();
+			if (mf != null)
+				mf.setImporting(false);
+		}
+	}
+
+	private void readMapRecord(DataInputStream in, MetaDataDedupFile mf, LongByteArrayMap mp)
+			throws IOException, HashtableFullException, FileClosedException {
+		long pos = in.readLong();
+		int doop = in.readInt();
+		int n = in.readInt();
+		TreeMap<Integer, HashLocPair> ar = new TreeMap<Integer, HashLocPair>();
+		for (int i = 0; i < n; i++) {
+			HashLocPair p = new HashLocPair();
+			p.hash = new byte[in.readShort()];
+			in.readFully(p.hash);
+			p.len = in.readInt();
+			p.pos = in.readInt();
+			p.offset = in.readInt();
+			p.nlen = in.readInt();
+			long loc = 0;
+			if (Main.refCount && Arrays.equals(WritableCacheBuffer.bk, p.hash))
+				loc = 1;
+			else
+				loc = HCServiceProxy.hashExists(p.hash, false, mf.getLookupFilter());
+			if (loc == -1)
+				throw new IOException("archive stream is missing a chunk for " + mf.getPath() + " at " + pos);
+			p.hashloc = Longs.toByteArray(loc);
+			ar.put(p.pos, p);
+		}
+		if (mp == null)
+			throw new IOException("map record found for file without a map " + mf.getPath());
+		mp.put(pos, new SparseDataChunk(doop, ar, false, mp.getVersion()));
+	}
+
+	private File getFile(String rel) throws IOException {
+		if (rel.contains(".."))
+			throw new IOException("invalid path in archive stream " + rel);
+		if (rel.length() == 0)
+			return new File(dest);
+		return new File(dest + File.separator + rel.replace('/', File.separatorChar));
+	}
+
+	public long getFilesImported() {
+		return filesImported;
+	}
+
+	public long getChunksImported() {
+		return chunksImported;
+	}
+
+	public long getBytesImported() {
+		return bytesImported;
+	}
+
+	public long getVirtualBytesImported() {
+		return virtualBytesImported;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public long getEndTime() {
+		return endTime;
+	}
+
+}
@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright (C) 2016 Sam Silverberg sam.silverberg@gmail.com
+ *
+ * This file is part of OpenDedupe SDFS.
+ *
+ * OpenDedupe SDFS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDedupe SDFS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package org.opendedup.sdfs.replication;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+import org.opendedup.collections.ByteArrayWrapper;
+import org.opendedup.collections.DataArchivedException;
+import org.opendedup.collections.LongByteArrayMap;
+import org.opendedup.collections.LongKeyValue;
+import org.opendedup.logging.SDFSLogger;
+import org.opendedup.sdfs.Main;
+import org.opendedup.sdfs.io.FileClosedException;
+import org.opendedup.sdfs.io.HashLocPair;
+import org.opendedup.sdfs.io.MetaDataDedupFile;
+import org.opendedup.sdfs.io.WritableCacheBuffer;
+import org.opendedup.sdfs.notification.SDFSEvent;
+import org.opendedup.sdfs.servers.HCServiceProxy;
+import org.opendedup.util.CompressionUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Writes a folder or file of the volume as a single sequential SDFS archive
+ * stream. The stream holds the metadata of every file, the records of its map
+ * and every unique chunk the maps reference. A chunk is written just before
+ * the first map record that uses it, so @see ArchiveStreamReader can
+ * import the stream in a single pass without staging anything on disk.
+ *
+ * The chunks already written are remembered up to MAX_SENT hashes, the least
+ * recently used are forgotten after that. A chunk that was forgotten is
+ * written again, which costs space in the stream and an extra reference to
+ * the chunk where it is imported.
+ *
+ * The stream starts with an uncompressed header of magic, version and
+ * compression type. Everything after the header is compressed.
+ */
+public class ArchiveStreamWriter {
+	public static final int MAGIC = 0x53444152;
+	public static final int VERSION = 1;
+	static final byte COMP_GZIP = 1;
+	static final byte COMP_LZ4 = 2;
+	static final byte DIR = 1;
+	static final byte FILE = 2;
+	static final byte SYMLINK = 3;
+	static final byte CHUNK = 4;
+	static final byte MAP = 5;
+	static final byte MAP_END = 6;
+	static final byte END = 7;
+	public static long MAX_SENT = 1000000;
+	private DataOutputStream out = null;
+	private Cache<ByteArrayWrapper, Boolean> sent = CacheBuilder.newBuilder().maximumSize(MAX_SENT)
+			.concurrencyLevel(1).build();
+	private SDFSEvent evt = null;
+	private long files = 0;
+	private long chunks = 0;
+	private long chunkBytes = 0;
+
+	public ArchiveStreamWriter(OutputStream os, boolean lz4, SDFSEvent evt) throws IOException {
+		this.evt = evt;
+		DataOutputStream hdr = new DataOutputStream(os);
+		hdr.writeInt(MAGIC);
+		hdr.writeInt(VERSION);
+		OutputStream cos = null;
+		if (lz4) {
+			hdr.writeByte(COMP_LZ4);
+			cos = CompressionUtils.compressStream(os);
+		} else {
+			hdr.writeByte(COMP_GZIP);
+			cos = new GZIPOutputStream(os, 65536);
+		}
+		hdr.flush();
+		this.out = new DataOutputStream(new BufferedOutputStream(cos, 65536));
+	}
+
+	/**
+	 * Writes a file or folder and everything below it. Paths in the stream are
+	 * relative to root.
+	 */
+	public void write(File root) throws IOException, DataArchivedException {
+		this.write(root, "");
+		out.writeByte(END);
+		out.flush();
+		SDFSLogger.getLog().info("archived [" + files + "] files from " + root.getPath() + " with [" + chunks
+				+ "] unique chunks of [" + chunkBytes + "] bytes");
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+
+	private void write(File f, String rel) throws IOException, DataArchivedException {
+		Path p = f.toPath();
+		if (Files.isSymbolicLink(p)) {
+			out.writeByte(SYMLINK);
+			out.writeUTF(rel);
+			out.writeUTF(Files.readSymbolicLink(p).toString());
+		} else if (f.isDirectory()) {
+			out.writeByte(DIR);
+			out.writeUTF(rel);
+			String[] children = f.list();
+			for (String child : children) {
+				String crel = rel.length() == 0 ? child : rel + "/" + child;
+				this.write(new File(f, child), crel);
+			}
+		} else {
+			this.writeFile(f, rel);
+		}
+	}
+
+	private void writeFile(File f, String rel) throws IOException, DataArchivedException {
+		MetaDataDedupFile mf = MetaDataDedupFile.getFile(f.getPath());
+		mf.sync();
+		byte[] md = Files.readAllBytes(f.toPath());
+		out.writeByte(FILE);
+		out.writeUTF(rel);
+		out.writeInt(md.length);
+		out.write(md);
+		if (mf.getDfGuid() != null) {
+			LongByteArrayMap mp = LongByteArrayMap.getMap(mf.getDfGuid(), mf.getLookupFilter());
+			try {
+				mp.iterInit();
+				LongKeyValue kv = null;
+				while ((kv = mp.nextKeyValue(false)) != null) {
+					TreeMap<Integer, HashLocPair> ar = kv.getValue().getFingers();
+					for (HashLocPair pr : ar.values()) {
+						this.writeChunk(pr);
+					}
+					out.writeByte(MAP);
+					out.writeLong(kv.getKey());
+					out.writeInt(kv.getValue().getDoop());
+					out.writeInt(ar.size());
+					for (HashLocPair pr : ar.values()) {
+						out.writeShort(pr.hash.length);
+						out.write(pr.hash);
+						out.writeInt(pr.len);
+						out.writeInt(pr.pos);
+						out.writeInt(pr.offset);
+						out.writeInt(pr.nlen);
+					}
+				}
+			} catch (FileClosedException e) {
+				throw new IOException(e);
+			} finally {
+				mp.close();
+			}
+		}
+		out.writeByte(MAP_END);
+		files++;
+		if (evt != null)
+			evt.curCt = files;
+	}
+
+	private void writeChunk(HashLocPair pr) throws IOException, DataArchivedException {
+		if (Main.refCount && Arrays.equals(pr.hash, WritableCacheBuffer.bk))
+			return;
+		ByteArrayWrapper w = new ByteArrayWrapper(pr.hash);
+		if (sent.getIfPresent(w) != null)
+			return;
+		byte[] data = HCServiceProxy.fetchChunk(pr.hash, pr.hashloc, true);
+		out.writeByte(CHUNK);
+		out.writeShort(pr.hash.length);
+		out.write(pr.hash);
+		out.writeInt(data.length);
+		out.write(data);
+		sent.put(w, Boolean.TRUE);
+		chunks++;
+		chunkBytes += data.length;
+	}
+
+	public long getFiles() {
+		return files;
+	}
+
+	public long getChunks() {
+		return chunks;
+	}
+
+	public long getChunkBytes() {
+		return chunkBytes;
+	}
+
+}
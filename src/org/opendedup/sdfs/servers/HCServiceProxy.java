@@ -22,8 +22,10 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
 import org.opendedup.collections.AbstractHashesMap;
+import org.opendedup.collections.CassandraDBMap;
 import org.opendedup.collections.DataArchivedException;
 import org.opendedup.collections.HashtableFullException;
 import org.opendedup.collections.InsertRecord;
@@ -191,6 +193,24 @@ public class HCServiceProxy {
 		return hcService.mightContainKey(key,id);
 	}
 
+	/**
+	 * Looks up a batch of hashes that are about to be written in the cluster
+	 * index of a clustered volume so that the writes do not wait on a lookup
+	 * each.
+	 */
+	public static void prefetchHashes(List<byte[]> hashes) {
+		if (!Main.volume.isClustered())
+			return;
+		AbstractHashesMap m = getHashesMap();
+		if (m instanceof CassandraDBMap) {
+			try {
+				((CassandraDBMap) m).prefetch(hashes);
+			} catch (Exception e) {
+				SDFSLogger.getLog().debug("unable to prefetch hashes", e);
+			}
+		}
+	}
+
 	public static AbstractHashesMap getHashesMap() {
 			return hcService.getHashesMap();
 	}
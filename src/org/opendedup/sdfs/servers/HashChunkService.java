@@ -29,12 +29,15 @@ import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Main;
 import org.opendedup.sdfs.filestore.AbstractChunkStore;
 import org.opendedup.sdfs.filestore.ConsistancyCheck;
+import org.opendedup.sdfs.filestore.HashBlobArchive;
 import org.opendedup.sdfs.filestore.HashChunk;
 import org.opendedup.sdfs.filestore.HashStore;
 import org.opendedup.sdfs.filestore.cloud.AbstractCloudFileSync;
 import org.opendedup.sdfs.filestore.cloud.RemoteVolumeInfo;
 import org.opendedup.sdfs.notification.SDFSEvent;
 
+import com.google.common.primitives.Longs;
+
 public class HashChunkService implements HashChunkServiceInterface {
 
 	private double kBytesRead;
@@ -108,6 +111,9 @@ public class HashChunkService implements HashChunkServiceInterface {
 			}
 		} else {
 			dupsFound++;
+			// keep archives that new writes dedup against local
+			if (written.getHashLocs() != null && written.getHashLocs().length >= 8)
+				HashBlobArchive.pinArchive(Longs.fromByteArray(written.getHashLocs()));
 		}
 		return written;
 	}
@@ -18,10 +18,12 @@
  *******************************************************************************/
 package org.opendedup.sdfs.servers;
 
+import java.io.File;
 import java.util.ArrayList;
 
 import java.util.Properties;
 
+import org.opendedup.collections.MapJournal;
 import org.opendedup.hashing.HashFunctionPool;
 import org.opendedup.logging.SDFSLogger;
 import org.opendedup.sdfs.Config;
@@ -29,6 +31,7 @@ import org.opendedup.sdfs.Main;
 import org.opendedup.sdfs.filestore.DedupFileStore;
 import org.opendedup.sdfs.filestore.MetaFileStore;
 import org.opendedup.sdfs.filestore.gc.StandAloneGCScheduler;
+import org.opendedup.sdfs.io.SmallWriteLog;
 import org.opendedup.sdfs.mgmt.MgmtWebServer;
 import org.opendedup.sdfs.notification.SDFSEvent;
 import org.opendedup.util.OSValidator;
@@ -82,9 +85,14 @@ public class SDFSService {
 			SDFSLogger.getLog().info("HashFunction Min Block Size=" + HashFunctionPool.minLen + " Max Block Size="
 					+ HashFunctionPool.maxLen);
 		Main.DSEID = Main.volume.getSerialNumber();
+		HashFunctionPool.checkHashType(new File(Main.dedupDBStore).getParent());
 		SDFSLogger.getLog().debug("HCServiceProxy Starting");
 		HCServiceProxy.init(volumes);
 		SDFSLogger.getLog().debug("HCServiceProxy Started");
+		if (Main.mapJournal)
+			MapJournal.open(new File(Main.dedupDBStore).getParent() + File.separator + "mapjournal");
+		if (Main.smallWriteLog)
+			SmallWriteLog.open(new File(Main.dedupDBStore).getParent() + File.separator + "smallwritelog");
 		MgmtWebServer.start(useSSL);
 
 		Main.pFullSched = new StandAloneGCScheduler();
@@ -129,6 +137,8 @@ public class SDFSService {
 			System.out.println("Meta File store did not close correctly");
 			SDFSLogger.getLog().error("Meta File store did not close correctly", e);
 		}
+		SmallWriteLog.close();
+		MapJournal.close();
 		SDFSLogger.getLog().info("Open File Committed");
 		SDFSLogger.getLog().info("Writing Config File");
 
@@ -24,6 +24,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
@@ -138,6 +140,18 @@ public class CompressionUtils {
 		
 	}
 
+	/**
+	 * Wraps a stream so that data written to it is compressed in the same
+	 * format as @see #compressFile(File, File) .
+	 */
+	public static OutputStream compressStream(OutputStream out) {
+		return new LZ4BlockOutputStream(out, 1 << 16, lz4Compressor);
+	}
+
+	public static InputStream decompressStream(InputStream in) {
+		return new LZ4BlockInputStream(in, lz4Decompressor);
+	}
+
 	public static void decompressFile(File src, File dst) throws IOException {
 		if (!dst.getParentFile().exists())
 			dst.getParentFile().mkdirs();
@@ -22,11 +22,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.Security;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -42,6 +48,34 @@ public class EncryptUtils {
 	public static final byte[] iv = StringUtils.getHexBytes(Main.chunkStoreEncryptionIV);
 	public static byte[] oldKeyBytes = null;
 	private static final IvParameterSpec spec = new IvParameterSpec(iv);
+	/**
+	 * Marker that prefixes chunks encrypted with AES/GCM. Chunks without it are
+	 * legacy AES/CBC chunks.
+	 */
+	public static final int GCM_MAGIC = 0x53474331;
+	private static final int GCM_NONCE_LEN = 12;
+	private static final int GCM_TAG_LEN = 16;
+	public static final int GCM_HEADER_LEN = 4 + GCM_NONCE_LEN;
+	private static final ThreadLocal<Cipher> gcmCiphers = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			try {
+				return Cipher.getInstance("AES/GCM/NoPadding");
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+	private static final ThreadLocal<Cipher> cbcCiphers = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			try {
+				return Cipher.getInstance("AES/CBC/PKCS5Padding");
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
 	static {
 		try {
 			keyBytes = HashFunctions.getSHAHashBytes(Main.chunkStoreEncryptionKey.getBytes());
@@ -129,7 +163,7 @@ public class EncryptUtils {
 
 	public static byte[] decryptCBC(byte[] encChunk, IvParameterSpec cspec) throws IOException {
 		try {
-			Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+			Cipher cipher = cbcCiphers.get();
 			cipher.init(Cipher.DECRYPT_MODE, key, cspec);
 			byte[] decrypted = cipher.doFinal(encChunk);
 			return decrypted;
@@ -149,7 +183,7 @@ public class EncryptUtils {
 
 	public static byte[] encryptCBC(byte[] chunk, IvParameterSpec cspec) throws IOException {
 		try {
-			Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+			Cipher cipher = cbcCiphers.get();
 			cipher.init(Cipher.ENCRYPT_MODE, key, cspec);
 			byte[] encrypted = cipher.doFinal(chunk);
 			return encrypted;
@@ -159,6 +193,74 @@ public class EncryptUtils {
 		}
 	}
 
+	public static boolean isGCMMode() {
+		return Main.chunkStoreEncryptionMode.equalsIgnoreCase("gcm");
+	}
+
+	/**
+	 * Returns the number of bytes a chunk of len bytes takes once encrypted with
+	 * {@link #encryptGCM(ByteBuffer, ByteBuffer, byte[], long, long)}
+	 */
+	public static int gcmLength(int len) {
+		return GCM_HEADER_LEN + len + GCM_TAG_LEN;
+	}
+
+	/**
+	 * Encrypts src into dst with AES/GCM. The 12 byte nonce is built from the
+	 * archive id and the offset the chunk is written at in that archive and is
+	 * stored in front of the cipher text so chunks can be moved between
+	 * archives. aad is authenticated but not encrypted.
+	 */
+	public static void encryptGCM(ByteBuffer src, ByteBuffer dst, byte[] aad, long id, long pos)
+			throws IOException {
+		try {
+			byte[] nonce = new byte[GCM_NONCE_LEN];
+			ByteBuffer nb = ByteBuffer.wrap(nonce);
+			nb.putLong(id);
+			nb.putInt((int) pos);
+			Cipher cipher = gcmCiphers.get();
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LEN * 8, nonce));
+			if (aad != null)
+				cipher.updateAAD(aad);
+			dst.putInt(GCM_MAGIC);
+			dst.put(nonce);
+			cipher.doFinal(src, dst);
+		} catch (Exception ce) {
+			SDFSLogger.getLog().error("uable to encrypt", ce);
+			throw new IOException(ce);
+		}
+	}
+
+	public static boolean isGCM(byte[] encChunk) {
+		if (encChunk.length < GCM_HEADER_LEN + GCM_TAG_LEN)
+			return false;
+		return ByteBuffer.wrap(encChunk).getInt() == GCM_MAGIC;
+	}
+
+	/**
+	 * Decrypts and authenticates a chunk written by
+	 * {@link #encryptGCM(ByteBuffer, ByteBuffer, byte[], long, long)}.
+	 * 
+	 * @throws AEADBadTagException
+	 *             if the chunk or aad has been tampered with
+	 */
+	public static byte[] decryptGCM(byte[] encChunk, byte[] aad) throws IOException, AEADBadTagException {
+		try {
+			Cipher cipher = gcmCiphers.get();
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LEN * 8, encChunk, 4, GCM_NONCE_LEN));
+			if (aad != null)
+				cipher.updateAAD(aad);
+			byte[] decrypted = new byte[encChunk.length - GCM_HEADER_LEN - GCM_TAG_LEN];
+			cipher.doFinal(encChunk, GCM_HEADER_LEN, encChunk.length - GCM_HEADER_LEN, decrypted, 0);
+			return decrypted;
+		} catch (AEADBadTagException e) {
+			throw e;
+		} catch (Exception ce) {
+			SDFSLogger.getLog().error("uable to decrypt", ce);
+			throw new IOException(ce);
+		}
+	}
+
 	public static byte[] decryptCBC(byte[] encChunk, String passwd, String iv) throws IOException {
 
 		try {
@@ -209,6 +311,34 @@ public class EncryptUtils {
 		fis.close();
 	}
 
+	/**
+	 * Wraps a stream so that data written to it is encrypted in the same format
+	 * as @see #encryptFile(File, File, IvParameterSpec) .
+	 */
+	public static OutputStream encryptStream(OutputStream out, IvParameterSpec ivspec)
+			throws GeneralSecurityException {
+		Cipher encrypt = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		encrypt.init(Cipher.ENCRYPT_MODE, key, ivspec);
+		return new CipherOutputStream(out, encrypt);
+	}
+
+	/**
+	 * Wraps a stream so that data read from it is decrypted. If ivspec is null
+	 * the default iv is used. When useOldKey is true the key used before the
+	 * encryption key was set is used instead.
+	 */
+	public static InputStream decryptStream(InputStream in, IvParameterSpec ivspec, boolean useOldKey)
+			throws GeneralSecurityException {
+		if (ivspec == null)
+			ivspec = spec;
+		Cipher encrypt = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		if (useOldKey)
+			encrypt.init(Cipher.DECRYPT_MODE, oldKey, ivspec);
+		else
+			encrypt.init(Cipher.DECRYPT_MODE, key, ivspec);
+		return new CipherInputStream(in, encrypt);
+	}
+
 	public static void decryptFile(File src, File dst) throws Exception {
 		try {
 			if (!dst.getParentFile().exists())
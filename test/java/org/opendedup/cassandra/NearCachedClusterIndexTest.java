@@ -0,0 +1,112 @@
+package org.opendedup.cassandra;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Checks the @see NearCachedClusterIndex against the @see MemoryClusterIndex
+ * it wraps.
+ */
+public class NearCachedClusterIndexTest extends TestCase {
+	private MemoryClusterIndex mi;
+	private NearCachedClusterIndex ci;
+	private ArrayList<byte[]> keys;
+	private String[] ekeys;
+
+	@Override
+	protected void setUp() {
+		mi = new MemoryClusterIndex();
+		ci = new NearCachedClusterIndex(mi, 1000, 60);
+		Random rnd = new Random(1);
+		keys = new ArrayList<byte[]>();
+		ekeys = new String[100];
+		for (int i = 0; i < ekeys.length; i++) {
+			byte[] key = new byte[16];
+			rnd.nextBytes(key);
+			keys.add(key);
+			ekeys[i] = BaseEncoding.base64Url().encode(key);
+		}
+	}
+
+	@Override
+	protected void tearDown() {
+		ci.close();
+	}
+
+	public void testMissesAreCached() {
+		for (long id : ci.getHashes(keys)) {
+			assertEquals(-1, id);
+		}
+		assertEquals(keys.size(), ci.getMisses());
+		// added behind the cache so only the cached misses are seen
+		mi.setHashes(ekeys, 78);
+		for (long id : ci.getHashes(keys)) {
+			assertEquals(-1, id);
+		}
+		assertEquals(-1, ci.getHash(keys.get(0)));
+		assertEquals(keys.size() + 1, ci.getHits());
+		assertEquals(keys.size(), ci.getMisses());
+	}
+
+	public void testHitsAreCached() {
+		mi.setHashes(ekeys, 78);
+		assertEquals(78, ci.getHash(keys.get(0)));
+		assertEquals(1, ci.getMisses());
+		for (long id : ci.getHashes(keys)) {
+			assertEquals(78, id);
+		}
+		assertEquals(1, ci.getHits());
+		assertEquals(keys.size(), ci.getMisses());
+		mi.deleteRef(78);
+		assertEquals(78, ci.getHash(keys.get(1)));
+		assertEquals(2, ci.getHits());
+	}
+
+	public void testSetHashesTurnsMissIntoHit() {
+		assertEquals(-1, ci.getHash(keys.get(0)));
+		ci.setHashes(ekeys, 78);
+		ci.insertHashes(78, ekeys, 6442L);
+		assertEquals(78, ci.getHash(keys.get(0)));
+		assertEquals(1, ci.getHits());
+		assertEquals(1, ci.getMisses());
+	}
+
+	public void testAddRMRefInvalidates() {
+		ci.setHashes(ekeys, 78);
+		ci.insertHashes(78, ekeys, 6442L);
+		String[] other = new String[] { ekeys[0] };
+		ci.setHashes(new String[] { ekeys[1] }, 79);
+		ci.addRMRef(78);
+		assertEquals(-1, ci.getHash(keys.get(0)));
+		assertEquals(79, ci.getHash(keys.get(1)));
+		assertEquals(1, ci.getHits());
+		assertEquals(1, ci.getMisses());
+		ci.delRMRef(78);
+		ci.setHashes(other, 78);
+		assertEquals(78, ci.getHash(keys.get(0)));
+	}
+
+	public void testDeleteRefInvalidates() {
+		ci.setHashes(ekeys, 78);
+		ci.insertHashes(78, ekeys, 6442L);
+		ci.deleteRef(78);
+		for (long id : ci.getHashes(keys)) {
+			assertEquals(-1, id);
+		}
+		assertEquals(0, ci.getHits());
+		assertEquals(keys.size(), ci.getMisses());
+		// the archive is tracked again once it is reused
+		ci.setHashes(ekeys, 78);
+		ci.insertHashes(78, ekeys, 6442L);
+		assertEquals(78, ci.getHash(keys.get(2)));
+		ci.deleteRef(78);
+		assertEquals(-1, ci.getHash(keys.get(2)));
+		assertEquals(1, ci.getHits());
+		assertEquals(keys.size() + 1, ci.getMisses());
+	}
+
+}